@@ -23,6 +23,8 @@ import java.io.InputStream;
 import java.io.OutputStream;
 
 import org.silvertunnel_ng.netlib.api.NetSocket;
+import org.silvertunnel_ng.netlib.util.NetlibThreads;
+import org.silvertunnel_ng.netlib.util.NetlibThreads.Subsystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -98,14 +100,14 @@ public class InterconnectUtil
 			final OutputStream out2, final int bufferSize)
 	{
 		// open the first of two new threads
-		new Thread(createUniqueThreadName())
+		NetlibThreads.start(Subsystem.INTERCONNECT, createUniqueThreadName(), new Runnable()
 		{
 			@Override
 			public void run()
 			{
 				relayInTwoThreads(in1, out1, in2, out2, bufferSize);
 			}
-		}.start();
+		}, false);
 	}
 
 	/**
@@ -228,14 +230,14 @@ public class InterconnectUtil
 		tryToClose.value = false;
 
 		// open the new thread for direction 1
-		new Thread(createUniqueThreadName())
+		NetlibThreads.start(Subsystem.INTERCONNECT, createUniqueThreadName(), new Runnable()
 		{
 			@Override
 			public void run()
 			{
 				relayOneDirection2(" >1> ", in1, out1, bufferSize, tryToClose);
 			}
-		}.start();
+		}, false);
 
 		// current thread for direction 2
 		relayOneDirection2(" <2< ", in2, out2, bufferSize, tryToClose);
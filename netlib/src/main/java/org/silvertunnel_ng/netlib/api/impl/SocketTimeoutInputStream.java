@@ -23,6 +23,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.SocketTimeoutException;
 
+import org.silvertunnel_ng.netlib.util.NetlibThreads;
+import org.silvertunnel_ng.netlib.util.NetlibThreads.Subsystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,7 +46,7 @@ public class SocketTimeoutInputStream extends FilterInputStream
 	volatile boolean waitingForClose;
 
 	/** null if thread is terminated. */
-	private final SocketTimeoutInputStreamThread thread;
+	private final Thread thread;
 
 	/** site ring buffer to store the data. */
 	private static final int BUFFER_SIZE = 4096;
@@ -72,8 +74,8 @@ public class SocketTimeoutInputStream extends FilterInputStream
 		super(in);
 		this.timeout = timeout;
 
-		thread = new SocketTimeoutInputStreamThread(this, in);
-		thread.start();
+		thread = NetlibThreads.start(Subsystem.SOCKET_TIMEOUT, SocketTimeoutInputStreamThread.createThreadName(),
+				new SocketTimeoutInputStreamThread(this, in), true);
 	}
 
 	/**
@@ -31,7 +31,7 @@ import org.slf4j.LoggerFactory;
 /**
  * Background thread of class SocketTimeoutInputStream.
  */
-class SocketTimeoutInputStreamThread extends Thread
+class SocketTimeoutInputStreamThread implements Runnable
 {
 	/** */
 	private static final Logger LOG = LoggerFactory.getLogger(SocketTimeoutInputStreamThread.class);
@@ -46,13 +46,11 @@ class SocketTimeoutInputStreamThread extends Thread
 	SocketTimeoutInputStreamThread(final SocketTimeoutInputStream socketTimeoutInputStream,
 	                               final InputStream wrappedInputStream)
 	{
-		super(createThreadName());
 		this.stis = socketTimeoutInputStream;
 		this.wrappedInputStream = wrappedInputStream;
-		setDaemon(true);
 	}
 
-	private static synchronized String createThreadName()
+	static synchronized String createThreadName()
 	{
 		return Thread.currentThread().getName()
 				+ " - SocketTimeoutInputStreamThread (created="
@@ -43,6 +43,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.WeakHashMap;
 
+import org.silvertunnel_ng.netlib.util.NetlibThreads;
+import org.silvertunnel_ng.netlib.util.NetlibThreads.Subsystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,7 +55,7 @@ import org.slf4j.LoggerFactory;
  * @author hapke
  * @author Tobias Boese
  */
-public class ControlNetSocketThread extends Thread
+public class ControlNetSocketThread implements Runnable
 {
 	/** */
 	private static final Logger LOG = LoggerFactory.getLogger(ControlNetSocketThread.class);
@@ -70,9 +72,7 @@ public class ControlNetSocketThread extends Thread
 		{
 			// first class access: start a single instance of this thread now
 			instance = new ControlNetSocketThread();
-			instance.setName("ControlNetSocketThread");
-			instance.setDaemon(true);
-			instance.start();
+			NetlibThreads.start(Subsystem.CONTROL, "ControlNetSocketThread", instance, true);
 			LOG.info("ControlNetSocketThread instance started");
 
 		}
@@ -34,6 +34,8 @@ import org.silvertunnel_ng.netlib.api.impl.DataNetSocketUtil;
 import org.silvertunnel_ng.netlib.api.impl.DataNetSocketWrapper;
 import org.silvertunnel_ng.netlib.api.impl.InterconnectUtil;
 import org.silvertunnel_ng.netlib.api.util.TcpipNetAddress;
+import org.silvertunnel_ng.netlib.util.NetlibThreads;
+import org.silvertunnel_ng.netlib.util.NetlibThreads.Subsystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -101,7 +103,7 @@ public class SocksServerNetSession implements Runnable
 		socksOut = higherLayerSocketInternallyUsed.getDataOutputStream();
 
 		// start background processing
-		new Thread(this, createUniqueThreadName()).start();
+		NetlibThreads.start(Subsystem.SOCKS, createUniqueThreadName(), this, false);
 
 		return higherLayerSocketExported;
 	}
@@ -75,21 +75,7 @@ public class TLSNetSocketUtil {
             }
         }
         // create TLS/SSL socket factory
-        SSLContext context = null;
-        try {
-            context = SSLContext.getInstance("TLS");
-            context.init(keyManagers, trustManagers, null);
-        } catch (final NoSuchAlgorithmException e) {
-            final IOException ioe = new IOException();
-            ioe.initCause(e);
-            LOG.debug("Got Exception during SSLContext init", e);
-            throw ioe;
-        } catch (final KeyManagementException e) {
-            final IOException ioe = new IOException();
-            ioe.initCause(e);
-            LOG.debug("Got Exception during SSLContext init", e);
-            throw ioe;
-        }
+        final SSLContext context = createSSLContext(keyManagers, trustManagers);
 
         final SSLSocketFactory f = context.getSocketFactory();
 
@@ -124,4 +110,31 @@ public class TLSNetSocketUtil {
         return new TLSNetSocket(new Socket2NetSocket(resultSocket),
                 resultSocket.getSession(), "" + lowerLayerNetSocket);
     }
+
+    /**
+     * Create and initialize a TLS context.
+     *
+     * @param keyManagers   if null, the now local keys are used
+     * @param trustManagers if null, the default trust managers are used
+     * @return the context
+     * @throws IOException if the context could not be created
+     */
+    public static SSLContext createSSLContext(KeyManager[] keyManagers,
+                                              TrustManager[] trustManagers) throws IOException {
+        try {
+            final SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers, trustManagers, null);
+            return context;
+        } catch (final NoSuchAlgorithmException e) {
+            final IOException ioe = new IOException();
+            ioe.initCause(e);
+            LOG.debug("Got Exception during SSLContext init", e);
+            throw ioe;
+        } catch (final KeyManagementException e) {
+            final IOException ioe = new IOException();
+            ioe.initCause(e);
+            LOG.debug("Got Exception during SSLContext init", e);
+            throw ioe;
+        }
+    }
 }
@@ -61,6 +61,14 @@ public interface Router {
 
     int getBandwidthObserved();
 
+    /**
+     * Get the bandwidth the consensus assigns to the router (the measured
+     * "w Bandwidth=" value).
+     *
+     * @return the bandwidth in kilobytes per second, -1 if unknown
+     */
+    int getConsensusBandwidth();
+
     String getPlatform();
 
     long getPublished();
@@ -116,6 +124,15 @@ public interface Router {
 
     boolean exitPolicyAccepts(final InetAddress addr, final int port);
 
+    /**
+     * Check whether the exit policy allows connections to the port for at
+     * least one address.
+     *
+     * @param port the port
+     * @return false if connections to the port are rejected for all addresses
+     */
+    boolean exitPolicyMayAccept(final int port);
+
     void save(ConvenientStreamWriter convenientStreamWriter) throws IOException;
 
     float getRefinedRankingIndex(final float p);
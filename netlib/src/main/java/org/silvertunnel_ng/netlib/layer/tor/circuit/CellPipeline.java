@@ -0,0 +1,143 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package org.silvertunnel_ng.netlib.layer.tor.circuit;
+
+import org.silvertunnel_ng.netlib.layer.tor.circuit.cells.Cell;
+import org.silvertunnel_ng.netlib.layer.tor.common.TorConfig;
+import org.silvertunnel_ng.netlib.util.NetlibThreads;
+import org.silvertunnel_ng.netlib.util.NetlibThreads.Subsystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * the received cells of one circuit, waiting to be decrypted and delivered.
+ *
+ * The thread reading a TLS connection only frames the cells and appends them
+ * to the pipeline of their circuit. The pipelines are processed by a shared
+ * pool of threads, but each pipeline by at most one thread at a time, so the
+ * cells of a circuit are delivered in the order they were received while
+ * different circuits are processed in parallel. A slow consumer or a burst on
+ * one circuit does not stall the other circuits of the connection anymore.
+ *
+ * A pipeline gives up its thread after {@link #MAX_CELLS_PER_RUN} cells so a
+ * busy circuit does not starve the others if the pool is small. The number of
+ * queued cells is limited by the flow control windows.
+ *
+ * @author Tobias Boese
+ * @see TLSCellDispatcher
+ */
+final class CellPipeline implements Runnable {
+    /** */
+    private static final Logger LOG = LoggerFactory.getLogger(CellPipeline.class);
+
+    /** number of cells delivered before the thread is given to the next pipeline. */
+    static final int MAX_CELLS_PER_RUN = 32;
+    /** how long an idle thread of the pool is kept. */
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    /** the threads processing the pipelines of all circuits; created when needed. */
+    private static volatile Executor executor;
+
+    private final Circuit circuit;
+    private final ConcurrentLinkedQueue<Cell> cells = new ConcurrentLinkedQueue<Cell>();
+    /** true while the pipeline is queued at or processed by the executor. */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    /** the dispatcher of the connection of the circuit. */
+    private volatile TLSCellDispatcher dispatcher;
+
+    /**
+     * @param circuit the circuit the cells belong to
+     */
+    CellPipeline(final Circuit circuit) {
+        this.circuit = circuit;
+    }
+
+    /**
+     * queue a received cell for delivery.
+     *
+     * @param cell       the cell
+     * @param dispatcher the dispatcher which delivers the cell
+     */
+    void add(final Cell cell, final TLSCellDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+        cells.add(cell);
+        if (scheduled.compareAndSet(false, true)) {
+            getExecutor().execute(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        int delivered = 0;
+        while (true) {
+            final Cell cell = cells.poll();
+            if (cell == null) {
+                scheduled.set(false);
+                // a cell added after poll() but before set(false) did not schedule us
+                if (cells.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+            try {
+                dispatcher.deliver(circuit, cell);
+            } catch (final RuntimeException e) {
+                LOG.warn("exception while delivering cell to {}", circuit, e);
+            }
+            if (++delivered >= MAX_CELLS_PER_RUN && !cells.isEmpty()) {
+                // still scheduled: continue later, after the other pipelines
+                getExecutor().execute(this);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return number of cells waiting for delivery
+     */
+    int size() {
+        return cells.size();
+    }
+
+    private static Executor getExecutor() {
+        Executor result = executor;
+        if (result == null) {
+            synchronized (CellPipeline.class) {
+                result = executor;
+                if (result == null) {
+                    final int threads = Math.max(1, TorConfig.getCellDispatchThreads());
+                    final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                            KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(),
+                            NetlibThreads.threadFactory(Subsystem.CIRCUIT, "CellPipeline", true));
+                    pool.allowCoreThreadTimeOut(true);
+                    executor = pool;
+                    result = pool;
+                }
+            }
+        }
+        return result;
+    }
+}
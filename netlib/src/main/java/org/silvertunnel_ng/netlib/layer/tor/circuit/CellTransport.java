@@ -0,0 +1,45 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.circuit;
+
+import java.io.IOException;
+
+/**
+ * the outbound side of a TLS connection to an onion router.
+ *
+ * @author Tobias Boese
+ * @see TLSWriterThread
+ * @see NioTLSChannel
+ */
+interface CellTransport {
+    /**
+     * queue an encrypted cell for transmission. Blocks while too many cells
+     * are waiting to be written.
+     *
+     * @param cell the cell as byte array
+     * @throws IOException if the connection is (or gets) closed
+     */
+    void write(byte[] cell) throws IOException;
+
+    /**
+     * close the transport; cells which are already queued are written first
+     * (best effort).
+     */
+    void close();
+}
@@ -60,16 +60,20 @@ import org.silvertunnel_ng.netlib.layer.tor.common.TCPStreamProperties;
 import org.silvertunnel_ng.netlib.layer.tor.common.TorConfig;
 import org.silvertunnel_ng.netlib.layer.tor.common.TorEvent;
 import org.silvertunnel_ng.netlib.layer.tor.common.TorEventService;
+import org.silvertunnel_ng.netlib.layer.tor.directory.ConsensusParams;
 import org.silvertunnel_ng.netlib.layer.tor.directory.Directory;
 import org.silvertunnel_ng.netlib.layer.tor.directory.RendezvousServiceDescriptor;
 import org.silvertunnel_ng.netlib.layer.tor.hiddenservice.HiddenServiceProperties;
 import org.silvertunnel_ng.netlib.layer.tor.util.*;
 import org.silvertunnel_ng.netlib.util.ByteArrayUtil;
+import org.silvertunnel_ng.netlib.util.NetlibThreads;
+import org.silvertunnel_ng.netlib.util.NetlibThreads.Subsystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * handles the functionality of creating circuits, given a certain route and
@@ -85,30 +89,18 @@ import java.util.*;
 public final class Circuit {
     /** */
     private static final Logger LOG = LoggerFactory.getLogger(Circuit.class);
-
-    /**
-     * Circuit Window receive standard value. (see tor-spec.txt 7.3)
-     */
-    private static final int CIRCUIT_LEVEL_FLOW_RECV = 1000; // TODO : extract circwindow from directory and use it here if it is set.
-    /**
-     * current circuit receive window.
-     * <br>
-     * How many RELAY_DATA cells did we received? If this drops below a specific
-     * threshold we should send a RELAY_SENDME cell.
-     */
-    private int circuitFlowRecv = CIRCUIT_LEVEL_FLOW_RECV;
     /**
-     * current circuit send window.
-     * <br>
-     * How many RELAY_DATA cells did we send? If this drops below a specific
-     * threshold we should wait for a RELAY_SENDME cell before sending new
-     * RELAY_DATA cells.
+     * increment used for circuit level flow control (as described in
+     * tor-spec.txt 7.4); fixed for circuits without congestion control, the
+     * relay always credits 100 cells per RELAY_SENDME.
      */
-    private int circuitFlowSend = CIRCUIT_LEVEL_FLOW_RECV;
+    static final int CIRCUIT_LEVEL_FLOW_INCREMENT = 100;
+
     /**
-     * Standard circuit receive. window increment value.
+     * circuit level package and deliver window. (see tor-spec.txt 7.3)
+     * The window size and increment are taken from the consensus.
      */
-    private static final int CIRCUIT_LEVEL_FLOW_RECV_INC = 100;
+    private final transient FlowControl flowControl;
 
     /**  */
     public static volatile int numberOfCircuitsInConstructor = 0;
@@ -124,6 +116,10 @@ public final class Circuit {
      * number of nodes in the route,og. where the keys have been established.
      */
     private int routeEstablished;
+    /**
+     * the routers counted as used by {@link CircuitAdmin#addUsedNodes(Fingerprint[])}; null when released.
+     */
+    private final AtomicReference<Fingerprint[]> usedNodes = new AtomicReference<Fingerprint[]>();
     /**
      * used to receive incoming data.
      */
@@ -141,7 +137,9 @@ public final class Circuit {
      * <br>
      * key=stream ID, value=stream
      */
-    private final transient Map<Integer, Stream> streams = Collections.synchronizedMap(new HashMap<Integer, Stream>());
+    private final transient IdRegistry<Stream> streams = new IdRegistry<Stream>(1);
+    /** the received cells waiting to be delivered. */
+    private final transient CellPipeline cellPipeline = new CellPipeline(this);
     /**
      * contains URLs, InetAddresse or z-part of HS URL of hosts used to make
      * contact to (or for DNS query) with this Circuit.
@@ -166,7 +164,7 @@ public final class Circuit {
     /**
      * set to true, if no new streams are allowed.
      */
-    private boolean closed;
+    private volatile boolean closed;
     /**
      * set to true, if circuit is closed and inactive and may be removed from
      * all sets.
@@ -236,7 +234,7 @@ public final class Circuit {
     private CircuitHistory circuitHistory;
 
     private Circuit() {
-
+        flowControl = createFlowControl(this, ConsensusParams.DEFAULT);
     }
 
     /**
@@ -263,6 +261,10 @@ public final class Circuit {
             throws IOException,
             TorException,
             InterruptedException {
+        final ConsensusParams consensusParams = dir == null ? ConsensusParams.DEFAULT : dir.getConsensusParams();
+        flowControl = createFlowControl(this, consensusParams);
+        // the locally configured limit, possibly lowered by the consensus
+        final long maxSetupDurationMs = Math.min(TorConfig.maxAllowedSetupDurationMs, consensusParams.getCircuitBuildTimeoutMs());
         numberOfCircuitsInConstructor++;
         boolean successful = false;
         try {
@@ -296,7 +298,7 @@ public final class Circuit {
             final long startSetupTime = System.currentTimeMillis();
             for (int misses = 1; ; ++misses) {
                 final long currentSetupDuration = System.currentTimeMillis() - startSetupTime;
-                if (currentSetupDuration >= TorConfig.maxAllowedSetupDurationMs) {
+                if (currentSetupDuration >= maxSetupDurationMs) {
                     // stop here because it cannot be successful any more
                     final String msg = "Circuit: close-during-create " + toString() + ", because current duration of " + currentSetupDuration
                             + " ms is already too long";
@@ -322,6 +324,7 @@ public final class Circuit {
                                 + routeServers[0].getPlatform() + "] over tls");
                     }
                     tls = fnh.getConnection(routeServers[0]);
+                    tls.setCircuitPriorityHalflifeMs(consensusParams.getCircuitPriorityHalflifeMs());
                     queue = new Queue(TorConfig.queueTimeoutCircuit);
                     // attention: Addition to circuits-list is quite hidden
                     // here.
@@ -397,8 +400,18 @@ public final class Circuit {
                 }
             }
             setupDurationMs = (int) (System.currentTimeMillis() - startSetupTime);
-            if (setupDurationMs < TorConfig.maxAllowedSetupDurationMs) {
+            if (setupDurationMs < maxSetupDurationMs) {
                 established = true;
+                final Fingerprint[] nodes = new Fingerprint[routeServers.length];
+                for (int i = 0; i < nodes.length; i++) {
+                    nodes[i] = routeServers[i].getFingerprint();
+                }
+                CircuitAdmin.addUsedNodes(nodes);
+                usedNodes.set(nodes);
+                if (closed) {
+                    // closed meanwhile
+                    releaseUsedNodes();
+                }
                 if (LOG.isDebugEnabled()) {
                     LOG.debug("Circuit: " + toString() + " established within " + setupDurationMs + " ms - OK");
                 }
@@ -539,7 +552,7 @@ public final class Circuit {
         }
 
         // do the rest in an extra thread/in background
-        new Thread() {
+        NetlibThreads.start(Subsystem.HIDDEN_SERVICE, "Circuit.handleIntroduce2", new Runnable() {
             @Override
             public void run() {
                 // build circuit to rendezvous
@@ -576,7 +589,7 @@ public final class Circuit {
                     }
                 }
             }
-        }.start();
+        }, false);
         /*
          * https://gitweb.torproject.org/torspec.git/blob/HEAD:/rend-spec.txt -
 		 * 1.10. Rendezvous
@@ -656,22 +669,16 @@ public final class Circuit {
         if (!cell.isTypePadding()) {
             lastAction = lastCell;
             if (cell.isTypeRelay() && cell instanceof CellRelayData) {
-                circuitFlowSend--;
-                LOG.debug("CIRCUIT_FLOW_CONTROL_SEND = {}", circuitFlowRecv);
-
-                if (circuitFlowSend == 0) {
-                    LOG.debug("waiting for SENDME cell");
-                    try {
-                        waitForSendMe.wait();
-                    } catch (InterruptedException exception) {
-                        LOG.warn("got Exception while waiting for SENDME cell.", exception);
-                    }
-                }
+                // blocks while the circuit package window is exhausted
+                flowControl.acquirePackage();
             }
         }
         // send cell
         try {
-            tls.sendCell(cell);
+            // encryption and queueing must happen in the same order
+            synchronized (sendLock) {
+                tls.sendCell(cell);
+            }
         } catch (final IOException e) {
             LOG.debug("error in tls.sendCell Exception : {}", e, e);
             // if there's an error in sending it can only mean that the
@@ -685,9 +692,9 @@ public final class Circuit {
     }
 
     /**
-     * used for waiting for SENDME cell.
+     * serializes the encryption and queueing of the cells sent on this circuit.
      */
-    private final transient Object waitForSendMe = new Object();
+    private final transient Object sendLock = new Object();
 
     /**
      * creates and send a padding-cell down the circuit.
@@ -821,21 +828,6 @@ public final class Circuit {
         updateRanking();
     }
 
-    /**
-     * find a free stream ID, other than zero.
-     */
-    private synchronized int getFreeStreamID() throws TorException {
-        for (int nr = 1; nr < 0x10000; ++nr) {
-            final int newId = (nr + streamCounter) & 0xffff;
-            if (newId != 0) {
-                if (!streams.containsKey(newId)) {
-                    return newId;
-                }
-            }
-        }
-        throw new TorException("Circuit.getFreeStreamID: " + toString() + " has no free stream-IDs");
-    }
-
     /**
      * find a free stream-id, set it in the stream s.
      *
@@ -844,11 +836,15 @@ public final class Circuit {
      * @throws TorException when stream id could not be set
      */
     public int assignStreamId(final Stream stream) throws TorException {
+        if (closed) {
+            throw new TorException("Circuit.assignStreamId: " + toString() + " is closed");
+        }
         // assign stream ID and memorize stream
-        final int streamId = getFreeStreamID();
-        if (!assignStreamId(stream, streamId)) {
-            throw new TorException("streamId=" + streamId + " could not be set");
+        final int streamId = streams.add(stream);
+        if (streamId < 0) {
+            throw new TorException("Circuit.assignStreamId: " + toString() + " has no free stream-IDs");
         }
+        stream.setId(streamId);
         return streamId;
     }
 
@@ -866,15 +862,7 @@ public final class Circuit {
         }
 
         stream.setId(streamId);
-        final Stream oldStream = streams.put(streamId, stream);
-        if (oldStream == null) {
-            // success
-            return true;
-        } else {
-            // streamID was already used - rollback operation
-            streams.put(streamId, oldStream);
-            return false;
-        }
+        return streams.putIfAbsent(streamId, stream);
     }
 
     /**
@@ -922,34 +910,36 @@ public final class Circuit {
         ranking *= Math.exp(streamFails);
     }
 
+    /**
+     * give back the routers counted as used when the circuit was established.
+     */
+    private void releaseUsedNodes() {
+        final Fingerprint[] nodes = usedNodes.getAndSet(null);
+        if (nodes != null) {
+            CircuitAdmin.removeUsedNodes(nodes);
+        }
+    }
+
     /**
      * closes the circuit. either soft (remaining connections are kept, no new
      * one allowed) or hard (everything is closed immediately, e.g. if a destroy
      * cell is received)
      */
     public boolean close(final boolean force) {
-        if (!closed) {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Circuit.close(): closing " + toString());
-            }
-            // remove servers from list of currently used nodes
-            for (int i = 0; i < routeEstablished; ++i) {
-                final Fingerprint f = routeNodes[i].getRouter().getFingerprint();
-                Integer numberOfNodeOccurances = CircuitAdmin.getCurrentlyUsedNode(f);
-                if (numberOfNodeOccurances != null) {
-                    // decrement the counter
-                    CircuitAdmin.putCurrentlyUsedNodeNumber(f, Math.max(0, --numberOfNodeOccurances));
-                }
-            }
+        if (!closed && LOG.isDebugEnabled()) {
+            LOG.debug("Circuit.close(): closing " + toString());
         }
+        // mark circuit closed before the used nodes are released: a setup
+        // finishing meanwhile sees it and releases the nodes it adds itself
+        closed = true;
+        // remove servers from list of currently used nodes; releases only once
+        releaseUsedNodes();
         torEventService.fireEvent(new TorEvent(TorEvent.CIRCUIT_CLOSED, this, "Circuit: closing " + toString()));
 
-        // mark circuit closed. do nothing more, is soft close and streams are
-        // left
-        closed = true;
+        // do nothing more, is soft close and streams are left
         established = false;
         // close all streams, removed closed streams
-        for (final Stream stream : new ArrayList<Stream>(streams.values())) {
+        for (final Stream stream : streams.values()) {
             try {
                 // check if stream is still alive
                 if (!stream.isClosed()) {
@@ -1006,6 +996,8 @@ public final class Circuit {
             }
             queue.close();
         }
+        // release senders waiting for a SENDME
+        flowControl.close();
 
         // cleanup and maybe close tls
         destruct = true;
@@ -1070,7 +1062,7 @@ public final class Circuit {
      * @param streamId
      * @return true=removed; false=could not remove/did not exist
      */
-    public boolean removeStream(final Integer streamId) {
+    public boolean removeStream(final int streamId) {
         synchronized (streams) {
             final boolean result = streams.remove(streamId) != null;
             if (closeCircuitIfLastStreamIsClosed && streams.size() == 0) {
@@ -1147,9 +1139,29 @@ public final class Circuit {
     }
 
     public Map<Integer, Stream> getStreams() {
-        synchronized (streams) {
-            return new HashMap<Integer, Stream>(streams);
-        }
+        return streams.toMap();
+    }
+
+    /**
+     * @param streamId the stream id
+     * @return the stream or null
+     */
+    public Stream getStream(final int streamId) {
+        return streams.get(streamId);
+    }
+
+    /**
+     * @return the received cells waiting to be delivered
+     */
+    CellPipeline getCellPipeline() {
+        return cellPipeline;
+    }
+
+    /**
+     * @return number of streams of this circuit
+     */
+    public int getStreamCount() {
+        return streams.size();
     }
 
     /**
@@ -1176,33 +1188,40 @@ public final class Circuit {
         if (cell.isTypeRelay() && cell instanceof CellRelay) {
             CellRelay relay = (CellRelay) cell;
             if (relay.isTypeData()) {
-                reduceCircWindowRecv();
+                // no stream consumes this data
+                dataCellReceived();
+                dataCellsConsumed(1);
             } else if (relay.isTypeSendme()) {
-                circuitFlowSend += CIRCUIT_LEVEL_FLOW_RECV_INC;
-                waitForSendMe.notifyAll();
-                LOG.debug("got RELAY_SENDME cell, increasing circuit flow send window to {}", circuitFlowSend);
+                flowControl.sendmeReceived();
             }
         }
         queue.add(cell);
     }
 
     /**
-     * Reduce the circuit receive window. (see tor-spec.txt 7.3)
+     * A RELAY_DATA cell arrived on this circuit: reduce the circuit deliver
+     * window. (see tor-spec.txt 7.3)
+     */
+    public void dataCellReceived() {
+        flowControl.dataReceived();
+    }
+
+    /**
+     * RELAY_DATA cells of this circuit were consumed by their reader (or
+     * dropped); sends the RELAY_SENDME cells which are due.
      *
+     * @param cells number of consumed cells
      * @throws TorException will be thrown if there is a problem while sending a
      *                      RELAY_SENDME cell
      */
-    public synchronized void reduceCircWindowRecv() throws TorException {
-        circuitFlowRecv--;
-        LOG.debug("CIRCUIT_FLOW_CONTROL_RECV = {}", circuitFlowRecv);
-        if (circuitFlowRecv <= CIRCUIT_LEVEL_FLOW_RECV - CIRCUIT_LEVEL_FLOW_RECV_INC) {
+    public void dataCellsConsumed(final int cells) throws TorException {
+        for (int i = flowControl.dataConsumed(cells); i > 0 && !closed; i--) {
             // send a RELAY_SENDME cell to the last router in the circuit
             try {
                 if (LOG.isDebugEnabled()) {
                     LOG.debug("sending RELAY_SENDME cell to router {}", getRoute()[getRouteEstablished() - 1]);
                 }
                 sendCell(new CellRelaySendme(this, getRouteEstablished() - 1));
-                circuitFlowRecv += CIRCUIT_LEVEL_FLOW_RECV_INC;
             } catch (IOException exception) {
                 LOG.warn("problems with sending RELAY_SENDME cell to router {}", getRoute()[getRouteEstablished() - 1], exception);
                 throw new TorException("problems with sending RELAY_SENDME cell to router " + getRoute()[getRouteEstablished() - 1], exception);
@@ -1210,6 +1229,23 @@ public final class Circuit {
         }
     }
 
+    /**
+     * @param owner           the circuit, used in log messages
+     * @param consensusParams provides the initial window; the increment is
+     *                        always {@link #CIRCUIT_LEVEL_FLOW_INCREMENT}
+     * @return the circuit level flow control
+     */
+    static FlowControl createFlowControl(final Object owner, final ConsensusParams consensusParams) {
+        return new FlowControl(owner, consensusParams.getCircuitWindow(), CIRCUIT_LEVEL_FLOW_INCREMENT);
+    }
+
+    /**
+     * @return the circuit level flow control windows
+     */
+    public FlowControl getFlowControl() {
+        return flowControl;
+    }
+
     /**
      * Get URLs, InetAddresses or z-part of HS URL of hosts used to make
      * contact to (or for DNS query) with this Circuit.
@@ -1280,6 +1316,22 @@ public final class Circuit {
         this.setupDurationMs = setupDurationMs;
     }
 
+    /**
+     * @return average time in microseconds the cells of this circuit waited
+     *         for the TLS connection
+     */
+    public long getAverageQueueingDelayMicros() {
+        return tls == null ? 0 : tls.getScheduler().getAverageDelayMicros(circuitId);
+    }
+
+    /**
+     * @return longest time in microseconds a cell of this circuit waited for
+     *         the TLS connection
+     */
+    public long getMaxQueueingDelayMicros() {
+        return tls == null ? 0 : tls.getScheduler().getMaxDelayMicros(circuitId);
+    }
+
     public int getRanking() {
         return ranking;
     }
@@ -41,20 +41,27 @@ import org.silvertunnel_ng.netlib.layer.tor.common.TCPStreamProperties;
 import org.silvertunnel_ng.netlib.layer.tor.common.TorConfig;
 import org.silvertunnel_ng.netlib.layer.tor.common.TorEventService;
 import org.silvertunnel_ng.netlib.layer.tor.directory.Directory;
+import org.silvertunnel_ng.netlib.layer.tor.directory.ExcludedRouters;
+import org.silvertunnel_ng.netlib.layer.tor.directory.RouterFilter;
 import org.silvertunnel_ng.netlib.layer.tor.directory.RouterFlags;
 import org.silvertunnel_ng.netlib.layer.tor.util.NodeType;
 import org.silvertunnel_ng.netlib.layer.tor.util.TorException;
 import org.silvertunnel_ng.netlib.layer.tor.util.TorServerNotFoundException;
+import org.silvertunnel_ng.netlib.util.NetlibThreads;
+import org.silvertunnel_ng.netlib.util.NetlibThreads.Subsystem;
+import org.silvertunnel_ng.netlib.util.ThreadLocalSecureRandom;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -78,12 +85,11 @@ public class CircuitAdmin {
      */
     private static CircuitHistory circuitHistory = new CircuitHistory();
     /**
-     * fingerprint of currently used nodes in circuits as key, # of cirs -
-     * value.
+     * fingerprint of currently used nodes in circuits as key, # of established
+     * circuits using the node - value.
      */
-    private static Map<Fingerprint, Integer> currentlyUsedNodes = Collections.synchronizedMap(new HashMap<Fingerprint, Integer>());
-
-    private static SecureRandom rnd = new SecureRandom();
+    private static final ConcurrentMap<Fingerprint, AtomicInteger> currentlyUsedNodes
+            = new ConcurrentHashMap<Fingerprint, AtomicInteger>();
 
     /**
      * Create new circuit.
@@ -98,7 +104,8 @@ public class CircuitAdmin {
                                              final Directory dir,
                                              final TCPStreamProperties sp,
                                              final TorEventService torEventService) throws Throwable {
-        final ExecutorService executor = Executors.newCachedThreadPool();
+        final ExecutorService executor = Executors.newCachedThreadPool(
+                NetlibThreads.threadFactory(Subsystem.CIRCUIT, "CircuitBuilder", false));
         final Collection<Callable<Circuit>> allTasks = new ArrayList<Callable<Circuit>>();
         for (int i = 0; i < TorConfig.getParallelCircuitBuilds(); i++) {
             final Callable<Circuit> callable = new Callable<Circuit>() {
@@ -249,7 +256,7 @@ public class CircuitAdmin {
                 }
                 final boolean thisPointsToAddr = thisCirc.getStreamHistory().contains(sp.getHostname());
                 final float rankingQuota = thisRanking / minRanking;
-                if ((thisPointsToAddr && !minPointsToAddr) || rnd.nextFloat() > Math.exp(-rankingQuota)) {
+                if ((thisPointsToAddr && !minPointsToAddr) || ThreadLocalSecureRandom.current().nextFloat() > Math.exp(-rankingQuota)) {
                     // sort stochastically
                     min = j;
                     minRanking = thisRanking;
@@ -270,9 +277,8 @@ public class CircuitAdmin {
             // spawn new circuit IN BACKGROUND, unless maximum number of
             // circuits reached
             LOG.debug("TLSConnectionAdmin.provideSuitableCircuits: spawning circuit to {} in background", sp.getHostname());
-            final Thread spawnInBackground = new NewCircuitThread(tlsConnectionAdmin, dir, sp, torEventService);
-            spawnInBackground.setName("CuircuitAdmin.provideSuitableCircuits");
-            spawnInBackground.start();
+            NetlibThreads.start(Subsystem.CIRCUIT, "CircuitAdmin.provideSuitableCircuits",
+                    new NewCircuitThread(tlsConnectionAdmin, dir, sp, torEventService), false);
         } else if (returnValues == 0 && numberOfExistingCircuits < TorConfig.circuitsMaximumNumber) {
             // spawn new circuit, unless maximum number of circuits reached
             LOG.debug("TLSConnectionAdmin.provideSuitableCircuits: spawning circuit to {}", sp.getHostname());
@@ -301,6 +307,10 @@ public class CircuitAdmin {
     /**
      * returns a route through the network as specified in
      *
+     * Routes are planned concurrently: the routers are chosen from the
+     * snapshot of the directory the excluded routers belong to, the
+     * randomness is thread local.
+     *
      * @param sp                         tcp stream properties
      * @param proposedRoute              array of fingerprints of routers that were proposed by tcp
      *                                   stream properties
@@ -310,31 +320,21 @@ public class CircuitAdmin {
      * @return a list of servers
      * @see org.silvertunnel_ng.netlib.layer.tor.common.TCPStreamProperties.
      */
-    private static synchronized Router[] createNewRoute(
+    private static Router[] createNewRoute(
             final Directory directory,
             final TCPStreamProperties sp,
             final Fingerprint[] proposedRoute,
-            final HashSet<Fingerprint> excludedServerFingerprints,
+            final ExcludedRouters excludedServerFingerprints,
             Router[] route,
             final int i,
             int maxIterations) throws TorException {
         // TODO : implement better logic for creating a route...
         final float rankingInfluenceIndex = sp.getRankingInfluenceIndex();
-        final HashSet<Fingerprint> previousExcludedServerFingerprints = new HashSet<Fingerprint>();
-
-        final Map<Fingerprint, Router> validRoutersByFingerprint = directory.getValidRoutersByFingerprint();
-        for (final Router r : validRoutersByFingerprint.values()) // TODO : isnt it better to iterate through CircuitAdmin.currentlyUsedNodes ???
-        {
-            final Integer allowedCircuitsWithNode = CircuitAdmin.currentlyUsedNodes.get(r.getFingerprint());
-            // check if server has been used already in other circuits
-            if (allowedCircuitsWithNode != null && allowedCircuitsWithNode.intValue() > TorConfig.allowModeMultipleCircuits) {
-                excludedServerFingerprints.add(r.getFingerprint());
-            }
-        }
+        final ExcludedRouters previousExcludedServerFingerprints = excludedServerFingerprints.createEmpty();
 
         if (proposedRoute != null && i < proposedRoute.length && proposedRoute[i] != null) {
             // choose proposed server
-            route[i] = validRoutersByFingerprint.get(proposedRoute[i]);
+            route[i] = directory.getValidRoutersByFingerprint().get(proposedRoute[i]);
             if (route[i] == null) {
                 NodeType nodeType = NodeType.MIDDLE;
                 if (i == 0) {
@@ -349,31 +349,20 @@ public class CircuitAdmin {
             if (i == route.length - 1) {
                 // the last router has to accept exit policy
 
-                // determine suitable servers
-                final Map<Fingerprint, Router> suitableServerFingerprints = new HashMap<Fingerprint, Router>();
-                RouterFlags flags = new RouterFlags();
-                if (sp.isFastRoute()) {
-                    flags.setFast(true);
-                }
-                if (sp.isStableRoute()) {
-                    flags.setStable(true);
-                }
+                final RouterFlags flags = createRouteFlags(sp);
                 flags.setExit(true);
-                for (final Router r : directory.getValidRoutersByFlags(flags).values()) {
-                    // exit server must be trusted
-                    if (r.exitPolicyAccepts(sp.getAddr(), sp.getPort()) && (sp.isUntrustedExitAllowed() || r.isDirv2Exit())) {
-                        suitableServerFingerprints.put(r.getFingerprint(), r);
-                    }
+                RouterFilter trusted = null;
+                if (!sp.isUntrustedExitAllowed()) {
+                    trusted = new RouterFilter() {
+                        @Override
+                        public boolean accept(final Router r) {
+                            // exit server must be trusted
+                            return r.isDirv2Exit();
+                        }
+                    };
                 }
-
-                final HashSet<Fingerprint> x = new HashSet<Fingerprint>(excludedServerFingerprints);
-                // now select one of them
-
-                route[i] = directory.selectRandomNode(suitableServerFingerprints,
-                        x,
-                        rankingInfluenceIndex,
-                        sp.isFastRoute(),
-                        sp.isStableRoute());
+                route[i] = directory.selectRandomExitNode(flags, excludedServerFingerprints, rankingInfluenceIndex,
+                        sp.getAddr(), sp.getPort(), trusted);
 
             } else if ((i == 0) && (!TorConfig.getBridges().isEmpty())) {
                 // entry node must be bridge
@@ -384,24 +373,16 @@ public class CircuitAdmin {
                 // entry node must be guard
                 route[i] = directory.getGuardList().getGuard(excludedServerFingerprints, sp);
             } else {
-                route[i] = directory.selectRandomNode(validRoutersByFingerprint, excludedServerFingerprints,
-                        rankingInfluenceIndex, sp.isFastRoute(), sp.isStableRoute());
+                // a non-guard entry is weighted like a guard (exits are not used as entry)
+                route[i] = directory.selectRandomNode(i == 0 ? NodeType.ENTRY : NodeType.MIDDLE, createRouteFlags(sp),
+                        excludedServerFingerprints, rankingInfluenceIndex, null);
             }
 
             if (route[i] == null) {
                 return null;
             }
             previousExcludedServerFingerprints.addAll(excludedServerFingerprints);
-            excludedServerFingerprints.addAll(directory.excludeRelatedNodes(route[i]));
-
-            int numberOfNodeOccurances;
-            final Integer allowedCircuitsWithNode = CircuitAdmin.currentlyUsedNodes.get(route[i].getNickname());
-            if (allowedCircuitsWithNode != null) {
-                numberOfNodeOccurances = allowedCircuitsWithNode.intValue() + 1;
-            } else {
-                numberOfNodeOccurances = 0;
-            }
-            CircuitAdmin.currentlyUsedNodes.put(route[i].getFingerprint(), numberOfNodeOccurances);
+            directory.excludeRelatedNodes(route[i], excludedServerFingerprints);
         }
 
         if (i > 0) {
@@ -454,13 +435,19 @@ public class CircuitAdmin {
             len = sp.getMaxRouteLength();
         } else {
             // random value between min and max route length
-            len = sp.getMinRouteLength() + rnd.nextInt(sp.getMaxRouteLength() - sp.getMinRouteLength() + 1);
+            len = sp.getMinRouteLength() + ThreadLocalSecureRandom.current().nextInt(sp.getMaxRouteLength() - sp.getMinRouteLength() + 1);
         }
 
         // choose random servers to form route
         final Router[] route = new Router[len];
 
-        final HashSet<Fingerprint> excludedServerFingerprints = new HashSet<Fingerprint>();
+        final ExcludedRouters excludedServerFingerprints = directory.newExcludedRouters();
+        for (final Map.Entry<Fingerprint, AtomicInteger> usedNode : currentlyUsedNodes.entrySet()) {
+            // check if server has been used already in other circuits
+            if (usedNode.getValue().get() > TorConfig.allowModeMultipleCircuits) {
+                excludedServerFingerprints.add(usedNode.getKey());
+            }
+        }
         // take care, that none of the specified proposed servers is selected
         // before in route
         final Fingerprint[] proposedRoute = sp.getProposedRouteFingerprints();
@@ -469,7 +456,7 @@ public class CircuitAdmin {
                 if (proposedRoute[j] != null) {
                     final Router s = directory.getValidRoutersByFingerprint().get(proposedRoute[j]);
                     if (s != null) {
-                        excludedServerFingerprints.addAll(directory.excludeRelatedNodes(s));
+                        directory.excludeRelatedNodes(s, excludedServerFingerprints);
                     }
                 }
             }
@@ -499,6 +486,21 @@ public class CircuitAdmin {
         return result;
     }
 
+    /**
+     * @param sp the requirements of the route
+     * @return the flags every router of the route has to have
+     */
+    private static RouterFlags createRouteFlags(final TCPStreamProperties sp) {
+        final RouterFlags flags = new RouterFlags();
+        if (sp.isFastRoute()) {
+            flags.setFast(true);
+        }
+        if (sp.isStableRoute()) {
+            flags.setStable(true);
+        }
+        return flags;
+    }
+
     /**
      * restores circuit from the failed node route[failedNode].
      *
@@ -531,6 +533,7 @@ public class CircuitAdmin {
 
         // decreasing ranking of the failed one
         route[failedNode].punishRanking();
+        directory.rankingsChanged();
 
         // reuse hosts that are required due to TCPStreamProperties
         if (sp.getRouteFingerprints() != null) {
@@ -555,12 +558,49 @@ public class CircuitAdmin {
         return route;
     }
 
+    /**
+     * @param fingerprint a router
+     * @return the number of established circuits using the router, null if it was never used
+     */
     public static Integer getCurrentlyUsedNode(final Fingerprint fingerprint) {
-        return currentlyUsedNodes.get(fingerprint);
+        final AtomicInteger count = currentlyUsedNodes.get(fingerprint);
+        return count == null ? null : count.get();
+    }
+
+    /**
+     * count the routers of a new circuit as used.
+     *
+     * @param nodes the routers of the circuit
+     */
+    static void addUsedNodes(final Fingerprint[] nodes) {
+        for (final Fingerprint fingerprint : nodes) {
+            AtomicInteger count = currentlyUsedNodes.get(fingerprint);
+            if (count == null) {
+                final AtomicInteger newCount = new AtomicInteger();
+                count = currentlyUsedNodes.putIfAbsent(fingerprint, newCount);
+                if (count == null) {
+                    count = newCount;
+                }
+            }
+            count.incrementAndGet();
+        }
     }
 
-    public static void putCurrentlyUsedNodeNumber(final Fingerprint fingerprint, final Integer value) {
-        currentlyUsedNodes.put(fingerprint, value);
+    /**
+     * the routers are not used by a circuit any more.
+     *
+     * @param nodes the routers given to {@link #addUsedNodes(Fingerprint[])}
+     */
+    static void removeUsedNodes(final Fingerprint[] nodes) {
+        for (final Fingerprint fingerprint : nodes) {
+            final AtomicInteger count = currentlyUsedNodes.get(fingerprint);
+            if (count != null) {
+                int current;
+                do {
+                    current = count.get();
+                } while (current > 0 && !count.compareAndSet(current, current - 1));
+            }
+        }
     }
 
     /**
@@ -0,0 +1,355 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package org.silvertunnel_ng.netlib.layer.tor.circuit;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * the outbound queue of a TLS connection, shared fairly by its circuits.
+ *
+ * Every circuit has its own FIFO. The next cell is taken from the circuit
+ * with the lowest exponentially weighted moving average of recently sent
+ * cells (like Tor's CircuitPriorityHalflife, see tor's circuitmux_ewma.c),
+ * so a bulk transfer cannot starve an interactive circuit on the same
+ * connection. The order of the cells within a circuit is not changed.
+ *
+ * To avoid decaying the averages of all circuits on every cell, the averages
+ * are stored scaled by 2^((t - base) / halflife); as all circuits share the
+ * factor, they can be compared directly. The values are rescaled when the
+ * factor gets too large.
+ *
+ * The time a cell waits in the queue is recorded per circuit.
+ *
+ * @author Tobias Boese
+ */
+final class CircuitScheduler {
+    /** rebase the scaled averages when the exponent gets this large. */
+    private static final double MAX_EXPONENT = 64;
+
+    /** the cells of one circuit and its statistics. */
+    private static final class CircuitQueue {
+        private final int circuitId;
+        private byte[][] cells = new byte[8][];
+        private long[] enqueued = new long[8];
+        private int head;
+        private int count;
+        /** scaled average of the sent cells. */
+        private double ewma;
+        private long cellsSent;
+        private long delaySumNanos;
+        private long delayMaxNanos;
+        /** the circuit left the connection, forget it when the queue is empty. */
+        private boolean removed;
+
+        CircuitQueue(final int circuitId) {
+            this.circuitId = circuitId;
+        }
+
+        void add(final byte[] cell, final long now) {
+            if (count == cells.length) {
+                final byte[][] newCells = new byte[count * 2][];
+                final long[] newEnqueued = new long[count * 2];
+                for (int i = 0; i < count; i++) {
+                    newCells[i] = cells[(head + i) % count];
+                    newEnqueued[i] = enqueued[(head + i) % count];
+                }
+                cells = newCells;
+                enqueued = newEnqueued;
+                head = 0;
+            }
+            final int tail = (head + count) % cells.length;
+            cells[tail] = cell;
+            enqueued[tail] = now;
+            count++;
+        }
+
+        byte[] remove(final long now) {
+            final byte[] cell = cells[head];
+            final long delay = now - enqueued[head];
+            cells[head] = null;
+            head = (head + 1) % cells.length;
+            count--;
+            cellsSent++;
+            delaySumNanos += delay;
+            delayMaxNanos = Math.max(delayMaxNanos, delay);
+            return cell;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final int capacity;
+    private final Map<Integer, CircuitQueue> circuits = new HashMap<Integer, CircuitQueue>();
+    /** circuits with queued cells. */
+    private final List<CircuitQueue> active = new ArrayList<CircuitQueue>();
+    private int size;
+    private double halflifeNanos;
+    /** the time at which the scale factor is 1. */
+    private long baseNanos = System.nanoTime();
+
+    /**
+     * @param capacity   number of cells which can be queued
+     * @param halflifeMs half-life of the averages in ms
+     */
+    CircuitScheduler(final int capacity, final int halflifeMs) {
+        this.capacity = capacity;
+        this.halflifeNanos = TimeUnit.MILLISECONDS.toNanos(halflifeMs);
+    }
+
+    /**
+     * change the half-life, e.g. after a new consensus was loaded.
+     *
+     * @param halflifeMs half-life of the averages in ms
+     */
+    void setHalflifeMs(final int halflifeMs) {
+        lock.lock();
+        try {
+            final double newHalflifeNanos = TimeUnit.MILLISECONDS.toNanos(halflifeMs);
+            if (newHalflifeNanos != halflifeNanos) {
+                // the stored values are scaled with the old half-life
+                rebase(System.nanoTime());
+                halflifeNanos = newHalflifeNanos;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * queue a cell; waits while the queue is full.
+     *
+     * @param cell    the encrypted cell
+     * @param timeout maximum time to wait
+     * @param unit    unit of the timeout
+     * @return false if the queue is still full after the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean offer(final byte[] cell, final long timeout, final TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (size >= capacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            // the circuit id is stored in the first two bytes of the cell
+            final int circuitId = ((cell[0] & 0xff) << 8) | (cell[1] & 0xff);
+            CircuitQueue queue = circuits.get(circuitId);
+            if (queue == null) {
+                queue = new CircuitQueue(circuitId);
+                circuits.put(circuitId, queue);
+            }
+            if (queue.count == 0) {
+                active.add(queue);
+            }
+            queue.add(cell, System.nanoTime());
+            size++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the next cell or null if the queue is empty
+     */
+    byte[] poll() {
+        lock.lock();
+        try {
+            return size == 0 ? null : next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param timeout maximum time to wait for a cell
+     * @param unit    unit of the timeout
+     * @return the next cell or null if none arrived within the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    byte[] poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the next cell; waits until one is available
+     * @throws InterruptedException if interrupted while waiting
+     */
+    byte[] take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                notEmpty.await();
+            }
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * take the head of the circuit with the lowest average. Needs the lock.
+     */
+    private byte[] next() {
+        // linear scan: a connection carries few circuits with queued cells
+        int best = 0;
+        for (int i = 1; i < active.size(); i++) {
+            if (active.get(i).ewma < active.get(best).ewma) {
+                best = i;
+            }
+        }
+        final CircuitQueue queue = active.get(best);
+        final long now = System.nanoTime();
+        final byte[] cell = queue.remove(now);
+        double exponent = (now - baseNanos) / halflifeNanos;
+        if (exponent > MAX_EXPONENT) {
+            rebase(now);
+            exponent = 0;
+        }
+        queue.ewma += Math.pow(2, exponent);
+        if (queue.count == 0) {
+            active.remove(best);
+            if (queue.removed) {
+                circuits.remove(queue.circuitId);
+            }
+        }
+        size--;
+        notFull.signal();
+        return cell;
+    }
+
+    /**
+     * move the base time to now and scale all averages accordingly. Needs the lock.
+     */
+    private void rebase(final long now) {
+        final double factor = Math.pow(2, -(now - baseNanos) / halflifeNanos);
+        for (final CircuitQueue queue : circuits.values()) {
+            queue.ewma *= factor;
+        }
+        baseNanos = now;
+    }
+
+    /**
+     * forget the circuit once its queued cells are sent.
+     *
+     * @param circuitId the id of the circuit
+     */
+    void removeCircuit(final int circuitId) {
+        lock.lock();
+        try {
+            final CircuitQueue queue = circuits.get(circuitId);
+            if (queue != null) {
+                if (queue.count == 0) {
+                    circuits.remove(circuitId);
+                } else {
+                    queue.removed = true;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * drop all queued cells.
+     */
+    void clear() {
+        lock.lock();
+        try {
+            for (final CircuitQueue queue : active) {
+                while (queue.count > 0) {
+                    queue.remove(System.nanoTime());
+                }
+                if (queue.removed) {
+                    circuits.remove(queue.circuitId);
+                }
+            }
+            active.clear();
+            size = 0;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of queued cells
+     */
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param circuitId the id of the circuit
+     * @return average time in microseconds the sent cells of the circuit were queued
+     */
+    long getAverageDelayMicros(final int circuitId) {
+        lock.lock();
+        try {
+            final CircuitQueue queue = circuits.get(circuitId);
+            if (queue == null || queue.cellsSent == 0) {
+                return 0;
+            }
+            return TimeUnit.NANOSECONDS.toMicros(queue.delaySumNanos / queue.cellsSent);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param circuitId the id of the circuit
+     * @return longest time in microseconds a sent cell of the circuit was queued
+     */
+    long getMaxDelayMicros(final int circuitId) {
+        lock.lock();
+        try {
+            final CircuitQueue queue = circuits.get(circuitId);
+            return queue == null ? 0 : TimeUnit.NANOSECONDS.toMicros(queue.delayMaxNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package org.silvertunnel_ng.netlib.layer.tor.circuit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * the flow control windows of a circuit or a stream (see tor-spec.txt 7.3 and 7.4).
+ *
+ * The package window counts the RELAY_DATA cells we may still send; it is
+ * decreased by {@link #acquirePackage()}, which blocks while the window is
+ * exhausted, and increased by a received RELAY_SENDME. The deliver window
+ * counts the RELAY_DATA cells the other side may still send; it is decreased
+ * when a cell arrives and opened again in steps of the increment once the
+ * data has been consumed by the reader, which is when a RELAY_SENDME is due.
+ *
+ * @author Tobias Boese
+ */
+public final class FlowControl {
+    /** */
+    private static final Logger LOG = LoggerFactory.getLogger(FlowControl.class);
+
+    /** called when an exhausted package window opens again. */
+    public interface Listener {
+        /**
+         * the package window is open again. Called by the thread which
+         * received the RELAY_SENDME, must not block.
+         */
+        void packageWindowOpened();
+    }
+
+    /** the circuit or stream, used in log messages. */
+    private final Object owner;
+    private final int increment;
+    private int packageWindow;
+    private int deliverWindow;
+    /** cells consumed by the reader which are not yet acknowledged with a SENDME. */
+    private int consumed;
+    private boolean closed;
+    private volatile Listener listener;
+
+    /**
+     * @param owner     the circuit or stream, used in log messages
+     * @param window    initial size of both windows
+     * @param increment window increment of a RELAY_SENDME
+     */
+    public FlowControl(final Object owner, final int window, final int increment) {
+        this.owner = owner;
+        this.increment = increment;
+        this.packageWindow = window;
+        this.deliverWindow = window;
+    }
+
+    /**
+     * take one cell from the package window; blocks while the window is exhausted.
+     *
+     * @throws IOException if closed or interrupted while waiting
+     */
+    public synchronized void acquirePackage() throws IOException {
+        if (packageWindow <= 0 && !closed) {
+            LOG.debug("{}: waiting for SENDME cell", owner);
+        }
+        while (packageWindow <= 0 && !closed) {
+            try {
+                wait();
+            } catch (final InterruptedException e) {
+                throw new InterruptedIOException("interrupted while waiting for SENDME cell");
+            }
+        }
+        if (closed) {
+            throw new IOException(owner + " is closed");
+        }
+        packageWindow--;
+    }
+
+    /**
+     * take one cell from the package window without blocking.
+     *
+     * @return false if the window is exhausted or closed; the
+     *         {@link Listener} is informed when it opens again
+     */
+    public synchronized boolean tryAcquirePackage() {
+        if (packageWindow <= 0 || closed) {
+            return false;
+        }
+        packageWindow--;
+        return true;
+    }
+
+    /**
+     * a RELAY_SENDME was received: open the package window.
+     */
+    public void sendmeReceived() {
+        final boolean opened;
+        synchronized (this) {
+            opened = packageWindow <= 0;
+            packageWindow += increment;
+            LOG.debug("{}: got RELAY_SENDME cell, package window is {}", owner, packageWindow);
+            notifyAll();
+        }
+        final Listener l = listener;
+        if (opened && l != null) {
+            l.packageWindowOpened();
+        }
+    }
+
+    /**
+     * a RELAY_DATA cell arrived: reduce the deliver window.
+     */
+    public synchronized void dataReceived() {
+        deliverWindow--;
+        if (deliverWindow < 0) {
+            LOG.warn("{}: received more RELAY_DATA cells than allowed by the deliver window", owner);
+        }
+    }
+
+    /**
+     * RELAY_DATA cells were consumed (read or dropped).
+     *
+     * @param cells number of cells
+     * @return number of RELAY_SENDME cells to send now; the deliver window
+     *         already accounts for them
+     */
+    public synchronized int dataConsumed(final int cells) {
+        consumed += cells;
+        final int sendmes = consumed / increment;
+        consumed -= sendmes * increment;
+        deliverWindow += sendmes * increment;
+        return sendmes;
+    }
+
+    /**
+     * wake up and fail all threads waiting for the package window.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * @param listener informed when an exhausted package window opens again, may be null
+     */
+    public void setListener(final Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized int getPackageWindow() {
+        return packageWindow;
+    }
+
+    public synchronized int getDeliverWindow() {
+        return deliverWindow;
+    }
+}
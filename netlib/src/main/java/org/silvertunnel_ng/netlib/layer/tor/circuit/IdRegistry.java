@@ -0,0 +1,222 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package org.silvertunnel_ng.netlib.layer.tor.circuit;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * maps the 16 bit ids of a namespace (the circuits of a TLS connection or the
+ * streams of a circuit) to their objects.
+ *
+ * The slots are kept in pages of 256 which are created when the first id of
+ * the page is used. Looking up an id neither locks nor allocates, so it can be
+ * done for every received cell. Registering and removing is done with CAS on
+ * the slot.
+ *
+ * New ids are handed out in ascending order; after all ids were used once,
+ * the released ids are reused in the order they were released. So an id is
+ * not reused as long as possible (a late cell for a closed circuit is not
+ * taken for a new one), and finding a free id takes constant time.
+ *
+ * @param <V> the type of the registered objects
+ * @author Tobias Boese
+ */
+final class IdRegistry<V> {
+    /** highest id. */
+    static final int MAX_ID = 0xffff;
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    private final AtomicReferenceArray<AtomicReferenceArray<V>> pages
+            = new AtomicReferenceArray<AtomicReferenceArray<V>>((MAX_ID + 1) >> PAGE_BITS);
+    private final AtomicInteger size = new AtomicInteger();
+
+    /** the next id which was never handed out; guarded by this. */
+    private int nextUnused;
+    /** ring of released ids below {@link #nextUnused}; guarded by this. */
+    private int[] released = new int[0];
+    private int releasedHead;
+    private int releasedCount;
+
+    /**
+     * @param firstId the first id to hand out (ids below are only used by
+     *                {@link #putIfAbsent(int, Object)})
+     */
+    IdRegistry(final int firstId) {
+        this.nextUnused = firstId;
+    }
+
+    /**
+     * @param id the id
+     * @return the registered object or null
+     */
+    V get(final int id) {
+        if (id < 0 || id > MAX_ID) {
+            return null;
+        }
+        final AtomicReferenceArray<V> page = pages.get(id >>> PAGE_BITS);
+        return page == null ? null : page.get(id & (PAGE_SIZE - 1));
+    }
+
+    /**
+     * register the object under the given id.
+     *
+     * @param id    the id
+     * @param value the object
+     * @return false if the id is already in use
+     */
+    boolean putIfAbsent(final int id, final V value) {
+        if (id < 0 || id > MAX_ID) {
+            throw new IllegalArgumentException("id out of range: " + id);
+        }
+        if (page(id).compareAndSet(id & (PAGE_SIZE - 1), null, value)) {
+            size.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * register the object under a free id.
+     *
+     * @param value the object
+     * @return the id or -1 if all ids are in use
+     */
+    synchronized int add(final V value) {
+        while (true) {
+            final int id;
+            if (nextUnused <= MAX_ID) {
+                id = nextUnused++;
+            } else if (releasedCount > 0) {
+                id = released[releasedHead];
+                releasedHead = (releasedHead + 1) % released.length;
+                releasedCount--;
+            } else {
+                return -1;
+            }
+            // the id may have been taken with putIfAbsent()
+            if (putIfAbsent(id, value)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * @param id the id
+     * @return the removed object or null if the id was not in use
+     */
+    V remove(final int id) {
+        final V old = get(id);
+        if (old == null || !pages.get(id >>> PAGE_BITS).compareAndSet(id & (PAGE_SIZE - 1), old, null)) {
+            return null;
+        }
+        size.decrementAndGet();
+        synchronized (this) {
+            if (id < nextUnused) {
+                release(id);
+            }
+        }
+        return old;
+    }
+
+    /** append the id to the ring of released ids. Needs the lock. */
+    private void release(final int id) {
+        if (releasedCount == released.length) {
+            final int[] newReleased = new int[Math.max(16, releasedCount * 2)];
+            for (int i = 0; i < releasedCount; i++) {
+                newReleased[i] = released[(releasedHead + i) % released.length];
+            }
+            released = newReleased;
+            releasedHead = 0;
+        }
+        released[(releasedHead + releasedCount) % released.length] = id;
+        releasedCount++;
+    }
+
+    private AtomicReferenceArray<V> page(final int id) {
+        final int index = id >>> PAGE_BITS;
+        AtomicReferenceArray<V> page = pages.get(index);
+        if (page == null) {
+            pages.compareAndSet(index, null, new AtomicReferenceArray<V>(PAGE_SIZE));
+            page = pages.get(index);
+        }
+        return page;
+    }
+
+    /**
+     * @return number of registered objects
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * @return true if no object is registered
+     */
+    boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    /**
+     * @return a snapshot of the registered objects
+     */
+    List<V> values() {
+        final List<V> result = new ArrayList<V>(size.get());
+        for (int i = 0; i < pages.length(); i++) {
+            final AtomicReferenceArray<V> page = pages.get(i);
+            if (page != null) {
+                for (int j = 0; j < PAGE_SIZE; j++) {
+                    final V value = page.get(j);
+                    if (value != null) {
+                        result.add(value);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return a snapshot of the registered objects by id
+     */
+    Map<Integer, V> toMap() {
+        final Map<Integer, V> result = new HashMap<Integer, V>();
+        for (int i = 0; i < pages.length(); i++) {
+            final AtomicReferenceArray<V> page = pages.get(i);
+            if (page != null) {
+                for (int j = 0; j < PAGE_SIZE; j++) {
+                    final V value = page.get(j);
+                    if (value != null) {
+                        result.put((i << PAGE_BITS) | j, value);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+}
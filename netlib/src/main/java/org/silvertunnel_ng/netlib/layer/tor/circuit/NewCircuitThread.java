@@ -29,7 +29,7 @@ import org.slf4j.LoggerFactory;
  * 
  * @author hapke
  */
-public class NewCircuitThread extends Thread
+public class NewCircuitThread implements Runnable
 {
 	/** */
 	private static final Logger LOG = LoggerFactory.getLogger(NewCircuitThread.class);
@@ -44,7 +44,7 @@ public class NewCircuitThread extends Thread
 	private final TorEventService torEventService;
 
 	/**
-	 * Create a new Thread which creates a new Circuit.
+	 * Create a new task which creates a new Circuit.
 	 * 
 	 * @param fnh the {@link TLSConnectionAdmin} object
 	 * @param dir the tor {@link Directory} object
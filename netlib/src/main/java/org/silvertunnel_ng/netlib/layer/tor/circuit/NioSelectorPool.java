@@ -0,0 +1,158 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.circuit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * a few selector threads serving the TLS connections of the NIO backend.
+ *
+ * The connections are distributed round robin over the threads. Everything
+ * which touches a registered channel (reading, writing, changing the interest
+ * set, closing) is done by the thread the channel belongs to; other threads
+ * hand their work over with {@link SelectorThread#execute(Runnable)}.
+ *
+ * @author Tobias Boese
+ * @see NioTLSChannel
+ */
+final class NioSelectorPool {
+    /** */
+    private static final Logger LOG = LoggerFactory.getLogger(NioSelectorPool.class);
+
+    private final SelectorThread[] threads;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * start the selector threads.
+     *
+     * @param numberOfThreads number of selector threads
+     * @throws IOException if a selector could not be opened
+     */
+    NioSelectorPool(final int numberOfThreads) throws IOException {
+        threads = new SelectorThread[numberOfThreads];
+        for (int i = 0; i < numberOfThreads; i++) {
+            threads[i] = new SelectorThread("TLSSelector-" + i);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * @return the thread which should serve the next connection
+     */
+    SelectorThread next() {
+        return threads[(next.getAndIncrement() & Integer.MAX_VALUE) % threads.length];
+    }
+
+    /**
+     * stop all selector threads; channels which are still registered are closed.
+     */
+    void close() {
+        for (final SelectorThread thread : threads) {
+            thread.close();
+        }
+    }
+
+    /**
+     * one selector and the thread polling it.
+     */
+    static final class SelectorThread extends Thread {
+        private final Selector selector;
+        /** work handed over by other threads. */
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private volatile boolean stopped;
+
+        private SelectorThread(final String name) throws IOException {
+            this.selector = Selector.open();
+            this.setName(name);
+            this.setDaemon(true);
+        }
+
+        /**
+         * @return the selector served by this thread
+         */
+        Selector getSelector() {
+            return selector;
+        }
+
+        /**
+         * run the task in this selector thread.
+         *
+         * @param task the task
+         */
+        void execute(final Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * @return true if called by this selector thread
+         */
+        boolean inSelectorThread() {
+            return Thread.currentThread() == this;
+        }
+
+        private void close() {
+            stopped = true;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                try {
+                    selector.select();
+                } catch (final IOException e) {
+                    LOG.warn("{}: select failed", getName(), e);
+                    break;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (final RuntimeException e) {
+                        LOG.warn("{}: exception in task", getName(), e);
+                    }
+                }
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    ((NioTLSChannel) key.attachment()).handle(key);
+                }
+            }
+            // close the remaining channels
+            for (final SelectionKey key : selector.keys()) {
+                ((NioTLSChannel) key.attachment()).fail(new IOException(getName() + " stopped"));
+            }
+            try {
+                selector.close();
+            } catch (final IOException e) {
+                LOG.debug("got IOException : {}", e.getMessage(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.circuit;
+
+import org.silvertunnel_ng.netlib.layer.tor.circuit.cells.Cell;
+import org.silvertunnel_ng.netlib.layer.tor.circuit.cells.CellCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * TLS connection to an onion router based on a {@link SocketChannel} and an
+ * {@link SSLEngine} (NIO backend).
+ *
+ * Connect and TLS handshake are done by the thread creating the connection.
+ * Afterwards the channel is served by one thread of the {@link NioSelectorPool}:
+ * it reads and decrypts the incoming data, frames the cells and dispatches
+ * them with a {@link TLSCellDispatcher}, and it writes the cells queued by the
+ * circuits in batches (like {@link TLSWriterThread}).
+ *
+ * Attention: if the {@link CellPipeline}s are disabled, the cells are
+ * delivered in the selector thread, so handlers of the circuits and streams
+ * must not block for long.
+ *
+ * @author Tobias Boese
+ */
+final class NioTLSChannel implements CellTransport {
+    /** */
+    private static final Logger LOG = LoggerFactory.getLogger(NioTLSChannel.class);
+
+    /** how often a blocked sender checks whether the connection was closed. */
+    private static final long OFFER_CHECK_INTERVAL_MS = 100;
+
+    /** the connection using this channel. */
+    private final TLSConnection tls;
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final NioSelectorPool.SelectorThread selectorThread;
+    private final TLSCellDispatcher dispatcher;
+    private final CellCodec codec;
+    private final String name;
+    private SelectionKey key;
+
+    /** encrypted data received from the network (write mode). */
+    private final ByteBuffer netIn;
+    /** decrypted data not yet framed into cells (write mode). */
+    private ByteBuffer appIn;
+    /** encrypted data to be sent to the network (read mode). */
+    private final ByteBuffer netOut;
+    /** cells to be encrypted (read mode). */
+    private final ByteBuffer batch;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /** the cells queued by the circuits. */
+    private final CircuitScheduler outbound;
+    private final int maxBatchCells;
+    /** true if OP_WRITE is (or will be) in the interest set. */
+    private final AtomicBoolean writeRequested = new AtomicBoolean();
+    private final Runnable enableWrite = new Runnable() {
+        @Override
+        public void run() {
+            if (key != null && key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+    };
+
+    private volatile boolean closed;
+    /** the reason why this channel stopped working. */
+    private volatile IOException failure;
+
+    private NioTLSChannel(final TLSConnection tls,
+                          final SocketChannel channel,
+                          final SSLEngine engine,
+                          final NioSelectorPool.SelectorThread selectorThread,
+                          final int maxBatchCells) {
+        this.tls = tls;
+        this.channel = channel;
+        this.engine = engine;
+        this.selectorThread = selectorThread;
+        this.dispatcher = tls.createCellDispatcher();
+        this.codec = new CellCodec(tls.getCellBufferPool());
+        this.name = "NIO-TLS to " + tls.getRouter().getNickname();
+        this.outbound = tls.getScheduler();
+        this.maxBatchCells = maxBatchCells;
+        final int packetSize = engine.getSession().getPacketBufferSize();
+        netIn = ByteBuffer.allocate(packetSize);
+        appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize() + Cell.CELL_TOTAL_SIZE);
+        netOut = ByteBuffer.allocate(packetSize);
+        netOut.flip();
+        batch = ByteBuffer.allocate(maxBatchCells * Cell.CELL_TOTAL_SIZE);
+        batch.flip();
+    }
+
+    /**
+     * connect to the router, do the TLS handshake and register the channel at
+     * the selector thread.
+     *
+     * @param tls                 the connection using this channel
+     * @param address             address of the router
+     * @param context             the TLS context
+     * @param enabledCipherSuites cipher suites to use
+     * @param selectorThread      the thread which shall serve the channel
+     * @param timeoutMs           timeout for connect and handshake
+     * @param maxBatchCells       maximum number of cells encrypted together
+     * @return the established channel
+     * @throws IOException if the connection could not be established
+     */
+    static NioTLSChannel open(final TLSConnection tls,
+                              final InetSocketAddress address,
+                              final SSLContext context,
+                              final String[] enabledCipherSuites,
+                              final NioSelectorPool.SelectorThread selectorThread,
+                              final long timeoutMs,
+                              final int maxBatchCells) throws IOException {
+        final SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            final SSLEngine engine = context.createSSLEngine(address.getAddress().getHostAddress(), address.getPort());
+            engine.setUseClientMode(true);
+            engine.setEnabledCipherSuites(enabledCipherSuites);
+            final NioTLSChannel result = new NioTLSChannel(tls, channel, engine, selectorThread, maxBatchCells);
+            final Selector selector = Selector.open();
+            try {
+                final long deadline = System.currentTimeMillis() + timeoutMs;
+                result.connect(selector, address, deadline);
+                result.handshake(selector, deadline);
+            } finally {
+                selector.close();
+            }
+            result.register();
+            return result;
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        } catch (final RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * wait until the channel is ready for the given operation.
+     */
+    private void await(final Selector selector, final int op, final long deadline) throws IOException {
+        final long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new SocketTimeoutException(name + ": timeout during connect or handshake");
+        }
+        final SelectionKey tmpKey = channel.register(selector, op);
+        selector.select(remaining);
+        tmpKey.interestOps(0);
+        selector.selectedKeys().clear();
+    }
+
+    private void connect(final Selector selector, final InetSocketAddress address, final long deadline) throws IOException {
+        if (channel.connect(address)) {
+            return;
+        }
+        while (!channel.finishConnect()) {
+            await(selector, SelectionKey.OP_CONNECT, deadline);
+        }
+    }
+
+    /**
+     * TLS handshake with a temporary selector in the calling thread.
+     */
+    private void handshake(final Selector selector, final long deadline) throws IOException {
+        engine.beginHandshake();
+        HandshakeStatus status = engine.getHandshakeStatus();
+        while (status != HandshakeStatus.FINISHED && status != HandshakeStatus.NOT_HANDSHAKING) {
+            switch (status) {
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    status = engine.getHandshakeStatus();
+                    break;
+                case NEED_WRAP:
+                    netOut.clear();
+                    final SSLEngineResult wrapResult = engine.wrap(EMPTY, netOut);
+                    netOut.flip();
+                    checkClosed(wrapResult);
+                    while (netOut.hasRemaining()) {
+                        if (channel.write(netOut) == 0) {
+                            await(selector, SelectionKey.OP_WRITE, deadline);
+                        }
+                    }
+                    status = wrapResult.getHandshakeStatus();
+                    break;
+                case NEED_UNWRAP:
+                    netIn.flip();
+                    final SSLEngineResult unwrapResult = engine.unwrap(netIn, appIn);
+                    netIn.compact();
+                    checkClosed(unwrapResult);
+                    if (unwrapResult.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        final int n = channel.read(netIn);
+                        if (n < 0) {
+                            throw new EOFException(name + ": EOF during handshake");
+                        } else if (n == 0) {
+                            await(selector, SelectionKey.OP_READ, deadline);
+                        }
+                    }
+                    status = unwrapResult.getHandshakeStatus();
+                    break;
+                default:
+                    throw new SSLException(name + ": unexpected handshake status " + status);
+            }
+        }
+        LOG.debug("{}: handshake done with {}", name, engine.getSession().getCipherSuite());
+    }
+
+    /**
+     * hand the channel over to the selector thread.
+     */
+    private void register() {
+        selectorThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    key = channel.register(selectorThread.getSelector(), SelectionKey.OP_READ, NioTLSChannel.this);
+                    if (closed) {
+                        closeInSelectorThread();
+                        return;
+                    }
+                    if (writeRequested.get()) {
+                        enableWrite.run();
+                    }
+                    // data received together with the end of the handshake
+                    unwrap();
+                } catch (final IOException e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * called by the selector thread if the channel is ready.
+     *
+     * @param selectionKey the key of this channel
+     */
+    void handle(final SelectionKey selectionKey) {
+        try {
+            if (selectionKey.isValid() && selectionKey.isReadable()) {
+                if (channel.read(netIn) < 0) {
+                    throw new EOFException(name + ": connection closed by peer");
+                }
+                unwrap();
+            }
+            if (selectionKey.isValid() && selectionKey.isWritable()) {
+                flush();
+            }
+        } catch (final IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * decrypt the received data and dispatch the complete cells.
+     */
+    private void unwrap() throws IOException {
+        netIn.flip();
+        try {
+            while (netIn.hasRemaining()) {
+                final SSLEngineResult result = engine.unwrap(netIn, appIn);
+                checkClosed(result);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    break;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    dispatchCells();
+                    if (appIn.remaining() < engine.getSession().getApplicationBufferSize()) {
+                        final ByteBuffer bigger = ByteBuffer.allocate(appIn.capacity() * 2);
+                        appIn.flip();
+                        bigger.put(appIn);
+                        appIn = bigger;
+                    }
+                    continue;
+                }
+                handleHandshakeStatus(result.getHandshakeStatus());
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                    break;
+                }
+            }
+        } finally {
+            netIn.compact();
+        }
+        dispatchCells();
+    }
+
+    private void dispatchCells() {
+        appIn.flip();
+        Cell cell;
+        while ((cell = codec.decode(appIn)) != null) {
+            dispatcher.dispatch(cell);
+        }
+        appIn.compact();
+    }
+
+    /**
+     * encrypt and write the queued cells, as much as the network accepts.
+     */
+    private void flush() throws IOException {
+        while (true) {
+            if (netOut.hasRemaining()) {
+                channel.write(netOut);
+                if (netOut.hasRemaining()) {
+                    // wait for the next OP_WRITE
+                    return;
+                }
+            }
+            if (!batch.hasRemaining()) {
+                fillBatch();
+            }
+            if (!batch.hasRemaining() && engine.getHandshakeStatus() != HandshakeStatus.NEED_WRAP) {
+                break;
+            }
+            netOut.clear();
+            final SSLEngineResult result = engine.wrap(batch, netOut);
+            netOut.flip();
+            checkClosed(result);
+            handleHandshakeStatus(result.getHandshakeStatus());
+        }
+        // everything written
+        writeRequested.set(false);
+        if (outbound.size() == 0 || !writeRequested.compareAndSet(false, true)) {
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void fillBatch() {
+        batch.clear();
+        int cells = 0;
+        byte[] cell;
+        while (cells < maxBatchCells && (cell = outbound.poll()) != null) {
+            batch.put(cell);
+            cells++;
+        }
+        batch.flip();
+    }
+
+    private void handleHandshakeStatus(final HandshakeStatus status) {
+        if (status == HandshakeStatus.NEED_TASK) {
+            runDelegatedTasks();
+        } else if (status == HandshakeStatus.NEED_WRAP && key != null && writeRequested.compareAndSet(false, true)) {
+            // renegotiation
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private void checkClosed(final SSLEngineResult result) throws IOException {
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+            throw new EOFException(name + ": TLS session closed");
+        }
+    }
+
+    @Override
+    public void write(final byte[] cell) throws IOException {
+        try {
+            while (!outbound.offer(cell, OFFER_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                checkOpen();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for " + name);
+        }
+        checkOpen();
+        if (writeRequested.compareAndSet(false, true)) {
+            selectorThread.execute(enableWrite);
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (closed) {
+            throw new IOException(name + " is closed");
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (selectorThread.inSelectorThread()) {
+            closeInSelectorThread();
+        } else {
+            selectorThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    closeInSelectorThread();
+                }
+            });
+        }
+    }
+
+    /**
+     * write what is possible without blocking and close the channel.
+     */
+    private void closeInSelectorThread() {
+        if (key == null) {
+            // not registered yet: register() will call this method again
+            return;
+        }
+        try {
+            flush();
+            engine.closeOutbound();
+            netOut.clear();
+            engine.wrap(EMPTY, netOut);
+            netOut.flip();
+            channel.write(netOut);
+        } catch (final IOException e) {
+            LOG.debug("{}: error while closing: {}", name, e.getMessage());
+        }
+        closeChannel();
+    }
+
+    /**
+     * called by the selector thread if the channel can not be used anymore.
+     *
+     * @param e the reason
+     */
+    void fail(final IOException e) {
+        LOG.info("{}: connection error: {}", name, e.getMessage());
+        LOG.debug("{}: connection error", name, e);
+        failure = e;
+        final boolean wasClosed = closed;
+        closed = true;
+        closeChannel();
+        if (!wasClosed) {
+            // force to close the connection
+            tls.close(true);
+        }
+    }
+
+    private void closeChannel() {
+        if (key != null) {
+            key.cancel();
+        }
+        outbound.clear();
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            LOG.debug("got IOException : {}", e.getMessage(), e);
+        }
+    }
+}
@@ -19,15 +19,15 @@ package org.silvertunnel_ng.netlib.layer.tor.circuit;
 
 import org.silvertunnel_ng.netlib.layer.tor.api.Router;
 import org.silvertunnel_ng.netlib.layer.tor.common.TorKeyAgreement;
-import org.silvertunnel_ng.netlib.layer.tor.util.AESCounterMode;
+import org.silvertunnel_ng.netlib.layer.tor.util.AESCtrRelayCipher;
 import org.silvertunnel_ng.netlib.layer.tor.util.Encoding;
 import org.silvertunnel_ng.netlib.layer.tor.util.Encryption;
+import org.silvertunnel_ng.netlib.layer.tor.util.RelayDigest;
 import org.silvertunnel_ng.netlib.layer.tor.util.TorException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.math.BigInteger;
-import java.security.MessageDigest;
 import java.security.SecureRandom;
 
 /**
@@ -77,10 +77,10 @@ public class Node {
      * symmetric key for receiving data.
      */
     private byte[] keyBackward;
-    private AESCounterMode aesEncrypt;
-    private AESCounterMode aesDecrypt;
-    private MessageDigest sha1Forward;
-    private MessageDigest sha1Backward;
+    private AESCtrRelayCipher aesEncrypt;
+    private AESCtrRelayCipher aesDecrypt;
+    private RelayDigest sha1Forward;
+    private RelayDigest sha1Backward;
 
     private Node() {
 
@@ -134,21 +134,19 @@ public class Node {
         // backward digest
         backwardDigest = new byte[20];
         System.arraycopy(k, 20, backwardDigest, 0, DIGEST_LEN);
-        sha1Backward = Encryption.getMessagesDigest();
-        sha1Backward.update(backwardDigest, 0, DIGEST_LEN);
+        sha1Backward = new RelayDigest(backwardDigest);
         // forward digest
         forwardDigest = new byte[DIGEST_LEN];
         System.arraycopy(k, 40, forwardDigest, 0, DIGEST_LEN);
-        sha1Forward = Encryption.getMessagesDigest();
-        sha1Forward.update(forwardDigest, 0, DIGEST_LEN);
+        sha1Forward = new RelayDigest(forwardDigest);
         // secret key for sending data
         keyForward = new byte[16];
         System.arraycopy(k, 60, keyForward, 0, 16);
-        aesDecrypt = new AESCounterMode(keyForward);
+        aesDecrypt = new AESCtrRelayCipher(keyForward);
         // secret key for receiving data
         keyBackward = new byte[16];
         System.arraycopy(k, 76, keyBackward, 0, 16);
-        aesEncrypt = new AESCounterMode(keyBackward);
+        aesEncrypt = new AESCtrRelayCipher(keyBackward);
 
         if (LOG.isDebugEnabled()) {
             LOG.debug("Node.<init>: dhX = \n" + Encoding.toHexString(dhXBytes, 100)
@@ -298,21 +296,19 @@ public class Node {
         // forward digest
         forwardDigest = new byte[DIGEST_LEN];
         System.arraycopy(keyData, 20, forwardDigest, 0, DIGEST_LEN);
-        sha1Forward = Encryption.getMessagesDigest();
-        sha1Forward.update(forwardDigest);
+        sha1Forward = new RelayDigest(forwardDigest);
         // backward digest
         backwardDigest = new byte[DIGEST_LEN];
         System.arraycopy(keyData, 40, backwardDigest, 0, DIGEST_LEN);
-        sha1Backward = Encryption.getMessagesDigest();
-        sha1Backward.update(backwardDigest);
+        sha1Backward = new RelayDigest(backwardDigest);
         // secret key for sending data
         keyForward = new byte[16];
         System.arraycopy(keyData, 60, keyForward, 0, 16);
-        aesEncrypt = new AESCounterMode(keyForward);
+        aesEncrypt = new AESCtrRelayCipher(keyForward);
         // secret key for receiving data
         keyBackward = new byte[16];
         System.arraycopy(keyData, 76, keyBackward, 0, 16);
-        aesDecrypt = new AESCounterMode(keyBackward);
+        aesDecrypt = new AESCtrRelayCipher(keyBackward);
 
         if (LOG.isDebugEnabled()) {
             LOG.debug("Node.finishDh: dhX = \n"
@@ -329,45 +325,36 @@ public class Node {
     }
 
     /**
-     * calculate the forward digest.
+     * add a relay payload to the forward digest and store the first four
+     * bytes of the resulting digest in the payload.
      *
-     * @param data
-     * @return a four-byte array containing the digest
+     * @param payload the relay payload with zeroed digest field
+     * @param digestPos position of the digest field in the payload
      */
-    public byte[] calcForwardDigest(final byte[] data) {
+    public void putForwardDigest(final byte[] payload, final int digestPos) {
         if (LOG.isDebugEnabled()) {
-            LOG.debug("Node.calcForwardDigest() on:\n"
-                    + Encoding.toHexString(data, 100));
-        }
-        sha1Forward.update(data, 0, data.length);
-        final byte[] digest = Encryption.intermediateDigest(sha1Forward);
-        if (LOG.isDebugEnabled()) {
-            LOG.debug(" result:\n" + Encoding.toHexString(digest, 100));
+            LOG.debug("Node.putForwardDigest() on:\n"
+                    + Encoding.toHexString(payload, 100));
         }
-        final byte[] fourBytes = new byte[4];
-        System.arraycopy(digest, 0, fourBytes, 0, 4);
-        return fourBytes;
+        sha1Forward.update(payload, 0, payload.length);
+        sha1Forward.getDigest(payload, digestPos, RelayDigest.RELAY_DIGEST_LEN);
     }
 
     /**
-     * calculate the backward digest.
+     * check the digest of a received relay payload. If the digest matches,
+     * the payload becomes part of the backward digest; otherwise the backward
+     * digest stays untouched.
      *
-     * @param data
-     * @return a four-byte array containing the digest
+     * @param payload the relay payload with zeroed digest field
+     * @param expected the four digest bytes received in the cell
+     * @return true if the digest matches
      */
-    public byte[] calcBackwardDigest(final byte[] data) {
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("Node.calcBackwardDigest() on:\n"
-                    + Encoding.toHexString(data, 100));
-        }
-        sha1Backward.update(data, 0, data.length);
-        final byte[] digest = Encryption.intermediateDigest(sha1Backward);
+    public boolean checkBackwardDigest(final byte[] payload, final byte[] expected) {
         if (LOG.isDebugEnabled()) {
-            LOG.debug(" result:\n" + Encoding.toHexString(digest, 100));
+            LOG.debug("Node.checkBackwardDigest() on:\n"
+                    + Encoding.toHexString(payload, 100));
         }
-        final byte[] fourBytes = new byte[4];
-        System.arraycopy(digest, 0, fourBytes, 0, 4);
-        return fourBytes;
+        return sha1Backward.check(payload, expected);
     }
 
     /**
@@ -381,14 +368,8 @@ public class Node {
             LOG.debug("Node.symEncrypt in:\n" + Encoding.toHexString(data, 100));
         }
 
-        // encrypt data
-        final byte[] encrypted = aesEncrypt.processStream(data);
-        // copy to output
-        if (encrypted.length > data.length) {
-            System.arraycopy(encrypted, 0, data, 0, data.length);
-        } else {
-            System.arraycopy(encrypted, 0, data, 0, encrypted.length);
-        }
+        // encrypt data in place
+        aesEncrypt.process(data);
 
         if (LOG.isDebugEnabled()) {
             LOG.debug("Node.symEncrypt out:\n" + Encoding.toHexString(data, 100));
@@ -406,23 +387,18 @@ public class Node {
             LOG.debug("Node.symDecrypt for node " + router.getNickname());
         }
 
-        // decrypt data
-        final byte[] decrypted = aesDecrypt.processStream(data);
-
         if (LOG.isDebugEnabled()) {
             LOG.debug("Node.symDecrypt in:\n"
                     + Encoding.toHexString(data, 100));
-            LOG.debug("Node.symDecrypt out:\n"
-                    + Encoding.toHexString(decrypted, 100));
         }
 
-        // copy to output
-        if (decrypted.length > data.length) {
-            System.arraycopy(decrypted, 0, data, 0, data.length);
-        } else {
-            System.arraycopy(decrypted, 0, data, 0, decrypted.length);
-        }
+        // decrypt data in place
+        aesDecrypt.process(data);
 
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Node.symDecrypt out:\n"
+                    + Encoding.toHexString(data, 100));
+        }
     }
 
     /**
@@ -486,11 +462,11 @@ public class Node {
         return keyBackward;
     }
 
-    public AESCounterMode getAesEncrypt() {
+    public AESCtrRelayCipher getAesEncrypt() {
         return aesEncrypt;
     }
 
-    public AESCounterMode getAesDecrypt() {
+    public AESCtrRelayCipher getAesDecrypt() {
         return aesDecrypt;
     }
 
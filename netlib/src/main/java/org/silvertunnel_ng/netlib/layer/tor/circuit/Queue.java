@@ -18,8 +18,11 @@
 package org.silvertunnel_ng.netlib.layer.tor.circuit;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import org.silvertunnel_ng.netlib.layer.tor.circuit.cells.Cell;
 import org.silvertunnel_ng.netlib.layer.tor.circuit.cells.CellRelay;
@@ -31,21 +34,27 @@ import org.slf4j.LoggerFactory;
 /**
  * a helper class for queueing data (FIFO).
  * 
+ * The cells are kept in a lock-free linked queue. Waiting readers are parked
+ * and woken up by {@link #add(Cell)} directly, so a cell is handed over
+ * without delay and timeouts are met precisely. The handlers are called
+ * without holding any lock.
+ * 
  * @author Lexi Pimenidis
+ * @author Tobias Boese
  */
 public final class Queue
 {
 	/** */
 	private static final Logger LOG = LoggerFactory.getLogger(Queue.class);
 
-	private static final int WAIT = 100;
-
 	private volatile boolean closed = false;
 	private volatile boolean addClosed = false;
 	/** timeout internally represented in ms. */
 	private int timeoutMs = 1000;
-	private final List<Cell> queue = new ArrayList<Cell>();
-	private final List<QueueHandler> handler = new ArrayList<QueueHandler>();
+	private final ConcurrentLinkedQueue<Cell> queue = new ConcurrentLinkedQueue<Cell>();
+	private final List<QueueHandler> handler = new CopyOnWriteArrayList<QueueHandler>();
+	/** the threads waiting in {@link #get(int)}. */
+	private final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<Thread>();
 
 	/**
 	 * init class.
@@ -63,18 +72,18 @@ public final class Queue
 		this(1000);
 	}
 
-	public synchronized void addHandler(final QueueHandler qh)
+	public void addHandler(final QueueHandler qh)
 	{
 		handler.add(qh);
 	}
 
-	public synchronized boolean removeHandler(final QueueHandler qh)
+	public boolean removeHandler(final QueueHandler qh)
 	{
 		return handler.remove(qh);
 	}
 
 	/** add a cell to the queue. */
-	public synchronized void add(final Cell cell)
+	public void add(final Cell cell)
 	{
 		if (addClosed)
 		{
@@ -104,15 +113,26 @@ public final class Queue
 		}
 
 		// otherwise add to queue
-		queue.add(cell);
+		queue.offer(cell);
+
+		wakeUpWaiters();
+	}
 
-		this.notify();
+	/**
+	 * unpark all threads waiting for a cell (usually there is at most one).
+	 */
+	private void wakeUpWaiters()
+	{
+		for (final Thread waiter : waiters)
+		{
+			LockSupport.unpark(waiter);
+		}
 	}
 
 	/**
 	 * close the queue and remove all pending messages.
 	 */
-	public synchronized void close()
+	public void close()
 	{
 		addClosed = true;
 		closed = true;
@@ -123,16 +143,16 @@ public final class Queue
 		}
 
 		queue.clear();
-		this.notify();
+		wakeUpWaiters();
 	}
 
 	/**
 	 * prohibit further writing to the queue.
 	 */
-	public synchronized void closeAdd()
+	public void closeAdd()
 	{
 		addClosed = true;
-		this.notify();
+		wakeUpWaiters();
 	}
 
 	/** determines whether the queue is empty. */
@@ -142,7 +162,7 @@ public final class Queue
 		{
 			return true;
 		}
-		return queue.size() == 0;
+		return queue.isEmpty();
 	}
 
 	public Cell get()
@@ -154,53 +174,61 @@ public final class Queue
 	 * get the first element from out of the class. Behaviour
 	 * 
 	 * @param timeout
-	 *            determines what will happen, if no data is in queue.
+	 *            determines what will happen, if no data is in queue: -1 =
+	 *            wait forever, otherwise wait at most timeout milliseconds.
 	 * @return a Cell or null
 	 */
-	public synchronized Cell get(final int timeout)
+	public Cell get(final int timeout)
 	{
-
-		boolean forever = false;
-		if (timeout == -1)
+		final boolean forever = timeout == -1;
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		final Thread current = Thread.currentThread();
+		while (true)
 		{
-			forever = true;
-		}
-
-		int retries = timeout / WAIT;
-		do
-		{
-
 			if (closed)
 			{
 				return null;
 			}
-
-			if (queue.size() > 0)
+			final Cell cell = queue.poll();
+			if (cell != null)
 			{
-				final Cell cell = queue.get(0);
-				queue.remove(0);
 				return cell;
 			}
-			else if (addClosed)
+			if (addClosed)
 			{
 				closed = true;
 				return null;
 			}
-
+			final long remaining = deadline - System.nanoTime();
+			if (!forever && remaining <= 0)
+			{
+				return null;
+			}
+			waiters.add(current);
 			try
 			{
-				// wait for data
-				wait(WAIT);
+				// check again after registering, a cell could have arrived meanwhile
+				if (queue.isEmpty() && !addClosed)
+				{
+					if (forever)
+					{
+						LockSupport.park(this);
+					}
+					else
+					{
+						LockSupport.parkNanos(this, remaining);
+					}
+				}
+			}
+			finally
+			{
+				waiters.remove(current);
 			}
-			catch (final InterruptedException e)
+			if (Thread.interrupted())
 			{
-				LOG.debug("got InterruptedException : {}", e.getMessage(), e);
+				LOG.debug("got interrupted while waiting for a cell");
 			}
-			--retries;
 		}
-		while (forever || retries > 0 || queue.size() > 0);
-
-		return null;
 	}
 
 	/**
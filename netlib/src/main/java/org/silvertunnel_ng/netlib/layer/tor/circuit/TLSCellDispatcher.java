@@ -0,0 +1,290 @@
+/*
+ * OnionCoffee - Anonymous Communication through TOR Network
+ * Copyright (C) 2005-2007 RWTH Aachen University, Informatik IV
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * version 2 as published by the Free Software Foundation.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA
+ */
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.circuit;
+
+import org.silvertunnel_ng.netlib.layer.tor.circuit.cells.Cell;
+import org.silvertunnel_ng.netlib.layer.tor.circuit.cells.CellDestroy;
+import org.silvertunnel_ng.netlib.layer.tor.circuit.cells.CellRelay;
+import org.silvertunnel_ng.netlib.layer.tor.common.TorConfig;
+import org.silvertunnel_ng.netlib.layer.tor.util.TorException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * dispatches the cells received on a TLS connection to the appropriate
+ * circuit or stream that they belong to.
+ *
+ * Used by the thread reading the connection, i.e. {@link TLSDispatcherThread}
+ * or the selector thread of the NIO backend ({@link NioTLSChannel}). This
+ * thread only looks up the circuit; the rest is done in parallel for
+ * different circuits, see {@link CellPipeline}.
+ *
+ * @author Lexi Pimenidis
+ * @author hapke
+ * @author Tobias Boese
+ */
+class TLSCellDispatcher {
+    /** */
+    private static final Logger LOG = LoggerFactory.getLogger(TLSCellDispatcher.class);
+
+    private final TLSConnection tls;
+    /** true if the cells are delivered by the pipelines of the circuits. */
+    private final boolean pipelined;
+
+    TLSCellDispatcher(final TLSConnection tls) {
+        this.tls = tls;
+        this.pipelined = TorConfig.getCellDispatchThreads() > 0;
+    }
+
+    /**
+     * dispatch a received cell. Only finds the circuit; decrypting the cell
+     * and delivering it to the circuit or stream is done by the
+     * {@link CellPipeline} of the circuit, or directly if the pipeline is
+     * disabled (see {@link TorConfig#getCellDispatchThreads()}).
+     *
+     * @param cell the received cell
+     */
+    void dispatch(final Cell cell) {
+        // padding cell?
+        if (cell.isTypePadding()) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("TLSDispatcher.run: padding cell from {}", tls.getRouter().getNickname());
+            }
+            cell.release();
+            return;
+        }
+        final int cellCircId = cell.getCircuitId();
+        // dispatch according to circID
+        final Circuit circ = tls.getCircuit(cellCircId);
+        if (circ == null) {
+            LOG.info("TLSDispatcher.run: received cell for circuit "
+                    + cellCircId + " from "
+                    + tls.getRouter().getNickname()
+                    + ". But no such circuit exists.");
+            cell.release();
+            return;
+        }
+        if (pipelined) {
+            circ.getCellPipeline().add(cell, this);
+        } else {
+            deliver(circ, cell);
+        }
+    }
+
+    /**
+     * decrypt the cell and hand it to the circuit or stream. The cells of a
+     * circuit must be delivered in the order they were received.
+     *
+     * @param circ the circuit the cell was received for
+     * @param cell the received cell
+     */
+    void deliver(final Circuit circ, final Cell cell) {
+        boolean dispatched = false;
+        // check for destination in circuit
+        if (cell.isTypeRelay()) {
+            CellRelay relay = null;
+            try {
+                // found a relay-cell! Try to strip off
+                // symmetric encryption and check the content
+                relay = new CellRelay(circ, cell);
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("relay.getRelayCommandAsString()="
+                            + relay.getRelayCommandAsString());
+                }
+
+                // dispatch to stream, if a stream-ID is given
+                final int streamId = relay.getStreamId();
+                if (streamId != 0) {
+                    final Stream stream = circ.getStream(streamId);
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("dispatch to stream with streamId="
+                                + streamId + ", stream=" + stream);
+                    }
+                    if (stream != null) {
+                        dispatched = true;
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug("TLSDispatcher.run: data from "
+                                    + tls.getRouter().getNickname()
+                                    + " dispatched to circuit "
+                                    + circ.getId()
+                                    + "/stream "
+                                    + streamId);
+                        }
+                        stream.processCell(relay);
+                    } else if (circ
+                            .isUsedByHiddenServiceToConnectToRendezvousPoint()
+                            && relay.isTypeBegin()) {
+                        // new stream requested on a circuit that
+                        // was already established to the rendezvous
+                        // point
+                        circ.handleHiddenServiceStreamBegin(relay,
+                                streamId);
+                    } else {
+                        if (relay.isTypeData()) {
+                            // data for a stream which is gone still counts for the circuit window
+                            relay.release();
+                            circ.dataCellReceived();
+                            circ.dataCellsConsumed(1);
+                        }
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug("else: circ.isUsedByHiddenServiceToConnectToRendezvousPoint()="
+                                    + circ.isUsedByHiddenServiceToConnectToRendezvousPoint()
+                                    + ", relay.getRelayCommand()="
+                                    + relay.getRelayCommand());
+                        }
+                    }
+                } else {
+                    // relay cell for stream id 0: dispatch to
+                    // circuit
+                    if (relay.isTypeIntroduce2()) {
+                        if (circ.isUsedByHiddenServiceToConnectToIntroductionPoint()) {
+                            if (LOG.isDebugEnabled()) {
+                                LOG.debug("TLSDispatcher.run: introduce2 from "
+                                        + tls.getRouter()
+                                        .getNickname()
+                                        + " dispatched to circuit "
+                                        + circ.getId()
+                                        + " (stream ID=0)");
+                            }
+                            try {
+                                dispatched = circ.handleIntroduce2(relay);
+                            } catch (final IOException e) {
+                                LOG.info("TLSDispatcher.run: error handling intro2-cell: "
+                                        + e.getMessage());
+                            }
+                        } else {
+                            // do nothing
+                            if (LOG.isDebugEnabled()) {
+                                LOG.debug("else isTypeIntroduce2: from "
+                                        + tls.getRouter()
+                                        .getNickname()
+                                        + " dispatched to circuit "
+                                        + circ.getId()
+                                        + " (stream ID=0)");
+                            }
+                        }
+                    } else {
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug("TLSDispatcher.run: data from "
+                                    + tls.getRouter().getNickname()
+                                    + " dispatched to circuit "
+                                    + circ.getId()
+                                    + " (stream ID=0)");
+                        }
+                        dispatched = true;
+                        circ.processCell(relay);
+                    }
+                }
+            } catch (final TorException e) {
+                LOG.warn("TLSDispatcher.run: TorException "
+                        + e.getMessage()
+                        + " during dispatching cell");
+            } catch (final Exception e) {
+                LOG.warn(
+                        "TLSDispatcher.run: Exception "
+                                + e.getMessage()
+                                + " during dispatching cell", e);
+            }
+        } else {
+            // no relay cell: cell is there to control circuit
+            if (cell.isTypeDestroy()) {
+                if (LOG.isDebugEnabled()) {
+                    try {
+                        LOG.debug("TLSDispatcher.run: received DESTROY-cell from "
+                                + tls.getRouter().getNickname()
+                                + " for circuit "
+                                + circ.getId()
+                                + " reason : "
+                                + ((CellDestroy) cell).getReason());
+                    } catch (ClassCastException exception) {
+                        LOG.debug("TLSDispatcher.run: received DESTROY-cell from "
+                                + tls.getRouter().getNickname()
+                                + " for circuit "
+                                + circ.getId()
+                                + " reason : " + CellDestroy.getReason(cell.getPayload()[0]));
+                    }
+                }
+                if (cell.getPayload()[0] == CellDestroy.REASON_END_CIRC_TOR_PROTOCOL) {
+                    LOG.warn("got a DestroyCell with Reason protocol violation from " + circ);
+                }
+                dispatched = true;
+                circ.close(true);
+            } else {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("TLSDispatcher.run: data from "
+                            + tls.getRouter().getNickname()
+                            + " dispatched to circuit "
+                            + circ.getId());
+                }
+                dispatched = true;
+                try {
+                    circ.processCell(cell);
+                } catch (TorException exception) {
+                    LOG.warn("got Exception while processing cell", exception);
+                }
+            }
+        }
+        if (!dispatched) {
+            // used to be WARNING, but is given too often to be of $REAL
+            // value, like a warning should
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("TLSDispatcher.run: data from "
+                        + tls.getRouter().getNickname()
+                        + " could not get dispatched");
+                LOG.debug("TLSDispatcher.run: " + cell.toString());
+            }
+        }
+    }
+}
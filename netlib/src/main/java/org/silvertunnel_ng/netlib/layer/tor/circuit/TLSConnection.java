@@ -39,9 +39,13 @@ import org.silvertunnel_ng.netlib.api.NetLayer;
 import org.silvertunnel_ng.netlib.api.NetSocket;
 import org.silvertunnel_ng.netlib.api.util.TcpipNetAddress;
 import org.silvertunnel_ng.netlib.layer.tls.TLSNetLayer;
+import org.silvertunnel_ng.netlib.layer.tls.TLSNetSocketUtil;
 import org.silvertunnel_ng.netlib.layer.tor.api.Router;
 import org.silvertunnel_ng.netlib.layer.tor.circuit.cells.Cell;
+import org.silvertunnel_ng.netlib.layer.tor.circuit.cells.CellBufferPool;
+import org.silvertunnel_ng.netlib.layer.tor.common.TorConfig;
 import org.silvertunnel_ng.netlib.layer.tor.common.TorX509TrustManager;
+import org.silvertunnel_ng.netlib.layer.tor.directory.ConsensusParams;
 import org.silvertunnel_ng.netlib.layer.tor.util.TorException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,8 +54,8 @@ import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.TrustManager;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.*;
 
 /**
@@ -68,22 +72,31 @@ public class TLSConnection {
     private static final Logger LOG = LoggerFactory.getLogger(TLSConnection.class);
 
     private static final String enabledSuitesStr = "SSL_DHE_RSA_WITH_3DES_EDE_CBC_SHA,TLS_DHE_RSA_WITH_AES_128_CBC_SHA";
+    /** timeout for connect and TLS handshake of the NIO backend. */
+    private static final long CONNECT_TIMEOUT_MS = 10000;
 
     /**
      * pointer to the server/router.
      */
     private Router router;
     /**
-     * the physical connection (if any) to the node.
+     * the physical connection (if any) to the node; null for the NIO backend.
      */
     private final NetSocket tls;
     private boolean closed = false;
+    /** reads the incoming cells; null for the NIO backend. */
     private final TLSDispatcherThread dispatcher;
-    private final DataOutputStream sout;
+    /** writes the queued cells in batches. */
+    private final CellTransport transport;
+    /** recycled payload buffers for the cells received on this connection. */
+    private final CellBufferPool cellBufferPool = new CellBufferPool();
+    /** the cells waiting to be written, scheduled fairly between the circuits. */
+    private final CircuitScheduler scheduler = new CircuitScheduler(TorConfig.getTlsWriteQueueCells(),
+            ConsensusParams.DEFAULT.getCircuitPriorityHalflifeMs());
     /**
-     * key=circuit ID, value=circuit.
+     * the circuits by circuit ID.
      */
-    private final Map<Integer, Circuit> circuitMap = Collections.synchronizedMap(new HashMap<Integer, Circuit>());
+    private final IdRegistry<Circuit> circuits = new IdRegistry<Circuit>(1);
 
     /**
      * creates the TLS connection and installs a dispatcher for incoming data.
@@ -143,36 +156,61 @@ public class TLSConnection {
 		 */
 
         // create object to write data to stream
-        sout = new DataOutputStream(tls.getOutputStream());
+        transport = new TLSWriterThread(this, tls.getOutputStream(),
+                scheduler,
+                TorConfig.getTlsWriteMaxBatchCells(),
+                TorConfig.getTlsWriteMaxDelayMs(),
+                server.getNickname());
         // start listening for incoming data
         this.dispatcher = new TLSDispatcherThread(this, new DataInputStream(tls.getInputStream()));
     }
 
     /**
-     * converts a cell to bytes and transmits it over the line. received data is
+     * creates the TLS connection using the NIO backend. The connection is made
+     * directly via TCP/IP, the incoming data is dispatched by a selector thread.
+     *
+     * @param server       the server to connect to (e.g. a Tor Onion Router)
+     * @param selectorPool the selector threads of the NIO backend
+     * @throws IOException
+     * @see NioTLSChannel
+     */
+    TLSConnection(final Router server, final NioSelectorPool selectorPool) throws IOException {
+        if (server == null) {
+            throw new IOException("TLSConnection: server variable is NULL");
+        }
+        this.router = server;
+        this.tls = null;
+        this.dispatcher = null;
+        final TrustManager[] tms = {new TorX509TrustManager()};
+        this.transport = NioTLSChannel.open(this,
+                new InetSocketAddress(server.getAddress(), server.getOrPort()),
+                TLSNetSocketUtil.createSSLContext(null, tms),
+                enabledSuitesStr.split(","),
+                selectorPool.next(),
+                CONNECT_TIMEOUT_MS,
+                TorConfig.getTlsWriteMaxBatchCells());
+    }
+
+    /**
+     * converts a cell to bytes and queues it for transmission. The cells of a
+     * circuit must be sent in the order of their encryption, so callers have to
+     * serialize the calls per circuit (see {@link Circuit#sendCell(Cell)}).
+     * Blocks if too many cells are waiting to be written. Received data is
      * dispatched by the class TLSDispatcher
      *
      * @param cell the cell to send
-     * @throws IOException
+     * @throws IOException if the connection is closed
      * @see TLSDispatcherThread
+     * @see TLSWriterThread
      */
-    synchronized void sendCell(final Cell cell) throws IOException {
-        try {
-            sout.write(cell.toByteArray());
-        } catch (final IOException exception) {
-            LOG.debug("error while sending data Exception : {}", exception, exception);
-            // force to close the connection
-            close(true);
-            // rethrow error
-            throw exception;
-        }
+    void sendCell(final Cell cell) throws IOException {
+        transport.write(cell.toByteArray());
     }
 
     /**
      * returns a free circID and save that it points to "c", save it to "c",
      * too. Throws an exception, if no more free IDs are available, or the TLS
-     * connection is marked as closed.<br>
-     * FIXME: replace this code with something more beautiful
+     * connection is marked as closed.
      *
      * @param circuit the circuit that is going to be build through this
      *                TLS-Connection
@@ -187,31 +225,14 @@ public class TLSConnection {
                             + router.getNickname()
                             + " is closed for new circuits");
         }
-        // find a free number (other than zero)
-        int newId = 0;
-        int j = 0;
-        while (newId == 0) {
-            if (++j > 1000) {
-                throw new TorException(
-                        "TLSConnection.assignCircuitId(): no more free IDs");
-            }
-
-            // Deprecated: 16 bit unsigned Integers with MSB set
-            // ID = FirstNodeHandler.rnd.nextInt() & 0xffff | 0x8000;
-
-            // XXX: Since the PrivateKeyHandler is gone, we don't need to
-            // consider
-            // the MSB as long as we are in client mode (see main-tor-spec.txt,
-            // Section 5.1)
-            newId = TLSConnectionAdmin.RANDOM.nextInt() & 0xffff; // & 0x7fff;
-
-            if (circuitMap.containsKey(Integer.valueOf(newId))) {
-                newId = 0;
-            }
+        // XXX: Since the PrivateKeyHandler is gone, we don't need to consider
+        // the MSB as long as we are in client mode (see main-tor-spec.txt,
+        // Section 5.1)
+        final int newId = circuits.add(circuit);
+        if (newId < 0) {
+            throw new TorException(
+                    "TLSConnection.assignCircuitId(): no more free IDs");
         }
-
-        // memorize circuit
-        circuitMap.put(Integer.valueOf(newId), circuit);
         return newId;
     }
 
@@ -230,33 +251,34 @@ public class TLSConnection {
         // still build up
         // are not killed. their build-up should be stopped
         // close circuits, if forced
-        Collection<Circuit> circuits;
-        synchronized (circuitMap) {
-            circuits = new ArrayList<Circuit>(circuitMap.values());
-        }
-        for (final Circuit circuit : circuits) {
+        for (final Circuit circuit : circuits.values()) {
             if (circuit.close(force)) {
                 removeCircuit(circuit.getId());
             }
         }
 
         LOG.debug("Fast exit while closing TLS to {}?", router.getNickname());
-        if (!(force || circuitMap.isEmpty())) {
+        if (!(force || circuits.isEmpty())) {
             LOG.debug("Fast exit while closing TLS to {}!", router.getNickname());
             return;
         }
 
         // kill dispatcher
         LOG.debug("Closing dispatcher of TLS to {}", router.getNickname());
-        dispatcher.close();
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+        // write the remaining cells (e.g. DESTROY cells) and stop the writer
+        transport.close();
 
         // close TLS connection
         LOG.debug("Closing TLS connection to {}", router.getNickname());
-        try {
-            sout.close();
-            tls.close();
-        } catch (final IOException e) {
-            LOG.debug("got IOException : {}", e.getMessage(), e);
+        if (tls != null) {
+            try {
+                tls.close();
+            } catch (final IOException e) {
+                LOG.debug("got IOException : {}", e.getMessage(), e);
+            }
         }
         LOG.debug("Closing TLS to {} done", router.getNickname());
     }
@@ -274,26 +296,55 @@ public class TLSConnection {
         return router;
     }
 
+    /**
+     * @return the pool for the payload buffers of received cells
+     */
+    CellBufferPool getCellBufferPool() {
+        return cellBufferPool;
+    }
+
+    /**
+     * @return the queue of the cells waiting to be written
+     */
+    CircuitScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return a new dispatcher for the cells received on this connection
+     */
+    TLSCellDispatcher createCellDispatcher() {
+        return new TLSCellDispatcher(this);
+    }
+
+    /**
+     * use the half-life of the latest consensus for scheduling the circuits.
+     *
+     * @param halflifeMs the half-life in ms
+     * @see ConsensusParams#getCircuitPriorityHalflifeMs()
+     */
+    void setCircuitPriorityHalflifeMs(final int halflifeMs) {
+        scheduler.setHalflifeMs(halflifeMs);
+    }
+
     public void setRouter(final Router router) {
         this.router = router;
     }
 
     public Collection<Circuit> getCircuits() {
-        synchronized (circuitMap) {
-            return new ArrayList<Circuit>(circuitMap.values());
-        }
+        return circuits.values();
     }
 
     public Map<Integer, Circuit> getCircuitMap() {
-        synchronized (circuitMap) {
-            return new HashMap<Integer, Circuit>(circuitMap);
-        }
+        return circuits.toMap();
     }
 
-    public Circuit getCircuit(final Integer circuitId) {
-        synchronized (circuitMap) {
-            return circuitMap.get(circuitId);
-        }
+    /**
+     * @param circuitId the circuit ID
+     * @return the circuit or null
+     */
+    public Circuit getCircuit(final int circuitId) {
+        return circuits.get(circuitId);
     }
 
     /**
@@ -302,16 +353,13 @@ public class TLSConnection {
      * @param circuitId
      * @return true=removed; false=not remove/did not exist
      */
-    public boolean removeCircuit(final Integer circuitId) {
+    public boolean removeCircuit(final int circuitId) {
         LOG.debug("remove circuit with circuitId={} from {}", circuitId, toString());
 
         // remove Circuit
-        boolean result;
-        boolean doClose;
-        synchronized (circuitMap) {
-            result = circuitMap.remove(circuitId) != null;
-            doClose = circuitMap.size() == 0;
-        }
+        final boolean result = circuits.remove(circuitId) != null;
+        final boolean doClose = circuits.isEmpty();
+        scheduler.removeCircuit(circuitId);
 
         // last circuit of this TLSConnection removed: connection can be closed?
         if (doClose) {
@@ -322,11 +370,9 @@ public class TLSConnection {
             close(true);
         } else {
             // no
-            synchronized (circuitMap) {
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("cannot close TLSConnection from " + toString()
-                            + " because of additional circuits: " + circuitMap);
-                }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("cannot close TLSConnection from " + toString()
+                        + " because of additional circuits: " + circuits);
             }
         }
         if (LOG.isDebugEnabled()) {
@@ -37,13 +37,14 @@ package org.silvertunnel_ng.netlib.layer.tor.circuit;
 import org.silvertunnel_ng.netlib.api.NetLayer;
 import org.silvertunnel_ng.netlib.layer.tor.api.Fingerprint;
 import org.silvertunnel_ng.netlib.layer.tor.api.Router;
+import org.silvertunnel_ng.netlib.layer.tor.common.TLSConnectionBackend;
+import org.silvertunnel_ng.netlib.layer.tor.common.TorConfig;
 import org.silvertunnel_ng.netlib.layer.tor.util.TorException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.lang.ref.WeakReference;
-import java.security.SecureRandom;
 import java.util.*;
 
 /**
@@ -62,8 +63,6 @@ public final class TLSConnectionAdmin
 	/** */
 	private static final Logger LOG = LoggerFactory.getLogger(TLSConnectionAdmin.class);
 
-	protected static final SecureRandom RANDOM = new SecureRandom();
-
 	/** key=fingerprint, value=connection to this router */
 	private final Map<Fingerprint, WeakReference<TLSConnection>> connectionMap = Collections
 			.synchronizedMap(new HashMap<Fingerprint, WeakReference<TLSConnection>>());
@@ -81,6 +80,9 @@ public final class TLSConnectionAdmin
 	 */
 	private final NetLayer lowerTlsConnectionNetLayer;
 
+	/** selector threads of the NIO backend; created when needed. */
+	private NioSelectorPool nioSelectorPool;
+
 	/**
 	 * initialize Handler of TLSConnections.
 	 */
@@ -115,7 +117,14 @@ public final class TLSConnectionAdmin
 		{
 			// not in cache: build new TLS connection
 			LOG.debug("TLSConnectionAdmin: TLS connection to {}", router.getNickname());
-			conn = new TLSConnection(router, lowerTlsConnectionNetLayer);
+			if (TorConfig.getTlsConnectionBackend() == TLSConnectionBackend.NIO)
+			{
+				conn = new TLSConnection(router, getNioSelectorPool());
+			}
+			else
+			{
+				conn = new TLSConnection(router, lowerTlsConnectionNetLayer);
+			}
 			weakConn = new WeakReference<TLSConnection>(conn);
 			connectionMap.put(router.getFingerprint(), weakConn);
 			connectionMapAll.put(router.getFingerprint(), weakConn);
@@ -123,6 +132,18 @@ public final class TLSConnectionAdmin
 		return conn;
 	}
 
+	/**
+	 * @return the selector threads of the NIO backend
+	 */
+	private synchronized NioSelectorPool getNioSelectorPool() throws IOException
+	{
+		if (nioSelectorPool == null)
+		{
+			nioSelectorPool = new NioSelectorPool(TorConfig.getNioSelectorThreads());
+		}
+		return nioSelectorPool;
+	}
+
 	/**
 	 * Remove TLSConnection if it was closed.
 	 * 
@@ -175,6 +196,14 @@ public final class TLSConnectionAdmin
 			}
 			connectionMap.clear();
 		}
+		synchronized (this)
+		{
+			if (nioSelectorPool != null)
+			{
+				nioSelectorPool.close();
+				nioSelectorPool = null;
+			}
+		}
 	}
 	/**
 	 * Get a collection of all valid {@link TLSConnection}s.
@@ -0,0 +1,211 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.circuit;
+
+import org.silvertunnel_ng.netlib.layer.tor.circuit.cells.Cell;
+import org.silvertunnel_ng.netlib.util.NetlibThreads;
+import org.silvertunnel_ng.netlib.util.NetlibThreads.Subsystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * writes the cells of a TLS connection.
+ *
+ * The senders only put the already encrypted cells into the bounded
+ * {@link CircuitScheduler} of the connection. This thread collects all queued
+ * cells, in the order chosen by the scheduler, (up to maxBatchCells, waiting at most
+ * maxDelayMs for more cells) and writes them with one single write, so a bulk
+ * transfer results in few large TLS records instead of one record per cell.
+ * If the queue is full the senders are blocked until the connection catches up.
+ *
+ * @author Tobias Boese
+ */
+class TLSWriterThread implements Runnable, CellTransport {
+    /** */
+    private static final Logger LOG = LoggerFactory.getLogger(TLSWriterThread.class);
+
+    /** how often a blocked sender checks whether the connection was closed. */
+    private static final long OFFER_CHECK_INTERVAL_MS = 100;
+    /** how long {@link #close()} waits for the queued cells to be written. */
+    private static final long CLOSE_FLUSH_TIMEOUT_MS = 1000;
+
+    /** the connection (may be null for tests). */
+    private final TLSConnection tls;
+    private final OutputStream out;
+    private final CircuitScheduler queue;
+    private final int maxBatchCells;
+    private final long maxDelayNanos;
+    /** the batch to be written. */
+    private final byte[] batch;
+    private final Thread thread;
+    private volatile boolean stopped;
+    /** the reason why this writer stopped working. */
+    private volatile IOException failure;
+
+    /**
+     * @param tls           the connection, will be closed on write errors
+     * @param out           the stream to write to
+     * @param queue         the queue of the connection
+     * @param maxBatchCells maximum number of cells written with one write
+     * @param maxDelayMs    time to wait for further cells before an incomplete batch is written
+     * @param name          name of the remote router (used for the thread name)
+     */
+    TLSWriterThread(final TLSConnection tls,
+                    final OutputStream out,
+                    final CircuitScheduler queue,
+                    final int maxBatchCells,
+                    final long maxDelayMs,
+                    final String name) {
+        this.tls = tls;
+        this.out = out;
+        this.queue = queue;
+        this.maxBatchCells = maxBatchCells;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+        this.batch = new byte[maxBatchCells * Cell.CELL_TOTAL_SIZE];
+        this.thread = NetlibThreads.start(Subsystem.TLS, "TLSWriter for " + name, this, true);
+    }
+
+    /**
+     * queue an encrypted cell. Blocks while the queue is full.
+     *
+     * @param cell the cell as byte array
+     * @throws IOException if the connection is (or gets) closed
+     */
+    @Override
+    public void write(final byte[] cell) throws IOException {
+        try {
+            while (!queue.offer(cell, OFFER_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+                checkOpen();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for " + thread.getName());
+        }
+        checkOpen();
+    }
+
+    private void checkOpen() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        if (stopped) {
+            throw new IOException(thread.getName() + " is closed");
+        }
+    }
+
+    /**
+     * stop the writer; cells which are already queued are written first.
+     */
+    @Override
+    public void close() {
+        stopped = true;
+        if (Thread.currentThread() == thread) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            thread.join(CLOSE_FLUSH_TIMEOUT_MS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!stopped) {
+                final byte[] first;
+                try {
+                    first = queue.take();
+                } catch (final InterruptedException e) {
+                    continue;
+                }
+                writeBatch(first);
+            }
+            // write what is left
+            byte[] cell;
+            while ((cell = queue.poll()) != null) {
+                writeBatch(cell);
+            }
+        } catch (final IOException e) {
+            LOG.debug("error while sending data Exception : {}", e, e);
+            failure = e;
+            stopped = true;
+            queue.clear();
+            if (tls != null) {
+                // force to close the connection
+                tls.close(true);
+            }
+        }
+    }
+
+    /**
+     * collect further cells and write them together with the given one.
+     */
+    private void writeBatch(final byte[] first) throws IOException {
+        System.arraycopy(first, 0, batch, 0, first.length);
+        int length = first.length;
+        int cells = 1;
+        final long deadline = System.nanoTime() + maxDelayNanos;
+        while (cells < maxBatchCells) {
+            byte[] next = queue.poll();
+            if (next == null && maxDelayNanos > 0 && !stopped) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining > 0) {
+                    try {
+                        next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    } catch (final InterruptedException e) {
+                        // closing: write what we have
+                        next = null;
+                    }
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            System.arraycopy(next, 0, batch, length, next.length);
+            length += next.length;
+            cells++;
+        }
+        out.write(batch, 0, length);
+        out.flush();
+    }
+
+    /**
+     * wait until the writer stopped.
+     *
+     * @param millis maximum time to wait
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void join(final long millis) throws InterruptedException {
+        thread.join(millis);
+    }
+
+    /**
+     * @return number of cells waiting to be written
+     */
+    int getQueuedCells() {
+        return queue.size();
+    }
+}
@@ -53,7 +53,7 @@ public class Cell
 	public static final int CELL_CREATED_FAST = 6;
 	/** End-to-end data. limited. */
 	public static final int CELL_RELAY_EARLY = 9;
-	static final int CELL_TOTAL_SIZE = 512;
+	public static final int CELL_TOTAL_SIZE = 512;
 	static final int CELL_CIRCID_SIZE = 2;
 	static final int CELL_COMMAND_SIZE = 1;
 	static final int CELL_PAYLOAD_SIZE = 509;
@@ -69,6 +69,8 @@ public class Cell
 	protected byte[] payload;
 	/** Circuit for sending data or circuit that needs to be created. */
 	protected Circuit outCircuit;
+	/** the pool the payload buffer belongs to, null if it is not pooled. */
+	private CellBufferPool payloadPool;
 
 	/**
 	 * initialize cell for sending.
@@ -114,19 +116,71 @@ public class Cell
 			throw new IOException("null as input stream given");
 		}
 		final byte[] data = new byte[Cell.CELL_TOTAL_SIZE];
-		int filled = 0;
-		while (filled < data.length)
+		CellCodec.readFully(in, data, data.length);
+		initFromData(data);
+	}
+
+	/**
+	 * initialize a received cell with an already decoded header and payload
+	 * (used by {@link CellCodec}). Attention: this.outCircuit is not set!
+	 * 
+	 * @param circuitId
+	 *            the circuit id
+	 * @param command
+	 *            the cell command
+	 * @param payload
+	 *            the payload buffer, taken over without copying
+	 * @param payloadPool
+	 *            the pool the payload buffer belongs to, or null
+	 */
+	Cell(final int circuitId, final byte command, final byte[] payload, final CellBufferPool payloadPool)
+	{
+		this.circuitId = circuitId;
+		this.command = command;
+		this.payload = payload;
+		this.payloadPool = payloadPool;
+
+		if (LOG.isDebugEnabled())
 		{
-			final int n = in.read(data, filled, data.length - filled);
-			if (n < 0)
-			{
-				throw new IOException("Cell.<init>: reached EOF");
-			}
-			filled += n;
-			// TODO: check if this is OK:
-			Thread.yield();
+			LOG.debug("Cell.<init>: " + toString("Received "));
+		}
+	}
+
+	/**
+	 * initialize a cell from a received cell. The payload buffer (and the
+	 * responsibility to release it) is taken over without copying.
+	 * Attention: this.outCircuit is not set!
+	 * 
+	 * @param cell
+	 *            the received cell; must not be used afterwards
+	 */
+	Cell(final Cell cell)
+	{
+		this.circuitId = cell.circuitId;
+		this.command = cell.command;
+		this.payload = cell.payload;
+		this.payloadPool = cell.payloadPool;
+		cell.payloadPool = null;
+	}
+
+	/**
+	 * give the payload buffer back to its pool. Must only be called when
+	 * the payload (and everything referencing it) is not used any more.
+	 * Calling this for cells with an unpooled payload has no effect.
+	 */
+	public final void release()
+	{
+		final CellBufferPool pool;
+		synchronized (this)
+		{
+			pool = payloadPool;
+			payloadPool = null;
+		}
+		if (pool != null)
+		{
+			pool.release(payload);
+			payload = null;
 		}
-		initFromData(data);
 	}
 
 	/**
@@ -0,0 +1,106 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package org.silvertunnel_ng.netlib.layer.tor.circuit.cells;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of recycled cell payload buffers.
+ *
+ * Each TLS connection has its own pool. Received cells are decoded into
+ * buffers of this pool (see {@link CellCodec}) and the buffers are handed back
+ * with {@link Cell#release()} once the payload has been consumed. Buffers
+ * which are never released are simply garbage collected; when the pool is
+ * empty a new buffer is allocated.
+ *
+ * @author Tobias Boese
+ */
+public final class CellBufferPool
+{
+	/** default number of idle buffers kept per pool. */
+	public static final int DEFAULT_MAX_IDLE = 64;
+
+	/** the idle buffers. */
+	private final ConcurrentLinkedQueue<byte[]> idle = new ConcurrentLinkedQueue<byte[]>();
+	/** number of buffers in {@link #idle}. */
+	private final AtomicInteger idleCount = new AtomicInteger();
+	/** maximum number of idle buffers. */
+	private final int maxIdle;
+
+	/**
+	 * create a pool which keeps at most {@link #DEFAULT_MAX_IDLE} idle buffers.
+	 */
+	public CellBufferPool()
+	{
+		this(DEFAULT_MAX_IDLE);
+	}
+
+	/**
+	 * @param maxIdle
+	 *            maximum number of idle buffers kept in the pool
+	 */
+	public CellBufferPool(final int maxIdle)
+	{
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * @return a payload buffer of {@link Cell#CELL_PAYLOAD_SIZE} bytes; the
+	 *         content is undefined
+	 */
+	public byte[] acquire()
+	{
+		final byte[] buffer = idle.poll();
+		if (buffer == null)
+		{
+			return new byte[Cell.CELL_PAYLOAD_SIZE];
+		}
+		idleCount.decrementAndGet();
+		return buffer;
+	}
+
+	/**
+	 * give a buffer back to the pool. The caller must not use the buffer
+	 * afterwards.
+	 *
+	 * @param buffer
+	 *            a buffer obtained by {@link #acquire()}
+	 */
+	public void release(final byte[] buffer)
+	{
+		if (buffer == null || buffer.length != Cell.CELL_PAYLOAD_SIZE)
+		{
+			return;
+		}
+		if (idleCount.incrementAndGet() > maxIdle)
+		{
+			idleCount.decrementAndGet();
+			return;
+		}
+		idle.offer(buffer);
+	}
+
+	/**
+	 * @return number of idle buffers
+	 */
+	public int getIdleCount()
+	{
+		return idleCount.get();
+	}
+}
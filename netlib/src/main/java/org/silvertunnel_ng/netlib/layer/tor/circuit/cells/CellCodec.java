@@ -0,0 +1,121 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package org.silvertunnel_ng.netlib.layer.tor.circuit.cells;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes cells read from a TLS connection.
+ *
+ * The cell header is read into a scratch array and the payload directly into
+ * a buffer of the connection's {@link CellBufferPool}, so no intermediate
+ * 512 byte array is needed. A codec instance belongs to exactly one reading
+ * thread.
+ *
+ * @author Tobias Boese
+ */
+public final class CellCodec
+{
+	/** the pool for the payload buffers. */
+	private final CellBufferPool pool;
+	/** scratch space for circuit id and command. */
+	private final byte[] header = new byte[Cell.CELL_PAYLOAD_POS];
+
+	/**
+	 * @param pool
+	 *            the pool of the connection
+	 */
+	public CellCodec(final CellBufferPool pool)
+	{
+		this.pool = pool;
+	}
+
+	/**
+	 * read the next cell from the stream. Blocks until a complete cell is
+	 * available.
+	 *
+	 * @param in
+	 *            the input stream of a TLS connection
+	 * @return the received cell; its payload belongs to the pool
+	 * @throws IOException
+	 *             on EOF or read errors
+	 */
+	public Cell decode(final InputStream in) throws IOException
+	{
+		readFully(in, header, header.length);
+		final byte[] payload = pool.acquire();
+		try
+		{
+			readFully(in, payload, payload.length);
+		}
+		catch (final IOException e)
+		{
+			pool.release(payload);
+			throw e;
+		}
+		final int circuitId = ((header[Cell.CELL_CIRCID_POS] & 0xff) << 8) | (header[Cell.CELL_CIRCID_POS + 1] & 0xff);
+		return new Cell(circuitId, header[Cell.CELL_COMMAND_POS], payload, pool);
+	}
+
+	/**
+	 * take the next cell from a buffer filled by a non-blocking reader.
+	 *
+	 * @param in
+	 *            buffer in read mode; the position is moved behind the cell
+	 * @return the next cell or null if the buffer contains no complete cell
+	 */
+	public Cell decode(final ByteBuffer in)
+	{
+		if (in.remaining() < Cell.CELL_TOTAL_SIZE)
+		{
+			return null;
+		}
+		in.get(header);
+		final byte[] payload = pool.acquire();
+		in.get(payload);
+		final int circuitId = ((header[Cell.CELL_CIRCID_POS] & 0xff) << 8) | (header[Cell.CELL_CIRCID_POS + 1] & 0xff);
+		return new Cell(circuitId, header[Cell.CELL_COMMAND_POS], payload, pool);
+	}
+
+	/**
+	 * fill the buffer completely from the stream.
+	 */
+	static void readFully(final InputStream in, final byte[] buffer, final int length) throws IOException
+	{
+		int filled = 0;
+		while (filled < length)
+		{
+			final int n = in.read(buffer, filled, length - filled);
+			if (n < 0)
+			{
+				throw new IOException("Cell.<init>: reached EOF");
+			}
+			filled += n;
+		}
+	}
+
+	/**
+	 * @return the pool used for the payload buffers
+	 */
+	public CellBufferPool getPool()
+	{
+		return pool;
+	}
+}
@@ -134,7 +134,8 @@ public class CellRelay extends Cell {
     private byte[] digest = new byte[4];
     /** 16 bit unsigned integer. */
     private int length;
-    protected byte[] data = new byte[498];
+    /** the relay data; for received cells only created on demand by {@link #getData()}. */
+    protected byte[] data;
     /**
      * set to a value from 0 to outCircuit.routeEstablished-1 to address a
      * special router in the chain, default is the last one.
@@ -146,6 +147,7 @@ public class CellRelay extends Cell {
      */
     CellRelay(final Circuit c, final int relayCommand) {
         super(c, Cell.CELL_RELAY);
+        this.data = new byte[RELAY_DATA_SIZE];
         this.relayCommand = (byte) relayCommand;
     }
 
@@ -154,6 +156,7 @@ public class CellRelay extends Cell {
      */
     CellRelay(final Circuit c, final int cellType, final int relayCommand) {
         super(c, cellType);
+        this.data = new byte[RELAY_DATA_SIZE];
         this.relayCommand = (byte) relayCommand;
     }
 
@@ -162,6 +165,7 @@ public class CellRelay extends Cell {
      */
     CellRelay(final Stream s, final int relayCommand) {
         super(s.getCircuit(), Cell.CELL_RELAY);
+        this.data = new byte[RELAY_DATA_SIZE];
         this.streamId = s.getId();
         this.relayCommand = (byte) relayCommand;
     }
@@ -171,6 +175,7 @@ public class CellRelay extends Cell {
      */
     CellRelay(final Stream s, final int cellType, final int relayCommand) {
         super(s.getCircuit(), cellType);
+        this.data = new byte[RELAY_DATA_SIZE];
         this.streamId = s.getId();
         this.relayCommand = (byte) relayCommand;
     }
@@ -187,8 +192,7 @@ public class CellRelay extends Cell {
      * initialize from main Cell-type.
      */
     public CellRelay(final Circuit circ, final Cell cell) throws TorException {
-        super(cell.toByteArray()); // TODO: inefficient at max! - but currently
-        // working
+        super(cell); // takes over the payload buffer without copying
         this.outCircuit = circ;
         initFromData();
     }
@@ -245,15 +249,12 @@ public class CellRelay extends Cell {
                 payload[CellRelay.RELAY_DIGEST_POS + 1] = 0;
                 payload[CellRelay.RELAY_DIGEST_POS + 2] = 0;
                 payload[CellRelay.RELAY_DIGEST_POS + 3] = 0;
-                // calculate digest
-                final byte[] digestCalc = outCircuit.getRouteNodes()[encryptingRouter].calcBackwardDigest(payload);
+                // calculate and check digest
+                final boolean digestOk = outCircuit.getRouteNodes()[encryptingRouter].checkBackwardDigest(payload, digest);
                 // restore digest
                 System.arraycopy(digest, 0, payload, CellRelay.RELAY_DIGEST_POS, CellRelay.RELAY_DIGEST_SIZE);
                 // check digest
-                if (digest[0] == digestCalc[0]
-                        && digest[1] == digestCalc[1]
-                        && digest[2] == digestCalc[2]
-                        && digest[3] == digestCalc[3]) {
+                if (digestOk) {
                     if (LOG.isDebugEnabled()) {
                         LOG.debug("CellRelay.initFromData(): backward digest from "
                                 + outCircuit.getRouteNodes()[encryptingRouter]
@@ -264,9 +265,7 @@ public class CellRelay extends Cell {
                 } else {
                     if (LOG.isDebugEnabled()) {
                         LOG.debug("didn't verified digest="
-                                + Encoding.toHexString(digest)
-                                + ", digestCalc="
-                                + Encoding.toHexString(digestCalc));
+                                + Encoding.toHexString(digest));
                     }
                 }
             }
@@ -283,7 +282,8 @@ public class CellRelay extends Cell {
         relayCommand = payload[CellRelay.RELAY_COMMAND_POS];
         streamId = Encoding.byteArrayToInt(payload, CellRelay.RELAY_STREAMID_POS, CellRelay.RELAY_STREAMID_SIZE);
         length = Encoding.byteArrayToInt(payload, CellRelay.RELAY_LENGTH_POS, CellRelay.RELAY_LENGTH_SIZE);
-        System.arraycopy(payload, CellRelay.RELAY_DATA_POS, data, 0, CellRelay.RELAY_DATA_SIZE);
+        // the data stays in the payload, see getData()
+        data = null;
 
         if (LOG.isDebugEnabled()) {
             LOG.debug("CellRelay.initFromData(): " + toString());
@@ -331,8 +331,12 @@ public class CellRelay extends Cell {
         if (addressedRouterInCircuit >= 0) {
             i0 = addressedRouterInCircuit;
         }
-        digest = outCircuit.getRouteNodes()[i0].calcForwardDigest(payload);
-        System.arraycopy(digest, 0, payload, CellRelay.RELAY_DIGEST_POS, CellRelay.RELAY_DIGEST_SIZE);
+        payload[CellRelay.RELAY_DIGEST_POS] = 0;
+        payload[CellRelay.RELAY_DIGEST_POS + 1] = 0;
+        payload[CellRelay.RELAY_DIGEST_POS + 2] = 0;
+        payload[CellRelay.RELAY_DIGEST_POS + 3] = 0;
+        outCircuit.getRouteNodes()[i0].putForwardDigest(payload, CellRelay.RELAY_DIGEST_POS);
+        System.arraycopy(payload, CellRelay.RELAY_DIGEST_POS, digest, 0, CellRelay.RELAY_DIGEST_SIZE);
 
         if (LOG.isDebugEnabled()) {
             LOG.debug("CellRelay.toByteArray(): " + toString());
@@ -361,7 +365,7 @@ public class CellRelay extends Cell {
     }
 
     public String getReasonForClosing() {
-        return getReasonForClosing(data[0]);
+        return getReasonForClosing(getData()[0]);
     }
 
     /**
@@ -375,7 +379,7 @@ public class CellRelay extends Cell {
     }
 
     public String getReasonForTruncated() {
-        return getReasonForTruncated(data[0]);
+        return getReasonForTruncated(getData()[0]);
     }
 
     /**
@@ -419,7 +423,7 @@ public class CellRelay extends Cell {
         // display connection
         if (isTypeBegin()) {
             final byte[] host = new byte[length - 1];
-            System.arraycopy(data, 0, host, 0, length - 1);
+            System.arraycopy(getData(), 0, host, 0, length - 1);
             sb.append("  Connecting to: " + new String(host) + "\n");
 
         } else if (isTypeEnd()) {
@@ -429,7 +433,7 @@ public class CellRelay extends Cell {
         } else if (isTypeConnected() && length >= 4) {
             // display connection
             final byte[] ip = new byte[4];
-            System.arraycopy(data, 0, ip, 0, 4);
+            System.arraycopy(getData(), 0, ip, 0, 4);
             try {
                 sb.append("  Connected to: " + InetAddress.getByAddress(ip).toString() + "\n");
             } catch (final UnknownHostException e) {
@@ -443,7 +447,7 @@ public class CellRelay extends Cell {
 
         } else if ((length > 0) && (relayCommand != 6) && (relayCommand != 7)) {
             // display data field, if there is data AND data is not encrypted
-            sb.append("  Data (" + length + " bytes)\n" + Encoding.toHexString(data, 100, 0, length) + "\n");
+            sb.append("  Data (" + length + " bytes)\n" + Encoding.toHexString(getDataBuffer(), 100, getDataOffset(), length) + "\n");
         }
 
         return sb.toString();
@@ -555,10 +559,33 @@ public class CellRelay extends Cell {
         this.length = length;
     }
 
+    /**
+     * @return the relay data. For received cells this creates a copy of the
+     *         data on the first call; use {@link #getDataBuffer()} and
+     *         {@link #getDataOffset()} to avoid it.
+     */
     public byte[] getData() {
+        if (data == null) {
+            data = new byte[RELAY_DATA_SIZE];
+            System.arraycopy(payload, RELAY_DATA_POS, data, 0, RELAY_DATA_SIZE);
+        }
         return data;
     }
 
+    /**
+     * @return the array containing the relay data at {@link #getDataOffset()}
+     */
+    public byte[] getDataBuffer() {
+        return data != null ? data : payload;
+    }
+
+    /**
+     * @return the position of the relay data in {@link #getDataBuffer()}
+     */
+    public int getDataOffset() {
+        return data != null ? 0 : RELAY_DATA_POS;
+    }
+
     public void setData(final byte[] data) {
         this.data = data;
     }
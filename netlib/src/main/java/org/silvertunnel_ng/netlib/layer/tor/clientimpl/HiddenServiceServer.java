@@ -47,6 +47,8 @@ import org.silvertunnel_ng.netlib.layer.tor.directory.SDIntroductionPoint;
 import org.silvertunnel_ng.netlib.layer.tor.hiddenservice.HiddenServiceProperties;
 import org.silvertunnel_ng.netlib.layer.tor.util.Encoding;
 import org.silvertunnel_ng.netlib.layer.tor.util.TorException;
+import org.silvertunnel_ng.netlib.util.NetlibThreads;
+import org.silvertunnel_ng.netlib.util.NetlibThreads.Subsystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -119,7 +121,8 @@ public class HiddenServiceServer
 		// - in parallel (as good as possible)
 		//
 
-		final ExecutorService executor = Executors.newCachedThreadPool();
+		final ExecutorService executor = Executors.newCachedThreadPool(
+				NetlibThreads.threadFactory(Subsystem.HIDDEN_SERVICE, "IntroductionPoint", false));
 		while (hiddenServiceProps.getNumberOfIntroPoints() < hiddenServiceProps.getMinimumNumberOfIntroPoints())
 		{
 			LOG.debug("establish circuits to (randomly chosen) introduction points for {}", hiddenServicePortInstance);
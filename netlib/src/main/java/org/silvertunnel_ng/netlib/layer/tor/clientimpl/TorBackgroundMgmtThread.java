@@ -45,6 +45,8 @@ import org.silvertunnel_ng.netlib.layer.tor.common.TCPStreamProperties;
 import org.silvertunnel_ng.netlib.layer.tor.common.TorConfig;
 import org.silvertunnel_ng.netlib.layer.tor.directory.DirectoryManagerThread;
 import org.silvertunnel_ng.netlib.layer.tor.stream.TCPStream;
+import org.silvertunnel_ng.netlib.util.NetlibThreads;
+import org.silvertunnel_ng.netlib.util.NetlibThreads.Subsystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -150,7 +152,7 @@ class TorBackgroundMgmtThread extends Thread {
             tor.updateStatus(TorNetLayerStatus.INITIAL_CIRCUITES_ESTABLISHING);
         }
         for (int i = 0; i < amount; ++i) {
-            final Thread brt = new Thread() {
+            final Thread brt = NetlibThreads.newThread(Subsystem.CIRCUIT, "Idle Thread " + idleThreadCounter++, new Runnable() {
                 @Override
                 public void run() {
                     try {
@@ -166,9 +168,8 @@ class TorBackgroundMgmtThread extends Thread {
                         LOG.debug("TorBackgroundMgmtThread.spawnIdleCircuits got Exception: {}", e.getMessage(), e);
                     }
                 }
-            };
+            }, false);
             LOG.debug("TorBackgroundMgmtThread.spawnIdleCircuits: Circuit-Spawning thread started.");
-            brt.setName("Idle Thread " + idleThreadCounter++);
             brt.start();
             backgroundThreads.add(brt);
         }
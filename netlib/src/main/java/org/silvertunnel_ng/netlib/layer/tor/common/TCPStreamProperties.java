@@ -91,6 +91,13 @@ public final class TCPStreamProperties
 	private float rankingInfluenceIndex;
 	/** custom/predefined route. */
 	private Fingerprint[] route;
+	/** when written data is sent. */
+	private TCPStreamWriteMode writeMode = TCPStreamWriteMode.IMMEDIATE;
+	/** maximum time a partly filled cell is held back in {@link TCPStreamWriteMode#COALESCE}. */
+	private long writeCoalesceDelayMs = DEFAULT_WRITE_COALESCE_DELAY_MS;
+
+	/** default for {@link #getWriteCoalesceDelayMs()}. */
+	public static final long DEFAULT_WRITE_COALESCE_DELAY_MS = 20;
 
 	/**
 	 * preset the data structure with all necessary attributes.
@@ -470,4 +477,48 @@ public final class TCPStreamProperties
 	{
 		this.connectToDirServer = connectToDirServer;
 	}
+
+	/**
+	 * @return when the data written to the stream is sent
+	 */
+	public TCPStreamWriteMode getWriteMode()
+	{
+		return writeMode;
+	}
+
+	/**
+	 * @param writeMode when the data written to the stream is sent
+	 */
+	public void setWriteMode(final TCPStreamWriteMode writeMode)
+	{
+		if (writeMode == null)
+		{
+			LOG.warn("setWriteMode : writeMode must not be null");
+			return; // keep the old value
+		}
+		this.writeMode = writeMode;
+	}
+
+	/**
+	 * @return maximum time in milliseconds a partly filled cell is held back in
+	 *         {@link TCPStreamWriteMode#COALESCE}
+	 */
+	public long getWriteCoalesceDelayMs()
+	{
+		return writeCoalesceDelayMs;
+	}
+
+	/**
+	 * @param writeCoalesceDelayMs maximum time in milliseconds a partly filled cell
+	 *            is held back in {@link TCPStreamWriteMode#COALESCE}; must be &gt; 0
+	 */
+	public void setWriteCoalesceDelayMs(final long writeCoalesceDelayMs)
+	{
+		if (writeCoalesceDelayMs <= 0)
+		{
+			LOG.warn("setWriteCoalesceDelayMs : wrong value {} found!", writeCoalesceDelayMs);
+			return; // keep the old value
+		}
+		this.writeCoalesceDelayMs = writeCoalesceDelayMs;
+	}
 }
@@ -0,0 +1,40 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2014 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package org.silvertunnel_ng.netlib.layer.tor.common;
+
+/**
+ * When the data written to a stream is packed into RELAY_DATA cells and sent.
+ *
+ * @author Tobias Boese
+ * @see TCPStreamProperties#setWriteMode(TCPStreamWriteMode)
+ */
+public enum TCPStreamWriteMode {
+    /**
+     * send a cell at the end of every write call, like a socket with TCP_NODELAY.
+     */
+    IMMEDIATE,
+    /**
+     * send full cells only; a partly filled cell is sent when it is older than
+     * {@link TCPStreamProperties#getWriteCoalesceDelayMs()} or on flush().
+     */
+    COALESCE,
+    /**
+     * send full cells only; a partly filled cell is sent on flush() or close().
+     */
+    EXPLICIT_FLUSH;
+}
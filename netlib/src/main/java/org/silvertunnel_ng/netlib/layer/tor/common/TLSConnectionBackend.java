@@ -0,0 +1,36 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2014 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package org.silvertunnel_ng.netlib.layer.tor.common;
+
+/**
+ * Implementation used for the TLS connections to the onion routers.
+ *
+ * @author Tobias Boese
+ * @see TorConfig#setTlsConnectionBackend(TLSConnectionBackend)
+ */
+public enum TLSConnectionBackend {
+    /**
+     * blocking sockets of the lower net layer, one reading and one writing thread per connection.
+     */
+    BLOCKING,
+    /**
+     * SocketChannel and SSLEngine served by a few selector threads. The
+     * connections are made directly via TCP/IP, the lower net layer is not used.
+     */
+    NIO;
+}
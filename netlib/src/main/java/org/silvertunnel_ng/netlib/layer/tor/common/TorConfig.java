@@ -54,6 +54,7 @@ package org.silvertunnel_ng.netlib.layer.tor.common;
 import org.silvertunnel_ng.netlib.layer.tor.api.Fingerprint;
 import org.silvertunnel_ng.netlib.layer.tor.circuit.CircuitHistory;
 import org.silvertunnel_ng.netlib.layer.tor.directory.Bridge;
+import org.silvertunnel_ng.netlib.layer.tor.directory.ConsensusParams;
 import org.silvertunnel_ng.netlib.layer.tor.directory.FingerprintImpl;
 import org.silvertunnel_ng.netlib.util.DatatypeConverter;
 import org.silvertunnel_ng.netlib.util.SystemPropertiesHelper;
@@ -63,7 +64,9 @@ import org.slf4j.LoggerFactory;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 // TODO : implement ExcludeSingleHopRelays (torrc)
 
 /**
@@ -319,6 +322,38 @@ public final class TorConfig {
      * identifier for System properties.
      */
     public static final String SYSTEMPROPERTY_TOR_MAX_ALLOWED_SETUP_DURATION_MS = SYSTEMPROPERTY_TOR_PREFIX + "maxAllowedSetupDurationMs";
+    /**
+     * Name of the system property to set the maximum number of cells written with one TLS write.
+     */
+    public static final String SYSTEMPROPERTY_TOR_TLS_WRITE_MAX_BATCH_CELLS = SYSTEMPROPERTY_TOR_PREFIX + "tlsWriteMaxBatchCells";
+    /**
+     * Name of the system property to set the time the TLS writer waits for more cells.
+     */
+    public static final String SYSTEMPROPERTY_TOR_TLS_WRITE_MAX_DELAY_MS = SYSTEMPROPERTY_TOR_PREFIX + "tlsWriteMaxDelayMs";
+    /**
+     * Name of the system property to set the number of cells which can be queued per TLS connection.
+     */
+    public static final String SYSTEMPROPERTY_TOR_TLS_WRITE_QUEUE_CELLS = SYSTEMPROPERTY_TOR_PREFIX + "tlsWriteQueueCells";
+    /**
+     * Name of the system property to set the TLS connection backend (BLOCKING or NIO).
+     */
+    public static final String SYSTEMPROPERTY_TOR_TLS_CONNECTION_BACKEND = SYSTEMPROPERTY_TOR_PREFIX + "tlsConnectionBackend";
+    /**
+     * Name of the system property to set the number of selector threads of the NIO backend.
+     */
+    public static final String SYSTEMPROPERTY_TOR_NIO_SELECTOR_THREADS = SYSTEMPROPERTY_TOR_PREFIX + "nioSelectorThreads";
+    /**
+     * Name of the system property to set the number of threads delivering the received cells.
+     */
+    public static final String SYSTEMPROPERTY_TOR_CELL_DISPATCH_THREADS = SYSTEMPROPERTY_TOR_PREFIX + "cellDispatchThreads";
+    /**
+     * Name of the system property to override consensus parameters, e.g. "circwindow=500 cbtinitialtimeout=30000".
+     */
+    public static final String SYSTEMPROPERTY_TOR_CONSENSUS_PARAMS = SYSTEMPROPERTY_TOR_PREFIX + "consensusParams";
+    /**
+     * Name of the system property to switch the directory to the microdescriptor flavor.
+     */
+    public static final String SYSTEMPROPERTY_TOR_USE_MICRODESCRIPTORS = SYSTEMPROPERTY_TOR_PREFIX + "useMicrodescriptors";
 
     /**
      * Amount of usable Entry guards taking into account for Circuit creation.
@@ -866,6 +901,13 @@ public final class TorConfig {
      * Default : true
      */
     private boolean cacheHiddenServiceDescriptor = true;
+    /**
+     * Shall we fetch the microdesc consensus and microdescriptors instead of
+     * the full consensus and the full router descriptors?
+     * <br>
+     * Default : false
+     */
+    private boolean useMicrodescriptors = false;
     /**
      * directory and Co. config
      */
@@ -888,8 +930,34 @@ public final class TorConfig {
             setRouteMaxLength(SystemPropertiesHelper.getSystemProperty(SYSTEMPROPERTY_TOR_MAXIMUM_ROUTE_LENGTH, getRouteMaxLength()));
             setCacheHiddenServiceDescriptor(SystemPropertiesHelper.getSystemProperty(SYSTEMPROPERTY_TOR_CACHE_HS_DESCRIPTOR,
                     isCacheHiddenServiceDescriptor()));
+            setUseMicrodescriptors(SystemPropertiesHelper.getSystemProperty(SYSTEMPROPERTY_TOR_USE_MICRODESCRIPTORS,
+                    isUseMicrodescriptors()));
             maxAllowedSetupDurationMs = SystemPropertiesHelper.getSystemProperty(SYSTEMPROPERTY_TOR_MAX_ALLOWED_SETUP_DURATION_MS,
                     (int) maxAllowedSetupDurationMs);
+            setTlsWriteMaxBatchCells(SystemPropertiesHelper.getSystemProperty(SYSTEMPROPERTY_TOR_TLS_WRITE_MAX_BATCH_CELLS,
+                    getTlsWriteMaxBatchCells()));
+            setTlsWriteMaxDelayMs(SystemPropertiesHelper.getSystemProperty(SYSTEMPROPERTY_TOR_TLS_WRITE_MAX_DELAY_MS,
+                    (int) getTlsWriteMaxDelayMs()));
+            setTlsWriteQueueCells(SystemPropertiesHelper.getSystemProperty(SYSTEMPROPERTY_TOR_TLS_WRITE_QUEUE_CELLS,
+                    getTlsWriteQueueCells()));
+            final String backend = System.getProperty(SYSTEMPROPERTY_TOR_TLS_CONNECTION_BACKEND);
+            if (backend != null) {
+                try {
+                    setTlsConnectionBackend(TLSConnectionBackend.valueOf(backend.trim().toUpperCase()));
+                } catch (final IllegalArgumentException e) {
+                    LOG.warn("unknown TLS connection backend {}, keeping {}", backend, getTlsConnectionBackend());
+                }
+            }
+            setNioSelectorThreads(SystemPropertiesHelper.getSystemProperty(SYSTEMPROPERTY_TOR_NIO_SELECTOR_THREADS,
+                    getNioSelectorThreads()));
+            setCellDispatchThreads(SystemPropertiesHelper.getSystemProperty(SYSTEMPROPERTY_TOR_CELL_DISPATCH_THREADS,
+                    getCellDispatchThreads()));
+            final String consensusParams = System.getProperty(SYSTEMPROPERTY_TOR_CONSENSUS_PARAMS);
+            if (consensusParams != null) {
+                for (final Map.Entry<String, Integer> param : ConsensusParams.parseParams(consensusParams).entrySet()) {
+                    setConsensusParamOverride(param.getKey(), param.getValue());
+                }
+            }
         } catch (final Exception e) {
             LOG.error("config could not be loaded from properties", e);
         }
@@ -918,6 +986,25 @@ public final class TorConfig {
         getInstance().cacheHiddenServiceDescriptor = cacheHiddenServiceDescriptor;
     }
 
+    /**
+     * Is the directory fetched in the microdescriptor flavor?
+     * <br>
+     * Microdescriptors are much smaller than the full router descriptors,
+     * but they carry no signing key and only an exit policy summary.
+     *
+     * @return true if the microdesc consensus and microdescriptors are used
+     */
+    public static boolean isUseMicrodescriptors() {
+        return getInstance().useMicrodescriptors;
+    }
+
+    /**
+     * @param useMicrodescriptors true to fetch the microdesc consensus and microdescriptors
+     */
+    public static void setUseMicrodescriptors(final boolean useMicrodescriptors) {
+        getInstance().useMicrodescriptors = useMicrodescriptors;
+    }
+
     /**
      * Shall we save the Circuit history?
      *
@@ -971,6 +1058,250 @@ public final class TorConfig {
         }
     }
 
+    /**
+     * default for the maximum number of cells written with one TLS write (32 cells fit into one TLS record).
+     */
+    private static final int DEFAULT_TLS_WRITE_MAX_BATCH_CELLS = 32;
+    /**
+     * default for the number of cells which can be queued per TLS connection.
+     */
+    private static final int DEFAULT_TLS_WRITE_QUEUE_CELLS = 256;
+
+    /**
+     * Maximum number of cells which are written to a TLS connection with one write.
+     */
+    private int tlsWriteMaxBatchCells = DEFAULT_TLS_WRITE_MAX_BATCH_CELLS;
+
+    /**
+     * Maximum number of cells which are written to a TLS connection with one write.
+     *
+     * @return the number of cells
+     */
+    public static int getTlsWriteMaxBatchCells() {
+        return getInstance().tlsWriteMaxBatchCells;
+    }
+
+    /**
+     * Maximum number of cells which are written to a TLS connection with one write.
+     * Only used for TLS connections created afterwards.
+     *
+     * @param cells the number of cells (default : 32)
+     */
+    public static void setTlsWriteMaxBatchCells(final int cells) {
+        if (cells < 1) {
+            LOG.error("setTlsWriteMaxBatchCells should not be less than 1");
+        } else {
+            getInstance().tlsWriteMaxBatchCells = cells;
+        }
+    }
+
+    /**
+     * How long the TLS writer waits for further cells before an incomplete batch is written.
+     */
+    private long tlsWriteMaxDelayMs = 0;
+
+    /**
+     * How long the TLS writer waits for further cells before an incomplete batch is written.
+     *
+     * @return the time in milliseconds
+     */
+    public static long getTlsWriteMaxDelayMs() {
+        return getInstance().tlsWriteMaxDelayMs;
+    }
+
+    /**
+     * How long the TLS writer waits for further cells before an incomplete batch is written.
+     * Only used for TLS connections created afterwards.
+     *
+     * @param millis the time in milliseconds (default : 0, only the cells already queued are written together)
+     */
+    public static void setTlsWriteMaxDelayMs(final long millis) {
+        if (millis < 0) {
+            LOG.error("setTlsWriteMaxDelayMs should not be less than 0");
+        } else {
+            getInstance().tlsWriteMaxDelayMs = millis;
+        }
+    }
+
+    /**
+     * Number of cells which can be queued per TLS connection before the senders are blocked.
+     */
+    private int tlsWriteQueueCells = DEFAULT_TLS_WRITE_QUEUE_CELLS;
+
+    /**
+     * Number of cells which can be queued per TLS connection before the senders are blocked.
+     *
+     * @return the number of cells
+     */
+    public static int getTlsWriteQueueCells() {
+        return getInstance().tlsWriteQueueCells;
+    }
+
+    /**
+     * Number of cells which can be queued per TLS connection before the senders are blocked.
+     * Only used for TLS connections created afterwards.
+     *
+     * @param cells the number of cells (default : 256)
+     */
+    public static void setTlsWriteQueueCells(final int cells) {
+        if (cells < 1) {
+            LOG.error("setTlsWriteQueueCells should not be less than 1");
+        } else {
+            getInstance().tlsWriteQueueCells = cells;
+        }
+    }
+
+    /**
+     * default number of selector threads of the NIO backend.
+     */
+    private static final int DEFAULT_NIO_SELECTOR_THREADS = 2;
+
+    /**
+     * Implementation of the TLS connections.
+     */
+    private TLSConnectionBackend tlsConnectionBackend = TLSConnectionBackend.BLOCKING;
+
+    /**
+     * Implementation of the TLS connections.
+     *
+     * @return the backend
+     */
+    public static TLSConnectionBackend getTlsConnectionBackend() {
+        return getInstance().tlsConnectionBackend;
+    }
+
+    /**
+     * Implementation of the TLS connections. Only used for TLS connections created afterwards.
+     *
+     * @param backend the backend (default : {@link TLSConnectionBackend#BLOCKING})
+     */
+    public static void setTlsConnectionBackend(final TLSConnectionBackend backend) {
+        if (backend == null) {
+            LOG.error("setTlsConnectionBackend should not be null");
+        } else {
+            getInstance().tlsConnectionBackend = backend;
+        }
+    }
+
+    /**
+     * Number of selector threads serving all TLS connections of the NIO backend.
+     */
+    private int nioSelectorThreads = DEFAULT_NIO_SELECTOR_THREADS;
+
+    /**
+     * Number of selector threads serving all TLS connections of the NIO backend.
+     *
+     * @return the number of threads
+     */
+    public static int getNioSelectorThreads() {
+        return getInstance().nioSelectorThreads;
+    }
+
+    /**
+     * Number of selector threads serving all TLS connections of the NIO backend.
+     * Only used if the selector threads are not running yet.
+     *
+     * @param threads the number of threads (default : 2)
+     */
+    public static void setNioSelectorThreads(final int threads) {
+        if (threads < 1) {
+            LOG.error("setNioSelectorThreads should not be less than 1");
+        } else {
+            getInstance().nioSelectorThreads = threads;
+        }
+    }
+
+    /**
+     * default number of threads decrypting and delivering the received cells.
+     */
+    private static final int DEFAULT_CELL_DISPATCH_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Number of threads decrypting and delivering the received cells.
+     */
+    private int cellDispatchThreads = DEFAULT_CELL_DISPATCH_THREADS;
+
+    /**
+     * Number of threads decrypting and delivering the received cells of all
+     * TLS connections.
+     *
+     * @return the number of threads; 0 if the cells are delivered by the thread reading the connection
+     */
+    public static int getCellDispatchThreads() {
+        return getInstance().cellDispatchThreads;
+    }
+
+    /**
+     * Number of threads decrypting and delivering the received cells of all
+     * TLS connections. The cells of one circuit are always delivered in order,
+     * different circuits are processed in parallel. With 0 the thread reading
+     * the connection delivers the cells itself. Only used for TLS connections
+     * created afterwards; the number of threads can only be set before the
+     * first cell was received.
+     *
+     * @param threads the number of threads (default : number of processors, at least 2)
+     */
+    public static void setCellDispatchThreads(final int threads) {
+        if (threads < 0) {
+            LOG.error("setCellDispatchThreads should not be less than 0");
+        } else {
+            getInstance().cellDispatchThreads = threads;
+        }
+    }
+
+    /**
+     * consensus parameters set locally, by name.
+     */
+    private final Map<String, Integer> consensusParamOverrides = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * Override a parameter of the consensus "params" line (see param-spec.txt).
+     *
+     * @param name  the name of the parameter, e.g. "circwindow"
+     * @param value the value to use instead of the one of the consensus; null to
+     *              use the consensus again
+     * @see ConsensusParams
+     */
+    public static void setConsensusParamOverride(final String name, final Integer value) {
+        if (value == null) {
+            getInstance().consensusParamOverrides.remove(name);
+        } else {
+            getInstance().consensusParamOverrides.put(name, value);
+        }
+    }
+
+    /**
+     * @param name the name of the parameter
+     * @return the locally set value or null if the consensus decides
+     */
+    public static Integer getConsensusParamOverride(final String name) {
+        return getInstance().consensusParamOverrides.get(name);
+    }
+
+    /**
+     * @return the locally set half-life of the circuit scheduler in ms or null
+     *         if the consensus decides
+     */
+    public static Integer getCircuitPriorityHalflifeMs() {
+        return getConsensusParamOverride(ConsensusParams.CIRCUIT_PRIORITY_HALFLIFE_MSEC);
+    }
+
+    /**
+     * Half-life of the cell counts used to schedule the circuits of a TLS
+     * connection. The lower the value, the faster a circuit which stopped
+     * sending gets back its priority. Overrides the consensus parameter
+     * CircuitPriorityHalflifeMsec.
+     *
+     * @param halflifeMs the half-life in ms (default : from the consensus, 30000); null to use the consensus again
+     */
+    public static void setCircuitPriorityHalflifeMs(final Integer halflifeMs) {
+        if (halflifeMs != null && halflifeMs < 1) {
+            LOG.error("setCircuitPriorityHalflifeMs should not be less than 1");
+        } else {
+            setConsensusParamOverride(ConsensusParams.CIRCUIT_PRIORITY_HALFLIFE_MSEC, halflifeMs);
+        }
+    }
+
     /**
      * Reset all configuration items to their default values.
      */
@@ -979,6 +1310,7 @@ public final class TorConfig {
         config.avoidedCountries.clear();
         config.avoidedNodeFingerprints.clear();
         config.cacheHiddenServiceDescriptor = true;
+        config.useMicrodescriptors = false;
         config.circuitClosesOnFailures = 3;
         config.minimumIdleCircuits = 3;
         config.parallelCircuitBuilds = 1;
@@ -988,6 +1320,13 @@ public final class TorConfig {
         config.routeUniqueCountry = true;
         config.saveCircuitHistory = true;
         config.veryAggressiveStreamBuilding = false;
+        config.tlsWriteMaxBatchCells = DEFAULT_TLS_WRITE_MAX_BATCH_CELLS;
+        config.tlsWriteMaxDelayMs = 0;
+        config.tlsWriteQueueCells = DEFAULT_TLS_WRITE_QUEUE_CELLS;
+        config.tlsConnectionBackend = TLSConnectionBackend.BLOCKING;
+        config.nioSelectorThreads = DEFAULT_NIO_SELECTOR_THREADS;
+        config.cellDispatchThreads = DEFAULT_CELL_DISPATCH_THREADS;
+        config.consensusParamOverrides.clear();
         config.longLivedPorts.clear();
         config.bridges.clear();
         for (int tmp : DEFAULT_LONG_LIVED_PORTS) {
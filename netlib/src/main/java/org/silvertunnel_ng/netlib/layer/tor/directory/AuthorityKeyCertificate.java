@@ -27,6 +27,7 @@ import org.silvertunnel_ng.netlib.util.DatatypeConverter;
 
 import org.silvertunnel_ng.netlib.layer.tor.api.Fingerprint;
 import org.silvertunnel_ng.netlib.layer.tor.util.Encryption;
+import org.silvertunnel_ng.netlib.layer.tor.util.SignatureVerifier;
 import org.silvertunnel_ng.netlib.layer.tor.util.TorException;
 import org.silvertunnel_ng.netlib.layer.tor.util.Util;
 import org.slf4j.Logger;
@@ -166,8 +167,8 @@ public class AuthorityKeyCertificate implements Cloneable
 		{
 			LOG.warn("unexpected", e);
 		}
-		if (!Encryption.verifySignature(dirKeyCertification, dirIdentityKey,
-				signedData))
+		if (!SignatureVerifier.verify(dirKeyCertification, dirIdentityKey,
+				Encryption.getDigest(signedData)))
 		{
 			throw new TorException(
 					"dirKeyCertification check failed for fingerprint="
@@ -20,6 +20,7 @@ package org.silvertunnel_ng.netlib.layer.tor.directory;
 
 import org.silvertunnel_ng.netlib.api.NetLayer;
 import org.silvertunnel_ng.netlib.api.util.TcpipNetAddress;
+import org.silvertunnel_ng.netlib.layer.tor.util.SignatureVerifier;
 import org.silvertunnel_ng.netlib.layer.tor.util.TorException;
 import org.silvertunnel_ng.netlib.tool.SimpleHttpClient;
 import org.silvertunnel_ng.netlib.tool.SimpleHttpClientCompressed;
@@ -50,6 +51,8 @@ public class AuthorityKeyCertificatesFetcher {
         // loading is needed - try to load authority key certificates from
         // cache first
         LOG.debug("getAuthorityKeyCertificates(): try to load from local cache ...");
+        // the certificates of the cache were verified before
+        SignatureVerifier.load(stringStorage);
         final String authorityKeyCertificatesStr = stringStorage.get(STORAGEKEY_AUTHORITY_KEY_CERTIFICATES_TXT);
         if (authorityKeyCertificatesStr != null && authorityKeyCertificatesStr.length() > MIN_LENGTH_OF_AUTHORITY_KEY_CERTS_STR) {
             // parse loaded result
@@ -101,6 +104,7 @@ public class AuthorityKeyCertificatesFetcher {
                     LOG.debug("getAuthorityKeyCertificates(): successfully loaded from {}", authServerIpAndPort);
                     // save in cache
                     stringStorage.put(STORAGEKEY_AUTHORITY_KEY_CERTIFICATES_TXT, httpResponse);
+                    SignatureVerifier.save(stringStorage);
                     // use as result
                     return newAuthorityKeyCertificates;
                 } else {
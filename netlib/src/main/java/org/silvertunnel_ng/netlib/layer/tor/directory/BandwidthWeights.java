@@ -0,0 +1,125 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.directory;
+
+import org.silvertunnel_ng.netlib.layer.tor.util.NodeType;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * the "bandwidth-weights" of a consensus (see dir-spec.txt 3.4.3).
+ *
+ * The weights say which share of the bandwidth of a router should be used
+ * in which position of a circuit, depending on whether the router has the
+ * Guard and/or the Exit flag. Together with the measured bandwidth of the
+ * "w" lines they balance the load over the network.
+ *
+ * @author Tobias Boese
+ */
+public final class BandwidthWeights {
+    /** used while the consensus has no weights: the bandwidth counts unchanged in every position. */
+    public static final BandwidthWeights NONE = new BandwidthWeights(Collections.<String, Integer>emptyMap(), 1);
+
+    private final Map<String, Integer> weights;
+    /** divisor of the weights, see {@link ConsensusParams#getBandwidthWeightScale()}. */
+    private final int scale;
+
+    /**
+     * @param weights the weights by name, e.g. "Wgg"
+     * @param scale   the divisor of the weights
+     */
+    BandwidthWeights(final Map<String, Integer> weights, final int scale) {
+        this.weights = Collections.unmodifiableMap(weights);
+        this.scale = scale;
+    }
+
+    /**
+     * parse the value of a "bandwidth-weights" line.
+     *
+     * @param line  the line without the keyword, e.g. "Wbd=0 Wbe=0 Wbg=4030"; may be null
+     * @param scale the divisor of the weights
+     * @return the weights; {@link #NONE} if the line is missing or empty
+     */
+    public static BandwidthWeights parse(final String line, final int scale) {
+        final Map<String, Integer> weights = ConsensusParams.parseParams(line);
+        if (weights.isEmpty()) {
+            return NONE;
+        }
+        return new BandwidthWeights(weights, scale);
+    }
+
+    /**
+     * @return true if the consensus contained no weights
+     */
+    public boolean isEmpty() {
+        return weights.isEmpty();
+    }
+
+    /**
+     * @param position the position in the circuit
+     * @param guard    the router has the Guard flag
+     * @param exit     the router has the Exit flag (and not the BadExit flag)
+     * @return the factor for the bandwidth of the router in this position
+     */
+    public double getWeight(final NodeType position, final boolean guard, final boolean exit) {
+        if (weights.isEmpty()) {
+            return 1;
+        }
+        switch (position) {
+            case ENTRY:
+                if (guard) {
+                    return get(exit ? "Wgd" : "Wgg");
+                }
+                // exits are not used as entry
+                return exit ? 0 : get("Wgm");
+            case EXIT:
+                if (guard) {
+                    return get(exit ? "Wed" : "Weg");
+                }
+                return get(exit ? "Wee" : "Wem");
+            default:
+                if (guard) {
+                    return get(exit ? "Wmd" : "Wmg");
+                }
+                return get(exit ? "Wme" : "Wmm");
+        }
+    }
+
+    /** a missing weight counts as the full bandwidth. */
+    private double get(final String name) {
+        final Integer value = weights.get(name);
+        if (value == null || value < 0) {
+            return 1;
+        }
+        return Math.min(value, scale) / (double) scale;
+    }
+
+    /**
+     * @return the weights as contained in the consensus
+     */
+    public Map<String, Integer> getWeights() {
+        return weights;
+    }
+
+    @Override
+    public String toString() {
+        return "BandwidthWeights(scale=" + scale + ", " + weights + ")";
+    }
+}
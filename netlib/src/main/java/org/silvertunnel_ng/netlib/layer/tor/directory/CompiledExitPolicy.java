@@ -0,0 +1,199 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.directory;
+
+import org.silvertunnel_ng.netlib.layer.tor.api.RouterExitPolicy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * an exit policy compiled into port intervals.
+ *
+ * The ports 0..65535 are split at the bounds of all policy items. Within one
+ * interval every item either covers all ports or none, so per interval only
+ * the items restricted to some addresses remain, followed by the verdict of
+ * the first item which covers all addresses. Adjacent intervals with the same
+ * rules are merged. A check is a binary search for the port plus the (usually
+ * empty) list of address rules of its interval.
+ *
+ * An object is read-only.
+ *
+ * @author Tobias Boese
+ */
+final class CompiledExitPolicy {
+    private static final int MAX_PORT = 65535;
+    private static final long[] NO_ADDRESSES = new long[0];
+    private static final boolean[] NO_VERDICTS = new boolean[0];
+
+    /** the policy of a router without exit policy items. */
+    static final CompiledExitPolicy REJECT_ALL = new CompiledExitPolicy(null);
+
+    /** first port of each interval; starts[0] is 0. */
+    private final int[] starts;
+    /** per interval: addresses of the address specific rules. */
+    private final long[][] ips;
+    /** per interval: netmasks of the address specific rules. */
+    private final long[][] netmasks;
+    /** per interval: verdicts of the address specific rules. */
+    private final boolean[][] accepts;
+    /** per interval: verdict if no address specific rule matches. */
+    private final boolean[] defaults;
+
+    /**
+     * @param policy the items in the order of the descriptor; may be null
+     */
+    CompiledExitPolicy(final RouterExitPolicy[] policy) {
+        final RouterExitPolicy[] items = policy == null ? new RouterExitPolicy[0] : policy;
+        final TreeSet<Integer> bounds = new TreeSet<Integer>();
+        bounds.add(0);
+        for (final RouterExitPolicy item : items) {
+            if (item.getLoPort() > 0 && item.getLoPort() <= MAX_PORT) {
+                bounds.add(item.getLoPort());
+            }
+            if (item.getHiPort() >= 0 && item.getHiPort() < MAX_PORT) {
+                bounds.add(item.getHiPort() + 1);
+            }
+        }
+        final List<Integer> startList = new ArrayList<Integer>();
+        final List<long[]> ipList = new ArrayList<long[]>();
+        final List<long[]> netmaskList = new ArrayList<long[]>();
+        final List<boolean[]> acceptList = new ArrayList<boolean[]>();
+        final List<Boolean> defaultList = new ArrayList<Boolean>();
+        final List<RouterExitPolicy> addressRules = new ArrayList<RouterExitPolicy>();
+        for (final int start : bounds) {
+            addressRules.clear();
+            boolean verdict = false;
+            for (final RouterExitPolicy item : items) {
+                if (item.getLoPort() <= start && item.getHiPort() >= start) {
+                    if (item.getNetmask() == 0 && item.getIp() == 0) {
+                        verdict = item.isAccept();
+                        break;
+                    }
+                    addressRules.add(item);
+                }
+            }
+            final long[] intervalIps = addressRules.isEmpty() ? NO_ADDRESSES : new long[addressRules.size()];
+            final long[] intervalNetmasks = addressRules.isEmpty() ? NO_ADDRESSES : new long[addressRules.size()];
+            final boolean[] intervalAccepts = addressRules.isEmpty() ? NO_VERDICTS : new boolean[addressRules.size()];
+            for (int i = 0; i < addressRules.size(); i++) {
+                intervalIps[i] = addressRules.get(i).getIp();
+                intervalNetmasks[i] = addressRules.get(i).getNetmask();
+                intervalAccepts[i] = addressRules.get(i).isAccept();
+            }
+            final int last = startList.size() - 1;
+            if (last >= 0 && defaultList.get(last) == verdict
+                    && Arrays.equals(ipList.get(last), intervalIps)
+                    && Arrays.equals(netmaskList.get(last), intervalNetmasks)
+                    && Arrays.equals(acceptList.get(last), intervalAccepts)) {
+                // same rules as the previous interval
+                continue;
+            }
+            startList.add(start);
+            ipList.add(intervalIps);
+            netmaskList.add(intervalNetmasks);
+            acceptList.add(intervalAccepts);
+            defaultList.add(verdict);
+        }
+        final int size = startList.size();
+        starts = new int[size];
+        ips = ipList.toArray(new long[size][]);
+        netmasks = netmaskList.toArray(new long[size][]);
+        accepts = acceptList.toArray(new boolean[size][]);
+        defaults = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            starts[i] = startList.get(i);
+            defaults[i] = defaultList.get(i);
+        }
+    }
+
+    /**
+     * @param ip   the address as unsigned 32 bit value
+     * @param port the port
+     * @return true if the policy accepts connections to ip:port
+     */
+    boolean accepts(final long ip, final int port) {
+        if (port < 0 || port > MAX_PORT) {
+            return false;
+        }
+        final int interval = interval(port);
+        final long[] intervalIps = ips[interval];
+        for (int i = 0; i < intervalIps.length; i++) {
+            if (intervalIps[i] == (ip & netmasks[interval][i])) {
+                return accepts[interval][i];
+            }
+        }
+        return defaults[interval];
+    }
+
+    /**
+     * @param port the port
+     * @return false if the policy rejects the port for every address
+     */
+    boolean mayAccept(final int port) {
+        if (port < 0 || port > MAX_PORT) {
+            return false;
+        }
+        final int interval = interval(port);
+        if (defaults[interval]) {
+            return true;
+        }
+        for (final boolean accept : accepts[interval]) {
+            if (accept) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the policy accepts at least one port for some address
+     */
+    boolean acceptsAnything() {
+        for (int i = 0; i < starts.length; i++) {
+            if (mayAccept(starts[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return number of port intervals
+     */
+    int getIntervalCount() {
+        return starts.length;
+    }
+
+    private int interval(final int port) {
+        int low = 0;
+        int high = starts.length - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (starts[mid] <= port) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.directory;
+
+import org.silvertunnel_ng.netlib.layer.tor.util.TorException;
+import org.silvertunnel_ng.netlib.layer.tor.util.Util;
+import org.silvertunnel_ng.netlib.util.DatatypeConverter;
+import org.spongycastle.crypto.digests.SHA3Digest;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Applies a consensus diff ("network-status-diff-version 1") to the consensus
+ * it was calculated from.
+ *
+ * A diff consists of the SHA3-256 digests of both consensus documents, as
+ * signed (from "network-status-version" up to and including the first
+ * "directory-signature "), and a list of ed style commands ("d", "c" and "a")
+ * with the line numbers of the base document in descending order. The digest
+ * of the base document is checked before the diff is applied, the digest of
+ * the result afterwards; the signatures of the result are checked when it is
+ * parsed as {@link DirectoryConsensus}.
+ *
+ * @author Tobias Boese
+ */
+final class ConsensusDiff {
+    private static final Charset UTF8 = Charset.forName(Util.UTF8);
+
+    /** first line of a diff. */
+    static final String DIFF_VERSION = "network-status-diff-version 1";
+    private static final String HASH = "hash ";
+    private static final String SIGNED_START = "network-status-version";
+    private static final String SIGNED_END = "\ndirectory-signature ";
+    /** the last line of the lines added by "a" and "c". */
+    private static final String END_OF_LINES = ".";
+
+    private ConsensusDiff() {
+    }
+
+    /**
+     * @param consensus a consensus document
+     * @return the SHA3-256 digest of the signed part in upper case hex; null if the document is not signed
+     */
+    static String getDigestAsSigned(final String consensus) {
+        final int start;
+        if (consensus.startsWith(SIGNED_START)) {
+            start = 0;
+        } else {
+            final int lineBreak = consensus.indexOf('\n' + SIGNED_START);
+            if (lineBreak < 0) {
+                return null;
+            }
+            start = lineBreak + 1;
+        }
+        final int end = consensus.indexOf(SIGNED_END, start);
+        if (end < 0) {
+            return null;
+        }
+        final byte[] signed = consensus.substring(start, end + SIGNED_END.length()).getBytes(UTF8);
+        final SHA3Digest digest = new SHA3Digest(256);
+        digest.update(signed, 0, signed.length);
+        final byte[] result = new byte[digest.getDigestSize()];
+        digest.doFinal(result, 0);
+        return DatatypeConverter.printHexBinary(result).toUpperCase();
+    }
+
+    /**
+     * @param document a response of a directory server
+     * @return true if the document is a consensus diff
+     */
+    static boolean isDiff(final String document) {
+        return document.startsWith(DIFF_VERSION + "\n");
+    }
+
+    /**
+     * Apply a diff.
+     *
+     * @param base the consensus the diff was calculated from
+     * @param diff the diff
+     * @return the new consensus
+     * @throws TorException if the diff is invalid, belongs to another base or leads to another consensus
+     */
+    static String apply(final String base, final String diff) throws TorException {
+        final String[] diffLines = split(diff);
+        if (diffLines.length < 2 || !DIFF_VERSION.equals(diffLines[0]) || !diffLines[1].startsWith(HASH)) {
+            throw new TorException("invalid consensus diff header");
+        }
+        final String[] hashes = diffLines[1].substring(HASH.length()).split(" ");
+        if (hashes.length != 2) {
+            throw new TorException("invalid consensus diff hash line");
+        }
+        if (!hashes[0].equalsIgnoreCase(getDigestAsSigned(base))) {
+            throw new TorException("consensus diff does not belong to the base consensus");
+        }
+
+        final String[] baseLines = split(base);
+        final List<Edit> edits = parseEdits(diffLines, baseLines.length);
+
+        // the edits are in descending order: build the result from the front with the last edit first
+        final StringBuilder result = new StringBuilder(base.length() + diff.length());
+        int next = 1;
+        for (int i = edits.size() - 1; i >= 0; i--) {
+            final Edit edit = edits.get(i);
+            appendLines(result, baseLines, next, edit.deleteFrom - 1);
+            for (final String line : edit.lines) {
+                result.append(line).append('\n');
+            }
+            next = edit.deleteTo + 1;
+        }
+        appendLines(result, baseLines, next, baseLines.length);
+
+        final String consensus = result.toString();
+        if (!hashes[1].equalsIgnoreCase(getDigestAsSigned(consensus))) {
+            throw new TorException("consensus diff leads to an unexpected consensus");
+        }
+        return consensus;
+    }
+
+    /**
+     * Parse the commands "N,Md", "Nd", "N,$d", "N,Mc", "Nc" and "Na".
+     *
+     * @param diffLines the lines of the diff
+     * @param size      number of lines of the base document
+     * @return the edits, in the order of the diff
+     */
+    private static List<Edit> parseEdits(final String[] diffLines, final int size) throws TorException {
+        final List<Edit> edits = new ArrayList<Edit>();
+        // every command has to end before the previous one starts
+        int maxEnd = Integer.MAX_VALUE;
+        int i = 2;
+        while (i < diffLines.length) {
+            final String command = diffLines[i++];
+            if (command.length() < 2) {
+                throw new TorException("invalid consensus diff command " + command);
+            }
+            final char type = command.charAt(command.length() - 1);
+            final String range = command.substring(0, command.length() - 1);
+            final int comma = range.indexOf(',');
+            final int start;
+            final int end;
+            try {
+                start = Integer.parseInt(comma < 0 ? range : range.substring(0, comma));
+                end = comma < 0 ? start : "$".equals(range.substring(comma + 1)) ? size : Integer.parseInt(range.substring(comma + 1));
+            } catch (final NumberFormatException e) {
+                throw new TorException("invalid consensus diff command " + command, e);
+            }
+            final Edit edit;
+            if (type == 'a' && comma < 0 && start >= 0 && start <= size) {
+                edit = new Edit(start + 1, start);
+            } else if ((type == 'd' || type == 'c') && start >= 1 && start <= end && end <= size) {
+                edit = new Edit(start, end);
+            } else {
+                throw new TorException("invalid consensus diff command " + command);
+            }
+            if (end > maxEnd) {
+                throw new TorException("consensus diff commands are not in descending order: " + command);
+            }
+            maxEnd = start - 1;
+            if (type != 'd') {
+                while (true) {
+                    if (i == diffLines.length) {
+                        throw new TorException("consensus diff command " + command + " without end of lines");
+                    }
+                    final String line = diffLines[i++];
+                    if (END_OF_LINES.equals(line)) {
+                        break;
+                    }
+                    edit.lines.add(line);
+                }
+            }
+            edits.add(edit);
+        }
+        return edits;
+    }
+
+    /**
+     * @param result receives the lines
+     * @param lines  the lines of the base document
+     * @param from   first line number to append (starting with 1)
+     * @param to     last line number to append
+     */
+    private static void appendLines(final StringBuilder result, final String[] lines, final int from, final int to) {
+        for (int i = from; i <= to; i++) {
+            result.append(lines[i - 1]).append('\n');
+        }
+    }
+
+    /**
+     * @return the lines without the line breaks; a last line break does not start another line
+     */
+    private static String[] split(final String document) {
+        final String[] lines = document.split("\n", -1);
+        return lines.length > 0 && lines[lines.length - 1].length() == 0 ? Arrays.copyOf(lines, lines.length - 1) : lines;
+    }
+
+    /**
+     * one command: replace the lines deleteFrom..deleteTo (can be empty) by the given lines.
+     */
+    private static final class Edit {
+        private final int deleteFrom;
+        private final int deleteTo;
+        private final List<String> lines = new ArrayList<String>();
+
+        private Edit(final int deleteFrom, final int deleteTo) {
+            this.deleteFrom = deleteFrom;
+            this.deleteTo = deleteTo;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package org.silvertunnel_ng.netlib.layer.tor.directory;
+
+import org.silvertunnel_ng.netlib.layer.tor.common.TorConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * the network wide parameters of a consensus (the "params" line, see
+ * dir-spec.txt 3.4.1 and param-spec.txt).
+ *
+ * An instance is an immutable snapshot of one consensus; the
+ * {@link Directory} replaces it when a new consensus is loaded. Values set
+ * with {@link TorConfig#setConsensusParamOverride(String, Integer)} take
+ * precedence over the consensus. All values are clamped to the bounds of the
+ * specification.
+ *
+ * @author Tobias Boese
+ */
+public final class ConsensusParams {
+    /** */
+    private static final Logger LOG = LoggerFactory.getLogger(ConsensusParams.class);
+
+    /** initial circuit package and deliver window. */
+    public static final String CIRCWINDOW = "circwindow";
+    /** half-life of the EWMA circuit scheduler. */
+    public static final String CIRCUIT_PRIORITY_HALFLIFE_MSEC = "CircuitPriorityHalflifeMsec";
+    /** circuit build timeout used before any build times are known. */
+    public static final String CBT_INITIAL_TIMEOUT = "cbtinitialtimeout";
+    /** lower bound of the circuit build timeout. */
+    public static final String CBT_MIN_TIMEOUT = "cbtmintimeout";
+    /** scale of the bandwidth weights. */
+    public static final String BW_WEIGHT_SCALE = "bwweightscale";
+
+    /** used while no consensus is available: all values are the defaults. */
+    public static final ConsensusParams DEFAULT = new ConsensusParams(Collections.<String, Integer>emptyMap(), 0);
+
+    private final Map<String, Integer> params;
+    /** valid-after of the consensus in ms; increases with every consensus. */
+    private final long version;
+
+    /**
+     * @param params  the parsed parameters
+     * @param version valid-after of the consensus in ms
+     */
+    ConsensusParams(final Map<String, Integer> params, final long version) {
+        this.params = Collections.unmodifiableMap(new LinkedHashMap<String, Integer>(params));
+        this.version = version;
+    }
+
+    /**
+     * parse the value of a "params" line.
+     *
+     * @param line       the line without the keyword, e.g. "circwindow=500 bwweightscale=10000"; may be null
+     * @param validAfter valid-after of the consensus, may be null
+     * @return the snapshot; malformed entries are skipped
+     */
+    public static ConsensusParams parse(final String line, final Date validAfter) {
+        return new ConsensusParams(parseParams(line), validAfter == null ? 0 : validAfter.getTime());
+    }
+
+    /**
+     * parse space separated key=value pairs with 32 bit signed values.
+     *
+     * @param line the pairs; may be null
+     * @return the values by name in the order of the line
+     */
+    public static Map<String, Integer> parseParams(final String line) {
+        final Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+        if (line == null) {
+            return result;
+        }
+        for (final String pair : line.trim().split("\\s+")) {
+            final int eq = pair.indexOf('=');
+            if (eq <= 0) {
+                if (pair.length() > 0) {
+                    LOG.debug("ignoring malformed consensus parameter {}", pair);
+                }
+                continue;
+            }
+            try {
+                result.put(pair.substring(0, eq), Integer.valueOf(pair.substring(eq + 1)));
+            } catch (final NumberFormatException e) {
+                LOG.debug("ignoring malformed consensus parameter {}", pair);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param name         name of the parameter
+     * @param defaultValue used if neither the consensus nor {@link TorConfig} set it
+     * @param min          lowest allowed value
+     * @param max          highest allowed value
+     * @return the effective value
+     */
+    public int getInt(final String name, final int defaultValue, final int min, final int max) {
+        Integer value = TorConfig.getConsensusParamOverride(name);
+        if (value == null) {
+            value = params.get(name);
+        }
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value < min || value > max) {
+            LOG.debug("consensus parameter {}={} out of range [{}, {}]", new Object[]{name, value, min, max});
+            return Math.max(min, Math.min(max, value));
+        }
+        return value;
+    }
+
+    /**
+     * @return initial circuit window in cells
+     */
+    public int getCircuitWindow() {
+        return getInt(CIRCWINDOW, 1000, 100, 1000);
+    }
+
+    /**
+     * @return half-life of the EWMA circuit scheduler in ms
+     */
+    public int getCircuitPriorityHalflifeMs() {
+        return getInt(CIRCUIT_PRIORITY_HALFLIFE_MSEC, 30000, 1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return the circuit build timeout in ms (at least cbtmintimeout)
+     */
+    public int getCircuitBuildTimeoutMs() {
+        final int min = getInt(CBT_MIN_TIMEOUT, 10, 10, Integer.MAX_VALUE);
+        return Math.max(min, getInt(CBT_INITIAL_TIMEOUT, 60000, 10, Integer.MAX_VALUE));
+    }
+
+    /**
+     * @return the divisor of the bandwidth weights
+     */
+    public int getBandwidthWeightScale() {
+        return getInt(BW_WEIGHT_SCALE, 10000, 1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return the parameters as contained in the consensus (without overrides)
+     */
+    public Map<String, Integer> getParams() {
+        return params;
+    }
+
+    /**
+     * @return valid-after of the consensus in ms, 0 for {@link #DEFAULT}
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+        return "ConsensusParams(version=" + version + ", " + params + ")";
+    }
+}
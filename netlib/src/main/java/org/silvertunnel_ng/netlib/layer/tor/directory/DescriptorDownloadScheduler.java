@@ -0,0 +1,456 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.directory;
+
+import org.silvertunnel_ng.netlib.layer.tor.api.Router;
+import org.silvertunnel_ng.netlib.util.NetlibThreads;
+import org.silvertunnel_ng.netlib.util.NetlibThreads.Subsystem;
+import org.silvertunnel_ng.netlib.util.ThreadLocalSecureRandom;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * downloads descriptors by digest from several directory caches at once.
+ *
+ * The digests are split into chunks of at most one request each. The chunks
+ * are downloaded from {@link #parallelCaches} randomly chosen directory
+ * caches, with at most {@link #downloadsPerCache} downloads per cache at the
+ * same time. A cache which fails with an I/O error is replaced by one of the
+ * other caches. A chunk which could not be loaded is downloaded again from
+ * another cache, but from at most {@link #MAXIMUM_CACHES_PER_CHUNK} caches:
+ * the descriptors of a chunk may be unknown to all caches, e.g. if they were
+ * superseded meanwhile.
+ *
+ * If a chunk takes longer than most of the chunks before (see
+ * {@link Latencies}), the same chunk is requested once more from another
+ * cache; the first answer is taken and the other request is cancelled.
+ * The results are merged as the chunks arrive.
+ *
+ * @param <K> the key of the loaded descriptors
+ * @param <V> the loaded descriptors
+ * @author Tobias Boese
+ */
+final class DescriptorDownloadScheduler<K, V> {
+    /** */
+    private static final Logger LOG = LoggerFactory.getLogger(DescriptorDownloadScheduler.class);
+
+    /** number of directory caches used at the same time. */
+    static final int PARALLEL_CACHES = 4;
+    /** number of downloads from one directory cache at the same time. */
+    static final int DOWNLOADS_PER_CACHE = 2;
+    /** number of directory caches asked for one chunk before it is given up. */
+    static final int MAXIMUM_CACHES_PER_CHUNK = 3;
+    /** the latencies of the chunks downloaded by {@link Directory}. */
+    static final Latencies LATENCIES = new Latencies(0.9, 5000, 64);
+
+    /** the downloading threads shared by all schedulers; they end when idle. */
+    private static final ThreadPoolExecutor POOL;
+
+    static {
+        final int threads = PARALLEL_CACHES * DOWNLOADS_PER_CACHE;
+        POOL = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                NetlibThreads.threadFactory(Subsystem.OTHER, "DescriptorDownload", true));
+        POOL.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * downloads one chunk.
+     *
+     * @param <K> the key of the loaded descriptors
+     * @param <V> the loaded descriptors
+     */
+    interface ChunkFetcher<K, V> {
+        /**
+         * @param digests         the digests of one chunk
+         * @param directoryServer the directory cache to download from
+         * @return the loaded descriptors; empty if the cache answered but knows none of them
+         * @throws IOException if the cache could not be reached or the download failed
+         */
+        Map<K, V> fetch(List<String> digests, Router directoryServer) throws IOException;
+    }
+
+    private final int chunkSize;
+    private final int parallelCaches;
+    private final int downloadsPerCache;
+    private final Latencies latencies;
+    private final ChunkFetcher<K, V> fetcher;
+
+    /**
+     * @param chunkSize         maximum number of digests of one request
+     * @param parallelCaches    number of directory caches used at the same time
+     * @param downloadsPerCache number of downloads from one directory cache at the same time
+     * @param latencies         decides when a chunk is requested again; receives the latencies of the chunks
+     * @param fetcher           downloads one chunk
+     */
+    DescriptorDownloadScheduler(final int chunkSize,
+                                final int parallelCaches,
+                                final int downloadsPerCache,
+                                final Latencies latencies,
+                                final ChunkFetcher<K, V> fetcher) {
+        this.chunkSize = chunkSize;
+        this.parallelCaches = parallelCaches;
+        this.downloadsPerCache = downloadsPerCache;
+        this.latencies = latencies;
+        this.fetcher = fetcher;
+    }
+
+    /**
+     * Download the descriptors and wait until all chunks are loaded or no
+     * directory cache is left.
+     *
+     * @param digests          the digests to load
+     * @param directoryServers the directory caches to choose from
+     * @return the loaded descriptors of all chunks
+     */
+    Map<K, V> fetch(final Collection<String> digests, final Collection<Router> directoryServers) {
+        return new Run(digests, directoryServers).await();
+    }
+
+    /**
+     * the state of one {@link #fetch}; guarded by itself.
+     */
+    private final class Run {
+        private final LinkedList<Chunk> pending = new LinkedList<Chunk>();
+        private final List<Chunk> running = new ArrayList<Chunk>();
+        /** the caches in use. */
+        private final List<Router> caches = new ArrayList<Router>();
+        /** the caches which replace failed ones. */
+        private final LinkedList<Router> spareCaches;
+        private final Map<Router, Integer> downloads = new HashMap<Router, Integer>();
+        private final Map<K, V> results = new HashMap<K, V>();
+        /** number of chunks loaded. */
+        private int loadedChunks;
+
+        private Run(final Collection<String> digests, final Collection<Router> directoryServers) {
+            final List<String> remaining = new ArrayList<String>(digests);
+            for (int i = 0; i < remaining.size(); i += chunkSize) {
+                pending.add(new Chunk(remaining.subList(i, Math.min(remaining.size(), i + chunkSize))));
+            }
+            spareCaches = new LinkedList<Router>(directoryServers);
+            Collections.shuffle(spareCaches, ThreadLocalSecureRandom.current());
+            while (caches.size() < parallelCaches && !spareCaches.isEmpty()) {
+                caches.add(spareCaches.removeFirst());
+            }
+        }
+
+        private synchronized Map<K, V> await() {
+            final int chunks = pending.size();
+            try {
+                while (true) {
+                    final long nextHedge = schedule();
+                    if (running.isEmpty()) {
+                        break;
+                    }
+                    if (nextHedge == Long.MAX_VALUE) {
+                        wait();
+                        continue;
+                    }
+                    final long timeout = nextHedge - System.currentTimeMillis();
+                    if (timeout <= 0) {
+                        // the chunk became slow meanwhile
+                        continue;
+                    }
+                    wait(timeout);
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (final Chunk chunk : running) {
+                    chunk.cancel(null);
+                }
+            }
+            final int failed = chunks - loadedChunks;
+            if (failed > 0) {
+                LOG.debug("{} of {} chunks could not be downloaded", failed, chunks);
+            }
+            // late answers are not taken anymore
+            pending.clear();
+            running.clear();
+            return results;
+        }
+
+        /**
+         * Start the pending chunks and the hedged requests of slow chunks, as
+         * far as the caches allow.
+         *
+         * @return when the next running chunk becomes slow; Long.MAX_VALUE if none
+         */
+        private long schedule() {
+            if (caches.isEmpty()) {
+                // no directory cache left
+                pending.clear();
+            }
+            for (final Iterator<Chunk> it = pending.iterator(); it.hasNext(); ) {
+                final Chunk chunk = it.next();
+                final Router cache = getFreeCache(chunk);
+                if (cache == null) {
+                    if (chunk.tried.containsAll(caches)) {
+                        LOG.debug("chunk of {} digests could not be loaded from any cache", chunk.digests.size());
+                        it.remove();
+                    }
+                    continue;
+                }
+                it.remove();
+                running.add(chunk);
+                start(chunk, cache);
+            }
+
+            final long now = System.currentTimeMillis();
+            final long hedgeDelay = latencies.getHedgeDelay();
+            long nextHedge = Long.MAX_VALUE;
+            for (final Chunk chunk : running) {
+                if (chunk.hedged || chunk.attempts.size() != 1 || chunk.attempts.get(0).started == 0) {
+                    continue;
+                }
+                final long due = chunk.attempts.get(0).started + hedgeDelay;
+                if (due > now) {
+                    nextHedge = Math.min(nextHedge, due);
+                    continue;
+                }
+                final Router cache = getFreeCache(chunk);
+                if (cache != null) {
+                    LOG.debug("chunk of {} digests is slow, requesting it also from {}",
+                            chunk.digests.size(), cache.getNickname());
+                    chunk.hedged = true;
+                    start(chunk, cache);
+                }
+            }
+            return nextHedge;
+        }
+
+        /**
+         * @param chunk the chunk to download
+         * @return the cache with the least downloads which was not asked for
+         * the chunk yet and is below its limit; null if there is none
+         */
+        private Router getFreeCache(final Chunk chunk) {
+            Router result = null;
+            int resultDownloads = downloadsPerCache;
+            for (final Router cache : caches) {
+                final int cacheDownloads = getDownloads(cache);
+                if (cacheDownloads < resultDownloads && !chunk.tried.contains(cache)) {
+                    result = cache;
+                    resultDownloads = cacheDownloads;
+                }
+            }
+            return result;
+        }
+
+        private int getDownloads(final Router cache) {
+            final Integer result = downloads.get(cache);
+            return result == null ? 0 : result;
+        }
+
+        private void start(final Chunk chunk, final Router cache) {
+            downloads.put(cache, getDownloads(cache) + 1);
+            final Attempt attempt = new Attempt(chunk, cache);
+            chunk.attempts.add(attempt);
+            chunk.tried.add(cache);
+            attempt.future = POOL.submit(attempt);
+        }
+
+        /**
+         * @return false if the request was cancelled before, it must not run
+         */
+        private synchronized boolean started(final Attempt attempt) {
+            if (attempt.released) {
+                return false;
+            }
+            attempt.started = System.currentTimeMillis();
+            notifyAll();
+            return true;
+        }
+
+        /**
+         * @param attempt the finished request
+         * @param loaded  the loaded descriptors; null if the request failed with an I/O error
+         */
+        private synchronized void finished(final Attempt attempt, final Map<K, V> loaded) {
+            downloads.put(attempt.cache, getDownloads(attempt.cache) - 1);
+            final Chunk chunk = attempt.chunk;
+            chunk.attempts.remove(attempt);
+            if (!running.contains(chunk)) {
+                // the other request of the chunk was faster
+            } else if (loaded == null || loaded.isEmpty()) {
+                if (loaded == null) {
+                    // the cache does not work, replace it
+                    if (caches.remove(attempt.cache) && !spareCaches.isEmpty()) {
+                        caches.add(spareCaches.removeFirst());
+                    }
+                } else {
+                    LOG.debug("{} knows none of {} digests", attempt.cache.getNickname(), chunk.digests.size());
+                }
+                if (chunk.attempts.isEmpty()) {
+                    running.remove(chunk);
+                    if (chunk.tried.size() < MAXIMUM_CACHES_PER_CHUNK) {
+                        // try another cache after the other chunks
+                        pending.addLast(chunk);
+                    } else {
+                        LOG.debug("chunk of {} digests given up after {} caches",
+                                chunk.digests.size(), chunk.tried.size());
+                    }
+                }
+            } else {
+                latencies.add(System.currentTimeMillis() - attempt.started);
+                results.putAll(loaded);
+                loadedChunks++;
+                running.remove(chunk);
+                chunk.cancel(attempt);
+            }
+            notifyAll();
+        }
+
+        /**
+         * the digests of one request.
+         */
+        private final class Chunk {
+            private final List<String> digests;
+            /** the running requests of this chunk. */
+            private final List<Attempt> attempts = new ArrayList<Attempt>(2);
+            /** the caches asked for this chunk. */
+            private final Set<Router> tried = new HashSet<Router>();
+            /** true if this chunk was requested again because it was slow. */
+            private boolean hedged;
+
+            private Chunk(final List<String> digests) {
+                this.digests = digests;
+            }
+
+            /**
+             * @param winner the request to keep; null to cancel all
+             */
+            private void cancel(final Attempt winner) {
+                for (final Iterator<Attempt> it = attempts.iterator(); it.hasNext(); ) {
+                    final Attempt attempt = it.next();
+                    if (attempt == winner) {
+                        continue;
+                    }
+                    attempt.future.cancel(true);
+                    if (attempt.started == 0) {
+                        // still waiting for a thread: it never calls finished(), release its download now
+                        attempt.released = true;
+                        downloads.put(attempt.cache, getDownloads(attempt.cache) - 1);
+                        it.remove();
+                    }
+                }
+            }
+        }
+
+        /**
+         * one request of a chunk.
+         */
+        private final class Attempt implements Runnable {
+            private final Chunk chunk;
+            private final Router cache;
+            /** when the request started; 0 while it waits for a thread. */
+            private long started;
+            /** true if the request was cancelled while it waited for a thread. */
+            private boolean released;
+            private Future<?> future;
+
+            private Attempt(final Chunk chunk, final Router cache) {
+                this.chunk = chunk;
+                this.cache = cache;
+            }
+
+            @Override
+            public void run() {
+                if (!started(this)) {
+                    return;
+                }
+                Map<K, V> loaded = null;
+                try {
+                    loaded = fetcher.fetch(chunk.digests, cache);
+                    if (loaded == null) {
+                        loaded = Collections.emptyMap();
+                    }
+                } catch (final IOException e) {
+                    LOG.debug("download from {} failed: {}", cache.getNickname(), e.getMessage());
+                } catch (final RuntimeException e) {
+                    LOG.debug("download from {} failed", cache.getNickname(), e);
+                } finally {
+                    finished(this, loaded);
+                }
+            }
+        }
+    }
+
+    /**
+     * the latencies of the last downloaded chunks. A chunk is requested
+     * again when it takes longer than the given percentile of them.
+     */
+    static final class Latencies {
+        /** number of latencies needed before the percentile is used. */
+        private static final int MINIMUM_SAMPLES = 4;
+        /** a chunk is never requested again before this time. */
+        private static final long MINIMUM_HEDGE_DELAY_MS = 50;
+
+        private final double percentile;
+        private final long defaultHedgeDelay;
+        private final long[] samples;
+        private int count;
+        private int next;
+
+        /**
+         * @param percentile        e.g. 0.9 to request the slowest tenth of the chunks again
+         * @param defaultHedgeDelay the delay in milliseconds while too few latencies are known
+         * @param size              number of latencies to remember
+         */
+        Latencies(final double percentile, final long defaultHedgeDelay, final int size) {
+            this.percentile = percentile;
+            this.defaultHedgeDelay = defaultHedgeDelay;
+            this.samples = new long[size];
+        }
+
+        synchronized void add(final long latency) {
+            samples[next] = latency;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+        }
+
+        /**
+         * @return the time in milliseconds after which a chunk is requested again
+         */
+        synchronized long getHedgeDelay() {
+            if (count < MINIMUM_SAMPLES) {
+                return defaultHedgeDelay;
+            }
+            final long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            final int index = Math.max(0, (int) Math.ceil(percentile * count) - 1);
+            return Math.max(MINIMUM_HEDGE_DELAY_MS, sorted[index]);
+        }
+    }
+}
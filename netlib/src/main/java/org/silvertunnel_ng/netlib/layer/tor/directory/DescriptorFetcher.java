@@ -18,17 +18,21 @@
 package org.silvertunnel_ng.netlib.layer.tor.directory;
 
 import org.silvertunnel_ng.netlib.api.NetLayer;
+import org.silvertunnel_ng.netlib.layer.tor.api.Fingerprint;
 import org.silvertunnel_ng.netlib.layer.tor.api.Router;
 import org.silvertunnel_ng.netlib.tool.SimpleHttpClientCompressed;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-
-//TODO : modify DescriptorFetcher to download the and split (and process) the descriptors during download
+import java.util.Map;
+import java.util.zip.DataFormatException;
 
 /**
  * Descriptor-Fetcher Class.
@@ -44,6 +48,21 @@ public final class DescriptorFetcher {
      * How many digests can be downloaded at once?
      */
     public static final int MAXIMUM_ALLOWED_DIGESTS = 96;
+    /**
+     * How many microdescriptor digests can be downloaded at once? The base64
+     * digests are longer than the hex digests of the router descriptors.
+     */
+    public static final int MAXIMUM_ALLOWED_MICRODESCRIPTOR_DIGESTS = 92;
+    /**
+     * Parses the descriptors while they are downloaded.
+     */
+    private static final SimpleHttpClientCompressed.ResponseHandler<Map<Fingerprint, Router>> PARSER
+            = new SimpleHttpClientCompressed.ResponseHandler<Map<Fingerprint, Router>>() {
+        @Override
+        public Map<Fingerprint, Router> handle(final InputStream in) throws IOException {
+            return RouterDescriptorStreamParser.parse(in);
+        }
+    };
 
     /**
      * Download the descriptors for the given digests.
@@ -56,25 +75,13 @@ public final class DescriptorFetcher {
     public static String downloadDescriptorsByDigest(final Collection<String> nodesDigestsToLoad,
                                                      final Router directoryServer,
                                                      final NetLayer dirConnectionNetLayer) {
-        if (nodesDigestsToLoad == null || nodesDigestsToLoad.isEmpty()) {
-            LOG.warn("executing downloadDescriptorsByDigest without descriptors doesnt make sense.");
+        final String path = getPathByDigest(nodesDigestsToLoad);
+        if (path == null) {
             return null;
         }
-        if (nodesDigestsToLoad.size() > MAXIMUM_ALLOWED_DIGESTS) {
-            LOG.error("only {} digests can be downloaded at once", MAXIMUM_ALLOWED_DIGESTS);
-            return null;
-        }
-        List<String> digests = new ArrayList<String>(nodesDigestsToLoad);
-        Collections.sort(digests);
-        StringBuilder builder = new StringBuilder();
-        for (String digest : digests) {
-            builder.append(digest).append('+');
-        }
 
         // download descriptor(s)
         try {
-            final String path = "/tor/server/d/" + builder.substring(0, builder.length() - 1);
-
             return SimpleHttpClientCompressed.getInstance().get(dirConnectionNetLayer, directoryServer.getDirAddress(), path);
         } catch (final Exception e) {
             if (LOG.isDebugEnabled()) {
@@ -86,6 +93,83 @@ public final class DescriptorFetcher {
         }
     }
 
+    /**
+     * Download and parse the descriptors for the given digests. The
+     * descriptors are parsed while they are received.
+     *
+     * @param nodesDigestsToLoad    the digests of the router descriptor in hex-notation (as list)
+     * @param directoryServer       which server should be used for fetching the descriptor(s)
+     * @param dirConnectionNetLayer which {@link NetLayer} should be used for communication
+     * @return the routers with a valid descriptor by fingerprint; null in the case of an error
+     */
+    public static Map<Fingerprint, Router> fetchDescriptorsByDigest(final Collection<String> nodesDigestsToLoad,
+                                                                    final Router directoryServer,
+                                                                    final NetLayer dirConnectionNetLayer) {
+        final String path = getPathByDigest(nodesDigestsToLoad);
+        if (path == null) {
+            return null;
+        }
+        try {
+            return SimpleHttpClientCompressed.getInstance().get(dirConnectionNetLayer, directoryServer.getDirAddress(), path, PARSER);
+        } catch (final Exception e) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("fetchDescriptorsByDigest() from "
+                        + directoryServer.getNickname() + " failed: "
+                        + e.getMessage(), e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Download and parse the descriptors for the given digests. Unlike
+     * {@link #fetchDescriptorsByDigest} an answer without descriptors is
+     * distinguished from a failed download.
+     *
+     * @param nodesDigestsToLoad    the digests of the router descriptor in hex-notation (as list)
+     * @param directoryServer       which server should be used for fetching the descriptor(s)
+     * @param dirConnectionNetLayer which {@link NetLayer} should be used for communication
+     * @return the routers with a valid descriptor by fingerprint; empty if the
+     * server knows none of them (e.g. answered with 404)
+     * @throws IOException if the server could not be reached or the download failed
+     */
+    static Map<Fingerprint, Router> loadDescriptorsByDigest(final Collection<String> nodesDigestsToLoad,
+                                                           final Router directoryServer,
+                                                           final NetLayer dirConnectionNetLayer) throws IOException {
+        final String path = getPathByDigest(nodesDigestsToLoad);
+        if (path == null) {
+            return new HashMap<Fingerprint, Router>();
+        }
+        try {
+            return SimpleHttpClientCompressed.getInstance().get(dirConnectionNetLayer, directoryServer.getDirAddress(), path, PARSER);
+        } catch (final SimpleHttpClientCompressed.HttpStatusException e) {
+            LOG.debug("loadDescriptorsByDigest() from {}: {}", directoryServer.getNickname(), e.getMessage());
+            return new HashMap<Fingerprint, Router>();
+        }
+    }
+
+    /**
+     * @param nodesDigestsToLoad the digests of the router descriptor in hex-notation
+     * @return the path to download the descriptors; null if the digests cannot be downloaded at once
+     */
+    private static String getPathByDigest(final Collection<String> nodesDigestsToLoad) {
+        if (nodesDigestsToLoad == null || nodesDigestsToLoad.isEmpty()) {
+            LOG.warn("executing downloadDescriptorsByDigest without descriptors doesnt make sense.");
+            return null;
+        }
+        if (nodesDigestsToLoad.size() > MAXIMUM_ALLOWED_DIGESTS) {
+            LOG.error("only {} digests can be downloaded at once", MAXIMUM_ALLOWED_DIGESTS);
+            return null;
+        }
+        List<String> digests = new ArrayList<String>(nodesDigestsToLoad);
+        Collections.sort(digests);
+        StringBuilder builder = new StringBuilder();
+        for (String digest : digests) {
+            builder.append(digest).append('+');
+        }
+        return "/tor/server/d/" + builder.substring(0, builder.length() - 1);
+    }
+
     /**
      * Download all descriptors.
      *
@@ -113,4 +197,102 @@ public final class DescriptorFetcher {
             return null;
         }
     }
+
+    /**
+     * Download and parse all descriptors. The descriptors are parsed while
+     * they are received, the whole document is never kept in memory.
+     *
+     * @param directoryServer       the chosen Server which should be contacted for fetching the descriptors
+     * @param dirConnectionNetLayer the {@link NetLayer} to be used for contacting the server
+     * @return the routers with a valid descriptor by fingerprint; null in the case of an error
+     */
+    public static Map<Fingerprint, Router> fetchAllDescriptors(final Router directoryServer,
+                                                               final NetLayer dirConnectionNetLayer) {
+        try {
+            return SimpleHttpClientCompressed.getInstance().get(dirConnectionNetLayer,
+                    directoryServer.getDirAddress(),
+                    "/tor/server/all",
+                    PARSER);
+        } catch (final Exception e) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("fetchAllDescriptors() from "
+                        + directoryServer.getNickname() + " failed: "
+                        + e.getMessage(), e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Download and parse the microdescriptors for the given digests. Only
+     * microdescriptors which match one of the digests are returned.
+     *
+     * @param digestsToLoad         the SHA-256 digests of the microdescriptors in unpadded base64
+     * @param directoryServer       which server should be used for fetching the microdescriptors
+     * @param dirConnectionNetLayer which {@link NetLayer} should be used for communication
+     * @return the microdescriptors by digest; null in the case of an error
+     */
+    static Map<String, Microdescriptor> fetchMicrodescriptors(final Collection<String> digestsToLoad,
+                                                              final Router directoryServer,
+                                                              final NetLayer dirConnectionNetLayer) {
+        if (digestsToLoad == null || digestsToLoad.isEmpty()) {
+            LOG.warn("executing fetchMicrodescriptors without digests doesnt make sense.");
+            return null;
+        }
+        if (digestsToLoad.size() > MAXIMUM_ALLOWED_MICRODESCRIPTOR_DIGESTS) {
+            LOG.error("only {} microdescriptor digests can be downloaded at once", MAXIMUM_ALLOWED_MICRODESCRIPTOR_DIGESTS);
+            return null;
+        }
+        try {
+            return loadMicrodescriptors(digestsToLoad, directoryServer, dirConnectionNetLayer);
+        } catch (final Exception e) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("fetchMicrodescriptors() from "
+                        + directoryServer.getNickname() + " failed: "
+                        + e.getMessage(), e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Download and parse the microdescriptors for the given digests. Unlike
+     * {@link #fetchMicrodescriptors} an answer without microdescriptors is
+     * distinguished from a failed download.
+     *
+     * @param digestsToLoad         the SHA-256 digests of the microdescriptors in unpadded base64
+     * @param directoryServer       which server should be used for fetching the microdescriptors
+     * @param dirConnectionNetLayer which {@link NetLayer} should be used for communication
+     * @return the microdescriptors by digest; empty if the server knows none
+     * of them (e.g. answered with 404)
+     * @throws IOException if the server could not be reached or the download failed
+     */
+    static Map<String, Microdescriptor> loadMicrodescriptors(final Collection<String> digestsToLoad,
+                                                             final Router directoryServer,
+                                                             final NetLayer dirConnectionNetLayer) throws IOException {
+        if (digestsToLoad == null || digestsToLoad.isEmpty()
+                || digestsToLoad.size() > MAXIMUM_ALLOWED_MICRODESCRIPTOR_DIGESTS) {
+            return new HashMap<String, Microdescriptor>();
+        }
+        final List<String> digests = new ArrayList<String>(digestsToLoad);
+        Collections.sort(digests);
+        final StringBuilder path = new StringBuilder("/tor/micro/d/");
+        for (final String digest : digests) {
+            path.append(digest).append('-');
+        }
+        path.setLength(path.length() - 1);
+        final String response;
+        try {
+            response = SimpleHttpClientCompressed.getInstance().get(dirConnectionNetLayer,
+                    directoryServer.getDirAddress(), path.toString());
+        } catch (final SimpleHttpClientCompressed.HttpStatusException e) {
+            LOG.debug("loadMicrodescriptors() from {}: {}", directoryServer.getNickname(), e.getMessage());
+            return new HashMap<String, Microdescriptor>();
+        } catch (final DataFormatException e) {
+            throw new IOException("broken answer of " + directoryServer.getNickname(), e);
+        }
+        final Map<String, Microdescriptor> result = Microdescriptor.parseAll(response);
+        result.keySet().retainAll(digests);
+        return result;
+    }
 }
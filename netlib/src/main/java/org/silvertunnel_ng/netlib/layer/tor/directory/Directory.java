@@ -64,27 +64,31 @@ import org.silvertunnel_ng.netlib.layer.tor.api.TorNetLayerStatus;
 import org.silvertunnel_ng.netlib.layer.tor.common.TCPStreamProperties;
 import org.silvertunnel_ng.netlib.layer.tor.common.TorConfig;
 import org.silvertunnel_ng.netlib.layer.tor.util.NetLayerStatusAdmin;
-import org.silvertunnel_ng.netlib.layer.tor.util.Parsing;
+import org.silvertunnel_ng.netlib.layer.tor.util.NodeType;
+import org.silvertunnel_ng.netlib.layer.tor.util.SignatureVerifier;
 import org.silvertunnel_ng.netlib.layer.tor.util.TorException;
+import org.silvertunnel_ng.netlib.layer.tor.util.Util;
 import org.silvertunnel_ng.netlib.util.ConvenientStreamReader;
 import org.silvertunnel_ng.netlib.util.ConvenientStreamWriter;
+import org.silvertunnel_ng.netlib.util.NetlibThreads;
+import org.silvertunnel_ng.netlib.util.NetlibThreads.Subsystem;
 import org.silvertunnel_ng.netlib.util.StringStorage;
 import org.silvertunnel_ng.netlib.util.TempfileStringStorage;
+import org.silvertunnel_ng.netlib.util.ThreadLocalSecureRandom;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.security.SecureRandom;
+import java.io.IOException;
+import java.net.InetAddress;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.FutureTask;
 
 /**
  * This class maintains a list of the currently known Tor routers. It has the
@@ -112,6 +116,10 @@ public final class Directory {
      * key to locally cache the router descriptors.
      */
     private static final String DIRECTORY_CACHED_ROUTER_DESCRIPTORS = "directory-router-descriptors.cache";
+    /**
+     * key to locally cache the microdescriptors.
+     */
+    private static final String STORAGEKEY_DIRECTORY_CACHED_MICRODESCRIPTORS_TXT = "directory-cached-microdescriptors.txt";
 
     /**
      * local cache.
@@ -126,10 +134,28 @@ public final class Directory {
      * valid in the past)
      */
     private final Map<Fingerprint, Router> allFingerprintsRouters = Collections.synchronizedMap(new HashMap<Fingerprint, Router>());
+    /**
+     * the microdescriptors referenced by the last microdesc consensus, by
+     * their digest in base64.
+     */
+    private final Map<String, Microdescriptor> microdescriptors = new HashMap<String, Microdescriptor>();
     /**
      * the last valid consensus.
      */
     private DirectoryConsensus directoryConsensus;
+    /**
+     * the descriptors downloaded while the last consensus was parsed; null if
+     * the consensus was not updated.
+     */
+    private DescriptorPrefetcher descriptorPrefetcher;
+    /**
+     * the parameters of the last valid consensus.
+     */
+    private volatile ConsensusParams consensusParams = ConsensusParams.DEFAULT;
+    /**
+     * the bandwidth weights of the last valid consensus.
+     */
+    private volatile BandwidthWeights bandwidthWeights = BandwidthWeights.NONE;
     /**
      * List of Guards.
      */
@@ -144,25 +170,17 @@ public final class Directory {
      * <br>
      * key=identity key
      */
-    private Map<Fingerprint, Router> validRoutersByFingerprint = new HashMap<Fingerprint, Router>();
-    /**
-     * Map that has class C address as key, and a HashSet with fingerprints of
-     * Nodes that have IP-Address of that class.
-     */
-    private final Map<String, HashSet<Fingerprint>> addressNeighbours;
+    private volatile Map<Fingerprint, Router> validRoutersByFingerprint = new HashMap<Fingerprint, Router>();
     /**
-     * HashMap where keys are CountryCodes, and values are HashSets with
-     * fingerprints of Nodes having an IP-address in the specific country.
+     * weighted-selection index over validRoutersByFingerprint (without the
+     * nodes excluded by config); rebuilt on first use after it was dropped or
+     * the routers changed.
      */
-    private final Map<String, HashSet<Fingerprint>> countryNeighbours;
+    private volatile RouterSelectionIndex selectionIndex;
     /**
      * HashSet excluded by config nodes.
      */
     private final HashSet<Fingerprint> excludedNodesByConfig;
-    /**
-     * SecureRandom generator.
-     */
-    private final SecureRandom rnd;
 
     private volatile boolean updateRunning = false;
 
@@ -172,7 +190,13 @@ public final class Directory {
 
     private static final long ONE_DAY_IN_MS = 24L * 60L * 60L * 1000L;
 
-    private static final Pattern IPCLASSC_PATTERN = Parsing.compileRegexPattern("(.*)\\.");
+    /**
+     * @return the network wide parameters of the current consensus;
+     *         {@link ConsensusParams#DEFAULT} while no consensus is loaded
+     */
+    public ConsensusParams getConsensusParams() {
+        return consensusParams;
+    }
 
     /**
      * Get the list of Guards.
@@ -204,41 +228,10 @@ public final class Directory {
         this.lowerDirConnectionNetLayer = new ControlNetLayer(lowerDirConnectionNetLayer, cp);
 
         // rest
-        addressNeighbours = new HashMap<String, HashSet<Fingerprint>>();
-        countryNeighbours = new HashMap<String, HashSet<Fingerprint>>();
-        rnd = new SecureRandom();
         excludedNodesByConfig = new HashSet<Fingerprint>(TorConfig.getAvoidedNodeFingerprints());
         guardList = new GuardList(this);
     }
 
-    /**
-     * Add s to addressNeighbours and countryNeighbours.
-     *
-     * @param r
-     */
-    private void addToNeighbours(final Router r) {
-        HashSet<Fingerprint> neighbours;
-        final String ipClassCString = Parsing.parseStringByRE(r.getAddress().getHostAddress(), IPCLASSC_PATTERN, "");
-
-        // add it to the addressNeighbours
-        neighbours = addressNeighbours.get(ipClassCString);
-        if (neighbours == null) {
-            // first entry for this ipClassCString
-            neighbours = new HashSet<Fingerprint>();
-            addressNeighbours.put(ipClassCString, neighbours);
-        }
-        neighbours.add(r.getFingerprint());
-
-        // add it to the country neighbors
-        neighbours = countryNeighbours.get(r.getCountryCode());
-        if (neighbours == null) {
-            // first entry for this s.countryCode
-            neighbours = new HashSet<Fingerprint>();
-            countryNeighbours.put(r.getCountryCode(), neighbours);
-        }
-        neighbours.add(r.getFingerprint());
-    }
-
     /**
      * @return true if directory was loaded and enough routers are available
      */
@@ -337,27 +330,36 @@ public final class Directory {
     private void updateDirectoryConsensus() {
         // pre-check
         final Date now = new Date();
-        if (directoryConsensus != null && !directoryConsensus.needsToBeRefreshed(now)) {
+        if (directoryConsensus != null && !directoryConsensus.needsToBeRefreshed(now)
+                && directoryConsensus.isMicrodescFlavor() == TorConfig.isUseMicrodescriptors()) {
             LOG.debug("no consensus update necessary ...");
         } else {
             statusAdmin.updateStatus(TorNetLayerStatus.CONSENSUS_LOADING);
 
             final AuthorityKeyCertificates authorityKeyCertificates = getAuthorityKeyCertificates();
 
+            // start loading the missing descriptors while the consensus is parsed;
+            // the microdescriptors are loaded by digest afterwards
+            final DescriptorPrefetcher prefetcher = TorConfig.isUseMicrodescriptors() ? null : new DescriptorPrefetcher();
             DirectoryConsensus newDirectoryConsensus = null;
             if (directoryConsensus == null || directoryConsensus.getFingerprintsNetworkStatusDescriptors().size() == 0) {
                 // first initialization attempt: use cached consensus
-                newDirectoryConsensus = DirectoryConsensusFetcher.getFromCache(now, stringStorage, authorityKeyCertificates);
+                newDirectoryConsensus = DirectoryConsensusFetcher.getFromCache(now, stringStorage, authorityKeyCertificates, prefetcher);
             }
 
             if (newDirectoryConsensus == null) {
                 // ordinary update: load consensus from Tor network
-                newDirectoryConsensus = DirectoryConsensusFetcher.getFromTorNetwork(now, stringStorage, authorityKeyCertificates, getDirRouters(), lowerDirConnectionNetLayer);
+                newDirectoryConsensus = DirectoryConsensusFetcher.getFromTorNetwork(now, stringStorage, authorityKeyCertificates, getDirRouters(), lowerDirConnectionNetLayer, prefetcher);
             }
 
             if (newDirectoryConsensus != null) {
                 // finalize consensus update
                 directoryConsensus = newDirectoryConsensus;
+                consensusParams = newDirectoryConsensus.getConsensusParams();
+                bandwidthWeights = newDirectoryConsensus.getBandwidthWeights();
+                descriptorPrefetcher = prefetcher;
+            } else if (prefetcher != null) {
+                prefetcher.cancel();
             }
         }
         // final check whether a new or at least an old consensus is available
@@ -379,7 +381,13 @@ public final class Directory {
         statusAdmin.updateStatus(TorNetLayerStatus.ROUTER_DESCRIPTORS_LOADING);
         if (directoryConsensus != null) {
             // update router details
-            fetchDescriptors(allFingerprintsRouters, directoryConsensus);
+            final DescriptorPrefetcher prefetcher = descriptorPrefetcher;
+            descriptorPrefetcher = null;
+            if (directoryConsensus.isMicrodescFlavor()) {
+                fetchMicrodescriptors(allFingerprintsRouters, directoryConsensus);
+            } else {
+                fetchDescriptors(allFingerprintsRouters, directoryConsensus, prefetcher);
+            }
 
             // merge directoryConsensus&fingerprintsRouters ->
             // validRoutersBy[Fingerprint|Name]
@@ -398,7 +406,6 @@ public final class Directory {
                     // valid server with description
                     r.updateServerStatus(networkStatusDescription);
                     newValidRoutersByfingerprint.put(fingerprint, r);
-                    addToNeighbours(r);
                     if (r.isDirv2Exit() || r.isExitNode()) {
                         newExitnodeRouters.put(fingerprint, r);
                     }
@@ -431,7 +438,10 @@ public final class Directory {
                 LOG.debug("number of stable&fast routers : " + newStableAndFastRouters.size());
                 LOG.debug("number of guard routers : " + newGuardRouters.size());
             }
-            // write server descriptors to local cache
+            // write server descriptors to local cache; the microdescriptors are cached by fetchMicrodescriptors()
+            if (directoryConsensus.isMicrodescFlavor()) {
+                return;
+            }
             try {
                 long startWriteCache = System.currentTimeMillis();
                 FileOutputStream fileOutputStream = new FileOutputStream(
@@ -442,6 +452,8 @@ public final class Directory {
                     router.save(convenientStreamWriter);
                 }
                 fileOutputStream.close();
+                // the descriptors downloaded again at the next start need not be verified again
+                SignatureVerifier.save(stringStorage);
                 LOG.debug("wrote router descriptors to local cache in {} ms", System.currentTimeMillis() - startWriteCache);
             } catch (Exception exception) {
                 LOG.warn("Could not cache routers due to exception {}", exception, exception);
@@ -481,15 +493,6 @@ public final class Directory {
         return authorityKeyCertificates;
     }
 
-    /**
-     * split into single server descriptors.
-     */
-    private static final Pattern ROUTER_DESCRIPTORS_PATTERN = Pattern.compile("^(router.*?END SIGNATURE-----)",
-            Pattern.DOTALL
-                    + Pattern.MULTILINE
-                    + Pattern.CASE_INSENSITIVE
-                    + Pattern.UNIX_LINES);
-
     /**
      * parse multiple router descriptors from one String.
      *
@@ -498,62 +501,31 @@ public final class Directory {
      * routerDescriptors, the last will be considered
      */
     protected Map<Fingerprint, Router> parseRouterDescriptors(final String routerDescriptors) {
-        final long timeStart = System.currentTimeMillis();
-        final Map<Fingerprint, Router> result = new HashMap<Fingerprint, Router>();
-
-        final Matcher m = ROUTER_DESCRIPTORS_PATTERN.matcher(routerDescriptors);
-
-        final ExecutorService executor = Executors.newFixedThreadPool(5); // TODO : make threadpool configurable
-
-        final Collection<RouterParserCallable> allTasks = new ArrayList<RouterParserCallable>();
-
-        while (m.find()) {
-            allTasks.add(new RouterParserCallable(m.group(1)));
-        }
-        List<Future<Router>> results = null;
         try {
-            results = executor.invokeAll(allTasks);
-        } catch (InterruptedException exception) {
-            LOG.warn("error while parsing the router descriptors in parallel", exception);
-        }
-        if (results != null && !results.isEmpty()) {
-            for (Future<Router> item : results) {
-                Router router = null;
-                try {
-                    router = item.get();
-                } catch (InterruptedException exception) {
-                    LOG.warn("error while parsing the router descriptors in parallel", exception);
-                } catch (ExecutionException exception) {
-                    LOG.warn("error while parsing the router descriptors in parallel", exception);
-                }
-                if (router != null) {
-                    result.put(router.getFingerprint(), router);
-                }
-            }
+            return RouterDescriptorStreamParser.parse(new ByteArrayInputStream(routerDescriptors.getBytes(Util.UTF8)));
+        } catch (final IOException e) {
+            LOG.warn("error while parsing the router descriptors", e);
+            return new HashMap<Fingerprint, Router>();
         }
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("parseRouterDescriptors took " + (System.currentTimeMillis() - timeStart) + " ms");
-        }
-        return result;
     }
 
     /**
-     * Minimum length of the descriptors.
-     */
-    private static final int ALL_DESCRIPTORS_STR_MIN_LEN = 1000;
-    /**
-     * How many routers are allowed to be fetched separately?
+     * How many routers are allowed to be fetched separately? Up to one chunk
+     * per parallel download, more are loaded with /tor/server/all.
      */
-    private static final int THRESHOLD_TO_LOAD_SINGE_ROUTER_DESCRITPTORS = DescriptorFetcher.MAXIMUM_ALLOWED_DIGESTS; // TODO : this should be set to a higher value loading some chunks of 96 routers should be faster then loading all at once
+    private static final int THRESHOLD_TO_LOAD_SINGE_ROUTER_DESCRITPTORS = DescriptorFetcher.MAXIMUM_ALLOWED_DIGESTS
+            * DescriptorDownloadScheduler.PARALLEL_CACHES * DescriptorDownloadScheduler.DOWNLOADS_PER_CACHE;
 
     /**
      * Trigger download of missing descriptors from directory caches.
      *
      * @param fingerprintsRouters will be modified/updated inside this method
      * @param directoryConsensus  will be read
+     * @param prefetcher          the download started while directoryConsensus was parsed; can be null
      */
     private void fetchDescriptors(final Map<Fingerprint, Router> fingerprintsRouters,
-                                  final DirectoryConsensus directoryConsensus)
+                                  final DirectoryConsensus directoryConsensus,
+                                  final DescriptorPrefetcher prefetcher)
             throws TorException {
         final Map<Fingerprint, String> digestsOfRoutersToLoad = new HashMap<Fingerprint, String>();
 
@@ -571,7 +543,6 @@ public final class Directory {
         //
 
         // try to load from local cache
-        String allDescriptors;
         if (fingerprintsRouters.size() == 0) {
             // try to load from local cache
             try {
@@ -606,39 +577,54 @@ public final class Directory {
         // load from directory server
         LOG.debug("load {} routers from dir server(s) - start", digestsOfRoutersToLoad.size());
         int successes = 0;
+        // all descriptors are needed: take the ones downloaded while the consensus was parsed
+        final Map<Fingerprint, Router> prefetched =
+                prefetcher == null || digestsOfRoutersToLoad.size() <= THRESHOLD_TO_LOAD_SINGE_ROUTER_DESCRITPTORS
+                        ? null : prefetcher.getDescriptors();
+        if (prefetcher != null && prefetched == null) {
+            prefetcher.cancel();
+        }
+        if (prefetched != null && !prefetched.isEmpty()) {
+            successes = putLoadedRouters(prefetched, digestsOfRoutersToLoad, fingerprintsRouters);
+            LOG.debug("loaded {} of {} missing routers while parsing the consensus",
+                    new Object[]{successes, digestsOfRoutersToLoad.size()});
+            digestsOfRoutersToLoad.clear();
+        }
+        final List<Router> dirRouters = digestsOfRoutersToLoad.isEmpty()
+                ? new ArrayList<Router>() : getUsableDirRouters();
+        if (!dirRouters.isEmpty() && digestsOfRoutersToLoad.size() <= THRESHOLD_TO_LOAD_SINGE_ROUTER_DESCRITPTORS) {
+            // load the descriptors chunk by chunk from several directory servers
+            final Map<Fingerprint, Router> parsedServers = new DescriptorDownloadScheduler<Fingerprint, Router>(
+                    DescriptorFetcher.MAXIMUM_ALLOWED_DIGESTS,
+                    DescriptorDownloadScheduler.PARALLEL_CACHES,
+                    DescriptorDownloadScheduler.DOWNLOADS_PER_CACHE,
+                    DescriptorDownloadScheduler.LATENCIES,
+                    new DescriptorDownloadScheduler.ChunkFetcher<Fingerprint, Router>() {
+                        @Override
+                        public Map<Fingerprint, Router> fetch(final List<String> digests, final Router directoryServer)
+                                throws IOException {
+                            return DescriptorFetcher.loadDescriptorsByDigest(digests, directoryServer, lowerDirConnectionNetLayer);
+                        }
+                    }).fetch(digestsOfRoutersToLoad.values(), dirRouters);
+            successes = putLoadedRouters(parsedServers, digestsOfRoutersToLoad, fingerprintsRouters);
+            LOG.debug("loaded {} of {} missing routers from directory servers by digest",
+                    new Object[]{successes, digestsOfRoutersToLoad.size()});
+            dirRouters.clear();
+        }
         // load all description with one request (usually done during startup)
-        final List<Router> dirRouters = new ArrayList<Router>(getDirRouters());
         while (dirRouters.size() > 0) {
-            final int i = rnd.nextInt(dirRouters.size());
+            final int i = ThreadLocalSecureRandom.current().nextInt(dirRouters.size());
             final Router directoryServer = dirRouters.get(i);
             dirRouters.remove(i);
-            if (directoryServer.getDirPort() < 1) {
-                // cannot be used as directory server
-                continue;
-            }
-            if (digestsOfRoutersToLoad.size() <= THRESHOLD_TO_LOAD_SINGE_ROUTER_DESCRITPTORS) {
-                allDescriptors = DescriptorFetcher.downloadDescriptorsByDigest(digestsOfRoutersToLoad.values(), directoryServer, lowerDirConnectionNetLayer);
-            } else {
-                allDescriptors = DescriptorFetcher.downloadAllDescriptors(directoryServer, lowerDirConnectionNetLayer);
-            }
+            // the descriptors are parsed while they are downloaded
+            final Map<Fingerprint, Router> parsedServers
+                    = DescriptorFetcher.fetchAllDescriptors(directoryServer, lowerDirConnectionNetLayer);
 
-            // split into single server descriptors
-            if (allDescriptors != null && allDescriptors.length() >= ALL_DESCRIPTORS_STR_MIN_LEN) {
-                final Map<Fingerprint, Router> parsedServers = parseRouterDescriptors(allDescriptors);
-                int attempts = 0;
-                for (final Fingerprint fingerprint : digestsOfRoutersToLoad.keySet()) {
-                    // one searched fingerprint
-                    final Router r = parsedServers.get(fingerprint);
-                    attempts++;
-                    if (r != null) {
-                        // found searched descriptor
-                        fingerprintsRouters.put(fingerprint, r);
-                        successes++;
-                    }
-                }
+            if (parsedServers != null && !parsedServers.isEmpty()) {
+                successes = putLoadedRouters(parsedServers, digestsOfRoutersToLoad, fingerprintsRouters);
                 if (LOG.isDebugEnabled()) {
                     LOG.debug("loaded " + successes + " of "
-                            + attempts + " missing routers from directory server \""
+                            + digestsOfRoutersToLoad.size() + " missing routers from directory server \""
                             + directoryServer.getNickname()
                             + "\" with single request");
                 }
@@ -648,6 +634,206 @@ public final class Directory {
         LOG.debug("load routers from dir server(s), loaded {} routers - finished", successes);
     }
 
+    /**
+     * Build the routers of a microdesc consensus. The microdescriptors are
+     * taken from memory, from the local cache or downloaded by digest from
+     * directory caches.
+     *
+     * @param fingerprintsRouters will be modified/updated inside this method
+     * @param directoryConsensus  the microdesc consensus; will be read
+     */
+    private void fetchMicrodescriptors(final Map<Fingerprint, Router> fingerprintsRouters,
+                                       final DirectoryConsensus directoryConsensus) {
+        if (microdescriptors.isEmpty()) {
+            final String cached = stringStorage.get(STORAGEKEY_DIRECTORY_CACHED_MICRODESCRIPTORS_TXT);
+            if (cached != null) {
+                final long startLoadCached = System.currentTimeMillis();
+                microdescriptors.putAll(Microdescriptor.parseAll(cached));
+                LOG.debug("loaded {} microdescriptors from local cache in {} ms",
+                        new Object[]{microdescriptors.size(), System.currentTimeMillis() - startLoadCached});
+            }
+        }
+        final Collection<RouterStatusDescription> entries = directoryConsensus.getFingerprintsNetworkStatusDescriptors().values();
+        final Set<String> digestsToLoad = new HashSet<String>();
+        for (final RouterStatusDescription networkStatusDescription : entries) {
+            final String digest = networkStatusDescription.getDigestMicrodescriptorAsBase64();
+            if (digest != null && !microdescriptors.containsKey(digest)) {
+                digestsToLoad.add(digest);
+            }
+        }
+
+        // load from directory servers, chunk by chunk
+        LOG.debug("load {} microdescriptors from dir server(s) - start", digestsToLoad.size());
+        int successes = 0;
+        if (!digestsToLoad.isEmpty()) {
+            final Map<String, Microdescriptor> loaded = new DescriptorDownloadScheduler<String, Microdescriptor>(
+                    DescriptorFetcher.MAXIMUM_ALLOWED_MICRODESCRIPTOR_DIGESTS,
+                    DescriptorDownloadScheduler.PARALLEL_CACHES,
+                    DescriptorDownloadScheduler.DOWNLOADS_PER_CACHE,
+                    DescriptorDownloadScheduler.LATENCIES,
+                    new DescriptorDownloadScheduler.ChunkFetcher<String, Microdescriptor>() {
+                        @Override
+                        public Map<String, Microdescriptor> fetch(final List<String> digests, final Router directoryServer)
+                                throws IOException {
+                            return DescriptorFetcher.loadMicrodescriptors(digests, directoryServer, lowerDirConnectionNetLayer);
+                        }
+                    }).fetch(digestsToLoad, getUsableDirRouters());
+            microdescriptors.putAll(loaded);
+            successes = loaded.size();
+        }
+        LOG.debug("load microdescriptors from dir server(s), loaded {} microdescriptors - finished", successes);
+
+        // build the routers which are new or have a new microdescriptor
+        final Set<String> usedDigests = new HashSet<String>();
+        for (final RouterStatusDescription networkStatusDescription : entries) {
+            final String digest = networkStatusDescription.getDigestMicrodescriptorAsBase64();
+            final Microdescriptor microdescriptor = digest == null ? null : microdescriptors.get(digest);
+            if (microdescriptor == null) {
+                continue;
+            }
+            usedDigests.add(digest);
+            final Router r = fingerprintsRouters.get(networkStatusDescription.getFingerprint());
+            if (r instanceof RouterImpl && ((RouterImpl) r).getMicrodescriptor() == microdescriptor && r.isValid()) {
+                continue;
+            }
+            try {
+                fingerprintsRouters.put(networkStatusDescription.getFingerprint(),
+                        new RouterImpl(networkStatusDescription, microdescriptor));
+            } catch (final TorException e) {
+                LOG.debug("skipped router {}: {}", networkStatusDescription.getNickname(), e.getMessage());
+            }
+        }
+
+        // forget the microdescriptors which are no longer referenced and update the local cache
+        final int known = microdescriptors.size();
+        microdescriptors.keySet().retainAll(usedDigests);
+        if (successes > 0 || known != microdescriptors.size()) {
+            final StringBuilder cache = new StringBuilder();
+            for (final Microdescriptor microdescriptor : microdescriptors.values()) {
+                cache.append(microdescriptor.getDescriptor());
+            }
+            stringStorage.put(STORAGEKEY_DIRECTORY_CACHED_MICRODESCRIPTORS_TXT, cache.toString());
+        }
+    }
+
+    /**
+     * @return the directory servers with a directory port
+     */
+    private List<Router> getUsableDirRouters() {
+        final List<Router> result = new ArrayList<Router>();
+        for (final Router router : getDirRouters()) {
+            if (router.getDirPort() > 0) {
+                result.add(router);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Take the searched routers out of the downloaded ones.
+     *
+     * @param parsedServers          the downloaded routers
+     * @param digestsOfRoutersToLoad the searched routers
+     * @param fingerprintsRouters    receives the found routers
+     * @return the number of found routers
+     */
+    private static int putLoadedRouters(final Map<Fingerprint, Router> parsedServers,
+                                        final Map<Fingerprint, String> digestsOfRoutersToLoad,
+                                        final Map<Fingerprint, Router> fingerprintsRouters) {
+        int successes = 0;
+        for (final Fingerprint fingerprint : digestsOfRoutersToLoad.keySet()) {
+            // one searched fingerprint
+            final Router r = parsedServers.get(fingerprint);
+            if (r != null) {
+                // found searched descriptor
+                fingerprintsRouters.put(fingerprint, r);
+                successes++;
+            }
+        }
+        return successes;
+    }
+
+    /**
+     * Starts downloading all router descriptors as soon as the consensus
+     * being parsed lists more missing routers than are loaded by digest, i.e.
+     * when {@link #fetchDescriptors} would load all of them anyway.
+     */
+    private final class DescriptorPrefetcher implements DirectoryConsensus.RouterStatusListener {
+        /** the cached descriptors are loaded first, no need to download them all. */
+        private final boolean routersCached;
+        private final Set<Fingerprint> missing = new HashSet<Fingerprint>();
+        private boolean started;
+        private FutureTask<Map<Fingerprint, Router>> download;
+
+        private DescriptorPrefetcher() {
+            boolean cached;
+            try {
+                cached = allFingerprintsRouters.isEmpty()
+                        && TempfileStringStorage.getTempfileFile(DIRECTORY_CACHED_ROUTER_DESCRIPTORS).exists();
+            } catch (final IOException e) {
+                cached = false;
+            }
+            routersCached = cached;
+        }
+
+        @Override
+        public void routerStatusParsed(final RouterStatusDescription routerStatus) {
+            if (started || routersCached) {
+                return;
+            }
+            final Router r = allFingerprintsRouters.get(routerStatus.getFingerprint());
+            if (r == null || !r.isValid()) {
+                missing.add(routerStatus.getFingerprint());
+                if (missing.size() > THRESHOLD_TO_LOAD_SINGE_ROUTER_DESCRITPTORS) {
+                    start();
+                }
+            }
+        }
+
+        private void start() {
+            started = true;
+            final List<Router> dirRouters = getUsableDirRouters();
+            if (dirRouters.isEmpty()) {
+                return;
+            }
+            final Router directoryServer = dirRouters.get(ThreadLocalSecureRandom.current().nextInt(dirRouters.size()));
+            LOG.debug("start loading all descriptors from {} while parsing the consensus", directoryServer.getNickname());
+            download = new FutureTask<Map<Fingerprint, Router>>(new Callable<Map<Fingerprint, Router>>() {
+                @Override
+                public Map<Fingerprint, Router> call() {
+                    return DescriptorFetcher.fetchAllDescriptors(directoryServer, lowerDirConnectionNetLayer);
+                }
+            });
+            NetlibThreads.start(Subsystem.OTHER, "DescriptorPrefetcher", download, true);
+        }
+
+        /**
+         * Wait for the download.
+         *
+         * @return the downloaded routers; null if the download was not started or failed
+         */
+        private Map<Fingerprint, Router> getDescriptors() {
+            if (download == null) {
+                return null;
+            }
+            try {
+                return download.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (final ExecutionException e) {
+                LOG.debug("loading the descriptors while parsing the consensus failed", e.getCause());
+                return null;
+            }
+        }
+
+        private void cancel() {
+            if (download != null) {
+                download.cancel(true);
+            }
+        }
+    }
+
     /**
      * Check whether the given route is compatible to the given restrictions.
      *
@@ -700,6 +886,17 @@ public final class Directory {
         }
     }
 
+    /**
+     * The set is bound to the current snapshot of the running routers:
+     * selections with it use that snapshot, even if the consensus or the
+     * rankings change meanwhile, so planning a route needs no lock.
+     *
+     * @return an empty set of excluded routers for the current consensus
+     */
+    public ExcludedRouters newExcludedRouters() {
+        return new ExcludedRouters(getSelectionIndex());
+    }
+
     /**
      * Exclude related nodes: family, class C and country (if specified in
      * TorConfig).
@@ -708,29 +905,20 @@ public final class Directory {
      * @return set of excluded node names
      */
     public Set<Fingerprint> excludeRelatedNodes(final Router r) {
-        final HashSet<Fingerprint> excludedServerfingerprints = new HashSet<Fingerprint>();
-        HashSet<Fingerprint> myAddressNeighbours, myCountryNeighbours;
-
-        if (TorConfig.isRouteUniqueClassC()) {
-            myAddressNeighbours = getAddressNeighbours(r.getAddress().getHostAddress());
-            if (myAddressNeighbours != null) {
-                excludedServerfingerprints.addAll(myAddressNeighbours);
-            }
-        } else {
-            excludedServerfingerprints.add(r.getFingerprint());
-        }
-
-        // exclude all country insider, if desired
-        if (TorConfig.isRouteUniqueCountry()) {
-            myCountryNeighbours = countryNeighbours.get(r.getCountryCode());
-            if (myCountryNeighbours != null) {
-                excludedServerfingerprints.addAll(myCountryNeighbours);
-            }
-        }
-        // exclude its family as well
-        excludedServerfingerprints.addAll(r.getFamily());
+        final ExcludedRouters excludedServerFingerprints = newExcludedRouters();
+        excludeRelatedNodes(r, excludedServerFingerprints);
+        return excludedServerFingerprints;
+    }
 
-        return excludedServerfingerprints;
+    /**
+     * Exclude related nodes: family, class C (the same /24 network) and
+     * country (if specified in TorConfig).
+     *
+     * @param r        node that should be excluded with all its relations
+     * @param excluded the set to add the nodes to
+     */
+    public void excludeRelatedNodes(final Router r, final ExcludedRouters excluded) {
+        excluded.getIndex().excludeRelated(r, excluded, TorConfig.isRouteUniqueClassC(), TorConfig.isRouteUniqueCountry());
     }
 
     /**
@@ -741,46 +929,25 @@ public final class Directory {
      * @param excludedServerFingerprints a list of all Routers which should be excluded
      * @param rankingInfluenceIndex      the ranking influence index
      * @return a {@link Router}
+     * @see #selectRandomNode(NodeType, RouterFlags, Set, float, RouterFilter)
      */
     public Router selectRandomNode(final Map<Fingerprint, Router> torRouters,
                                    final HashSet<Fingerprint> excludedServerFingerprints,
                                    final float rankingInfluenceIndex,
                                    final boolean onlyFast,
                                    final boolean onlyStable) {
-        Map<Fingerprint, Router> routersToChooseFrom = new HashMap<Fingerprint, Router>(torRouters);
-        Set<Fingerprint> listOfExcludedRouters = new HashSet<Fingerprint>(excludedServerFingerprints);
-        if (onlyFast) {
-            for (Router router : routersToChooseFrom.values()) {
-                if (!router.isDirv2Fast()) {
-                    listOfExcludedRouters.add(router.getFingerprint());
-                }
-            }
-        }
-        if (onlyStable) {
-            for (Router router : routersToChooseFrom.values()) {
-                if (!router.isDirv2Stable()) {
-                    listOfExcludedRouters.add(router.getFingerprint());
-                }
-            }
-        }
         float rankingSum = 0;
-        Router myServer;
-        listOfExcludedRouters.addAll(excludedNodesByConfig);
         // At first, calculate sum of the rankings
-        Iterator<Router> it = routersToChooseFrom.values().iterator();
-        while (it.hasNext()) {
-            myServer = it.next();
-            if ((!listOfExcludedRouters.contains(myServer.getFingerprint())) && myServer.isDirv2Running()) {
+        for (final Router myServer : torRouters.values()) {
+            if (isSelectable(myServer, excludedServerFingerprints, onlyFast, onlyStable)) {
                 rankingSum += myServer.getRefinedRankingIndex(rankingInfluenceIndex);
             }
         }
         // generate a random float between 0 and rankingSum
-        float serverRandom = rnd.nextFloat() * rankingSum;
+        float serverRandom = ThreadLocalSecureRandom.current().nextFloat() * rankingSum;
         // select the server
-        it = routersToChooseFrom.values().iterator();
-        while (it.hasNext()) {
-            myServer = it.next();
-            if ((!listOfExcludedRouters.contains(myServer.getFingerprint())) && myServer.isDirv2Running()) {
+        for (final Router myServer : torRouters.values()) {
+            if (isSelectable(myServer, excludedServerFingerprints, onlyFast, onlyStable)) {
                 serverRandom -= myServer.getRefinedRankingIndex(rankingInfluenceIndex);
                 if (serverRandom <= 0) {
                     return myServer;
@@ -790,6 +957,104 @@ public final class Directory {
         return null;
     }
 
+    private boolean isSelectable(final Router router,
+                                 final Set<Fingerprint> excludedServerFingerprints,
+                                 final boolean onlyFast,
+                                 final boolean onlyStable) {
+        return router.isDirv2Running()
+                && (!onlyFast || router.isDirv2Fast())
+                && (!onlyStable || router.isDirv2Stable())
+                && !excludedServerFingerprints.contains(router.getFingerprint())
+                && !excludedNodesByConfig.contains(router.getFingerprint());
+    }
+
+    /**
+     * Select a random running node from all valid routers for a position in
+     * a circuit. The routers are weighted by their bandwidth, the bandwidth
+     * weights of the consensus for the position and their ranking.
+     *
+     * Unlike {@link #selectRandomNode(Map, HashSet, float, boolean, boolean)}
+     * this uses precomputed cumulative weights, so a selection takes
+     * logarithmic time and does not copy the router list.
+     *
+     * @param position                   the position of the router in the circuit
+     * @param flags                      the router must have all of these flags; may be null
+     * @param excludedServerFingerprints Routers which should be excluded; may be null. If these are
+     *                                   {@link ExcludedRouters} the snapshot of the routers they were
+     *                                   created for is used
+     * @param rankingInfluenceIndex      the ranking influence index
+     * @param filter                     additional condition the router has to meet; may be null
+     * @return a {@link Router} or null if no router is suitable
+     */
+    public Router selectRandomNode(final NodeType position,
+                                   final RouterFlags flags,
+                                   final Set<Fingerprint> excludedServerFingerprints,
+                                   final float rankingInfluenceIndex,
+                                   final RouterFilter filter) {
+        return getSelectionIndex(excludedServerFingerprints).select(position, flags, excludedServerFingerprints,
+                rankingInfluenceIndex, filter, ThreadLocalSecureRandom.current());
+    }
+
+    /**
+     * Select a random running exit node whose exit policy accepts the
+     * destination, see {@link #selectRandomNode(NodeType, RouterFlags, Set, float, RouterFilter)}.
+     * Only the exits listed for the port by the exit policy index are
+     * considered.
+     *
+     * @param flags                      the router must have all of these flags; may be null
+     * @param excludedServerFingerprints Routers which should be excluded; may be null
+     * @param rankingInfluenceIndex      the ranking influence index
+     * @param addr                       the destination address; may be null
+     * @param port                       the destination port
+     * @param filter                     additional condition the router has to meet; may be null
+     * @return a {@link Router} or null if no router is suitable
+     */
+    public Router selectRandomExitNode(final RouterFlags flags,
+                                       final Set<Fingerprint> excludedServerFingerprints,
+                                       final float rankingInfluenceIndex,
+                                       final InetAddress addr,
+                                       final int port,
+                                       final RouterFilter filter) {
+        return getSelectionIndex(excludedServerFingerprints).select(NodeType.EXIT, flags, excludedServerFingerprints,
+                rankingInfluenceIndex, addr, port, filter, ThreadLocalSecureRandom.current());
+    }
+
+    /**
+     * The rankings of the routers changed (e.g. by {@link Router#punishRanking()});
+     * the selection weights are recalculated with the next selection.
+     */
+    public void rankingsChanged() {
+        selectionIndex = null;
+    }
+
+    /**
+     * @param excluded the routers to exclude from a selection
+     * @return the snapshot the excluded routers belong to, or the current one
+     */
+    private RouterSelectionIndex getSelectionIndex(final Set<Fingerprint> excluded) {
+        if (excluded instanceof ExcludedRouters) {
+            return ((ExcludedRouters) excluded).getIndex();
+        }
+        return getSelectionIndex();
+    }
+
+    private RouterSelectionIndex getSelectionIndex() {
+        final Map<Fingerprint, Router> validRouters = validRoutersByFingerprint;
+        final BandwidthWeights weights = bandwidthWeights;
+        RouterSelectionIndex index = selectionIndex;
+        if (index == null || !index.isBuiltFrom(validRouters, weights)) {
+            final List<Router> routers = new ArrayList<Router>(validRouters.size());
+            for (final Router router : validRouters.values()) {
+                if (!excludedNodesByConfig.contains(router.getFingerprint())) {
+                    routers.add(router);
+                }
+            }
+            index = new RouterSelectionIndex(validRouters, weights, routers);
+            selectionIndex = index;
+        }
+        return index;
+    }
+
     /**
      * Find a router by the given IP address and onion port.
      *
@@ -913,14 +1178,6 @@ public final class Directory {
         return result;
     }
 
-    /**
-     * Return the set of neighbors by address of the specific IP in the dotted
-     * notation.
-     */
-    private HashSet<Fingerprint> getAddressNeighbours(final String address) {
-        return addressNeighbours.get(Parsing.parseStringByRE(address, IPCLASSC_PATTERN, ""));
-    }
-
     /**
      * should be called when TorJava is closing.
      */
@@ -25,10 +25,11 @@ import org.silvertunnel_ng.netlib.util.DatatypeConverter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.text.ParseException;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * An object of this class stores a parsed directory protocol V3 network-status
@@ -44,10 +45,36 @@ public class DirectoryConsensus {
     private Date freshUntil;
     private Date validUntil;
 
+    /** the "params" line. */
+    private ConsensusParams consensusParams = ConsensusParams.DEFAULT;
+
+    /** the "bandwidth-weights" line of the footer. */
+    private BandwidthWeights bandwidthWeights = BandwidthWeights.NONE;
+
+    /** true for the microdesc flavor ("network-status-version 3 microdesc"). */
+    private boolean microdescFlavor;
+
     private Map<Fingerprint, RouterStatusDescription> fingerprintsNetworkStatusDescriptors = new HashMap<Fingerprint, RouterStatusDescription>();
 
-    private static final Pattern VERSION_PATTERN = Parsing.compileRegexPattern("^network-status-version (\\d+)");
-    private static final Pattern SIGNEDDATA_PATTERN = Parsing.compileRegexPattern("^(network-status-version.*?directory-signature )");
+    /** minimum number of valid signatures of different authorities. */
+    private static final int CONSENSUS_MIN_VALID_SIGNATURES = 4;
+
+    /**
+     * Receives the router entries of a consensus while it is parsed.
+     * <br>
+     * The entries are handed out before the signatures at the end of the
+     * document are checked, so they must only be used for work that does no
+     * harm if the consensus is rejected afterwards, e.g. to start downloading
+     * the (self-signed) router descriptors early.
+     */
+    public interface RouterStatusListener {
+        /**
+         * Called by the parsing thread for every running router.
+         *
+         * @param routerStatus the complete entry of the router
+         */
+        void routerStatusParsed(RouterStatusDescription routerStatus);
+    }
 
     /**
      * Parse a directory protocol V3 network-status consensus document.
@@ -62,17 +89,79 @@ public class DirectoryConsensus {
     public DirectoryConsensus(final String consensusStr,
                               final AuthorityKeyCertificates authorityKeyCertificates,
                               final Date currentDate) throws TorException, ParseException {
+        this(consensusStr, authorityKeyCertificates, currentDate, null);
+    }
 
+    /**
+     * Parse a directory protocol V3 network-status consensus document.
+     *
+     * @param consensusStr             document received form directory server
+     * @param authorityKeyCertificates all authority signing certificates - needed to check the
+     *                                 consensus document
+     * @param currentDate              current dae and time - needed to check the consensus document
+     * @param listener                 receives the running routers while they are parsed; can be null
+     * @throws TorException if the consensus is invalid (e.g. empty or invalid signatures
+     *                      or outdated)
+     */
+    public DirectoryConsensus(final String consensusStr,
+                              final AuthorityKeyCertificates authorityKeyCertificates,
+                              final Date currentDate,
+                              final RouterStatusListener listener) throws TorException, ParseException {
+        try {
+            parse(new ByteArrayInputStream(consensusStr.getBytes(Util.UTF8)), authorityKeyCertificates, currentDate, listener);
+        } catch (final IOException e) {
+            throw new TorException("could not read the consensus", e);
+        }
+    }
+
+    /**
+     * Parse a directory protocol V3 network-status consensus document while
+     * it is read, e.g. downloaded. The stream is not closed.
+     *
+     * @param in                       document received form directory server
+     * @param authorityKeyCertificates all authority signing certificates - needed to check the
+     *                                 consensus document
+     * @param currentDate              current date and time - needed to check the consensus document
+     * @param listener                 receives the running routers while they are parsed; can be null
+     * @throws TorException if the consensus is invalid (e.g. empty or invalid signatures
+     *                      or outdated)
+     * @throws IOException  if reading the document fails
+     */
+    public DirectoryConsensus(final InputStream in,
+                              final AuthorityKeyCertificates authorityKeyCertificates,
+                              final Date currentDate,
+                              final RouterStatusListener listener) throws TorException, IOException {
+        parse(in, authorityKeyCertificates, currentDate, listener);
+    }
+
+    private void parse(final InputStream in,
+                       final AuthorityKeyCertificates authorityKeyCertificates,
+                       final Date currentDate,
+                       final RouterStatusListener listener) throws TorException, IOException {
+        final DirectoryConsensusParser parser = new DirectoryConsensusParser(this, currentDate, listener);
+        parser.parse(in);
+        microdescFlavor = parser.isMicrodescFlavor();
+        bandwidthWeights = BandwidthWeights.parse(parser.getBandwidthWeights(), consensusParams.getBandwidthWeightScale());
+        LOG.debug("consensus: {}", bandwidthWeights);
+        checkSignatures(parser, authorityKeyCertificates);
+    }
+
+    /**
+     * Check the header of the document; called by the
+     * {@link DirectoryConsensusParser} before the first router entry.
+     *
+     * @param version     the value of the "network-status-version" line
+     * @param params      the value of the "params" line; can be null
+     * @param currentDate the current date and time
+     * @throws TorException if the version is unsupported or the consensus outdated
+     */
+    void checkHeader(final String version, final String params, final Date currentDate) throws TorException {
         // Check the version
-        final String version = Parsing.parseStringByRE(consensusStr, VERSION_PATTERN, "");
-        if (!version.equals("3")) {
+        if (!"3".equals(version)) {
             throw new TorException("wrong network status version");
         }
 
-        // parse and check valid-after, fresh-until, valid-until
-        setValidAfter(Parsing.parseTimestampLine("valid-after", consensusStr));
-        setFreshUntil(Parsing.parseTimestampLine("fresh-until", consensusStr));
-        setValidUntil(Parsing.parseTimestampLine("valid-until", consensusStr));
+        // check valid-after, fresh-until, valid-until
         if (LOG.isDebugEnabled()) {
             LOG.debug("Directory.parseDirV3NetworkStatus: Consensus document validAfter="
                     + getValidAfter()
@@ -86,25 +175,27 @@ public class DirectoryConsensus {
                     + getValidUntil() + " for currentDate=" + currentDate);
         }
 
-        final byte[] signedData = Parsing.parseStringByRE(consensusStr, SIGNEDDATA_PATTERN, "").getBytes();
-        LOG.debug("consensus: extracted signed data (length)={}", signedData.length);
+        // parse the network wide parameters
+        consensusParams = ConsensusParams.parse(params, getValidAfter());
+        LOG.debug("consensus: {}", consensusParams);
+    }
 
-        // Parse signatures
-        final Pattern pSignature = Pattern
-                .compile(
-                        "^directory-signature (\\S+) (\\S+)\\s*\n-----BEGIN SIGNATURE-----\n(.*?)-----END SIGNATURE",
-                        Pattern.UNIX_LINES + Pattern.MULTILINE
-                                + Pattern.CASE_INSENSITIVE + Pattern.DOTALL);
-        final Matcher mSig = pSignature.matcher(consensusStr);
-        final Set<Fingerprint> dirIdentityKeyDigestOfMatchingSignatures = new HashSet<Fingerprint>();
-        while (mSig.find()) {
-            final byte[] identityKeyDigest = DatatypeConverter.parseHexBinary(mSig.group(1));
-            final byte[] signingKeyDigest = DatatypeConverter.parseHexBinary(mSig.group(2));
-            String sigBase64 = mSig.group(3);
-            while (sigBase64.length() % 4 != 0) {
-                sigBase64 += "="; // add missing padding
-            }
-            final byte[] signature = DatatypeConverter.parseBase64Binary(sigBase64);
+    /**
+     * Verify the signatures found by the parser against the digest of the
+     * signed data.
+     *
+     * @throws TorException if less than {@link #CONSENSUS_MIN_VALID_SIGNATURES} authorities signed
+     */
+    private static void checkSignatures(final DirectoryConsensusParser parser,
+                                        final AuthorityKeyCertificates authorityKeyCertificates) throws TorException {
+        final List<DirectoryConsensusParser.Signature> signatures = parser.getSignatures();
+        // collect the signatures of known authorities, then verify them in parallel
+        final List<AuthorityKeyCertificate> signers = new ArrayList<AuthorityKeyCertificate>(signatures.size());
+        final List<SignatureVerifier.Verification> verifications = new ArrayList<SignatureVerifier.Verification>(signatures.size());
+        for (final DirectoryConsensusParser.Signature sig : signatures) {
+            final byte[] identityKeyDigest = sig.getIdentityKeyDigest();
+            final byte[] signingKeyDigest = sig.getSigningKeyDigest();
+            final byte[] signature = sig.getSignature();
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Directory.parseDirV3NetworkStatus: Extracted identityKeyDigest(hex)="
                         + Encoding.toHexString(identityKeyDigest));
@@ -131,21 +222,22 @@ public class DirectoryConsensus {
                 LOG.debug("No signature found in network status");
                 continue;
             }
-            if (!Encryption.verifySignature(signature, authorityKeyCertificate.getDirSigningKey(), signedData)) {
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("Directory signature verification failed for identityKeyDigest(hex)="
-                            + Encoding.toHexString(identityKeyDigest));
-                }
+            signers.add(authorityKeyCertificate);
+            verifications.add(new SignatureVerifier.Verification(signature, authorityKeyCertificate.getDirSigningKey(),
+                    sig.getSignedDataDigest()));
+        }
+        final boolean[] verified = SignatureVerifier.verifyAll(verifications);
+        final Set<Fingerprint> dirIdentityKeyDigestOfMatchingSignatures = new HashSet<Fingerprint>();
+        for (int i = 0; i < verified.length; i++) {
+            final Fingerprint identityKeyDigest = signers.get(i).getDirIdentityKeyDigest();
+            if (!verified[i]) {
+                LOG.debug("Directory signature verification failed for identityKeyDigest={}", identityKeyDigest);
                 continue;
             }
             // verification successful for this signature
-            dirIdentityKeyDigestOfMatchingSignatures.add(authorityKeyCertificate.getDirIdentityKeyDigest());
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("single signature verification ok for identityKeyDigest(hex)="
-                        + Encoding.toHexString(identityKeyDigest));
-            }
+            dirIdentityKeyDigestOfMatchingSignatures.add(identityKeyDigest);
+            LOG.debug("single signature verification ok for identityKeyDigest={}", identityKeyDigest);
         }
-        final int CONSENSUS_MIN_VALID_SIGNATURES = 4;
         final int sigNum = dirIdentityKeyDigestOfMatchingSignatures.size();
         if (sigNum < CONSENSUS_MIN_VALID_SIGNATURES) {
             throw new TorException(
@@ -153,27 +245,6 @@ public class DirectoryConsensus {
                             + " (different) signatures found");
         }
         LOG.debug("signature verification accepted");
-
-        // Parse the single routers
-        final Pattern pRouter = Pattern
-                .compile("^r (\\S+) (\\S+) (\\S+) (\\S+) (\\S+) (\\S+) (\\d+) (\\d+)\\s*\ns ([a-z0-9 ]+)?",
-                        Pattern.UNIX_LINES + Pattern.MULTILINE + Pattern.CASE_INSENSITIVE + Pattern.DOTALL);
-        final Matcher m = pRouter.matcher(consensusStr);
-        // Loop to extract all routers
-        while (m.find()) {
-            final RouterStatusDescription sinfo = new RouterStatusDescription();
-            sinfo.setNickname(m.group(1));
-            sinfo.setFingerprint(m.group(2));
-            sinfo.setDigestDescriptor(m.group(3));
-            sinfo.setLastPublication(Util.parseUtcTimestampAsLong(m.group(4) + " " + m.group(5)));
-            sinfo.setIp(m.group(6));
-            sinfo.setOrPort(Integer.parseInt(m.group(7)));
-            sinfo.setDirPort(Integer.parseInt(m.group(8)));
-            sinfo.setRouterFlags(m.group(9));
-            if (sinfo.getRouterFlags().isRunning()) {
-                getFingerprintsNetworkStatusDescriptors().put(sinfo.getFingerprint(), sinfo);
-            }
-        }
     }
 
     /**
@@ -285,6 +356,28 @@ public class DirectoryConsensus {
         this.validUntil = validUntil;
     }
 
+    /**
+     * @return the parameters of the "params" line
+     */
+    public ConsensusParams getConsensusParams() {
+        return consensusParams;
+    }
+
+    /**
+     * @return the weights of the "bandwidth-weights" line
+     */
+    public BandwidthWeights getBandwidthWeights() {
+        return bandwidthWeights;
+    }
+
+    /**
+     * @return true if this is a microdesc consensus; its entries carry microdescriptor digests
+     * instead of router descriptor digests
+     */
+    public boolean isMicrodescFlavor() {
+        return microdescFlavor;
+    }
+
     public Map<Fingerprint, RouterStatusDescription> getFingerprintsNetworkStatusDescriptors() {
         return fingerprintsNetworkStatusDescriptors;
     }
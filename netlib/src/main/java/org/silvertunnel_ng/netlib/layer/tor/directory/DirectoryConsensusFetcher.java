@@ -21,14 +21,24 @@ package org.silvertunnel_ng.netlib.layer.tor.directory;
 import org.silvertunnel_ng.netlib.api.NetLayer;
 import org.silvertunnel_ng.netlib.layer.tor.api.Fingerprint;
 import org.silvertunnel_ng.netlib.layer.tor.api.Router;
+import org.silvertunnel_ng.netlib.layer.tor.common.TorConfig;
+import org.silvertunnel_ng.netlib.layer.tor.util.SignatureVerifier;
 import org.silvertunnel_ng.netlib.layer.tor.util.TorException;
+import org.silvertunnel_ng.netlib.layer.tor.util.Util;
 import org.silvertunnel_ng.netlib.tool.SimpleHttpClient;
 import org.silvertunnel_ng.netlib.tool.SimpleHttpClientCompressed;
 import org.silvertunnel_ng.netlib.util.StringStorage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.text.ParseException;
 import java.util.*;
 import java.util.zip.ZipException;
 
@@ -43,11 +53,27 @@ public class DirectoryConsensusFetcher {
      * key to locally cache the consensus.
      */
     private static final String STORAGEKEY_DIRECTORY_CACHED_CONSENSUS_TXT = "directory-cached-consensus.txt";
+    /**
+     * key to locally cache the microdesc consensus.
+     */
+    private static final String STORAGEKEY_DIRECTORY_CACHED_CONSENSUS_MICRODESC_TXT = "directory-cached-consensus-microdesc.txt";
 
     private static final int MIN_LENGTH_OF_CONSENSUS_STR = 100;
 
+    /** initial size of the copy of a downloaded consensus; a full one has about 1.5 MB. */
+    private static final int COPY_INITIAL_SIZE = 2 * 1024 * 1024;
+
+    /** size of the chunks a consensus diff is read with. */
+    private static final int BUFFER_SIZE = 16384;
+
     private static final Logger LOG = LoggerFactory.getLogger(DirectoryConsensusFetcher.class);
 
+    /**
+     * request header to ask for a diff from the consensus with the given
+     * SHA3-256 digest instead of the full consensus.
+     */
+    static final String HEADER_DIFF_FROM_CONSENSUS = "X-Or-Diff-From-Consensus";
+
     /**
      * Get the directory Consensus from Cache.
      *
@@ -57,13 +83,31 @@ public class DirectoryConsensusFetcher {
      * @return DirectoryConsensus if cached Version is still valid, null if nothing found or not valid anymore
      */
     public static DirectoryConsensus getFromCache(final Date now, StringStorage stringStorage, AuthorityKeyCertificates authorityKeyCertificates) {
+        return getFromCache(now, stringStorage, authorityKeyCertificates, null);
+    }
+
+    /**
+     * Get the directory Consensus from Cache.
+     *
+     * @param now                      current date (will be used to check if the Consensus is still valid
+     * @param stringStorage            StringStorage where Consensus has been chached
+     * @param authorityKeyCertificates AuthorityKeyCertificates for verifying the Consensus
+     * @param listener                 receives the running routers while they are parsed; can be null
+     * @return DirectoryConsensus if cached Version is still valid, null if nothing found or not valid anymore
+     */
+    public static DirectoryConsensus getFromCache(final Date now,
+                                                  StringStorage stringStorage,
+                                                  AuthorityKeyCertificates authorityKeyCertificates,
+                                                  final DirectoryConsensus.RouterStatusListener listener) {
         DirectoryConsensus result;
         LOG.debug("consensus first initialization attempt: try to use document from local cache ...");
+        // the consensus of the cache was verified before
+        SignatureVerifier.load(stringStorage);
         // first initialization: try to load consensus from cache
-        final String newDirectoryConsensusStr = stringStorage.get(STORAGEKEY_DIRECTORY_CACHED_CONSENSUS_TXT);
+        final String newDirectoryConsensusStr = stringStorage.get(getStorageKey());
         if (newDirectoryConsensusStr != null && newDirectoryConsensusStr.length() > MIN_LENGTH_OF_CONSENSUS_STR) {
             try {
-                result = new DirectoryConsensus(newDirectoryConsensusStr, authorityKeyCertificates, now);
+                result = new DirectoryConsensus(newDirectoryConsensusStr, authorityKeyCertificates, now, listener);
                 if (!result.isValid(now)) {
                     // cache result was not acceptable
                     result = null;
@@ -102,6 +146,31 @@ public class DirectoryConsensusFetcher {
      */
 
     public static DirectoryConsensus getFromTorNetwork(final Date now, StringStorage stringStorage, AuthorityKeyCertificates authorityKeyCertificates, Collection<Router> directoryRouters, final NetLayer lowerDirConnectionNetLayer) {
+        return getFromTorNetwork(now, stringStorage, authorityKeyCertificates, directoryRouters, lowerDirConnectionNetLayer, null);
+    }
+
+    /**
+     * Download the Directory consensus document from one of the given Directory routers.
+     * The document is parsed while it is downloaded.
+     * <br>
+     * If a consensus is cached, a diff from it is requested; the directory
+     * server answers with the diff or with the full consensus. If the diff
+     * does not lead to the expected consensus, the full consensus is fetched.
+     *
+     * @param now                        current date/time
+     * @param stringStorage              StringStorage to store the result for caching
+     * @param authorityKeyCertificates   AuthorityKeyCertificates for verifying the Consensus
+     * @param directoryRouters           a Collection of Routers which are suitable to provide the Consensus
+     * @param lowerDirConnectionNetLayer the NetLay which should be used to download the Consensus
+     * @param listener                   receives the running routers while they are parsed; can be null
+     * @return a DirectoryConsensus if download was successfull, null if not
+     */
+    public static DirectoryConsensus getFromTorNetwork(final Date now,
+                                                       StringStorage stringStorage,
+                                                       final AuthorityKeyCertificates authorityKeyCertificates,
+                                                       Collection<Router> directoryRouters,
+                                                       final NetLayer lowerDirConnectionNetLayer,
+                                                       final DirectoryConsensus.RouterStatusListener listener) {
         DirectoryConsensus result = null;
 
         LOG.debug("load consensus from Tor network");
@@ -117,13 +186,17 @@ public class DirectoryConsensusFetcher {
             }
         }
 
-        final String path = "/tor/status-vote/current/consensus";
+        final String path = TorConfig.isUseMicrodescriptors()
+                ? "/tor/status-vote/current/consensus-microdesc" : "/tor/status-vote/current/consensus";
         String newPath = path + "/";
         for (Fingerprint fingerprint : authorityKeyCertificates.getAuthorityKeyCertificates().keySet()) {
             newPath += fingerprint.getHex() + "+";
         }
         newPath = newPath.substring(0, newPath.length() - 2);
 
+        // the consensus a diff can be applied to
+        final String baseConsensusStr = stringStorage.get(getStorageKey());
+
         // Choose one randomly
         while (dirRouters.size() > 0) {
             final int index = rnd.nextInt(dirRouters.size());
@@ -134,25 +207,36 @@ public class DirectoryConsensusFetcher {
                         + " (" + dirRouter.getNickname() + ")");
             }
             try {
-                String newDirectoryConsensusStr = null;
+                // Parse the document while it is downloaded
+                ConsensusReader reader = new ConsensusReader(authorityKeyCertificates, now, listener, baseConsensusStr);
+                String newDirectoryConsensusStr;
                 try {
-                    newDirectoryConsensusStr = SimpleHttpClientCompressed.getInstance().get(lowerDirConnectionNetLayer, dirRouter.getDirAddress(), newPath);
+                    result = SimpleHttpClientCompressed.getInstance().get(lowerDirConnectionNetLayer, dirRouter.getDirAddress(), newPath,
+                            reader.getRequestHeaders(), reader);
+                    if (result == null) {
+                        LOG.debug("consensus diff could not be applied, fetch the full consensus");
+                        reader = new ConsensusReader(authorityKeyCertificates, now, listener, null);
+                        result = SimpleHttpClientCompressed.getInstance().get(lowerDirConnectionNetLayer, dirRouter.getDirAddress(), newPath, reader);
+                    }
+                    newDirectoryConsensusStr = reader.getDocument();
                 } catch (ZipException e) {
                     LOG.debug("got ZipException while downloading DirectoryConsensus trying to fetch it uncompressed.");
                     newDirectoryConsensusStr = SimpleHttpClient.getInstance().get(lowerDirConnectionNetLayer, dirRouter.getDirAddress(), path);
+                    result = new DirectoryConsensus(newDirectoryConsensusStr, authorityKeyCertificates, now, listener);
                 } catch (IOException e) {
-                    if (e.getMessage().contains("transfer was not successful")) {
-                        newDirectoryConsensusStr = SimpleHttpClientCompressed.getInstance().get(lowerDirConnectionNetLayer, dirRouter.getDirAddress(), path);
+                    if (e.getMessage() == null || !e.getMessage().contains("transfer was not successful")) {
+                        throw e;
                     }
+                    result = SimpleHttpClientCompressed.getInstance().get(lowerDirConnectionNetLayer, dirRouter.getDirAddress(), path, reader);
+                    newDirectoryConsensusStr = reader.getDocument();
                 }
 
-                // Parse the document
-                result = new DirectoryConsensus(newDirectoryConsensusStr, authorityKeyCertificates, now);
                 if (!result.needsToBeRefreshed(now)) {
                     // result is acceptable
                     LOG.debug("use new consensus");
                     // save the directoryConsensus for later Tor-startups
-                    stringStorage.put(STORAGEKEY_DIRECTORY_CACHED_CONSENSUS_TXT, newDirectoryConsensusStr);
+                    stringStorage.put(getStorageKey(), newDirectoryConsensusStr);
+                    SignatureVerifier.save(stringStorage);
                     break;
                 }
                 result = null;
@@ -164,4 +248,130 @@ public class DirectoryConsensusFetcher {
         }
         return result;
     }
+
+    /**
+     * @return the key of the cached consensus of the configured flavor
+     */
+    static String getStorageKey() {
+        return TorConfig.isUseMicrodescriptors()
+                ? STORAGEKEY_DIRECTORY_CACHED_CONSENSUS_MICRODESC_TXT : STORAGEKEY_DIRECTORY_CACHED_CONSENSUS_TXT;
+    }
+
+    /**
+     * parses the downloaded consensus and keeps a copy of the document for
+     * the cache. A consensus diff is applied to the base consensus first.
+     */
+    private static final class ConsensusReader implements SimpleHttpClientCompressed.ResponseHandler<DirectoryConsensus> {
+        private static final byte[] DIFF_START = (ConsensusDiff.DIFF_VERSION + "\n").getBytes(Charset.forName(Util.UTF8));
+
+        private final AuthorityKeyCertificates authorityKeyCertificates;
+        private final Date now;
+        private final DirectoryConsensus.RouterStatusListener listener;
+        /** the consensus a diff is requested for; null to request the full consensus. */
+        private final String base;
+        private final ByteArrayOutputStream document = new ByteArrayOutputStream(COPY_INITIAL_SIZE);
+
+        private ConsensusReader(final AuthorityKeyCertificates authorityKeyCertificates,
+                                final Date now,
+                                final DirectoryConsensus.RouterStatusListener listener,
+                                final String base) {
+            this.authorityKeyCertificates = authorityKeyCertificates;
+            this.now = now;
+            this.listener = listener;
+            this.base = base;
+        }
+
+        /**
+         * @return the request headers asking for a diff from the base consensus
+         */
+        private Map<String, String> getRequestHeaders() {
+            final String digest = base == null ? null : ConsensusDiff.getDigestAsSigned(base);
+            if (digest == null) {
+                return Collections.emptyMap();
+            }
+            return Collections.singletonMap(HEADER_DIFF_FROM_CONSENSUS, digest);
+        }
+
+        /**
+         * @return the consensus; null if the response is a diff which does not fit the base consensus
+         */
+        @Override
+        public DirectoryConsensus handle(final InputStream in) throws IOException {
+            document.reset();
+            if (base != null) {
+                final PushbackInputStream pushbackIn = new PushbackInputStream(in, DIFF_START.length);
+                final byte[] start = new byte[DIFF_START.length];
+                int length = 0;
+                int count;
+                while (length < start.length && (count = pushbackIn.read(start, length, start.length - length)) > 0) {
+                    length += count;
+                }
+                pushbackIn.unread(start, 0, length);
+                if (length == start.length && Arrays.equals(start, DIFF_START)) {
+                    return applyDiff(pushbackIn);
+                }
+                return parse(pushbackIn);
+            }
+            return parse(in);
+        }
+
+        private DirectoryConsensus applyDiff(final InputStream in) throws IOException {
+            final ByteArrayOutputStream diff = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                diff.write(buffer, 0, count);
+            }
+            LOG.debug("received consensus diff of {} bytes", diff.size());
+            final String consensus;
+            try {
+                consensus = ConsensusDiff.apply(base, diff.toString(Util.UTF8));
+            } catch (final TorException e) {
+                LOG.info("consensus diff rejected: {}", e.getMessage());
+                return null;
+            }
+            document.write(consensus.getBytes(Util.UTF8));
+            try {
+                return new DirectoryConsensus(consensus, authorityKeyCertificates, now, listener);
+            } catch (final TorException e) {
+                throw new IOException("invalid consensus: " + e.getMessage(), e);
+            } catch (final ParseException e) {
+                throw new IOException("invalid consensus: " + e.getMessage(), e);
+            }
+        }
+
+        private DirectoryConsensus parse(final InputStream in) throws IOException {
+            final InputStream copyingIn = new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    final int result = super.read();
+                    if (result >= 0) {
+                        document.write(result);
+                    }
+                    return result;
+                }
+
+                @Override
+                public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+                    final int result = super.read(buffer, offset, length);
+                    if (result > 0) {
+                        document.write(buffer, offset, result);
+                    }
+                    return result;
+                }
+            };
+            try {
+                return new DirectoryConsensus(copyingIn, authorityKeyCertificates, now, listener);
+            } catch (final TorException e) {
+                throw new IOException("invalid consensus: " + e.getMessage(), e);
+            }
+        }
+
+        /**
+         * @return the document read by the last call of {@link #handle(InputStream)}
+         */
+        private String getDocument() throws UnsupportedEncodingException {
+            return document.toString(Util.UTF8);
+        }
+    }
 }
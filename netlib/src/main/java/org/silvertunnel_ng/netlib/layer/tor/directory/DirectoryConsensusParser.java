@@ -0,0 +1,634 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.directory;
+
+import org.silvertunnel_ng.netlib.layer.tor.util.Encryption;
+import org.silvertunnel_ng.netlib.layer.tor.util.TorException;
+import org.silvertunnel_ng.netlib.util.DatatypeConverter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * reads a directory protocol V3 network-status consensus document line by
+ * line, e.g. while it is downloaded. Both the full and the microdesc flavor
+ * ("network-status-version 3 microdesc") are understood.
+ *
+ * The fields are sliced out of the current line by their offsets; only the
+ * values kept by {@link RouterStatusDescription} are copied. The SHA-1 digest
+ * (and for the microdesc flavor the SHA-256 digest) of the signed part of the
+ * document (from "network-status-version" up to and including the first
+ * "directory-signature ") is updated with every line, so the document never
+ * has to be in memory as a whole. Every running router is
+ * put into the {@link DirectoryConsensus} and handed to the
+ * {@link DirectoryConsensus.RouterStatusListener} as soon as its entry is
+ * complete.
+ *
+ * @author Tobias Boese
+ */
+final class DirectoryConsensusParser {
+    /** */
+    private static final Logger LOG = LoggerFactory.getLogger(DirectoryConsensusParser.class);
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final byte[] VERSION = ascii("network-status-version ");
+    private static final byte[] VALID_AFTER = ascii("valid-after ");
+    private static final byte[] FRESH_UNTIL = ascii("fresh-until ");
+    private static final byte[] VALID_UNTIL = ascii("valid-until ");
+    private static final byte[] PARAMS = ascii("params ");
+    private static final byte[] ROUTER = ascii("r ");
+    private static final byte[] STATUS = ascii("s ");
+    private static final byte[] MICRODESC_DIGEST = ascii("m ");
+    private static final byte[] WEIGHTS = ascii("w ");
+    private static final byte[] BANDWIDTH = ascii("Bandwidth=");
+    private static final byte[] FOOTER = ascii("directory-footer");
+    private static final byte[] BANDWIDTH_WEIGHTS = ascii("bandwidth-weights ");
+    private static final byte[] SIGNATURE = ascii("directory-signature ");
+    private static final byte[] BEGIN_SIGNATURE = ascii("-----BEGIN SIGNATURE-----");
+    private static final byte[] END_SIGNATURE = ascii("-----END SIGNATURE-----");
+    private static final byte[] MICRODESC_FLAVOR = ascii(" microdesc");
+    private static final String SHA1 = "sha1";
+    private static final String SHA256 = "sha256";
+
+    /** size of the chunks read from the stream. */
+    private static final int BUFFER_SIZE = 16384;
+    /** the "r" line of the full flavor has the most fields. */
+    private static final int MAX_FIELDS = 9;
+
+    /** the values of the base64 characters, -1 for other characters. */
+    private static final byte[] BASE64 = new byte[128];
+
+    static {
+        Arrays.fill(BASE64, (byte) -1);
+        final String chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < chars.length(); i++) {
+            BASE64[chars.charAt(i)] = (byte) i;
+        }
+    }
+
+    private final DirectoryConsensus consensus;
+    private final Date currentDate;
+    private final DirectoryConsensus.RouterStatusListener listener;
+
+    /** digest of the signed part of the document. */
+    private final MessageDigest signedDataDigest = Encryption.getMessagesDigest();
+    private boolean signedDataStarted;
+    /** the finished digest, null until the first "directory-signature" line. */
+    private byte[] signedDataDigestValue;
+    /** SHA-256 digest of the signed part; only for the microdesc flavor, otherwise null. */
+    private MessageDigest signedDataDigest256;
+    private byte[] signedDataDigest256Value;
+
+    /** the current line. */
+    private byte[] line = new byte[256];
+    private int lineLength;
+    /** the fields of the current line, split by blanks. */
+    private final int[] fieldStart = new int[MAX_FIELDS];
+    private final int[] fieldEnd = new int[MAX_FIELDS];
+    private int fields;
+
+    private String version;
+    private boolean microdescFlavor;
+    private String params;
+    private String bandwidthWeights;
+    private boolean headerChecked;
+
+    /** the router entry read so far, null outside of an entry. */
+    private RouterStatusDescription entry;
+    /** number of router entries found. */
+    private int count;
+
+    private final List<Signature> signatures = new ArrayList<Signature>();
+    /** the signature read so far, null outside of a signature. */
+    private Signature signature;
+    /** the base64 lines of the signature; null outside of the signature block. */
+    private StringBuilder signatureBase64;
+
+    /**
+     * @param consensus   receives the parsed values
+     * @param currentDate needed to check the header of the document
+     * @param listener    receives every running router; can be null
+     */
+    DirectoryConsensusParser(final DirectoryConsensus consensus,
+                             final Date currentDate,
+                             final DirectoryConsensus.RouterStatusListener listener) {
+        this.consensus = consensus;
+        this.currentDate = currentDate;
+        this.listener = listener;
+    }
+
+    /**
+     * read and parse the whole document. The stream is not closed.
+     *
+     * @param in the document
+     * @throws IOException  if reading fails
+     * @throws TorException if the header is invalid or outdated
+     */
+    void parse(final InputStream in) throws IOException, TorException {
+        final long timeStart = System.currentTimeMillis();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            int start = 0;
+            for (int i = 0; i < read; i++) {
+                if (buffer[i] == '\n') {
+                    appendToLine(buffer, start, i - start);
+                    endOfLine(true);
+                    start = i + 1;
+                }
+            }
+            appendToLine(buffer, start, read - start);
+        }
+        if (lineLength > 0) {
+            endOfLine(false);
+        }
+        finishEntry();
+        checkHeader();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("parsed " + count + " router entries and " + signatures.size() + " signatures in "
+                    + (System.currentTimeMillis() - timeStart) + " ms");
+        }
+    }
+
+    /**
+     * @return true if the document is a microdesc consensus
+     */
+    boolean isMicrodescFlavor() {
+        return microdescFlavor;
+    }
+
+    /**
+     * @return the "directory-signature" entries with SHA-1 or SHA-256 digest, in document order
+     */
+    List<Signature> getSignatures() {
+        return signatures;
+    }
+
+    /**
+     * @return the value of the "bandwidth-weights" line; null if there is none
+     */
+    String getBandwidthWeights() {
+        return bandwidthWeights;
+    }
+
+    private void appendToLine(final byte[] buffer, final int start, final int length) {
+        if (length == 0) {
+            return;
+        }
+        if (lineLength + length > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + length));
+        }
+        System.arraycopy(buffer, start, line, lineLength, length);
+        lineLength += length;
+    }
+
+    private void endOfLine(final boolean terminated) throws TorException {
+        updateSignedData(terminated);
+        int length = lineLength;
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        processLine(length);
+        lineLength = 0;
+    }
+
+    private void updateSignedData(final boolean terminated) {
+        if (signedDataDigestValue != null) {
+            return;
+        }
+        if (!signedDataStarted) {
+            if (!startsWith(VERSION, lineLength)) {
+                return;
+            }
+            signedDataStarted = true;
+            if (endsWith(MICRODESC_FLAVOR, lineLength)) {
+                signedDataDigest256 = sha256();
+            }
+        }
+        if (startsWith(SIGNATURE, lineLength)) {
+            signedDataDigest.update(line, 0, SIGNATURE.length);
+            signedDataDigestValue = signedDataDigest.digest();
+            if (signedDataDigest256 != null) {
+                signedDataDigest256.update(line, 0, SIGNATURE.length);
+                signedDataDigest256Value = signedDataDigest256.digest();
+            }
+            return;
+        }
+        signedDataDigest.update(line, 0, lineLength);
+        if (terminated) {
+            signedDataDigest.update((byte) '\n');
+        }
+        if (signedDataDigest256 != null) {
+            signedDataDigest256.update(line, 0, lineLength);
+            if (terminated) {
+                signedDataDigest256.update((byte) '\n');
+            }
+        }
+    }
+
+    private void processLine(final int length) throws TorException {
+        if (signatureBase64 != null) {
+            if (startsWith(END_SIGNATURE, length)) {
+                finishSignature();
+            } else {
+                signatureBase64.append(new String(line, 0, length, ASCII));
+            }
+        } else if (startsWith(ROUTER, length)) {
+            finishEntry();
+            checkHeader();
+            startEntry(length);
+        } else if (entry != null && startsWith(STATUS, length)) {
+            entry.setRouterFlags(new String(line, STATUS.length, length - STATUS.length, ASCII));
+        } else if (entry != null && startsWith(WEIGHTS, length)) {
+            parseWeights(length);
+        } else if (entry != null && microdescFlavor && startsWith(MICRODESC_DIGEST, length)) {
+            parseMicrodescDigest(length);
+        } else if (startsWith(SIGNATURE, length)) {
+            finishEntry();
+            checkHeader();
+            startSignature(length);
+        } else if (signature != null && startsWith(BEGIN_SIGNATURE, length)) {
+            signatureBase64 = new StringBuilder(256);
+        } else if (startsWith(FOOTER, length)) {
+            finishEntry();
+        } else if (startsWith(BANDWIDTH_WEIGHTS, length)) {
+            bandwidthWeights = new String(line, BANDWIDTH_WEIGHTS.length, length - BANDWIDTH_WEIGHTS.length, ASCII);
+        } else if (!headerChecked) {
+            processHeaderLine(length);
+        }
+    }
+
+    private void processHeaderLine(final int length) {
+        if (startsWith(VERSION, length)) {
+            split(length);
+            version = fields > 1 ? field(1) : "";
+            microdescFlavor = fields > 2 && "microdesc".equals(field(2));
+        } else if (startsWith(VALID_AFTER, length)) {
+            consensus.setValidAfter(parseTimestampLine(VALID_AFTER.length, length));
+        } else if (startsWith(FRESH_UNTIL, length)) {
+            consensus.setFreshUntil(parseTimestampLine(FRESH_UNTIL.length, length));
+        } else if (startsWith(VALID_UNTIL, length)) {
+            consensus.setValidUntil(parseTimestampLine(VALID_UNTIL.length, length));
+        } else if (startsWith(PARAMS, length)) {
+            params = new String(line, PARAMS.length, length - PARAMS.length, ASCII);
+        }
+    }
+
+    /**
+     * the header is complete with the first router entry; check it before the
+     * entry is published.
+     */
+    private void checkHeader() throws TorException {
+        if (!headerChecked) {
+            headerChecked = true;
+            consensus.checkHeader(version, params, currentDate);
+        }
+    }
+
+    /**
+     * "r" nickname identity digest publication-date publication-time IP ORPort DirPort;
+     * the microdesc flavor has no digest.
+     */
+    private void startEntry(final int length) {
+        split(length);
+        // index of the publication date
+        final int date = microdescFlavor ? 3 : 4;
+        if (fields < date + 5) {
+            LOG.debug("invalid router entry: too few fields");
+            return;
+        }
+        final byte[] fingerprint = decodeBase64(fieldStart[2], fieldEnd[2]);
+        final byte[] digest = microdescFlavor ? null : decodeBase64(fieldStart[3], fieldEnd[3]);
+        final long publication = fieldEnd[date] - fieldStart[date] == 10 && fieldEnd[date + 1] - fieldStart[date + 1] == 8
+                ? parseUtcTimestamp(line, fieldStart[date]) : -1;
+        final int orPort = parseNumber(fieldStart[date + 3], fieldEnd[date + 3]);
+        final int dirPort = parseNumber(fieldStart[date + 4], fieldEnd[date + 4]);
+        if (fingerprint == null || fingerprint.length < 4 || (digest == null && !microdescFlavor)
+                || publication < 0 || orPort < 0 || dirPort < 0) {
+            LOG.debug("invalid router entry of {}", field(1));
+            return;
+        }
+        count++;
+        entry = new RouterStatusDescription();
+        entry.setNickname(field(1));
+        entry.setFingerprint(fingerprint);
+        entry.setDigestDescriptor(digest);
+        entry.setLastPublication(publication);
+        entry.setIp(field(date + 2));
+        entry.setOrPort(orPort);
+        entry.setDirPort(dirPort);
+    }
+
+    /**
+     * "w" Bandwidth=N [Measured=N] [Unmeasured=1].
+     */
+    private void parseWeights(final int length) {
+        split(length);
+        for (int i = 1; i < fields; i++) {
+            if (regionStartsWith(BANDWIDTH, fieldStart[i], fieldEnd[i])) {
+                final int bandwidth = parseNumber(fieldStart[i] + BANDWIDTH.length, fieldEnd[i]);
+                if (bandwidth < 0) {
+                    LOG.debug("invalid bandwidth of {}", entry.getNickname());
+                } else {
+                    entry.setBandwidth(bandwidth);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * "m" base64-encoded SHA-256 of the microdescriptor.
+     */
+    private void parseMicrodescDigest(final int length) {
+        split(length);
+        final byte[] digest = fields > 1 ? decodeBase64(fieldStart[1], fieldEnd[1]) : null;
+        if (digest == null || digest.length != 32) {
+            LOG.debug("invalid microdescriptor digest of {}", entry.getNickname());
+        } else {
+            entry.setDigestMicrodescriptor(digest);
+        }
+    }
+
+    private void finishEntry() {
+        if (entry == null) {
+            return;
+        }
+        final RouterStatusDescription finished = entry;
+        entry = null;
+        if (finished.getRouterFlags() == null || !finished.getRouterFlags().isRunning()) {
+            return;
+        }
+        consensus.getFingerprintsNetworkStatusDescriptors().put(finished.getFingerprint(), finished);
+        if (listener != null) {
+            try {
+                listener.routerStatusParsed(finished);
+            } catch (final RuntimeException e) {
+                LOG.warn("RouterStatusListener failed", e);
+            }
+        }
+    }
+
+    /**
+     * "directory-signature" [algorithm] identity signing-key-digest.
+     */
+    private void startSignature(final int length) {
+        split(length);
+        signature = null;
+        final int first;
+        final byte[] digest;
+        if (fields == 3) {
+            first = 1;
+            digest = signedDataDigestValue;
+        } else if (fields == 4 && SHA1.equals(field(1))) {
+            first = 2;
+            digest = signedDataDigestValue;
+        } else if (fields == 4 && SHA256.equals(field(1)) && signedDataDigest256Value != null) {
+            first = 2;
+            digest = signedDataDigest256Value;
+        } else {
+            LOG.debug("ignore signature with unsupported digest algorithm");
+            return;
+        }
+        try {
+            signature = new Signature(DatatypeConverter.parseHexBinary(field(first)),
+                    DatatypeConverter.parseHexBinary(field(first + 1)), digest);
+        } catch (final IllegalArgumentException e) {
+            LOG.debug("invalid directory-signature line");
+        }
+    }
+
+    private void finishSignature() {
+        if (signature != null) {
+            String base64 = signatureBase64.toString();
+            while (base64.length() % 4 != 0) {
+                base64 += "="; // add missing padding
+            }
+            signature.signature = DatatypeConverter.parseBase64Binary(base64);
+            signatures.add(signature);
+        }
+        signature = null;
+        signatureBase64 = null;
+    }
+
+    /**
+     * split the line at the blanks; at most {@link #MAX_FIELDS} fields, the
+     * last one gets the rest of the line.
+     */
+    private void split(final int length) {
+        fields = 0;
+        int i = 0;
+        while (i < length && fields < MAX_FIELDS) {
+            while (i < length && line[i] == ' ') {
+                i++;
+            }
+            if (i == length) {
+                break;
+            }
+            fieldStart[fields] = i;
+            if (fields == MAX_FIELDS - 1) {
+                i = length;
+                while (line[i - 1] == ' ') {
+                    i--;
+                }
+            } else {
+                while (i < length && line[i] != ' ') {
+                    i++;
+                }
+            }
+            fieldEnd[fields] = i;
+            fields++;
+        }
+    }
+
+    private String field(final int index) {
+        return new String(line, fieldStart[index], fieldEnd[index] - fieldStart[index], ASCII);
+    }
+
+    private Date parseTimestampLine(final int start, final int length) {
+        final long timestamp = length - start >= 19 ? parseUtcTimestamp(line, start) : -1;
+        return timestamp < 0 ? null : new Date(timestamp);
+    }
+
+    private boolean startsWith(final byte[] prefix, final int length) {
+        return regionStartsWith(prefix, 0, length);
+    }
+
+    private boolean endsWith(final byte[] suffix, int length) {
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        return length >= suffix.length && regionStartsWith(suffix, length - suffix.length, length);
+    }
+
+    private boolean regionStartsWith(final byte[] prefix, final int start, final int end) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (line[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the decimal number; -1 if it is empty, too large or contains other characters
+     */
+    private int parseNumber(final int start, final int end) {
+        if (start >= end || end - start > 9) {
+            return -1;
+        }
+        int result = 0;
+        for (int i = start; i < end; i++) {
+            final int digit = line[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+    /**
+     * @return the decoded bytes of unpadded (or padded) base64; null if it contains other characters
+     */
+    private byte[] decodeBase64(final int start, int end) {
+        while (end > start && line[end - 1] == '=') {
+            end--;
+        }
+        final byte[] result = new byte[(end - start) * 6 / 8];
+        int bits = 0;
+        int bitCount = 0;
+        int pos = 0;
+        for (int i = start; i < end; i++) {
+            final int c = line[i];
+            final int value = c >= 0 && c < BASE64.length ? BASE64[c] : -1;
+            if (value < 0) {
+                return null;
+            }
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                result[pos++] = (byte) (bits >> bitCount);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Parse the format "yyyy-MM-dd HH:mm:ss" as UTC.
+     *
+     * @param data  contains the timestamp
+     * @param start position of the timestamp; 19 bytes are read
+     * @return milliseconds since 1970; -1 if the format is invalid
+     */
+    static long parseUtcTimestamp(final byte[] data, final int start) {
+        if (data[start + 4] != '-' || data[start + 7] != '-' || data[start + 10] != ' '
+                || data[start + 13] != ':' || data[start + 16] != ':') {
+            return -1;
+        }
+        final int year = digits(data, start, 4);
+        final int month = digits(data, start + 5, 2);
+        final int day = digits(data, start + 8, 2);
+        final int hour = digits(data, start + 11, 2);
+        final int minute = digits(data, start + 14, 2);
+        final int second = digits(data, start + 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60) {
+            return -1;
+        }
+        // days since 1970-01-01 of the proleptic Gregorian calendar, with the year starting in March
+        final int y = month <= 2 ? year - 1 : year;
+        final int yearOfEra = y % 400;
+        final int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        final long days = (y / 400) * 146097L + dayOfEra - 719468;
+        return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L;
+    }
+
+    private static int digits(final byte[] data, final int start, final int length) {
+        int result = 0;
+        for (int i = start; i < start + length; i++) {
+            final int digit = data[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] ascii(final String value) {
+        return value.getBytes(ASCII);
+    }
+
+    /**
+     * one "directory-signature" entry.
+     */
+    static final class Signature {
+        private final byte[] identityKeyDigest;
+        private final byte[] signingKeyDigest;
+        /** the digest of the signed data, calculated with the algorithm of the signature. */
+        private final byte[] signedDataDigest;
+        private byte[] signature;
+
+        private Signature(final byte[] identityKeyDigest, final byte[] signingKeyDigest, final byte[] signedDataDigest) {
+            this.identityKeyDigest = identityKeyDigest;
+            this.signingKeyDigest = signingKeyDigest;
+            this.signedDataDigest = signedDataDigest;
+        }
+
+        byte[] getIdentityKeyDigest() {
+            return identityKeyDigest;
+        }
+
+        byte[] getSigningKeyDigest() {
+            return signingKeyDigest;
+        }
+
+        byte[] getSignedDataDigest() {
+            return signedDataDigest;
+        }
+
+        byte[] getSignature() {
+            return signature;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.directory;
+
+import org.silvertunnel_ng.netlib.layer.tor.api.Fingerprint;
+
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * a set of routers which must not be chosen for a route.
+ *
+ * The routers of the consensus snapshot the set was created for are kept as
+ * bits of their dense id, so adding related routers and merging sets are
+ * word-wise ORs and the selection tests a bit. Fingerprints unknown to the
+ * snapshot (e.g. routers which are not running) are kept in a plain set.
+ *
+ * Create instances with {@link Directory#newExcludedRouters()}. Not thread
+ * safe.
+ *
+ * @author Tobias Boese
+ */
+public final class ExcludedRouters extends AbstractSet<Fingerprint> {
+    private final RouterSelectionIndex index;
+    private final BitSet ids;
+    /** fingerprints without id in the snapshot; null while empty. */
+    private Set<Fingerprint> others;
+
+    /**
+     * @param index the snapshot the ids refer to
+     */
+    ExcludedRouters(final RouterSelectionIndex index) {
+        this.index = index;
+        this.ids = new BitSet(index.size());
+    }
+
+    /**
+     * @return a copy of this set
+     */
+    public ExcludedRouters copy() {
+        final ExcludedRouters result = new ExcludedRouters(index);
+        result.ids.or(ids);
+        if (others != null) {
+            result.others = new HashSet<Fingerprint>(others);
+        }
+        return result;
+    }
+
+    /**
+     * @return an empty set for the same snapshot
+     */
+    public ExcludedRouters createEmpty() {
+        return new ExcludedRouters(index);
+    }
+
+    /**
+     * @return the snapshot the ids refer to
+     */
+    RouterSelectionIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @param snapshot a selection index
+     * @return true if the ids of this set refer to the given snapshot
+     */
+    boolean isFor(final RouterSelectionIndex snapshot) {
+        return index == snapshot;
+    }
+
+    /**
+     * @param id dense id of a router of the snapshot
+     * @return true if the router is excluded
+     */
+    boolean containsId(final int id) {
+        return ids.get(id);
+    }
+
+    /**
+     * exclude all routers whose bits are set.
+     *
+     * @param routerIds dense ids of the snapshot
+     */
+    void addIds(final BitSet routerIds) {
+        ids.or(routerIds);
+    }
+
+    /**
+     * @param id dense id of a router of the snapshot
+     */
+    void addId(final int id) {
+        ids.set(id);
+    }
+
+    @Override
+    public boolean add(final Fingerprint fingerprint) {
+        final int id = index.getId(fingerprint);
+        if (id >= 0) {
+            if (ids.get(id)) {
+                return false;
+            }
+            ids.set(id);
+            return true;
+        }
+        if (others == null) {
+            others = new HashSet<Fingerprint>();
+        }
+        return others.add(fingerprint);
+    }
+
+    @Override
+    public boolean addAll(final Collection<? extends Fingerprint> fingerprints) {
+        if (fingerprints instanceof ExcludedRouters && ((ExcludedRouters) fingerprints).index == index) {
+            final ExcludedRouters other = (ExcludedRouters) fingerprints;
+            final int before = size();
+            ids.or(other.ids);
+            if (other.others != null) {
+                if (others == null) {
+                    others = new HashSet<Fingerprint>();
+                }
+                others.addAll(other.others);
+            }
+            return size() != before;
+        }
+        return super.addAll(fingerprints);
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+        if (!(o instanceof Fingerprint)) {
+            return false;
+        }
+        final int id = index.getId((Fingerprint) o);
+        if (id >= 0) {
+            return ids.get(id);
+        }
+        return others != null && others.contains(o);
+    }
+
+    @Override
+    public boolean remove(final Object o) {
+        if (!(o instanceof Fingerprint)) {
+            return false;
+        }
+        final int id = index.getId((Fingerprint) o);
+        if (id >= 0) {
+            final boolean result = ids.get(id);
+            ids.clear(id);
+            return result;
+        }
+        return others != null && others.remove(o);
+    }
+
+    @Override
+    public void clear() {
+        ids.clear();
+        others = null;
+    }
+
+    @Override
+    public int size() {
+        return ids.cardinality() + (others == null ? 0 : others.size());
+    }
+
+    @Override
+    public Iterator<Fingerprint> iterator() {
+        return new Iterator<Fingerprint>() {
+            private int nextId = ids.nextSetBit(0);
+            private final Iterator<Fingerprint> othersIterator
+                    = others == null ? null : new HashSet<Fingerprint>(others).iterator();
+            private Fingerprint last;
+
+            @Override
+            public boolean hasNext() {
+                return nextId >= 0 || (othersIterator != null && othersIterator.hasNext());
+            }
+
+            @Override
+            public Fingerprint next() {
+                if (nextId >= 0) {
+                    last = index.getRouter(nextId).getFingerprint();
+                    nextId = ids.nextSetBit(nextId + 1);
+                } else if (othersIterator != null) {
+                    last = othersIterator.next();
+                } else {
+                    throw new NoSuchElementException();
+                }
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                ExcludedRouters.this.remove(last);
+                last = null;
+            }
+        };
+    }
+}
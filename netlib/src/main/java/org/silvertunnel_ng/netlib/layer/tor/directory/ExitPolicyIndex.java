@@ -0,0 +1,83 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.directory;
+
+import org.silvertunnel_ng.netlib.layer.tor.api.Router;
+
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * which routers of a consensus may accept connections to a port.
+ *
+ * For every requested port a bitset over the routers of the
+ * {@link RouterSelectionIndex} is computed once (bit i is set if the exit
+ * policy of router i accepts the port for at least one address). Only a few
+ * ports are used in practice; if more than {@link #MAX_CACHED_PORTS} were
+ * requested the cache is cleared.
+ *
+ * @author Tobias Boese
+ */
+final class ExitPolicyIndex {
+    /** maximum number of ports kept. */
+    static final int MAX_CACHED_PORTS = 256;
+
+    private final Router[] routers;
+    private final ConcurrentMap<Integer, BitSet> byPort = new ConcurrentHashMap<Integer, BitSet>();
+
+    /**
+     * @param routers the routers; bit i of the bitsets belongs to routers[i]
+     */
+    ExitPolicyIndex(final Router[] routers) {
+        this.routers = routers;
+    }
+
+    /**
+     * @param port the port
+     * @return the routers which may accept the port; must not be modified
+     */
+    BitSet getAccepting(final int port) {
+        BitSet accepting = byPort.get(port);
+        if (accepting == null) {
+            accepting = new BitSet(routers.length);
+            for (int i = 0; i < routers.length; i++) {
+                if (routers[i].exitPolicyMayAccept(port)) {
+                    accepting.set(i);
+                }
+            }
+            if (byPort.size() >= MAX_CACHED_PORTS) {
+                byPort.clear();
+            }
+            final BitSet existing = byPort.putIfAbsent(port, accepting);
+            if (existing != null) {
+                accepting = existing;
+            }
+        }
+        return accepting;
+    }
+
+    /**
+     * @param port the port
+     * @return number of routers which may accept the port
+     */
+    int countAccepting(final int port) {
+        return getAccepting(port).cardinality();
+    }
+}
@@ -21,17 +21,20 @@ import org.silvertunnel_ng.netlib.layer.tor.api.Fingerprint;
 import org.silvertunnel_ng.netlib.layer.tor.api.Router;
 import org.silvertunnel_ng.netlib.layer.tor.common.TCPStreamProperties;
 import org.silvertunnel_ng.netlib.layer.tor.common.TorConfig;
+import org.silvertunnel_ng.netlib.layer.tor.util.NodeType;
 import org.silvertunnel_ng.netlib.util.ConvenientStreamReader;
 import org.silvertunnel_ng.netlib.util.DynByteBuffer;
 import org.silvertunnel_ng.netlib.util.TempfileStringStorage;
+import org.silvertunnel_ng.netlib.util.ThreadLocalSecureRandom;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The GuardList is used for maintaining a list of Guard nodes.
@@ -39,9 +42,9 @@ import java.util.*;
 public class GuardList {
     private static final Logger LOG = LoggerFactory.getLogger(GuardList.class);
     private static final String GUARDLIST_LOCATION = "guards.cache";
-    private static final SecureRandom RND = new SecureRandom();
-    private List<GuardEntry> guardNodes = new ArrayList<GuardEntry>(5);
-    private HashSet<Fingerprint> candidates = new HashSet<Fingerprint>();
+    /** routes are planned concurrently: the lists are thread safe. */
+    private List<GuardEntry> guardNodes = new CopyOnWriteArrayList<GuardEntry>();
+    private Set<Fingerprint> candidates = Collections.newSetFromMap(new ConcurrentHashMap<Fingerprint, Boolean>());
     private Directory directory;
 
     /**
@@ -103,13 +106,13 @@ public class GuardList {
      * @param excluded fingerprints which should be excluded from the selection
      * @return a Router
      */
-    public Router getGuard(final HashSet<Fingerprint> excluded, final TCPStreamProperties props) {
+    public Router getGuard(final Set<Fingerprint> excluded, final TCPStreamProperties props) {
         List<Router> routers = getUsableRouter(excluded);
         while (routers.size() <= 2) {
             addGuardsToList(routers, excluded, props);
         }
         int max = Math.min(routers.size(), TorConfig.numEntryGuards);
-        Router candidate = routers.get(RND.nextInt(max));
+        Router candidate = routers.get(ThreadLocalSecureRandom.current().nextInt(max));
         if (!isGuardInList(candidate.getFingerprint())) {
             candidates.add(candidate.getFingerprint());
         }
@@ -135,7 +138,7 @@ public class GuardList {
      *
      * @return a list of Router
      */
-    private List<Router> getUsableRouter(final HashSet<Fingerprint> excluded) {
+    private List<Router> getUsableRouter(final Set<Fingerprint> excluded) {
         List<Router> result = new ArrayList<Router>();
         List<GuardEntry> tmpList = new ArrayList<GuardEntry>(guardNodes);
         for (GuardEntry guardEntry : tmpList) {
@@ -156,7 +159,7 @@ public class GuardList {
      * @param guardEntry
      * @return
      */
-    private boolean isRouterUsable(final GuardEntry guardEntry, final HashSet<Fingerprint> excluded) {
+    private boolean isRouterUsable(final GuardEntry guardEntry, final Set<Fingerprint> excluded) {
         if (excluded.contains(guardEntry.fingerprint)) {
             return false; // Guard is either already in use by this Circuit or is in the same family or country (depending on config)
         }
@@ -197,7 +200,7 @@ public class GuardList {
         return true;
     }
 
-    private void addGuardsToList(final List<Router> routerList, final HashSet<Fingerprint> excluded, final TCPStreamProperties prop) {
+    private void addGuardsToList(final List<Router> routerList, final Set<Fingerprint> excluded, final TCPStreamProperties prop) {
         RouterFlags flags = new RouterFlags();
         if (prop.isFastRoute()) flags.setFast(true);
         if (prop.isStableRoute()) flags.setStable(true);
@@ -205,8 +208,7 @@ public class GuardList {
         flags.setRunning(true);
         flags.setValid(true);
 
-        Map<Fingerprint, Router> guards = directory.getValidRoutersByFlags(flags);
-        Router guard = directory.selectRandomNode(guards, excluded, prop.getRankingInfluenceIndex(), prop.isFastRoute(), prop.isStableRoute());
+        Router guard = directory.selectRandomNode(NodeType.ENTRY, flags, excluded, prop.getRankingInfluenceIndex(), null);
         routerList.add(guard);
         LOG.debug("adding guard {} to list", guard.getFingerprint().getHex());
     }
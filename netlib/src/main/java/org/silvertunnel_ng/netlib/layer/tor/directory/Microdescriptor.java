@@ -0,0 +1,208 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.directory;
+
+import org.silvertunnel_ng.netlib.layer.tor.api.Fingerprint;
+import org.silvertunnel_ng.netlib.layer.tor.api.RouterExitPolicy;
+import org.silvertunnel_ng.netlib.layer.tor.util.Encryption;
+import org.silvertunnel_ng.netlib.layer.tor.util.TorException;
+import org.silvertunnel_ng.netlib.layer.tor.util.Util;
+import org.silvertunnel_ng.netlib.util.DatatypeConverter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.Charset;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A microdescriptor: the part of a router descriptor a client needs to build
+ * circuits, i.e. the onion key, the family and a summary of the exit policy.
+ *
+ * Microdescriptors are not signed; they are referenced by the SHA-256 digest
+ * of their text in the microdesc consensus ("m" line). A microdescriptor is
+ * only accepted under the digest calculated from its text, so a downloaded or
+ * cached one can be matched against the consensus without further checks.
+ *
+ * @author Tobias Boese
+ */
+final class Microdescriptor {
+    /** */
+    private static final Logger LOG = LoggerFactory.getLogger(Microdescriptor.class);
+
+    private static final Charset UTF8 = Charset.forName(Util.UTF8);
+    private static final String ONION_KEY = "onion-key";
+    private static final String END_KEY = "-----END RSA PUBLIC KEY-----";
+    private static final String FAMILY = "family ";
+    private static final String POLICY = "p ";
+
+    /** the text, starting with "onion-key" and including the last newline. */
+    private final String descriptor;
+    /** SHA-256 of the text in unpadded base64, as used in the microdesc consensus. */
+    private final String digest;
+    private final RSAPublicKey onionKey;
+    private final Set<Fingerprint> family = new HashSet<Fingerprint>();
+    private final Set<String> familyNames = new HashSet<String>();
+    /** the exit policy built from the summary; empty if there is none (reject all). */
+    private RouterExitPolicy[] exitPolicy = new RouterExitPolicy[0];
+
+    /**
+     * @param descriptor one microdescriptor, starting with "onion-key"
+     * @throws TorException if the microdescriptor is invalid
+     */
+    Microdescriptor(final String descriptor) throws TorException {
+        if (!descriptor.startsWith(ONION_KEY)) {
+            throw new TorException("microdescriptor does not start with " + ONION_KEY);
+        }
+        this.descriptor = descriptor;
+        this.digest = toBase64(Encryption.getDigest("SHA-256", descriptor.getBytes(UTF8)));
+
+        final int keyEnd = descriptor.indexOf(END_KEY);
+        if (keyEnd < 0) {
+            throw new TorException("microdescriptor without onion key");
+        }
+        onionKey = Encryption.extractPublicRSAKey(descriptor.substring(descriptor.indexOf('\n') + 1, keyEnd + END_KEY.length()));
+        if (onionKey == null) {
+            throw new TorException("microdescriptor with invalid onion key");
+        }
+        for (final String line : descriptor.substring(keyEnd + END_KEY.length()).split("\n")) {
+            if (line.startsWith(FAMILY)) {
+                parseFamily(line);
+            } else if (line.startsWith(POLICY)) {
+                exitPolicy = parsePolicySummary(line);
+            }
+        }
+    }
+
+    private void parseFamily(final String line) throws TorException {
+        for (final String member : line.substring(FAMILY.length()).split(" ")) {
+            if (member.startsWith("$")) {
+                try {
+                    family.add(new FingerprintImpl(DatatypeConverter.parseHexBinary(member.substring(1, 41))));
+                } catch (final RuntimeException e) {
+                    throw new TorException("microdescriptor with invalid family member " + member, e);
+                }
+            } else if (member.length() > 0) {
+                familyNames.add(member);
+            }
+        }
+    }
+
+    /**
+     * "p" ("accept" / "reject") PortList, e.g. "p accept 80,443,6660-6669".
+     * The listed ports are handled as stated for all addresses, all other
+     * ports the opposite way.
+     */
+    private static RouterExitPolicy[] parsePolicySummary(final String line) throws TorException {
+        final String[] elements = line.split(" ");
+        if (elements.length != 3 || !("accept".equals(elements[1]) || "reject".equals(elements[1]))) {
+            throw new TorException("invalid exit policy summary " + line);
+        }
+        final boolean accept = "accept".equals(elements[1]);
+        final List<RouterExitPolicy> result = new ArrayList<RouterExitPolicy>();
+        try {
+            for (final String range : elements[2].split(",")) {
+                final int dash = range.indexOf('-');
+                final int loPort = Integer.parseInt(dash < 0 ? range : range.substring(0, dash));
+                final int hiPort = dash < 0 ? loPort : Integer.parseInt(range.substring(dash + 1));
+                result.add(new RouterExitPolicyImpl(accept, 0, 0, loPort, hiPort));
+            }
+        } catch (final NumberFormatException e) {
+            throw new TorException("invalid exit policy summary " + line, e);
+        }
+        result.add(new RouterExitPolicyImpl(!accept, 0, 0, 0, 65535));
+        return result.toArray(new RouterExitPolicy[result.size()]);
+    }
+
+    /**
+     * Parse a document with multiple microdescriptors, e.g. the answer to
+     * "/tor/micro/d/". Invalid microdescriptors are skipped.
+     *
+     * @param document the microdescriptors
+     * @return the microdescriptors by their digest in unpadded base64
+     */
+    static Map<String, Microdescriptor> parseAll(final String document) {
+        final Map<String, Microdescriptor> result = new HashMap<String, Microdescriptor>();
+        int start = document.startsWith(ONION_KEY) ? 0 : document.indexOf('\n' + ONION_KEY);
+        while (start >= 0) {
+            if (document.charAt(start) == '\n') {
+                start++;
+            }
+            final int end = document.indexOf('\n' + ONION_KEY, start);
+            try {
+                final Microdescriptor microdescriptor
+                        = new Microdescriptor(document.substring(start, end < 0 ? document.length() : end + 1));
+                result.put(microdescriptor.getDigest(), microdescriptor);
+            } catch (final TorException e) {
+                LOG.debug("skipped microdescriptor: {}", e.getMessage());
+            }
+            start = end;
+        }
+        return result;
+    }
+
+    /**
+     * @param digest the digest
+     * @return the digest in unpadded base64
+     */
+    static String toBase64(final byte[] digest) {
+        final String base64 = DatatypeConverter.printBase64Binary(digest);
+        final int end = base64.indexOf('=');
+        return end < 0 ? base64 : base64.substring(0, end);
+    }
+
+    /**
+     * @return the text of the microdescriptor
+     */
+    String getDescriptor() {
+        return descriptor;
+    }
+
+    /**
+     * @return the SHA-256 of the text in unpadded base64
+     */
+    String getDigest() {
+        return digest;
+    }
+
+    RSAPublicKey getOnionKey() {
+        return onionKey;
+    }
+
+    Set<Fingerprint> getFamily() {
+        return Collections.unmodifiableSet(family);
+    }
+
+    Set<String> getFamilyNames() {
+        return Collections.unmodifiableSet(familyNames);
+    }
+
+    /**
+     * @return the exit policy built from the summary; empty if the router is no exit
+     */
+    RouterExitPolicy[] getExitPolicy() {
+        return exitPolicy;
+    }
+}
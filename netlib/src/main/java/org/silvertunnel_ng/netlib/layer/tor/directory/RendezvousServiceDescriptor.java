@@ -38,6 +38,7 @@ package org.silvertunnel_ng.netlib.layer.tor.directory;
 
 import org.silvertunnel_ng.netlib.layer.tor.util.Encoding;
 import org.silvertunnel_ng.netlib.layer.tor.util.Encryption;
+import org.silvertunnel_ng.netlib.layer.tor.util.SignatureVerifier;
 import org.silvertunnel_ng.netlib.layer.tor.util.TorException;
 import org.silvertunnel_ng.netlib.layer.tor.util.Util;
 import org.silvertunnel_ng.netlib.util.DatatypeConverter;
@@ -321,7 +322,7 @@ public final class RendezvousServiceDescriptor implements Serializable {
             } catch (final UnsupportedEncodingException e) {
                 LOG.warn("unexpected", e);
             }
-            if (checkSignature && !Encryption.verifySignature(signature, permanentPublicKey, signedData)) {
+            if (checkSignature && !SignatureVerifier.verify(signature, permanentPublicKey, Encryption.getDigest(signedData))) {
                 throw new TorException("dirKeyCertification check failed");
             }
 
@@ -64,6 +64,8 @@ import org.silvertunnel_ng.netlib.layer.tor.util.Encoding;
 import org.silvertunnel_ng.netlib.layer.tor.util.TorException;
 import org.silvertunnel_ng.netlib.tool.SimpleHttpClient;
 import org.silvertunnel_ng.netlib.util.HttpUtil;
+import org.silvertunnel_ng.netlib.util.NetlibThreads;
+import org.silvertunnel_ng.netlib.util.NetlibThreads.Subsystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -209,7 +211,7 @@ public class RendezvousServiceDescriptorService {
                 final Collection<Router> routers = directory.getThreeHiddenDirectoryServersWithFingerprintGreaterThan(descriptorIdAsFingerprint);
                 for (final Router ro : routers) {
                     final Router r = ro;
-                    new Thread() {
+                    NetlibThreads.start(Subsystem.HIDDEN_SERVICE, "postServiceDescriptor to " + r.getNickname(), new Runnable() {
                         @Override
                         public void run() {
                             TcpipNetAddress dirAddress = r.getDirAddress();
@@ -230,7 +232,7 @@ public class RendezvousServiceDescriptorService {
                                 }
                             }
                         }
-                    }.start();
+                    }, false);
                 }
             } catch (final TorException e1) {
                 LOG.warn("unexpected exception", e1);
@@ -0,0 +1,273 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.directory;
+
+import org.silvertunnel_ng.netlib.layer.tor.api.Fingerprint;
+import org.silvertunnel_ng.netlib.layer.tor.api.Router;
+import org.silvertunnel_ng.netlib.layer.tor.util.Util;
+import org.silvertunnel_ng.netlib.util.NetlibThreads;
+import org.silvertunnel_ng.netlib.util.NetlibThreads.Subsystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * reads router descriptors from a stream, e.g. the response of
+ * /tor/server/all, and parses them while the rest is still downloaded.
+ *
+ * The stream is scanned line by line; a descriptor starts with a line
+ * "router ..." and ends with the line "-----END SIGNATURE-----". Every
+ * complete descriptor is parsed by the thread pool shared by all parsers.
+ * Only the descriptors waiting for a parsing thread are kept in memory, at
+ * most {@link #MAX_PENDING} per parse; if the parsing threads fall behind the
+ * reading thread waits.
+ *
+ * @author Tobias Boese
+ */
+final class RouterDescriptorStreamParser {
+    /** */
+    private static final Logger LOG = LoggerFactory.getLogger(RouterDescriptorStreamParser.class);
+
+    private static final byte[] START = ascii("router ");
+    private static final byte[] END = ascii("-----END SIGNATURE-----");
+
+    /** number of parsing threads. */
+    private static final int THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    /** descriptors read but not parsed yet, per parse. */
+    static final int MAX_PENDING = THREADS * 16;
+    /** size of the chunks read from the stream. */
+    private static final int BUFFER_SIZE = 16384;
+
+    /** the parsing threads shared by all parsers; they end when idle. */
+    private static final ThreadPoolExecutor POOL;
+
+    static {
+        POOL = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                NetlibThreads.threadFactory(Subsystem.OTHER, "RouterDescriptorParser", true));
+        POOL.allowCoreThreadTimeOut(true);
+    }
+
+    /** the routers parsed so far, with the position of their descriptor. */
+    private final ConcurrentMap<Fingerprint, Parsed> results = new ConcurrentHashMap<Fingerprint, Parsed>();
+    private final Semaphore pending = new Semaphore(MAX_PENDING);
+    /** the current line. */
+    private byte[] line = new byte[256];
+    private int lineLength;
+    /** the descriptor read so far, null outside of a descriptor. */
+    private byte[] descriptor;
+    private int descriptorLength;
+    /** number of descriptors found. */
+    private int count;
+
+    private RouterDescriptorStreamParser() {
+    }
+
+    /**
+     * read and parse all router descriptors of the stream. The stream is not
+     * closed.
+     *
+     * @param in the descriptors
+     * @return the routers with a valid descriptor; if there are several
+     * descriptors with the same fingerprint, the last one is taken
+     * @throws IOException if reading fails; the descriptors read until then are lost
+     */
+    static Map<Fingerprint, Router> parse(final InputStream in) throws IOException {
+        final long timeStart = System.currentTimeMillis();
+        final RouterDescriptorStreamParser parser = new RouterDescriptorStreamParser();
+        try {
+            parser.read(in);
+        } finally {
+            // wait for the descriptors still being parsed
+            parser.pending.acquireUninterruptibly(MAX_PENDING);
+            parser.pending.release(MAX_PENDING);
+        }
+        final Map<Fingerprint, Router> result = new HashMap<Fingerprint, Router>(parser.results.size() * 2);
+        for (final Map.Entry<Fingerprint, Parsed> entry : parser.results.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().router);
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("parsed " + result.size() + " of " + parser.count + " router descriptors in "
+                    + (System.currentTimeMillis() - timeStart) + " ms");
+        }
+        return result;
+    }
+
+    private void read(final InputStream in) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            int start = 0;
+            for (int i = 0; i < read; i++) {
+                if (buffer[i] == '\n') {
+                    appendToLine(buffer, start, i - start);
+                    endOfLine();
+                    start = i + 1;
+                }
+            }
+            appendToLine(buffer, start, read - start);
+        }
+        if (lineLength > 0) {
+            endOfLine();
+        }
+    }
+
+    private void appendToLine(final byte[] buffer, final int offset, final int length) {
+        if (lineLength + length > line.length) {
+            final byte[] newLine = new byte[Math.max(line.length * 2, lineLength + length)];
+            System.arraycopy(line, 0, newLine, 0, lineLength);
+            line = newLine;
+        }
+        System.arraycopy(buffer, offset, line, lineLength, length);
+        lineLength += length;
+    }
+
+    private void endOfLine() throws IOException {
+        if (descriptor == null && startsWith(line, lineLength, START)) {
+            descriptor = new byte[4096];
+            descriptorLength = 0;
+        }
+        if (descriptor != null) {
+            final int end = indexOf(line, lineLength, END);
+            if (end < 0) {
+                appendToDescriptor(line, lineLength, true);
+            } else {
+                appendToDescriptor(line, end + END.length, false);
+                submit(new String(descriptor, 0, descriptorLength, Util.UTF8));
+                descriptor = null;
+            }
+        }
+        lineLength = 0;
+    }
+
+    private void appendToDescriptor(final byte[] data, final int length, final boolean newLine) {
+        final int needed = descriptorLength + length + 1;
+        if (needed > descriptor.length) {
+            final byte[] newDescriptor = new byte[Math.max(descriptor.length * 2, needed)];
+            System.arraycopy(descriptor, 0, newDescriptor, 0, descriptorLength);
+            descriptor = newDescriptor;
+        }
+        System.arraycopy(data, 0, descriptor, descriptorLength, length);
+        descriptorLength += length;
+        if (newLine) {
+            descriptor[descriptorLength++] = '\n';
+        }
+    }
+
+    private void submit(final String routerDescriptor) throws IOException {
+        try {
+            pending.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while parsing router descriptors");
+        }
+        final int position = count++;
+        try {
+            POOL.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        final Router router = new RouterParserCallable(routerDescriptor).call();
+                        if (router != null) {
+                            put(router, position);
+                        }
+                    } catch (final Exception e) {
+                        LOG.info("could not parse RouterDescriptor", e);
+                    } finally {
+                        pending.release();
+                    }
+                }
+            });
+        } catch (final RuntimeException e) {
+            pending.release();
+            throw e;
+        }
+    }
+
+    /**
+     * keep the router unless a later descriptor of it was parsed already.
+     */
+    private void put(final Router router, final int position) {
+        final Parsed parsed = new Parsed(router, position);
+        Parsed existing = results.putIfAbsent(router.getFingerprint(), parsed);
+        while (existing != null && existing.position < position) {
+            if (results.replace(router.getFingerprint(), existing, parsed)) {
+                return;
+            }
+            existing = results.putIfAbsent(router.getFingerprint(), parsed);
+        }
+    }
+
+    private static boolean startsWith(final byte[] data, final int length, final byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(final byte[] data, final int length, final byte[] pattern) {
+        for (int i = 0; i <= length - pattern.length; i++) {
+            int j = 0;
+            while (j < pattern.length && data[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] ascii(final String value) {
+        try {
+            return value.getBytes(Util.UTF8);
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * a parsed router and the position of its descriptor in the stream.
+     */
+    private static final class Parsed {
+        private final Router router;
+        private final int position;
+
+        private Parsed(final Router router, final int position) {
+            this.router = router;
+            this.position = position;
+        }
+    }
+}
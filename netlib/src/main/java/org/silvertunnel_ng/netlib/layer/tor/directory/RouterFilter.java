@@ -0,0 +1,36 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.directory;
+
+import org.silvertunnel_ng.netlib.layer.tor.api.Router;
+
+/**
+ * decides whether a router may be chosen, e.g. because its exit policy
+ * accepts the destination.
+ *
+ * @author Tobias Boese
+ * @see Directory#selectRandomNode(org.silvertunnel_ng.netlib.layer.tor.util.NodeType, RouterFlags, java.util.Set, float, RouterFilter)
+ */
+public interface RouterFilter {
+    /**
+     * @param router the candidate
+     * @return true if the router may be chosen
+     */
+    boolean accept(Router router);
+}
@@ -43,6 +43,7 @@ import org.silvertunnel_ng.netlib.layer.tor.common.LookupServiceUtil;
 import org.silvertunnel_ng.netlib.layer.tor.common.TorConfig;
 import org.silvertunnel_ng.netlib.layer.tor.util.Encoding;
 import org.silvertunnel_ng.netlib.layer.tor.util.Encryption;
+import org.silvertunnel_ng.netlib.layer.tor.util.SignatureVerifier;
 import org.silvertunnel_ng.netlib.layer.tor.util.TorException;
 import org.silvertunnel_ng.netlib.layer.tor.util.Util;
 import org.silvertunnel_ng.netlib.util.ConvenientStreamReader;
@@ -108,6 +109,10 @@ public class RouterImpl implements Router, Cloneable {
     private int bandwidthAvg;
     private int bandwidthBurst;
     private int bandwidthObserved;
+    /**
+     * bandwidth of the consensus in kB/s, -1 if unknown.
+     */
+    private int consensusBandwidth = -1;
 
     /**
      * Platform of the relay. (tor version + os)
@@ -125,6 +130,12 @@ public class RouterImpl implements Router, Cloneable {
     private RSAPublicKey signingKey;
 
     private RouterExitPolicy[] exitpolicy;
+    /**
+     * exitpolicy compiled into port intervals, used for the checks.
+     */
+    private CompiledExitPolicy compiledExitPolicy = CompiledExitPolicy.REJECT_ALL;
+    /** the microdescriptor this router was built from; null if it was built from a router descriptor. */
+    private Microdescriptor microdescriptor;
 
     private byte[] routerSignature;
     private String contact;
@@ -233,6 +244,50 @@ public class RouterImpl implements Router, Cloneable {
         this.v3ident = (v3ident == null) ? null : v3ident.cloneReliable();
     }
 
+    /**
+     * Build the router of a microdesc consensus entry. The address, ports,
+     * flags and bandwidth are taken from the consensus, the keys, the family
+     * and the exit policy summary from the microdescriptor. Such a router has
+     * no signing key and no platform.
+     *
+     * @param statusDescription the entry of the microdesc consensus
+     * @param microdescriptor   the microdescriptor with the digest of the entry
+     * @throws TorException if the address is invalid
+     */
+    RouterImpl(final RouterStatusDescription statusDescription,
+               final Microdescriptor microdescriptor) throws TorException {
+        init();
+        nickname = statusDescription.getNickname();
+        hostname = statusDescription.getIp();
+        try {
+            address = InetAddress.getByName(hostname);
+        } catch (final UnknownHostException e) {
+            throw new TorException("Server " + nickname + ": invalid address " + hostname, e);
+        }
+        orPort = statusDescription.getOrPort();
+        dirPort = statusDescription.getDirPort();
+        fingerprint = statusDescription.getFingerprint();
+        published = statusDescription.getLastPublication();
+        validUntil = published + TorConfig.ROUTER_DESCRIPTION_VALID_PERIOD_MS;
+
+        this.microdescriptor = microdescriptor;
+        onionKey = microdescriptor.getOnionKey();
+        family.addAll(microdescriptor.getFamily());
+        familyNames.addAll(microdescriptor.getFamilyNames());
+        exitpolicy = microdescriptor.getExitPolicy();
+        compiledExitPolicy = new CompiledExitPolicy(exitpolicy);
+
+        updateServerStatus(statusDescription);
+        if (consensusBandwidth > 0) {
+            // the consensus counts kilobytes, the descriptor bytes
+            bandwidthAvg = consensusBandwidth * 1000;
+            bandwidthObserved = bandwidthAvg;
+        }
+        updateServerRanking();
+
+        this.countryCode = LookupServiceUtil.getCountryCodeOfIpAddress(this.address);
+    }
+
     /**
      * Constructor-indepentent initialization.
      */
@@ -248,6 +303,7 @@ public class RouterImpl implements Router, Cloneable {
      */
     public void updateServerStatus(final RouterStatusDescription statusDescription) {
         routerFlags = statusDescription.getRouterFlags();
+        consensusBandwidth = statusDescription.getBandwidth();
     }
 
     /**
@@ -310,6 +366,7 @@ public class RouterImpl implements Router, Cloneable {
                 exitpolicy[i] = RouterExitPolicyImpl.parseFrom(convenientStreamReader);
             }
         }
+        compiledExitPolicy = new CompiledExitPolicy(exitpolicy);
         routerSignature = convenientStreamReader.readByteArray();
         contact = convenientStreamReader.readString();
         count = convenientStreamReader.readInt();
@@ -633,13 +690,14 @@ public class RouterImpl implements Router, Cloneable {
 
         // check the validity of the signature
         final byte[] sha1Digest = mdMessage.digest();
-        if (!Encryption.verifySignatureWithHash(routerSignature, signingKey, sha1Digest)) {
+        if (!SignatureVerifier.verify(routerSignature, signingKey, sha1Digest)) {
             LOG.info("Server -> router-signature check failed for " + nickname);
             throw new TorException("Server " + nickname + ": description signature verification failed");
         }
 
         // exit policy
         exitpolicy = parseExitPolicy(exitPolicyString.toString());
+        compiledExitPolicy = new CompiledExitPolicy(exitpolicy);
         // usually in directory the hostname is already set to the IP
         // so, following resolve just converts it to the InetAddress
         try {
@@ -715,15 +773,8 @@ public class RouterImpl implements Router, Cloneable {
     public boolean exitPolicyAccepts(final InetAddress addr, final int port) {
         long ip;
         if (addr != null) { // set IP as given
-            final byte[] temp1 = addr.getAddress();
-            final long[] temp = new long[4];
-            for (int i = 0; i < 4; ++i) {
-                temp[i] = temp1[i];
-                if (temp[i] < 0) {
-                    temp[i] = 256 + temp[i];
-                }
-            }
-            ip = ((temp[0] << 24) | (temp[1] << 16) | (temp[2] << 8) | temp[3]);
+            final byte[] bytes = addr.getAddress();
+            ip = ((bytes[0] & 0xffL) << 24) | ((bytes[1] & 0xffL) << 16) | ((bytes[2] & 0xffL) << 8) | (bytes[3] & 0xffL);
         } else {
             // HACK: if no IP and port is given, always return true
             if (port == 0) {
@@ -733,14 +784,12 @@ public class RouterImpl implements Router, Cloneable {
             // this should possibly be replaced by some other way of checking it
             ip = 0xffffffffL;
         }
+        return compiledExitPolicy.accepts(ip, port);
+    }
 
-        for (int i = 0; i < exitpolicy.length; ++i) {
-            if ((exitpolicy[i].getLoPort() <= port) && (exitpolicy[i].getHiPort() >= port)
-                    && (exitpolicy[i].getIp() == (ip & exitpolicy[i].getNetmask()))) {
-                return exitpolicy[i].isAccept();
-            }
-        }
-        return false;
+    @Override
+    public boolean exitPolicyMayAccept(final int port) {
+        return compiledExitPolicy.mayAccept(port);
     }
 
     /**
@@ -892,6 +941,11 @@ public class RouterImpl implements Router, Cloneable {
         return bandwidthObserved;
     }
 
+    @Override
+    public int getConsensusBandwidth() {
+        return consensusBandwidth;
+    }
+
     @Override
     public String getPlatform() {
         return platform;
@@ -916,6 +970,13 @@ public class RouterImpl implements Router, Cloneable {
         return uptime;
     }
 
+    /**
+     * @return the microdescriptor this router was built from; null if it was built from a router descriptor
+     */
+    Microdescriptor getMicrodescriptor() {
+        return microdescriptor;
+    }
+
     @Override
     public RSAPublicKey getOnionKey() {
         return onionKey;
@@ -0,0 +1,528 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.directory;
+
+import org.silvertunnel_ng.netlib.layer.tor.api.Fingerprint;
+import org.silvertunnel_ng.netlib.layer.tor.api.Router;
+import org.silvertunnel_ng.netlib.layer.tor.common.TorConfig;
+import org.silvertunnel_ng.netlib.layer.tor.util.NodeType;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * precomputed cumulative weights to select random routers for a position of
+ * a circuit.
+ *
+ * The index is built from the running routers of one consensus. The weight of
+ * a router is its bandwidth (the measured bandwidth of the consensus, or the
+ * bandwidth of the descriptor if the consensus has none), multiplied with the
+ * {@link BandwidthWeights} of the position and with the local ranking
+ * {@link Router#getRefinedRankingIndex(float)}. For every position and every
+ * combination of the flags Fast, Stable, Guard, Exit and Valid a table of the
+ * matching routers and their cumulative weights is created on first use, so
+ * choosing a router is a binary search and does not allocate.
+ *
+ * The refined ranking is linear in the ranking influence index p, so one
+ * table serves every p: the cumulative weights for p = 1 and p = 0 are stored
+ * and mixed at lookup time.
+ *
+ * For exits to a port the table only contains the routers which the
+ * {@link ExitPolicyIndex} lists for the port; the exact check of the exit
+ * policy for the destination address is done per pick.
+ *
+ * Excluded routers and routers rejected by a filter are skipped by rejection
+ * sampling, which keeps the distribution of the other routers unchanged. If
+ * too many picks are rejected the table is scanned linearly instead.
+ *
+ * Every router has a dense id, its position in the index. Routers in the same
+ * /24 network, in the same country and of the same family are kept as bit sets
+ * of these ids, so {@link ExcludedRouters} of the index exclude related
+ * routers with word-wise ORs and the selection tests one bit per pick.
+ *
+ * The weights are taken when a table is built; the index has to be replaced
+ * when the rankings change.
+ *
+ * @author Tobias Boese
+ */
+final class RouterSelectionIndex {
+    /** picks rejected before falling back to a linear scan. */
+    static final int MAX_REJECTIONS = 32;
+
+    private static final int FAST = 1;
+    private static final int STABLE = 2;
+    private static final int GUARD = 4;
+    private static final int EXIT = 8;
+    private static final int VALID = 16;
+    private static final int FLAG_COMBINATIONS = 32;
+    /** maximum number of tables for exit ports kept. */
+    private static final int MAX_PORT_TABLES = 256;
+
+    /** the map of valid routers the index was built from. */
+    private final Object source;
+    /** the weights of the consensus. */
+    private final BandwidthWeights weights;
+    /** the running routers; the position is the dense id. */
+    private final Router[] routers;
+    /** dense id by fingerprint. */
+    private final Map<Fingerprint, Integer> ids;
+    /** ids of the routers by /24 network, see {@link #getNetworkKey(Router)}. */
+    private final Map<Integer, BitSet> networkGroups = new HashMap<Integer, BitSet>();
+    /** ids of the routers by country code. */
+    private final Map<String, BitSet> countryGroups = new HashMap<String, BitSet>();
+    /** ids of the family members by id, created on first use. */
+    private final AtomicReferenceArray<BitSet> families;
+    /** tables by position and flag combination, created on first use. */
+    private final AtomicReferenceArray<Table> tables
+            = new AtomicReferenceArray<Table>(NodeType.values().length * FLAG_COMBINATIONS);
+    /** tables restricted to the exits of a port, by port, position and flag combination. */
+    private final ConcurrentMap<Long, Table> portTables = new ConcurrentHashMap<Long, Table>();
+    /** which routers accept which port. */
+    private final ExitPolicyIndex exitPolicies;
+
+    /**
+     * @param source       the object the routers were taken from, see {@link #isBuiltFrom(Object, BandwidthWeights)}
+     * @param weights      the bandwidth weights of the consensus
+     * @param validRouters the routers to choose from; routers which are not
+     *                     running are left out
+     */
+    RouterSelectionIndex(final Object source, final BandwidthWeights weights, final Collection<Router> validRouters) {
+        this.source = source;
+        this.weights = weights;
+        final List<Router> running = new ArrayList<Router>(validRouters.size());
+        for (final Router router : validRouters) {
+            if (router.isDirv2Running()) {
+                running.add(router);
+            }
+        }
+        routers = running.toArray(new Router[running.size()]);
+        ids = new HashMap<Fingerprint, Integer>(routers.length * 2);
+        for (int id = 0; id < routers.length; id++) {
+            ids.put(routers[id].getFingerprint(), id);
+            final int network = getNetworkKey(routers[id]);
+            if (network >= 0) {
+                group(networkGroups, network).set(id);
+            }
+            if (routers[id].getCountryCode() != null) {
+                group(countryGroups, routers[id].getCountryCode()).set(id);
+            }
+        }
+        families = new AtomicReferenceArray<BitSet>(routers.length);
+        exitPolicies = new ExitPolicyIndex(routers);
+    }
+
+    private static <K> BitSet group(final Map<K, BitSet> groups, final K key) {
+        BitSet result = groups.get(key);
+        if (result == null) {
+            result = new BitSet();
+            groups.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * @param router a router
+     * @return the first three bytes of the IPv4 address, or -1
+     */
+    private static int getNetworkKey(final Router router) {
+        if (router.getAddress() == null) {
+            return -1;
+        }
+        final byte[] address = router.getAddress().getAddress();
+        if (address.length != 4) {
+            return -1;
+        }
+        return ((address[0] & 0xff) << 16) | ((address[1] & 0xff) << 8) | (address[2] & 0xff);
+    }
+
+    /**
+     * @param routers        the current source of the routers
+     * @param currentWeights the current bandwidth weights
+     * @return true if this index was built from the given objects
+     */
+    boolean isBuiltFrom(final Object routers, final BandwidthWeights currentWeights) {
+        return source == routers && weights == currentWeights;
+    }
+
+    /**
+     * @return number of routers in the index
+     */
+    int size() {
+        return routers.length;
+    }
+
+    /**
+     * @param fingerprint a router
+     * @return the dense id of the router or -1 if it is not in the index
+     */
+    int getId(final Fingerprint fingerprint) {
+        final Integer id = ids.get(fingerprint);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @param id a dense id
+     * @return the router with the id
+     */
+    Router getRouter(final int id) {
+        return routers[id];
+    }
+
+    /**
+     * exclude a router and the routers related to it.
+     *
+     * @param router        the router
+     * @param target        the set to add to, created for this index
+     * @param uniqueNetwork also exclude the routers in the same /24 network
+     * @param uniqueCountry also exclude the routers in the same country
+     */
+    void excludeRelated(final Router router,
+                        final ExcludedRouters target,
+                        final boolean uniqueNetwork,
+                        final boolean uniqueCountry) {
+        target.add(router.getFingerprint());
+        if (uniqueNetwork) {
+            final BitSet network = networkGroups.get(getNetworkKey(router));
+            if (network != null) {
+                target.addIds(network);
+            }
+        }
+        if (uniqueCountry && router.getCountryCode() != null) {
+            final BitSet country = countryGroups.get(router.getCountryCode());
+            if (country != null) {
+                target.addIds(country);
+            }
+        }
+        final int id = getId(router.getFingerprint());
+        if (id >= 0 && routers[id] == router) {
+            target.addIds(getFamily(id));
+        } else if (router.getFamily() != null) {
+            // not the router of this snapshot: no cached family
+            target.addAll(router.getFamily());
+        }
+    }
+
+    /**
+     * @param id a dense id
+     * @return the ids of the family members of the router, the family members
+     * which are not in the index are left out
+     */
+    private BitSet getFamily(final int id) {
+        BitSet family = families.get(id);
+        if (family == null) {
+            family = new BitSet();
+            if (routers[id].getFamily() != null) {
+                for (final Fingerprint member : routers[id].getFamily()) {
+                    final int memberId = getId(member);
+                    if (memberId >= 0) {
+                        family.set(memberId);
+                    }
+                }
+            }
+            // computing it twice in a race is harmless
+            families.compareAndSet(id, null, family);
+        }
+        return family;
+    }
+
+    /**
+     * @return which routers accept which port
+     */
+    ExitPolicyIndex getExitPolicyIndex() {
+        return exitPolicies;
+    }
+
+    /**
+     * select a random router by its weight.
+     *
+     * @param position              the position of the router in the circuit
+     * @param flags                 the router has to have all these flags, may be null
+     * @param excluded              routers which must not be chosen, may be null
+     * @param rankingInfluenceIndex see {@link Router#getRefinedRankingIndex(float)}
+     * @param filter                additional condition, may be null
+     * @param rnd                   source of randomness
+     * @return the router or null if no router is suitable
+     */
+    Router select(final NodeType position,
+                  final RouterFlags flags,
+                  final Set<Fingerprint> excluded,
+                  final float rankingInfluenceIndex,
+                  final RouterFilter filter,
+                  final Random rnd) {
+        return select(position, flags, excluded, rankingInfluenceIndex, null, -1, filter, rnd);
+    }
+
+    /**
+     * select a random router by its weight whose exit policy accepts the
+     * destination.
+     *
+     * @param position              the position of the router in the circuit
+     * @param flags                 the router has to have all these flags, may be null
+     * @param excluded              routers which must not be chosen, may be null
+     * @param rankingInfluenceIndex see {@link Router#getRefinedRankingIndex(float)}
+     * @param exitAddress           the destination address, may be null
+     * @param exitPort              the destination port; -1 if the exit policy is not checked
+     * @param filter                additional condition, may be null
+     * @param rnd                   source of randomness
+     * @return the router or null if no router is suitable
+     * @see Router#exitPolicyAccepts(InetAddress, int)
+     */
+    Router select(final NodeType position,
+                  final RouterFlags flags,
+                  final Set<Fingerprint> excluded,
+                  final float rankingInfluenceIndex,
+                  final InetAddress exitAddress,
+                  final int exitPort,
+                  final RouterFilter filter,
+                  final Random rnd) {
+        // port 0 is no real port, only the exact check is done
+        final Table table = exitPort > 0 ? getPortTable(position, flags, exitPort) : getTable(position, flags);
+        if (table.routers.length == 0) {
+            return null;
+        }
+        final ExcludedRouters excludedIds = excluded instanceof ExcludedRouters
+                && ((ExcludedRouters) excluded).isFor(this) ? (ExcludedRouters) excluded : null;
+        final Set<Fingerprint> excludedFingerprints = excludedIds == null ? excluded : null;
+        final double p = rankingInfluenceIndex;
+        final double total = table.cumulative(table.routers.length - 1, p);
+        if (total > 0) {
+            for (int attempt = 0; attempt < MAX_REJECTIONS; attempt++) {
+                final int i = table.find(rnd.nextDouble() * total, p);
+                if (accept(table, i, flags, excludedIds, excludedFingerprints, exitAddress, exitPort, filter)) {
+                    return table.routers[i];
+                }
+            }
+        }
+        return scan(table, flags, excludedIds, excludedFingerprints, p, exitAddress, exitPort, filter, rnd);
+    }
+
+    /**
+     * the linear fallback: sum up the weights of the suitable routers and
+     * pick one; if all of them have no weight, pick one uniformly.
+     */
+    private Router scan(final Table table,
+                        final RouterFlags flags,
+                        final ExcludedRouters excludedIds,
+                        final Set<Fingerprint> excludedFingerprints,
+                        final double p,
+                        final InetAddress exitAddress,
+                        final int exitPort,
+                        final RouterFilter filter,
+                        final Random rnd) {
+        double weightSum = 0;
+        int count = 0;
+        for (int i = 0; i < table.routers.length; i++) {
+            if (accept(table, i, flags, excludedIds, excludedFingerprints, exitAddress, exitPort, filter)) {
+                weightSum += table.weight(i, p);
+                count++;
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+        final boolean uniform = weightSum <= 0;
+        double serverRandom = uniform ? rnd.nextInt(count) : rnd.nextDouble() * weightSum;
+        Router lastAccepted = null;
+        for (int i = 0; i < table.routers.length; i++) {
+            if (accept(table, i, flags, excludedIds, excludedFingerprints, exitAddress, exitPort, filter)) {
+                lastAccepted = table.routers[i];
+                serverRandom -= uniform ? 1 : table.weight(i, p);
+                if (serverRandom < 0) {
+                    return lastAccepted;
+                }
+            }
+        }
+        // rounding errors
+        return lastAccepted;
+    }
+
+    /**
+     * @param excludedIds          excluded routers of this index, or null
+     * @param excludedFingerprints other excluded routers, or null
+     */
+    private static boolean accept(final Table table,
+                                  final int i,
+                                  final RouterFlags flags,
+                                  final ExcludedRouters excludedIds,
+                                  final Set<Fingerprint> excludedFingerprints,
+                                  final InetAddress exitAddress,
+                                  final int exitPort,
+                                  final RouterFilter filter) {
+        final Router router = table.routers[i];
+        return (excludedIds == null || !excludedIds.containsId(table.ids[i]))
+                && (excludedFingerprints == null || !excludedFingerprints.contains(router.getFingerprint()))
+                && TorConfig.isCountryAllowed(router.getCountryCode())
+                && (flags == null || router.getRouterFlags().match(flags))
+                && (exitPort < 0 || router.exitPolicyAccepts(exitAddress, exitPort))
+                && (filter == null || filter.accept(router));
+    }
+
+    private Table getTable(final NodeType position, final RouterFlags flags) {
+        final int key = position.ordinal() * FLAG_COMBINATIONS + mask(flags);
+        Table table = tables.get(key);
+        if (table == null) {
+            // building twice in a race is harmless
+            table = new Table(routers, null, mask(flags), position, weights);
+            if (!tables.compareAndSet(key, null, table)) {
+                table = tables.get(key);
+            }
+        }
+        return table;
+    }
+
+    private Table getPortTable(final NodeType position, final RouterFlags flags, final int port) {
+        final Long key = ((long) port << 16) | (position.ordinal() * FLAG_COMBINATIONS + mask(flags));
+        Table table = portTables.get(key);
+        if (table == null) {
+            table = new Table(routers, exitPolicies.getAccepting(port), mask(flags), position, weights);
+            if (portTables.size() >= MAX_PORT_TABLES) {
+                portTables.clear();
+            }
+            final Table existing = portTables.putIfAbsent(key, table);
+            if (existing != null) {
+                table = existing;
+            }
+        }
+        return table;
+    }
+
+    private static int mask(final RouterFlags flags) {
+        if (flags == null) {
+            return 0;
+        }
+        return (flags.isFast() ? FAST : 0)
+                | (flags.isStable() ? STABLE : 0)
+                | (flags.isGuard() ? GUARD : 0)
+                | (flags.isExit() ? EXIT : 0)
+                | (flags.isValid() ? VALID : 0);
+    }
+
+    private static boolean matches(final RouterFlags routerFlags, final int mask) {
+        return ((mask & FAST) == 0 || routerFlags.isFast())
+                && ((mask & STABLE) == 0 || routerFlags.isStable())
+                && ((mask & GUARD) == 0 || routerFlags.isGuard())
+                && ((mask & EXIT) == 0 || routerFlags.isExit())
+                && ((mask & VALID) == 0 || routerFlags.isValid());
+    }
+
+    /**
+     * @param router the router
+     * @return the bandwidth used for the selection in kB/s
+     */
+    static double getBandwidth(final Router router) {
+        final int bandwidth = router.getConsensusBandwidth();
+        if (bandwidth >= 0) {
+            return bandwidth;
+        }
+        // no measurement: what the router announces in its descriptor
+        return Math.max(0, Math.min(router.getBandwidthAvg(), router.getBandwidthObserved())) / 1000.0;
+    }
+
+    /**
+     * the routers matching one position and flag combination with their
+     * cumulative weights.
+     */
+    private static final class Table {
+        private final Router[] routers;
+        /** the dense ids of the routers. */
+        private final int[] ids;
+        /** cumulative weight for p = 1. */
+        private final double[] ranked;
+        /** cumulative weight for p = 0. */
+        private final double[] uniform;
+
+        /**
+         * @param all     all routers of the index
+         * @param allowed the indexes of the routers to consider, null for all
+         */
+        private Table(final Router[] all,
+                      final BitSet allowed,
+                      final int mask,
+                      final NodeType position,
+                      final BandwidthWeights weights) {
+            final int[] matchingIds = new int[all.length];
+            int count = 0;
+            for (int i = 0; i < all.length; i++) {
+                if ((allowed == null || allowed.get(i)) && matches(all[i].getRouterFlags(), mask)) {
+                    matchingIds[count++] = i;
+                }
+            }
+            ids = Arrays.copyOf(matchingIds, count);
+            routers = new Router[count];
+            for (int i = 0; i < count; i++) {
+                routers[i] = all[ids[i]];
+            }
+            ranked = new double[routers.length];
+            uniform = new double[routers.length];
+            double rankedSum = 0;
+            double uniformSum = 0;
+            for (int i = 0; i < routers.length; i++) {
+                final RouterFlags flags = routers[i].getRouterFlags();
+                final double bandwidth = getBandwidth(routers[i])
+                        * weights.getWeight(position, flags.isGuard(), flags.isExit() && !flags.isBadExit());
+                rankedSum += bandwidth * Math.max(0, routers[i].getRefinedRankingIndex(1));
+                uniformSum += bandwidth * Math.max(0, routers[i].getRefinedRankingIndex(0));
+                ranked[i] = rankedSum;
+                uniform[i] = uniformSum;
+            }
+        }
+
+        /**
+         * @return the sum of the weights of the routers 0..i
+         */
+        private double cumulative(final int i, final double p) {
+            return ranked[i] * p + uniform[i] * (1 - p);
+        }
+
+        /**
+         * @return the weight of router i
+         */
+        private double weight(final int i, final double p) {
+            return i == 0 ? cumulative(0, p) : cumulative(i, p) - cumulative(i - 1, p);
+        }
+
+        /**
+         * @return the first router whose cumulative weight exceeds the target
+         */
+        private int find(final double target, final double p) {
+            int low = 0;
+            int high = routers.length - 1;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (cumulative(mid, p) <= target) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
@@ -37,6 +37,8 @@ public final class RouterStatusDescription
 	private Fingerprint fingerprint;
 	/** "Digest" is a hash of its most recent descriptor as signed (that is, not including the signature), encoded in base64. */
 	private byte [] digestDescriptor;
+	/** SHA-256 of the microdescriptor ("m" line of the microdesc consensus); null in the full consensus. */
+	private byte [] digestMicrodescriptor;
 	/**
 	 * "Publication" is the publication time of its most recent descriptor.
 	 */
@@ -47,6 +49,8 @@ public final class RouterStatusDescription
 	private int orPort, dirPort;
 	/** Router flags. (stable, valid, running, etc)*/
 	private RouterFlags routerFlags;
+	/** bandwidth of the "w" line in kilobytes per second; -1 if unknown. */
+	private int bandwidth = -1;
 
 	// /////////////////////////////////////////////////////
 	// getters and setters
@@ -119,6 +123,29 @@ public final class RouterStatusDescription
 	{
 		this.digestDescriptor = digestDescriptor;
 	}
+
+	/**
+	 * @return the SHA-256 digest of the microdescriptor; null if the entry is from the full consensus
+	 */
+	public byte[] getDigestMicrodescriptor()
+	{
+		return digestMicrodescriptor;
+	}
+
+	/**
+	 * Get the microdescriptor digest in unpadded base64, as it is used in
+	 * the download URL "/tor/micro/d/".
+	 * @return the base64 encoded digest; null if there is none
+	 */
+	public String getDigestMicrodescriptorAsBase64()
+	{
+		return digestMicrodescriptor == null ? null : Microdescriptor.toBase64(digestMicrodescriptor);
+	}
+
+	public void setDigestMicrodescriptor(final byte[] digestMicrodescriptor)
+	{
+		this.digestMicrodescriptor = digestMicrodescriptor;
+	}
 	
 	public long getLastPublication()
 	{
@@ -168,6 +195,23 @@ public final class RouterStatusDescription
 		this.dirPort = dirPort;
 	}
 
+	/**
+	 * Get the bandwidth the consensus assigns to the relay (the "w Bandwidth=" value).
+	 * @return the bandwidth in kilobytes per second, -1 if unknown
+	 */
+	public int getBandwidth()
+	{
+		return bandwidth;
+	}
+
+	/**
+	 * @param bandwidth the bandwidth in kilobytes per second
+	 */
+	public void setBandwidth(final int bandwidth)
+	{
+		this.bandwidth = bandwidth;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -180,7 +224,7 @@ public final class RouterStatusDescription
 				+ ", fingerprint=" + fingerprint + ", digestDescriptor="
 				+ Arrays.toString(digestDescriptor) + ", lastPublication="
 				+ lastPublication + ", ip=" + ip + ", orPort=" + orPort
-				+ ", dirPort=" + dirPort + "]";
+				+ ", dirPort=" + dirPort + ", bandwidth=" + bandwidth + "]";
 	}
 
 	/**
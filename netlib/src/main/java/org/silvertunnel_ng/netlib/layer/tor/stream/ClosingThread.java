@@ -17,6 +17,8 @@
  */
 package org.silvertunnel_ng.netlib.layer.tor.stream;
 
+import org.silvertunnel_ng.netlib.util.NetlibThreads;
+import org.silvertunnel_ng.netlib.util.NetlibThreads.Subsystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,7 +30,7 @@ import org.slf4j.LoggerFactory;
  * @author Lexi
  * @author hapke
  */
-public class ClosingThread extends Thread
+public class ClosingThread implements Runnable
 {
 	/** */
 	private static final Logger LOG = LoggerFactory.getLogger(ClosingThread.class);
@@ -40,7 +42,7 @@ public class ClosingThread extends Thread
 	{
 		this.threads = threads;
 		this.chosenOne = chosenOne;
-		this.start();
+		NetlibThreads.start(Subsystem.STREAM, "ClosingThread", this, false);
 	}
 
 	@Override
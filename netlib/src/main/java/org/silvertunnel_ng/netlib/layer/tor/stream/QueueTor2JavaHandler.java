@@ -25,10 +25,8 @@ import org.silvertunnel_ng.netlib.layer.tor.util.TorException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.InterruptedIOException;
 
 /**
  * used to be TCPStreamThreadTor2Java.
@@ -39,20 +37,23 @@ class QueueTor2JavaHandler implements QueueHandler {
 
     private final TCPStream stream;
     /** read from tor and output to this stream. */
-    private PipedInputStream sin;
-    /** private end of this pipe. */
-    private PipedOutputStream fromtor;
+    private final StreamInputBuffer sin;
     /** as stop() is depreciated we use this toggle variable. */
     private boolean stopped;
 
     QueueTor2JavaHandler(final TCPStream stream) {
         this.stream = stream;
-        try {
-            sin = new SafePipedInputStream();
-            fromtor = new PipedOutputStream(sin);
-        } catch (final IOException e) {
-            LOG.error("QueueTor2JavaHandler: caught IOException " + e.getMessage(), e);
-        }
+        this.sin = new StreamInputBuffer(TCPStream.STREAM_LEVEL_FLOW_WINDOW, new StreamInputBuffer.ConsumptionListener() {
+            @Override
+            public void cellsConsumed(final int cells) {
+                // the reader made room: now the other side may send more
+                try {
+                    stream.dataCellsConsumed(cells);
+                } catch (final TorException e) {
+                    LOG.debug("got TorException : {}", e.getMessage(), e);
+                }
+            }
+        });
     }
 
     @Override
@@ -60,11 +61,7 @@ class QueueTor2JavaHandler implements QueueHandler {
         this.stopped = true;
         /* leave data around, until no more referenced by someone else */
         // try{ sin.close(); } catch(Exception e) {}
-        try {
-            fromtor.close();
-        } catch (final Exception e) {
-            LOG.debug("got Exception : {}", e.getMessage(), e);
-        }
+        sin.closeWrite();
     }
 
     /** return TRUE, if cell was handled. */
@@ -84,9 +81,10 @@ class QueueTor2JavaHandler implements QueueHandler {
         if (relay.isTypeData()) {
             LOG.debug("QueueTor2JavaHandler.handleCell(): stream {} received data", stream.getId());
             try {
-                fromtor.write(relay.getData(), 0, relay.getLength());
-            } catch (final IOException e) {
-                LOG.error("QueueTor2JavaHandler.handleCell(): caught IOException " + e.getMessage(), e);
+                // no copy: the buffer releases the payload when it was read
+                sin.put(relay, relay.getDataBuffer(), relay.getDataOffset(), relay.getLength());
+            } catch (final InterruptedIOException e) {
+                LOG.error("QueueTor2JavaHandler.handleCell(): caught InterruptedIOException " + e.getMessage(), e);
             }
             return true;
         } else if (relay.isTypeEnd()) {
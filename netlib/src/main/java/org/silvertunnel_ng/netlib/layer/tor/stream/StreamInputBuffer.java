@@ -0,0 +1,298 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.stream;
+
+import org.silvertunnel_ng.netlib.layer.tor.circuit.cells.Cell;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * the inbound side of a stream: the data of received cells as an InputStream.
+ *
+ * Instead of copying the relay data into a pipe, the buffer keeps a reference
+ * to the payload of each cell and the reader copies directly out of it. The
+ * payload is given back to the connection's pool as soon as it has been read
+ * completely. The segments are kept in a ring of fixed size, so adding and
+ * reading does not allocate.
+ *
+ * Consumed cells are reported to a {@link ConsumptionListener}, outside of
+ * the buffer's lock; this is where the flow control sends its SENDMEs.
+ *
+ * @author Tobias Boese
+ */
+class StreamInputBuffer extends InputStream {
+    /** informed about cells which were read completely or dropped. */
+    interface ConsumptionListener {
+        /**
+         * @param cells number of cells consumed since the last call
+         */
+        void cellsConsumed(int cells);
+    }
+
+    private final ConsumptionListener listener;
+    /** the cells owning the segments (released after reading). */
+    private final Cell[] owners;
+    private final byte[][] buffers;
+    private final int[] offsets;
+    private final int[] ends;
+    /** index of the segment read next. */
+    private int head;
+    /** number of segments in the ring. */
+    private int count;
+    /** number of bytes which can be read without blocking. */
+    private int available;
+    /** no more data will be added, the reader gets EOF when all is read. */
+    private boolean eof;
+    /** the reader closed the stream, data is dropped. */
+    private boolean closed;
+    /** cells consumed but not yet reported to the listener. */
+    private int consumedCells;
+
+    /**
+     * @param capacity maximum number of cells buffered before
+     *                 {@link #put(Cell, byte[], int, int)} blocks
+     * @param listener informed about consumed cells, may be null
+     */
+    StreamInputBuffer(final int capacity, final ConsumptionListener listener) {
+        this.listener = listener;
+        owners = new Cell[capacity];
+        buffers = new byte[capacity][];
+        offsets = new int[capacity];
+        ends = new int[capacity];
+    }
+
+    /**
+     * append the data of a received cell. The buffer takes ownership of the
+     * cell and releases it when the data was read or the buffer was closed.
+     * Blocks while the buffer is full.
+     *
+     * @param owner  the cell containing the data, may be null
+     * @param buffer array containing the data
+     * @param offset position of the data in the buffer
+     * @param length number of bytes
+     * @throws InterruptedIOException if interrupted while waiting for space
+     */
+    void put(final Cell owner, final byte[] buffer, final int offset, final int length)
+            throws InterruptedIOException {
+        try {
+            putLocked(owner, buffer, offset, length);
+        } finally {
+            reportConsumed();
+        }
+    }
+
+    private synchronized void putLocked(final Cell owner, final byte[] buffer, final int offset, final int length)
+            throws InterruptedIOException {
+        while (count == owners.length && !closed && !eof) {
+            try {
+                wait();
+            } catch (final InterruptedException e) {
+                drop(owner);
+                throw new InterruptedIOException("interrupted while waiting for buffer space");
+            }
+        }
+        if (closed || eof || length <= 0) {
+            drop(owner);
+            return;
+        }
+        final int tail = (head + count) % owners.length;
+        owners[tail] = owner;
+        buffers[tail] = buffer;
+        offsets[tail] = offset;
+        ends[tail] = offset + length;
+        count++;
+        available += length;
+        notifyAll();
+    }
+
+    /**
+     * no more data will be added; the reader gets EOF after the buffered data.
+     */
+    synchronized void closeWrite() {
+        eof = true;
+        notifyAll();
+    }
+
+    /**
+     * wait until data is available.
+     *
+     * @return false on EOF
+     */
+    private boolean awaitData() throws IOException {
+        while (count == 0) {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            if (eof) {
+                return false;
+            }
+            try {
+                wait();
+            } catch (final InterruptedException e) {
+                throw new InterruptedIOException("interrupted while waiting for data");
+            }
+        }
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        try {
+            return readLocked();
+        } finally {
+            reportConsumed();
+        }
+    }
+
+    private synchronized int readLocked() throws IOException {
+        if (!awaitData()) {
+            return -1;
+        }
+        final int result = buffers[head][offsets[head]++] & 0xff;
+        available--;
+        if (offsets[head] == ends[head]) {
+            removeHead();
+        }
+        return result;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        try {
+            return readLocked(b, off, len);
+        } finally {
+            reportConsumed();
+        }
+    }
+
+    private synchronized int readLocked(final byte[] b, final int off, final int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (!awaitData()) {
+            return -1;
+        }
+        // copy as much as is buffered, possibly out of several cells
+        int done = 0;
+        while (done < len && count > 0) {
+            final int n = Math.min(len - done, ends[head] - offsets[head]);
+            System.arraycopy(buffers[head], offsets[head], b, off + done, n);
+            offsets[head] += n;
+            done += n;
+            if (offsets[head] == ends[head]) {
+                removeHead();
+            }
+        }
+        available -= done;
+        return done;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+        try {
+            return skipLocked(n);
+        } finally {
+            reportConsumed();
+        }
+    }
+
+    private synchronized long skipLocked(final long n) {
+        long skipped = 0;
+        while (skipped < n && count > 0) {
+            final int step = (int) Math.min(n - skipped, ends[head] - offsets[head]);
+            offsets[head] += step;
+            skipped += step;
+            available -= step;
+            if (offsets[head] == ends[head]) {
+                removeHead();
+            }
+        }
+        return skipped;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+        return available;
+    }
+
+    /**
+     * close the reading side; buffered cells are released and later data is
+     * dropped.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            while (count > 0) {
+                removeHead();
+            }
+            available = 0;
+            notifyAll();
+        }
+        reportConsumed();
+    }
+
+    /**
+     * @return number of cells currently buffered
+     */
+    synchronized int getBufferedCells() {
+        return count;
+    }
+
+    /** drop the completely read segment at the head and wake up the writer. */
+    private void removeHead() {
+        drop(owners[head]);
+        owners[head] = null;
+        buffers[head] = null;
+        head = (head + 1) % owners.length;
+        count--;
+        notifyAll();
+    }
+
+    /** release the cell and count it as consumed. Needs the lock. */
+    private void drop(final Cell cell) {
+        if (cell != null) {
+            cell.release();
+        }
+        consumedCells++;
+    }
+
+    /** inform the listener about the consumed cells; called without the lock. */
+    private void reportConsumed() {
+        final int cells;
+        synchronized (this) {
+            cells = consumedCells;
+            consumedCells = 0;
+        }
+        if (cells > 0 && listener != null) {
+            listener.cellsConsumed(cells);
+        }
+    }
+}
@@ -19,6 +19,8 @@ package org.silvertunnel_ng.netlib.layer.tor.stream;
 
 import org.silvertunnel_ng.netlib.layer.tor.circuit.Circuit;
 import org.silvertunnel_ng.netlib.layer.tor.common.TCPStreamProperties;
+import org.silvertunnel_ng.netlib.util.NetlibThreads;
+import org.silvertunnel_ng.netlib.util.NetlibThreads.Subsystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,14 +30,15 @@ import org.slf4j.LoggerFactory;
  * @author Lexi
  * @author hapke
  */
-public class StreamThread extends Thread
+public class StreamThread implements Runnable
 {
 	/** */
 	private static final Logger LOG = LoggerFactory.getLogger(StreamThread.class);
 
-	private TCPStream stream;
+	private volatile TCPStream stream;
 	private final Circuit cs;
 	private final TCPStreamProperties sp;
+	private final Thread thread;
 
 	// private boolean finished = false;
 
@@ -44,7 +47,7 @@ public class StreamThread extends Thread
 	{
 		this.cs = cs;
 		this.sp = sp;
-		this.start();
+		this.thread = NetlibThreads.start(Subsystem.STREAM, "StreamThread", this, false);
 	}
 
 	/**
@@ -75,4 +78,23 @@ public class StreamThread extends Thread
 	{
 		return stream;
 	}
+
+	/**
+	 * @return true if the stream is still being built
+	 */
+	public boolean isAlive()
+	{
+		return thread.isAlive();
+	}
+
+	/**
+	 * wait until the stream is built.
+	 * 
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public void join() throws InterruptedException
+	{
+		thread.join();
+	}
 }
@@ -38,6 +38,7 @@ package org.silvertunnel_ng.netlib.layer.tor.stream;
 import org.silvertunnel_ng.netlib.api.NetSocket;
 import org.silvertunnel_ng.netlib.layer.tor.api.Router;
 import org.silvertunnel_ng.netlib.layer.tor.circuit.Circuit;
+import org.silvertunnel_ng.netlib.layer.tor.circuit.FlowControl;
 import org.silvertunnel_ng.netlib.layer.tor.circuit.Queue;
 import org.silvertunnel_ng.netlib.layer.tor.circuit.Stream;
 import org.silvertunnel_ng.netlib.layer.tor.circuit.cells.*;
@@ -71,21 +72,11 @@ public class TCPStream implements Stream, NetSocket {
     private static final Logger LOG = LoggerFactory.getLogger(TCPStream.class);
 
     /** used for stream level flow control. (as described in tor-spec.txt 7.4)*/
-    private static final int STREAM_LEVEL_FLOW_WINDOW = 500;
+    static final int STREAM_LEVEL_FLOW_WINDOW = 500;
     /** increment used for stream level flow control. (as described in tor-spec.txt 7.4)*/
     private static final int STREAM_LEVEL_FLOW_INCREMENT = 50;
-    /**
-     * current receive window.
-     *
-     * How many RELAY_DATA cells did we received?
-     */
-    private int streamLevelFlowControlRecv = STREAM_LEVEL_FLOW_WINDOW;
-    /**
-     * current send window.
-     *
-     * How many RELAY_DATA cells did we send?
-     */
-    private int streamLevelFlowControlSend = STREAM_LEVEL_FLOW_WINDOW;
+    /** stream level package and deliver window. */
+    private final transient FlowControl flowControl = new FlowControl(this, STREAM_LEVEL_FLOW_WINDOW, STREAM_LEVEL_FLOW_INCREMENT);
     /** wait x seconds for answer. */
     private final int queueTimeout = TorConfig.queueTimeoutStreamBuildup;
     // TODO: do we need this?
@@ -225,7 +216,7 @@ public class TCPStream implements Stream, NetSocket {
         // java2tor = new TCPStreamThreadJava2Tor(this);
         qhT2J = new QueueTor2JavaHandler(this);
         this.queue.addHandler(qhT2J);
-        outputStream = new TCPStreamOutputStream(this);
+        outputStream = new TCPStreamOutputStream(this, sp.getWriteMode(), sp.getWriteCoalesceDelayMs());
 
         if (LOG.isDebugEnabled()) {
             LOG.debug("TCPStream: build stream " + toString() + " within " + setupDuration + " ms");
@@ -318,9 +309,6 @@ public class TCPStream implements Stream, NetSocket {
         this.circuit = circuit;
     }
 
-    /** used for waiting for sendme cell. */
-    private final transient Object waitForSendme = new Object();
-
     @Override
     public void sendCell(final Cell cell) throws TorException {
         // update 'action'-timestamp, if not padding cell
@@ -328,15 +316,11 @@ public class TCPStream implements Stream, NetSocket {
         if (!cell.isTypePadding()) {
             lastAction = lastCellSentDate;
             if (cell.isTypeRelay() && cell instanceof CellRelayData) {
-                streamLevelFlowControlSend--;
-                LOG.debug("STREAM_FLOW_CONTROL_SEND = {}", streamLevelFlowControlSend);
-                if (streamLevelFlowControlSend == 0) {
-                    LOG.debug("waiting for SENDME cell");
-                    try {
-                        waitForSendme.wait();
-                    } catch (InterruptedException exception) {
-                        throw new TorException("interrupted while trying to wait for SENDME cell", exception);
-                    }
+                // blocks while the stream package window is exhausted
+                try {
+                    flowControl.acquirePackage();
+                } catch (final IOException exception) {
+                    throw new TorException("interrupted while trying to wait for SENDME cell", exception);
                 }
             }
         }
@@ -351,6 +335,20 @@ public class TCPStream implements Stream, NetSocket {
         }
     }
 
+    /**
+     * send data as one RELAY_DATA cell.
+     *
+     * @param data   the data; copied into the cell
+     * @param length number of bytes, at most {@link CellRelay#RELAY_DATA_SIZE}
+     * @throws TorException if the cell could not be sent
+     */
+    void sendData(final byte[] data, final int length) throws TorException {
+        final CellRelayData cell = new CellRelayData(this);
+        cell.setLength(Math.min(length, cell.getData().length));
+        System.arraycopy(data, 0, cell.getData(), 0, cell.getLength());
+        sendCell(cell);
+    }
+
     /** send a stream-layer dummy. */
     public void sendKeepAlive() {
         try {
@@ -388,8 +386,15 @@ public class TCPStream implements Stream, NetSocket {
                 new TorEvent(TorEvent.STREAM_CLOSED, this, "Stream closed: "
                         + toString()));
 
-        // if stream is not closed, send a RELAY-END-CELL
+        // if stream is not closed, send the buffered data and a RELAY-END-CELL
         if (!(closed || force)) {
+            if (outputStream != null) {
+                try {
+                    outputStream.flush();
+                } catch (final IOException e) {
+                    LOG.debug("got IOException while trying to flush the stream", e);
+                }
+            }
             try {
                 sendCell(new CellRelayEnd(this, (byte) 6)); // send cell with
                 // 'DONE'
@@ -410,6 +415,8 @@ public class TCPStream implements Stream, NetSocket {
                 LOG.debug("got Exception : {}", e.getMessage(), e);
             }
         }
+        // release senders waiting for a SENDME
+        flowControl.close();
         // close queue (also removes handlers)
         queue.close();
         // remove from circuit
@@ -510,28 +517,49 @@ public class TCPStream implements Stream, NetSocket {
         if (cell.isTypeRelay() && cell instanceof CellRelay) {
             CellRelay relay = (CellRelay) cell;
             if (relay.isTypeData()) {
-                streamLevelFlowControlRecv--;
-                LOG.debug("STREAM_FLOW_CONTROL_RECV = {}", streamLevelFlowControlRecv);
-                circuit.reduceCircWindowRecv(); // also reduce the circuits receive window.
-                if (streamLevelFlowControlRecv <= STREAM_LEVEL_FLOW_WINDOW - STREAM_LEVEL_FLOW_INCREMENT) {
-                    // send a RELAY_SENDME cell to the edge node
-                    try {
-                        sendCell(new CellRelaySendme(this));
-                        streamLevelFlowControlRecv += STREAM_LEVEL_FLOW_INCREMENT;
-                    } catch (TorException exception) {
-                        LOG.warn("problems with sending RELAY_SENDME for stream {}", getId(), exception);
-                        throw new TorException("problems with sending RELAY_SENDME for stream " + getId(), exception);
-                    }
+                flowControl.dataReceived();
+                circuit.dataCellReceived(); // also reduce the circuits deliver window.
+                if (closed) {
+                    // nobody will read it
+                    relay.release();
+                    dataCellsConsumed(1);
+                    return;
                 }
             } else if (relay.isTypeSendme()) {
-                streamLevelFlowControlSend += STREAM_LEVEL_FLOW_INCREMENT;
-                waitForSendme.notifyAll();
-                LOG.debug("got RELAY_SENDME cell, increasing stream {} flow send window to {}", getId(), streamLevelFlowControlRecv);
+                flowControl.sendmeReceived();
             }
         }
         queue.add(cell);
     }
 
+    /**
+     * RELAY_DATA cells of this stream were read by the application (or
+     * dropped); sends the RELAY_SENDME cells which are due on stream and
+     * circuit level. (see tor-spec.txt 7.3 and 7.4)
+     *
+     * @param cells number of consumed cells
+     * @throws TorException if a RELAY_SENDME cell could not be sent
+     */
+    void dataCellsConsumed(final int cells) throws TorException {
+        for (int i = flowControl.dataConsumed(cells); i > 0 && !closed; i--) {
+            // send a RELAY_SENDME cell to the edge node
+            try {
+                sendCell(new CellRelaySendme(this));
+            } catch (TorException exception) {
+                LOG.warn("problems with sending RELAY_SENDME for stream {}", getId(), exception);
+                throw new TorException("problems with sending RELAY_SENDME for stream " + getId(), exception);
+            }
+        }
+        circuit.dataCellsConsumed(cells);
+    }
+
+    /**
+     * @return the stream level flow control windows
+     */
+    public FlowControl getFlowControl() {
+        return flowControl;
+    }
+
     public int getQueueTimeout() {
         return queueTimeout;
     }
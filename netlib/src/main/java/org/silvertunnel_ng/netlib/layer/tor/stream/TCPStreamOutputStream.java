@@ -37,57 +37,153 @@ package org.silvertunnel_ng.netlib.layer.tor.stream;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.silvertunnel_ng.netlib.layer.tor.circuit.FlowControl;
 import org.silvertunnel_ng.netlib.layer.tor.circuit.cells.CellRelay;
-import org.silvertunnel_ng.netlib.layer.tor.circuit.cells.CellRelayData;
+import org.silvertunnel_ng.netlib.layer.tor.common.TCPStreamProperties;
+import org.silvertunnel_ng.netlib.layer.tor.common.TCPStreamWriteMode;
 import org.silvertunnel_ng.netlib.layer.tor.util.TorException;
+import org.silvertunnel_ng.netlib.util.NetlibThreads;
+import org.silvertunnel_ng.netlib.util.NetlibThreads.Subsystem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Output stream for connections tunneled through Tor.
  * 
+ * The written data is collected in a cell sized buffer. When the buffer is
+ * sent depends on the {@link TCPStreamWriteMode}: full cells are always sent
+ * at once, a partly filled cell at the end of the write call
+ * ({@link TCPStreamWriteMode#IMMEDIATE}), after a delay
+ * ({@link TCPStreamWriteMode#COALESCE}) or on flush()
+ * ({@link TCPStreamWriteMode#EXPLICIT_FLUSH}).
+ * 
+ * The timer of the delayed cells is shared by all streams and never blocks:
+ * while the package window of the stream is exhausted the cell waits for the
+ * next RELAY_SENDME, and the cell itself is sent by another thread, which
+ * may wait for the circuit window or the TLS connection.
+ * 
  * @author Lexi Pimenidis
  * @author hapke
+ * @author Tobias Boese
  */
 class TCPStreamOutputStream extends OutputStream
 {
 	/** */
 	private static final Logger LOG = LoggerFactory.getLogger(TCPStreamOutputStream.class);
 
+	/** decides when the delayed cells of all streams in {@link TCPStreamWriteMode#COALESCE} are sent. */
+	private static final ScheduledExecutorService FLUSH_TIMER = new ScheduledThreadPoolExecutor(1,
+			NetlibThreads.threadFactory(Subsystem.STREAM, "TCPStreamFlushTimer", true));
+	/** sends the delayed cells; one thread per stream which is blocked while sending. */
+	private static final ExecutorService FLUSH_SENDER = Executors.newCachedThreadPool(
+			NetlibThreads.threadFactory(Subsystem.STREAM, "TCPStreamFlushSender", true));
+
 	private final TCPStream stream;
-	/** read from this, and forward to tor. */
-	private PipedOutputStream sout;
-	/** private end of this pipe. */
-	private PipedInputStream fromjava;
+	private final TCPStreamWriteMode writeMode;
+	private final long coalesceDelayNanos;
+	/**
+	 * guards the buffer; a lock instead of synchronized to let the timer skip
+	 * a stream which is busy.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
 	/** as stop() is depreciated we use this toggle variable. */
-	private boolean stopped;
+	private volatile boolean stopped;
 	private final byte[] buffer;
 	private int bufferFilled;
+	/** when the first byte of the buffered data was written. */
+	private long firstByteNanos;
+	/** a timed flush is pending. */
+	private boolean flushScheduled;
+	/** the timed flush waits for the package window of the stream. */
+	private volatile boolean waitingForWindow;
+	/** failure of a timed flush, reported to the next caller. */
+	private IOException timedFlushFailure;
+	private final Runnable timedFlush = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			timedFlush();
+		}
+	};
+	private final Runnable timedSend = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			timedSend();
+		}
+	};
 
 	TCPStreamOutputStream(final TCPStream stream)
+	{
+		this(stream, TCPStreamWriteMode.IMMEDIATE, TCPStreamProperties.DEFAULT_WRITE_COALESCE_DELAY_MS);
+	}
+
+	/**
+	 * @param stream
+	 *            the stream to send the data on
+	 * @param writeMode
+	 *            when the data is sent
+	 * @param coalesceDelayMs
+	 *            maximum time a partly filled cell is held back in
+	 *            {@link TCPStreamWriteMode#COALESCE}
+	 */
+	TCPStreamOutputStream(final TCPStream stream, final TCPStreamWriteMode writeMode, final long coalesceDelayMs)
 	{
 		this.stream = stream;
+		this.writeMode = writeMode;
+		this.coalesceDelayNanos = TimeUnit.MILLISECONDS.toNanos(coalesceDelayMs);
 		buffer = new byte[CellRelay.RELAY_DATA_SIZE];
 		bufferFilled = 0;
-		try
+		if (writeMode == TCPStreamWriteMode.COALESCE)
 		{
-			sout = new PipedOutputStream();
-			fromjava = new PipedInputStream(sout);
-		}
-		catch (final IOException e)
-		{
-			LOG.error("TCPStreamThreadJava2Tor: caught IOException "
-					+ e.getMessage(), e);
+			stream.getFlowControl().setListener(new FlowControl.Listener()
+			{
+				@Override
+				public void packageWindowOpened()
+				{
+					if (waitingForWindow)
+					{
+						waitingForWindow = false;
+						FLUSH_TIMER.execute(timedFlush);
+					}
+				}
+			});
 		}
 	}
 
+	/**
+	 * send the buffered data and stop. Data written afterwards is dropped.
+	 */
 	@Override
 	public void close()
 	{
-		this.stopped = true;
+		lock.lock();
+		try
+		{
+			if (!stopped && !stream.isClosed())
+			{
+				sendBuffer();
+			}
+		}
+		catch (final IOException e)
+		{
+			LOG.debug("could not send the buffered data : {}", e.getMessage(), e);
+		}
+		finally
+		{
+			this.stopped = true;
+			bufferFilled = 0;
+			lock.unlock();
+		}
 	}
 
 	@Override
@@ -99,7 +195,24 @@ class TCPStreamOutputStream extends OutputStream
 	}
 
 	@Override
-	public synchronized void flush() throws IOException
+	public void flush() throws IOException
+	{
+		lock.lock();
+		try
+		{
+			checkTimedFlushFailure();
+			sendBuffer();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * send the buffered data as one RELAY_DATA cell. Needs the lock.
+	 */
+	private void sendBuffer() throws IOException
 	{
 		if (stopped)
 		{
@@ -117,67 +230,156 @@ class TCPStreamOutputStream extends OutputStream
 			throw new IOException(
 					"TCPStreamOutputStream.flush(): there must be an error somewhere else");
 		}
-		final CellRelayData cell = new CellRelayData(stream);
-		cell.setLength(bufferFilled);
-		if (cell.getLength() > cell.getData().length)
-		{
-			cell.setLength(cell.getData().length);
-		}
-		System.arraycopy(buffer, 0, cell.getData(), 0, bufferFilled);
+		// the data is copied into the cell, so the buffer can be reused even if sending fails
+		final int length = bufferFilled;
+		bufferFilled = 0;
 		try
 		{
-			stream.sendCell(cell);
+			stream.sendData(buffer, length);
 		}
 		catch (TorException exception)
 		{
 			throw new IOException(exception);
 		}
-		bufferFilled = 0;
 	}
 
 	@Override
 	public void write(final byte[] b, final int off, final int len)
 			throws IOException
 	{
+		if (off < 0 || len < 0 || len > b.length - off)
+		{
+			throw new IndexOutOfBoundsException();
+		}
 		if (len == 0)
 		{
 			return;
-			/*
-			 * if (len<0) throw new
-			 * IOException("TCPStreamOutputStream.write(): len = "+len); if
-			 * (bufferFilled > buffer.length) throw new
-			 * IOException("TCPStreamOutputStream.write(): filled = "+bufferFilled);
-			 */
 		}
+		lock.lock();
+		try
+		{
+			checkTimedFlushFailure();
+			if (stopped)
+			{
+				return;
+			}
+			int pos = off;
+			int remaining = len;
+			while (remaining > 0)
+			{
+				if (bufferFilled == buffer.length)
+				{
+					sendBuffer();
+				}
+				if (bufferFilled == 0)
+				{
+					firstByteNanos = System.nanoTime();
+				}
+				final int n = Math.min(remaining, buffer.length - bufferFilled);
+				System.arraycopy(b, pos, buffer, bufferFilled, n);
+				bufferFilled += n;
+				pos += n;
+				remaining -= n;
+			}
+			if (bufferFilled == buffer.length || writeMode == TCPStreamWriteMode.IMMEDIATE)
+			{
+				// to be compatible with java.netSocketOutputStream.socketWrite0():
+				// IMMEDIATE does not just flush if (bufferFilled==buffer.length)
+				sendBuffer();
+			}
+			else if (writeMode == TCPStreamWriteMode.COALESCE && !flushScheduled)
+			{
+				flushScheduled = true;
+				FLUSH_TIMER.schedule(timedFlush, coalesceDelayNanos, TimeUnit.NANOSECONDS);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void write(final byte[] b) throws IOException
+	{
+		write(b, 0, b.length);
+	}
 
-		int bytesFree = buffer.length;
-		if (bufferFilled == buffer.length)
+	/**
+	 * called by the timer: hand the buffered data to the sender if it is old
+	 * enough and the package window is open, otherwise check again later.
+	 * Must not block.
+	 */
+	private void timedFlush()
+	{
+		if (!lock.tryLock())
+		{
+			// a writer is busy with this stream, don't block the timer
+			FLUSH_TIMER.schedule(timedFlush, coalesceDelayNanos, TimeUnit.NANOSECONDS);
+			return;
+		}
+		try
 		{
-			flush();
+			flushScheduled = false;
+			if (stopped || bufferFilled == 0)
+			{
+				return;
+			}
+			final long wait = coalesceDelayNanos - (System.nanoTime() - firstByteNanos);
+			if (wait > 0)
+			{
+				// the cell sent before was full, the buffered data is younger
+				flushScheduled = true;
+				FLUSH_TIMER.schedule(timedFlush, wait, TimeUnit.NANOSECONDS);
+				return;
+			}
+			flushScheduled = true;
+			// set before the check, a RELAY_SENDME arriving meanwhile calls the listener
+			waitingForWindow = true;
+			if (stream.getFlowControl().getPackageWindow() <= 0)
+			{
+				// the listener of the flow control starts the next try
+				return;
+			}
+			waitingForWindow = false;
+			FLUSH_SENDER.execute(timedSend);
 		}
-		else
+		finally
 		{
-			bytesFree = buffer.length - bufferFilled;
+			lock.unlock();
 		}
+	}
 
-		if (len > bytesFree)
+	/**
+	 * called by the sender: send the buffered data of a timed flush.
+	 */
+	private void timedSend()
+	{
+		lock.lock();
+		try
 		{
-			write(b, off, bytesFree);
-			write(b, off + bytesFree, len - bytesFree);
+			flushScheduled = false;
+			sendBuffer();
 		}
-		else
+		catch (final IOException e)
+		{
+			LOG.debug("timed flush failed : {}", e.getMessage(), e);
+			timedFlushFailure = e;
+		}
+		finally
 		{
-			System.arraycopy(b, off, buffer, bufferFilled, len);
-			bufferFilled += len;
-			// to be compatible with java.netSocketOutputStream.socketWrite0():
-			// do not just flush if (bufferFilled==buffer.length)
-			flush();
+			lock.unlock();
 		}
 	}
 
-	@Override
-	public void write(final byte[] b) throws IOException
+	/** report the failure of a timed flush once. Needs the lock. */
+	private void checkTimedFlushFailure() throws IOException
 	{
-		write(b, 0, b.length);
+		if (timedFlushFailure != null)
+		{
+			final IOException e = timedFlushFailure;
+			timedFlushFailure = null;
+			throw e;
+		}
 	}
 }
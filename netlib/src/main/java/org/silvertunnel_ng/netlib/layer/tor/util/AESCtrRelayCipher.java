@@ -0,0 +1,252 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package org.silvertunnel_ng.netlib.layer.tor.util;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * AES in counter mode for the onion layers of a circuit.
+ *
+ * In contrast to {@link AESCounterMode} this engine works in place and
+ * processes a whole cell payload with one call. If the JCE provider offers
+ * "AES/CTR/NoPadding" it is used directly (and thus benefits from the AES
+ * intrinsics of the JVM), otherwise the key stream is generated block-wise
+ * with "AES/ECB/NoPadding".
+ *
+ * The key stream continues seamlessly across calls, as required by Tor for
+ * all cells of a circuit hop (counter starts at zero, big endian, 128 bit).
+ *
+ * @author Tobias Boese
+ */
+public final class AESCtrRelayCipher
+{
+	/** */
+	private static final Logger LOG = LoggerFactory.getLogger(AESCtrRelayCipher.class);
+
+	/** Algorithm used for crypt. */
+	private static final String ALGORITHM = "AES";
+	/** AES block size in bytes. */
+	private static final int BLOCK_SIZE = 16;
+	/** number of key stream blocks generated at once in fallback mode (enough for one cell). */
+	private static final int FALLBACK_BLOCKS = 32;
+
+	/** the {@link Cipher} instance (CTR or ECB). */
+	private final Cipher cipher;
+	/** true if the provider does the counter mode for us. */
+	private final boolean nativeCounterMode;
+
+	/** fallback mode: the counter blocks to be encrypted. */
+	private byte[] counterBlocks;
+	/** fallback mode: the generated key stream. */
+	private byte[] keyStream;
+	/** fallback mode: position of the next unused key stream byte. */
+	private int keyStreamPos;
+
+	/**
+	 * initialize the AES-Engine.
+	 *
+	 * @param key
+	 *            the symmetric key for the algorithm
+	 */
+	public AESCtrRelayCipher(final Key key)
+	{
+		this(key, true);
+	}
+
+	/**
+	 * initialize the AES-Engine.
+	 *
+	 * @param key
+	 *            the symmetric key for the algorithm
+	 */
+	public AESCtrRelayCipher(final byte[] key)
+	{
+		this(new SecretKeySpec(key, ALGORITHM), true);
+	}
+
+	/**
+	 * initialize the AES-Engine.
+	 *
+	 * @param key
+	 *            the symmetric key for the algorithm
+	 * @param tryNativeCounterMode
+	 *            false to always use the ECB based key stream generation
+	 *            (used for testing)
+	 */
+	AESCtrRelayCipher(final Key key, final boolean tryNativeCounterMode)
+	{
+		if (key.getEncoded().length != AESCounterMode.KEY_LEN)
+		{
+			LOG.warn("AESCtrRelayCipher.<init>: HINT: key.length!=16 bytes/128 bits");
+		}
+		Cipher ctrCipher = null;
+		if (tryNativeCounterMode)
+		{
+			ctrCipher = createCounterModeCipher(key);
+		}
+		if (ctrCipher != null)
+		{
+			cipher = ctrCipher;
+			nativeCounterMode = true;
+		}
+		else
+		{
+			try
+			{
+				cipher = Cipher.getInstance(ALGORITHM + "/ECB/NoPadding");
+				cipher.init(Cipher.ENCRYPT_MODE, key);
+			}
+			catch (final GeneralSecurityException e)
+			{
+				throw new RuntimeException(e);
+			}
+			nativeCounterMode = false;
+			counterBlocks = new byte[FALLBACK_BLOCKS * BLOCK_SIZE];
+			keyStream = new byte[FALLBACK_BLOCKS * BLOCK_SIZE];
+			keyStreamPos = keyStream.length;
+		}
+	}
+
+	/**
+	 * @return a cipher doing AES/CTR with a zero counter or null if the
+	 *         provider does not support it
+	 */
+	private static Cipher createCounterModeCipher(final Key key)
+	{
+		try
+		{
+			final Cipher result = Cipher.getInstance(ALGORITHM + "/CTR/NoPadding");
+			result.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(new byte[BLOCK_SIZE]));
+			return result;
+		}
+		catch (final GeneralSecurityException e)
+		{
+			LOG.debug("AES/CTR not available, falling back to AES/ECB : {}", e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * encrypts or decrypts the given data in place. since counter mode is used
+	 * as a stream cipher, encryption and decryption is the same.
+	 *
+	 * @param data
+	 *            the plain text, or the cipher text; will be overwritten
+	 */
+	public void process(final byte[] data)
+	{
+		process(data, 0, data.length);
+	}
+
+	/**
+	 * encrypts or decrypts a part of the given array in place.
+	 *
+	 * @param data
+	 *            the plain text, or the cipher text; will be overwritten
+	 * @param offset
+	 *            index of the first byte to process
+	 * @param length
+	 *            number of bytes to process
+	 */
+	public void process(final byte[] data, final int offset, final int length)
+	{
+		if (nativeCounterMode)
+		{
+			try
+			{
+				cipher.update(data, offset, length, data, offset);
+			}
+			catch (final GeneralSecurityException e)
+			{
+				throw new RuntimeException(e);
+			}
+			return;
+		}
+		int pos = offset;
+		final int end = offset + length;
+		while (pos < end)
+		{
+			if (keyStreamPos >= keyStream.length)
+			{
+				fillKeyStream();
+			}
+			final int chunk = Math.min(end - pos, keyStream.length - keyStreamPos);
+			for (int i = 0; i < chunk; i++)
+			{
+				data[pos + i] ^= keyStream[keyStreamPos + i];
+			}
+			pos += chunk;
+			keyStreamPos += chunk;
+		}
+	}
+
+	/**
+	 * fallback mode: generate the next {@link #FALLBACK_BLOCKS} blocks of key
+	 * stream with one cipher call.
+	 */
+	private void fillKeyStream()
+	{
+		for (int block = BLOCK_SIZE; block < counterBlocks.length; block += BLOCK_SIZE)
+		{
+			System.arraycopy(counterBlocks, block - BLOCK_SIZE, counterBlocks, block, BLOCK_SIZE);
+			incrementCounter(counterBlocks, block);
+		}
+		try
+		{
+			cipher.update(counterBlocks, 0, counterBlocks.length, keyStream, 0);
+		}
+		catch (final GeneralSecurityException e)
+		{
+			throw new RuntimeException(e);
+		}
+		// the first block of the next round follows the last block of this round
+		System.arraycopy(counterBlocks, counterBlocks.length - BLOCK_SIZE, counterBlocks, 0, BLOCK_SIZE);
+		incrementCounter(counterBlocks, 0);
+		keyStreamPos = 0;
+	}
+
+	/**
+	 * increment the 128 bit big endian counter stored at the given offset.
+	 */
+	private static void incrementCounter(final byte[] buffer, final int offset)
+	{
+		for (int i = offset + BLOCK_SIZE - 1; i >= offset; i--)
+		{
+			if (++buffer[i] != 0)
+			{
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return true if the JCE counter mode implementation is used
+	 */
+	public boolean isNativeCounterMode()
+	{
+		return nativeCounterMode;
+	}
+}
@@ -0,0 +1,253 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package org.silvertunnel_ng.netlib.layer.tor.util;
+
+/**
+ * Running SHA-1 digest of a circuit hop (see tor-spec 6.1).
+ *
+ * Tor needs the intermediate digest after every relay cell. With a
+ * {@link java.security.MessageDigest} this requires a clone per cell; this
+ * implementation keeps the SHA-1 state in plain fields instead, so the
+ * intermediate digest, a snapshot and a restore of the state are just a few
+ * copies and do not allocate anything.
+ *
+ * Instances are not thread safe.
+ *
+ * @author Tobias Boese
+ */
+public final class RelayDigest {
+    /** length of the complete SHA-1 digest in bytes. */
+    public static final int DIGEST_LEN = 20;
+    /** length of the digest field in a relay cell. */
+    public static final int RELAY_DIGEST_LEN = 4;
+    /** SHA-1 block size. */
+    private static final int BLOCK_LEN = 64;
+
+    /** running state: hash values. */
+    private final int[] state = new int[5];
+    /** running state: not yet processed input. */
+    private final byte[] buffer = new byte[BLOCK_LEN];
+    /** running state: number of valid bytes in {@link #buffer}. */
+    private int bufferLen;
+    /** running state: total number of bytes processed. */
+    private long byteCount;
+
+    /** snapshot of the running state. */
+    private final int[] savedState = new int[5];
+    private final byte[] savedBuffer = new byte[BLOCK_LEN];
+    private int savedBufferLen;
+    private long savedByteCount;
+
+    /** scratch space used for calculating the intermediate digest. */
+    private final int[] finalState = new int[5];
+    private final byte[] finalBuffer = new byte[BLOCK_LEN];
+    /** scratch space for the digest calculated by {@link #check(byte[], byte[])}. */
+    private final byte[] checkDigest = new byte[RELAY_DIGEST_LEN];
+    /** scratch space for the message schedule. */
+    private final int[] w = new int[80];
+
+    /**
+     * create a running digest seeded with the given key material (Df or Db).
+     *
+     * @param seed the initial data of the digest
+     */
+    public RelayDigest(final byte[] seed) {
+        reset();
+        update(seed, 0, seed.length);
+    }
+
+    /**
+     * reset to the initial SHA-1 state.
+     */
+    private void reset() {
+        state[0] = 0x67452301;
+        state[1] = 0xefcdab89;
+        state[2] = 0x98badcfe;
+        state[3] = 0x10325476;
+        state[4] = 0xc3d2e1f0;
+        bufferLen = 0;
+        byteCount = 0;
+    }
+
+    /**
+     * add data to the running digest.
+     *
+     * @param data   the data
+     * @param offset the first byte to use
+     * @param length the number of bytes to use
+     */
+    public void update(final byte[] data, final int offset, final int length) {
+        int pos = offset;
+        int remaining = length;
+        byteCount += length;
+        if (bufferLen > 0) {
+            final int fill = Math.min(BLOCK_LEN - bufferLen, remaining);
+            System.arraycopy(data, pos, buffer, bufferLen, fill);
+            bufferLen += fill;
+            pos += fill;
+            remaining -= fill;
+            if (bufferLen < BLOCK_LEN) {
+                return;
+            }
+            processBlock(state, buffer, 0);
+            bufferLen = 0;
+        }
+        while (remaining >= BLOCK_LEN) {
+            processBlock(state, data, pos);
+            pos += BLOCK_LEN;
+            remaining -= BLOCK_LEN;
+        }
+        if (remaining > 0) {
+            System.arraycopy(data, pos, buffer, 0, remaining);
+            bufferLen = remaining;
+        }
+    }
+
+    /**
+     * write the first bytes of the intermediate digest into the given array.
+     * The running state is not modified.
+     *
+     * @param out    the destination
+     * @param offset position in the destination
+     * @param length number of digest bytes to write (at most {@link #DIGEST_LEN})
+     */
+    public void getDigest(final byte[] out, final int offset, final int length) {
+        System.arraycopy(state, 0, finalState, 0, 5);
+        System.arraycopy(buffer, 0, finalBuffer, 0, bufferLen);
+        int len = bufferLen;
+        finalBuffer[len++] = (byte) 0x80;
+        if (len > BLOCK_LEN - 8) {
+            while (len < BLOCK_LEN) {
+                finalBuffer[len++] = 0;
+            }
+            processBlock(finalState, finalBuffer, 0);
+            len = 0;
+        }
+        while (len < BLOCK_LEN - 8) {
+            finalBuffer[len++] = 0;
+        }
+        final long bitCount = byteCount << 3;
+        for (int i = 0; i < 8; i++) {
+            finalBuffer[BLOCK_LEN - 1 - i] = (byte) (bitCount >>> (8 * i));
+        }
+        processBlock(finalState, finalBuffer, 0);
+        for (int i = 0; i < length; i++) {
+            out[offset + i] = (byte) (finalState[i >> 2] >>> (24 - 8 * (i & 3)));
+        }
+    }
+
+    /**
+     * @return a copy of the complete intermediate digest
+     */
+    public byte[] getDigest() {
+        final byte[] result = new byte[DIGEST_LEN];
+        getDigest(result, 0, DIGEST_LEN);
+        return result;
+    }
+
+    /**
+     * save the running state; can be restored with {@link #restore()}.
+     */
+    public void snapshot() {
+        System.arraycopy(state, 0, savedState, 0, 5);
+        System.arraycopy(buffer, 0, savedBuffer, 0, bufferLen);
+        savedBufferLen = bufferLen;
+        savedByteCount = byteCount;
+    }
+
+    /**
+     * restore the state saved by the last call of {@link #snapshot()}.
+     */
+    public void restore() {
+        System.arraycopy(savedState, 0, state, 0, 5);
+        System.arraycopy(savedBuffer, 0, buffer, 0, savedBufferLen);
+        bufferLen = savedBufferLen;
+        byteCount = savedByteCount;
+    }
+
+    /**
+     * add the payload of a received relay cell to the digest and check the
+     * digest field. If the digest does not match the cell was not meant for
+     * this hop and the running state is left unchanged.
+     *
+     * @param payload  the complete relay payload with zeroed digest field
+     * @param expected the 4 digest bytes received in the cell
+     * @return true if the digest matches
+     */
+    public boolean check(final byte[] payload, final byte[] expected) {
+        snapshot();
+        update(payload, 0, payload.length);
+        getDigest(checkDigest, 0, RELAY_DIGEST_LEN);
+        if (checkDigest[0] == expected[0]
+                && checkDigest[1] == expected[1]
+                && checkDigest[2] == expected[2]
+                && checkDigest[3] == expected[3]) {
+            return true;
+        }
+        restore();
+        return false;
+    }
+
+    /**
+     * process one block of 64 bytes.
+     */
+    private void processBlock(final int[] h, final byte[] block, final int offset) {
+        for (int i = 0; i < 16; i++) {
+            final int j = offset + (i << 2);
+            w[i] = (block[j] << 24) | ((block[j + 1] & 0xff) << 16)
+                    | ((block[j + 2] & 0xff) << 8) | (block[j + 3] & 0xff);
+        }
+        for (int i = 16; i < 80; i++) {
+            final int x = w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16];
+            w[i] = (x << 1) | (x >>> 31);
+        }
+        int a = h[0];
+        int b = h[1];
+        int c = h[2];
+        int d = h[3];
+        int e = h[4];
+        for (int i = 0; i < 80; i++) {
+            final int f;
+            final int k;
+            if (i < 20) {
+                f = (b & c) | (~b & d);
+                k = 0x5a827999;
+            } else if (i < 40) {
+                f = b ^ c ^ d;
+                k = 0x6ed9eba1;
+            } else if (i < 60) {
+                f = (b & c) | (b & d) | (c & d);
+                k = 0x8f1bbcdc;
+            } else {
+                f = b ^ c ^ d;
+                k = 0xca62c1d6;
+            }
+            final int temp = ((a << 5) | (a >>> 27)) + f + e + k + w[i];
+            e = d;
+            d = c;
+            c = (b << 30) | (b >>> 2);
+            b = a;
+            a = temp;
+        }
+        h[0] += a;
+        h[1] += b;
+        h[2] += c;
+        h[3] += d;
+        h[4] += e;
+    }
+}
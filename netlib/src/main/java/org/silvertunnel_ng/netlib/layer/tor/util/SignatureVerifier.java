@@ -0,0 +1,270 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.util;
+
+import org.silvertunnel_ng.netlib.util.DatatypeConverter;
+import org.silvertunnel_ng.netlib.util.NetlibThreads;
+import org.silvertunnel_ng.netlib.util.NetlibThreads.Subsystem;
+import org.silvertunnel_ng.netlib.util.StringStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifies the RSA signatures of directory documents and remembers the
+ * successful verifications.
+ *
+ * A verification is remembered by the SHA-1 of the document digest and the
+ * signing key. Verifying the same document with the same key again, e.g. the
+ * cached consensus at startup or an unchanged router descriptor downloaded
+ * again, costs a lookup instead of an RSA operation. The remembered
+ * verifications can be kept in a {@link StringStorage}; they are exactly as
+ * trustworthy as the cached documents kept there.
+ *
+ * Independent signatures, e.g. the authority signatures of a consensus, are
+ * verified in parallel by {@link #verifyAll(List)}.
+ *
+ * @author Tobias Boese
+ */
+public final class SignatureVerifier {
+    /** */
+    private static final Logger LOG = LoggerFactory.getLogger(SignatureVerifier.class);
+
+    /** key of the remembered verifications in the {@link StringStorage}. */
+    public static final String STORAGEKEY_VERIFIED_SIGNATURES_TXT = "verified-signatures.txt";
+
+    /** number of remembered verifications; enough for the descriptors of all routers. */
+    static final int MAX_VERIFIED = 16384;
+
+    /** length of a key of {@link #VERIFIED}: hex SHA-1. */
+    private static final int KEY_LENGTH = 2 * RelayDigest.DIGEST_LEN;
+
+    /** number of verifying threads. */
+    private static final int THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /** the verifying threads; they end when idle. */
+    private static final ThreadPoolExecutor POOL;
+
+    static {
+        POOL = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                NetlibThreads.threadFactory(Subsystem.OTHER, "SignatureVerifier", true));
+        POOL.allowCoreThreadTimeOut(true);
+    }
+
+    /** the remembered verifications, least recently used first. */
+    private static final Map<String, Boolean> VERIFIED = new LinkedHashMap<String, Boolean>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_VERIFIED;
+        }
+    };
+
+    /** the storages the remembered verifications were loaded from. */
+    private static final Set<StringStorage> LOADED = Collections.newSetFromMap(new IdentityHashMap<StringStorage, Boolean>());
+
+    private SignatureVerifier() {
+    }
+
+    /**
+     * Check a signature, see {@link Encryption#verifySignatureWithHash(byte[], PublicKey, byte[])}.
+     *
+     * @param signature  signature to check
+     * @param signingKey public key from signing
+     * @param dataDigest the SHA-1 digest of the signed data
+     * @return true, if the signature is correct or the same data was verified with the same key before
+     */
+    public static boolean verify(final byte[] signature, final PublicKey signingKey, final byte[] dataDigest) {
+        final String key = getKey(signingKey, dataDigest);
+        if (key != null && isVerified(key)) {
+            return true;
+        }
+        final boolean result = Encryption.verifySignatureWithHash(signature, signingKey, dataDigest);
+        if (result && key != null) {
+            synchronized (VERIFIED) {
+                VERIFIED.put(key, Boolean.TRUE);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Check several signatures in parallel. A signature which cannot be
+     * checked at all (e.g. it has the wrong length) counts as invalid.
+     *
+     * @param verifications the signatures to check
+     * @return the result for each verification, in the same order
+     */
+    public static boolean[] verifyAll(final List<Verification> verifications) {
+        final boolean[] result = new boolean[verifications.size()];
+        final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(verifications.size());
+        for (int i = 0; i < result.length; i++) {
+            final Verification verification = verifications.get(i);
+            final String key = getKey(verification.signingKey, verification.dataDigest);
+            if (key != null && isVerified(key)) {
+                result[i] = true;
+                futures.add(null);
+            } else {
+                futures.add(POOL.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return verify(verification.signature, verification.signingKey, verification.dataDigest);
+                    }
+                }));
+            }
+        }
+        for (int i = 0; i < result.length; i++) {
+            final Future<Boolean> future = futures.get(i);
+            if (future == null) {
+                continue;
+            }
+            try {
+                result[i] = future.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return result;
+            } catch (final ExecutionException e) {
+                LOG.debug("signature could not be checked", e.getCause());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Load the remembered verifications of a previous run; only done once per storage.
+     *
+     * @param stringStorage where {@link #save(StringStorage)} stored them
+     */
+    public static void load(final StringStorage stringStorage) {
+        synchronized (LOADED) {
+            if (!LOADED.add(stringStorage)) {
+                return;
+            }
+        }
+        final String stored = stringStorage.get(STORAGEKEY_VERIFIED_SIGNATURES_TXT);
+        if (stored == null) {
+            return;
+        }
+        int count = 0;
+        synchronized (VERIFIED) {
+            for (final String line : stored.split("\n")) {
+                if (line.length() == KEY_LENGTH && !VERIFIED.containsKey(line)) {
+                    VERIFIED.put(line, Boolean.TRUE);
+                    count++;
+                }
+            }
+        }
+        LOG.debug("loaded {} verified signatures", count);
+    }
+
+    /**
+     * Store the remembered verifications for the next run.
+     *
+     * @param stringStorage where to store them
+     */
+    public static void save(final StringStorage stringStorage) {
+        final StringBuilder result;
+        synchronized (VERIFIED) {
+            result = new StringBuilder(VERIFIED.size() * (KEY_LENGTH + 1));
+            for (final String key : VERIFIED.keySet()) {
+                result.append(key).append('\n');
+            }
+        }
+        try {
+            stringStorage.put(STORAGEKEY_VERIFIED_SIGNATURES_TXT, result.toString());
+        } catch (final RuntimeException e) {
+            LOG.warn("could not store the verified signatures", e);
+        }
+    }
+
+    /**
+     * @return the number of remembered verifications
+     */
+    static int size() {
+        synchronized (VERIFIED) {
+            return VERIFIED.size();
+        }
+    }
+
+    /**
+     * Forget all verifications.
+     */
+    static void clear() {
+        synchronized (VERIFIED) {
+            VERIFIED.clear();
+        }
+        synchronized (LOADED) {
+            LOADED.clear();
+        }
+    }
+
+    private static boolean isVerified(final String key) {
+        synchronized (VERIFIED) {
+            return VERIFIED.get(key) != null;
+        }
+    }
+
+    /**
+     * @return the hex SHA-1 of dataDigest and signingKey; null if the key has no encoding
+     */
+    private static String getKey(final PublicKey signingKey, final byte[] dataDigest) {
+        final byte[] encodedKey = signingKey == null ? null : signingKey.getEncoded();
+        if (encodedKey == null || dataDigest == null) {
+            return null;
+        }
+        final MessageDigest md = Encryption.getMessagesDigest();
+        md.update(dataDigest);
+        md.update(encodedKey);
+        return DatatypeConverter.printHexBinary(md.digest());
+    }
+
+    /**
+     * one signature to check.
+     */
+    public static final class Verification {
+        private final byte[] signature;
+        private final PublicKey signingKey;
+        private final byte[] dataDigest;
+
+        /**
+         * @param signature  signature to check
+         * @param signingKey public key from signing
+         * @param dataDigest the SHA-1 digest of the signed data
+         */
+        public Verification(final byte[] signature, final PublicKey signingKey, final byte[] dataDigest) {
+            this.signature = signature;
+            this.signingKey = signingKey;
+            this.dataDigest = dataDigest;
+        }
+    }
+}
@@ -50,6 +50,8 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLStreamHandler;
+import java.util.Collections;
+import java.util.Map;
 import java.util.zip.DataFormatException;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.InflaterInputStream;
@@ -84,6 +86,45 @@ public final class SimpleHttpClientCompressed {
      */
     private static final int BUFFER_SIZE = 512000;
 
+    /**
+     * Processes the body of a response while it is received.
+     *
+     * @param <T> the result of the processing
+     */
+    public interface ResponseHandler<T> {
+        /**
+         * @param in the decompressed body; it is closed by the caller
+         * @return the result
+         * @throws IOException if reading fails
+         */
+        T handle(InputStream in) throws IOException;
+    }
+
+    /**
+     * The server answered with a status code other than 2xx.
+     */
+    public static final class HttpStatusException extends IOException {
+        /** */
+        private static final long serialVersionUID = 1L;
+        private final int statusCode;
+
+        /**
+         * @param statusCode the status code of the response
+         * @param message    the detail message
+         */
+        public HttpStatusException(final int statusCode, final String message) {
+            super(message);
+            this.statusCode = statusCode;
+        }
+
+        /**
+         * @return the status code of the response, e.g. 404
+         */
+        public int getStatusCode() {
+            return statusCode;
+        }
+    }
+
     /**
      * Execute HTTP GET request.
      * <br>
@@ -94,10 +135,75 @@ public final class SimpleHttpClientCompressed {
      * @param hostAndPort
      * @param path
      * @return response as String, not null
-     * @throws IOException         in the case of any error
+     * @throws HttpStatusException if the server answered with a status code other than 2xx
+     * @throws IOException         in the case of any other error
      * @throws DataFormatException
      */
     public String get(final NetLayer netLayer, TcpipNetAddress hostAndPort, String path) throws IOException, DataFormatException {
+        final String response = get(netLayer, hostAndPort, path, new ResponseHandler<String>() {
+            @Override
+            public String handle(final InputStream in) throws IOException {
+                final DynByteBuffer byteBuffer = new DynByteBuffer(BUFFER_SIZE);
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    byteBuffer.append(buffer, 0, count);
+                }
+                return new String(byteBuffer.toArray(), Util.UTF8);
+            }
+        });
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("download with hostAndPort=" + hostAndPort + " and path=" + path + " finished with result of length="
+                    + response.length());
+        }
+        return response;
+    }
+
+    /**
+     * Execute HTTP GET request and process the response body while it is
+     * received, without keeping the whole body in memory.
+     * <br>
+     * If you want to define timeouts than you should wrap the lowerNetLayer by
+     * a ControlNetLayer.
+     *
+     * @param netLayer
+     * @param hostAndPort
+     * @param path
+     * @param responseHandler reads the decompressed body
+     * @param <T>             the result of the handler
+     * @return the result of the handler
+     * @throws HttpStatusException if the server answered with a status code other than 2xx
+     * @throws IOException in the case of any other error
+     */
+    public <T> T get(final NetLayer netLayer,
+                     final TcpipNetAddress hostAndPort,
+                     final String path,
+                     final ResponseHandler<T> responseHandler) throws IOException {
+        return get(netLayer, hostAndPort, path, Collections.<String, String>emptyMap(), responseHandler);
+    }
+
+    /**
+     * Execute HTTP GET request with additional request headers and process
+     * the response body while it is received.
+     * <br>
+     * If you want to define timeouts than you should wrap the lowerNetLayer by
+     * a ControlNetLayer.
+     *
+     * @param netLayer
+     * @param hostAndPort
+     * @param path
+     * @param requestHeaders  the additional request headers by name
+     * @param responseHandler reads the decompressed body
+     * @param <T>             the result of the handler
+     * @return the result of the handler
+     * @throws HttpStatusException if the server answered with a status code other than 2xx
+     * @throws IOException in the case of any other error
+     */
+    public <T> T get(final NetLayer netLayer,
+                     final TcpipNetAddress hostAndPort,
+                     String path,
+                     final Map<String, String> requestHeaders,
+                     final ResponseHandler<T> responseHandler) throws IOException {
         String urlStr = null;
         InputStream in = null;
         final long startTime = System.currentTimeMillis();
@@ -125,6 +231,9 @@ public final class SimpleHttpClientCompressed {
             final URLConnection conn = url.openConnection();
             conn.setDoOutput(false);
             conn.setDoInput(true);
+            for (final Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                conn.setRequestProperty(header.getKey(), header.getValue());
+            }
             conn.connect();
             // read response code
             if (conn instanceof HttpURLConnection) {
@@ -134,28 +243,21 @@ public final class SimpleHttpClientCompressed {
                 // is it a "successful" code?
                 if (!(code >= 200 && code < 300)) {
                     // no: not successful
-                    throw new IOException(PROTOCOL_HTTP + " transfer was not successful for url=" + urlStr);
+                    throw new HttpStatusException(code, PROTOCOL_HTTP + " transfer was not successful (status " + code
+                            + ") for url=" + urlStr);
                 }
             } else {
                 // wrong protocol (handler)
                 throw new IOException(PROTOCOL_HTTP + " response code could not be determined for url=" + urlStr);
             }
             in = getInputStream(conn.getInputStream());
-            final DynByteBuffer byteBuffer = new DynByteBuffer(BUFFER_SIZE);
-            final byte[] buffer = new byte[BUFFER_SIZE];
-            int count;
-            while ((count = in.read(buffer)) > 0) {
-                byteBuffer.append(buffer, 0, count);
-            }
-            long timeReceived = System.currentTimeMillis();
-
-            final String response = new String(byteBuffer.toArray(), Util.UTF8);
+            final T result = responseHandler.handle(in);
             // result
             if (LOG.isDebugEnabled()) {
-                LOG.debug("end download with hostAndPort=" + hostAndPort + " and path=" + path + " finished with result of length="
-                        + response.length() + " timeReceived : " + (timeReceived - startTime) + " ms");
+                LOG.debug("end download with hostAndPort=" + hostAndPort + " and path=" + path
+                        + " timeReceived : " + (System.currentTimeMillis() - startTime) + " ms");
             }
-            return response;
+            return result;
 
         } catch (final IOException e) {
             if (LOG.isDebugEnabled()) {
@@ -0,0 +1,43 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package org.silvertunnel_ng.netlib.util;
+
+/**
+ * Creates the threads of netlib (SPI).
+ * 
+ * All threads of netlib are created with {@link NetlibThreads}, which
+ * delegates to the installed factory, see
+ * {@link NetlibThreads#setFactory(NetlibThreadFactory)}.
+ * 
+ * @author Tobias Boese
+ */
+public interface NetlibThreadFactory
+{
+	/**
+	 * Create a thread, but do not start it.
+	 * 
+	 * @param name
+	 *            the name of the thread
+	 * @param task
+	 *            the code to be executed by the thread
+	 * @param daemon
+	 *            true if the thread shall not prevent the JVM from exiting
+	 * @return the new thread
+	 */
+	Thread newThread(String name, Runnable task, boolean daemon);
+}
@@ -0,0 +1,340 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package org.silvertunnel_ng.netlib.util;
+
+import java.lang.reflect.Method;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Central place to create the threads of netlib.
+ * 
+ * The threads are created by a {@link NetlibThreadFactory}. By default these
+ * are platform threads; with {@link ThreadMode#VIRTUAL} (JDK 21 or newer)
+ * virtual threads are used, so blocking per-stream threads (SOCKS sessions,
+ * stream relays, ...) do not need an OS thread each. The mode can be set with
+ * the system property {@value #SYSTEMPROPERTY_THREAD_MODE}.
+ * 
+ * The number of running threads is counted per {@link Subsystem}.
+ * 
+ * @author Tobias Boese
+ */
+public final class NetlibThreads
+{
+	/** */
+	private static final Logger LOG = LoggerFactory.getLogger(NetlibThreads.class);
+
+	/**
+	 * Name of the system property to set the {@link ThreadMode} (PLATFORM or VIRTUAL).
+	 */
+	public static final String SYSTEMPROPERTY_THREAD_MODE = "silvertunnel-ng.netlib.threadMode";
+
+	/**
+	 * The parts of netlib creating threads.
+	 */
+	public enum Subsystem
+	{
+		/** reading and writing the TLS connections to the routers. */
+		TLS,
+		/** building circuits and decrypting cells. */
+		CIRCUIT,
+		/** building and serving Tor streams. */
+		STREAM,
+		/** the sessions of the SOCKS server. */
+		SOCKS,
+		/** copying data between two sockets. */
+		INTERCONNECT,
+		/** {@link org.silvertunnel_ng.netlib.api.impl.SocketTimeoutInputStream}s. */
+		SOCKET_TIMEOUT,
+		/** the control layer. */
+		CONTROL,
+		/** hidden services. */
+		HIDDEN_SERVICE,
+		/** everything else. */
+		OTHER
+	}
+
+	/**
+	 * Kind of threads created.
+	 */
+	public enum ThreadMode
+	{
+		/** classic (OS) threads. */
+		PLATFORM,
+		/** virtual threads (JDK 21 or newer); platform threads on older JDKs. */
+		VIRTUAL
+	}
+
+	/** creates platform threads. */
+	public static final NetlibThreadFactory PLATFORM_THREAD_FACTORY = new NetlibThreadFactory()
+	{
+		@Override
+		public Thread newThread(final String name, final Runnable task, final boolean daemon)
+		{
+			final Thread thread = new Thread(task, name);
+			thread.setDaemon(daemon);
+			return thread;
+		}
+	};
+
+	/** creates virtual threads; null if not supported by the JVM. */
+	private static final NetlibThreadFactory VIRTUAL_THREAD_FACTORY = createVirtualThreadFactory();
+
+	private static volatile NetlibThreadFactory factory = PLATFORM_THREAD_FACTORY;
+
+	/** number of running threads per subsystem. */
+	private static final Map<Subsystem, AtomicInteger> LIVE_THREADS = new EnumMap<Subsystem, AtomicInteger>(Subsystem.class);
+
+	static
+	{
+		for (final Subsystem subsystem : Subsystem.values())
+		{
+			LIVE_THREADS.put(subsystem, new AtomicInteger());
+		}
+		final String mode = System.getProperty(SYSTEMPROPERTY_THREAD_MODE);
+		if (mode != null)
+		{
+			try
+			{
+				setThreadMode(ThreadMode.valueOf(mode.trim().toUpperCase()));
+			}
+			catch (final IllegalArgumentException e)
+			{
+				LOG.warn("unknown thread mode {}", mode);
+			}
+		}
+	}
+
+	private NetlibThreads()
+	{
+	}
+
+	/**
+	 * Use virtual or platform threads for all threads created afterwards.
+	 * 
+	 * @param mode
+	 *            the mode
+	 */
+	public static void setThreadMode(final ThreadMode mode)
+	{
+		if (mode == ThreadMode.VIRTUAL)
+		{
+			if (VIRTUAL_THREAD_FACTORY == null)
+			{
+				LOG.warn("virtual threads are not supported by this JVM, using platform threads");
+				factory = PLATFORM_THREAD_FACTORY;
+			}
+			else
+			{
+				factory = VIRTUAL_THREAD_FACTORY;
+			}
+		}
+		else
+		{
+			factory = PLATFORM_THREAD_FACTORY;
+		}
+	}
+
+	/**
+	 * @return true if virtual threads are supported by this JVM
+	 */
+	public static boolean isVirtualThreadSupported()
+	{
+		return VIRTUAL_THREAD_FACTORY != null;
+	}
+
+	/**
+	 * Install an own factory for all threads created afterwards.
+	 * 
+	 * @param newFactory
+	 *            the factory
+	 */
+	public static void setFactory(final NetlibThreadFactory newFactory)
+	{
+		if (newFactory == null)
+		{
+			LOG.error("setFactory should not be null");
+		}
+		else
+		{
+			factory = newFactory;
+		}
+	}
+
+	/**
+	 * @return the factory currently used
+	 */
+	public static NetlibThreadFactory getFactory()
+	{
+		return factory;
+	}
+
+	/**
+	 * Create a thread, but do not start it.
+	 * 
+	 * @param subsystem
+	 *            the subsystem the thread is counted for
+	 * @param name
+	 *            the name of the thread
+	 * @param task
+	 *            the code to be executed by the thread
+	 * @param daemon
+	 *            true if the thread shall not prevent the JVM from exiting
+	 *            (virtual threads are always daemon threads)
+	 * @return the new thread
+	 */
+	public static Thread newThread(final Subsystem subsystem,
+	                               final String name,
+	                               final Runnable task,
+	                               final boolean daemon)
+	{
+		final AtomicInteger counter = LIVE_THREADS.get(subsystem);
+		return factory.newThread(name, new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				counter.incrementAndGet();
+				try
+				{
+					task.run();
+				}
+				finally
+				{
+					counter.decrementAndGet();
+				}
+			}
+		}, daemon);
+	}
+
+	/**
+	 * Create and start a thread.
+	 * 
+	 * @param subsystem
+	 *            the subsystem the thread is counted for
+	 * @param name
+	 *            the name of the thread
+	 * @param task
+	 *            the code to be executed by the thread
+	 * @param daemon
+	 *            true if the thread shall not prevent the JVM from exiting
+	 * @return the started thread
+	 */
+	public static Thread start(final Subsystem subsystem,
+	                           final String name,
+	                           final Runnable task,
+	                           final boolean daemon)
+	{
+		final Thread thread = newThread(subsystem, name, task, daemon);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * A {@link ThreadFactory} for executors, creating the threads with
+	 * {@link #newThread(Subsystem, String, Runnable, boolean)}.
+	 * 
+	 * @param subsystem
+	 *            the subsystem the threads are counted for
+	 * @param namePrefix
+	 *            the names of the threads are namePrefix-1, namePrefix-2, ...
+	 * @param daemon
+	 *            true if the threads shall not prevent the JVM from exiting
+	 * @return the thread factory
+	 */
+	public static ThreadFactory threadFactory(final Subsystem subsystem, final String namePrefix, final boolean daemon)
+	{
+		return new ThreadFactory()
+		{
+			private final AtomicInteger number = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable task)
+			{
+				return NetlibThreads.newThread(subsystem, namePrefix + "-" + number.incrementAndGet(), task, daemon);
+			}
+		};
+	}
+
+	/**
+	 * @param subsystem
+	 *            the subsystem
+	 * @return the number of running threads of the subsystem
+	 */
+	public static int getLiveThreadCount(final Subsystem subsystem)
+	{
+		return LIVE_THREADS.get(subsystem).get();
+	}
+
+	/**
+	 * @return the number of running threads per subsystem
+	 */
+	public static Map<Subsystem, Integer> getLiveThreadCounts()
+	{
+		final Map<Subsystem, Integer> result = new EnumMap<Subsystem, Integer>(Subsystem.class);
+		for (final Map.Entry<Subsystem, AtomicInteger> entry : LIVE_THREADS.entrySet())
+		{
+			result.put(entry.getKey(), entry.getValue().get());
+		}
+		return result;
+	}
+
+	/**
+	 * Thread.ofVirtual() is looked up with reflection as netlib is compiled
+	 * for older JDKs.
+	 * 
+	 * @return the factory or null if virtual threads are not supported
+	 */
+	private static NetlibThreadFactory createVirtualThreadFactory()
+	{
+		try
+		{
+			final Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			final Method nameMethod = builderClass.getMethod("name", String.class);
+			final Method unstartedMethod = builderClass.getMethod("unstarted", Runnable.class);
+			return new NetlibThreadFactory()
+			{
+				@Override
+				public Thread newThread(final String name, final Runnable task, final boolean daemon)
+				{
+					try
+					{
+						final Object builder = nameMethod.invoke(ofVirtual.invoke(null), name);
+						return (Thread) unstartedMethod.invoke(builder, task);
+					}
+					catch (final Exception e)
+					{
+						LOG.warn("could not create virtual thread, using platform thread", e);
+						return PLATFORM_THREAD_FACTORY.newThread(name, task, daemon);
+					}
+				}
+			};
+		}
+		catch (final Exception e)
+		{
+			LOG.debug("virtual threads not supported: {}", e.toString());
+			return null;
+		}
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package org.silvertunnel_ng.netlib.util;
+
+import java.security.SecureRandom;
+
+/**
+ * One {@link SecureRandom} per thread.
+ * 
+ * A shared SecureRandom serialises all its callers; threads choosing routes
+ * or padding in parallel use their own instance instead.
+ * 
+ * @author Tobias Boese
+ */
+public final class ThreadLocalSecureRandom
+{
+	private static final ThreadLocal<SecureRandom> RANDOM = new ThreadLocal<SecureRandom>()
+	{
+		@Override
+		protected SecureRandom initialValue()
+		{
+			return new SecureRandom();
+		}
+	};
+
+	private ThreadLocalSecureRandom()
+	{
+		// utility class
+	}
+
+	/**
+	 * @return the SecureRandom of the current thread
+	 */
+	public static SecureRandom current()
+	{
+		return RANDOM.get();
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor;
+
+import static org.testng.AssertJUnit.assertNotNull;
+
+import org.silvertunnel_ng.netlib.api.HttpTestUtil;
+import org.silvertunnel_ng.netlib.api.util.IpNetAddress;
+import org.silvertunnel_ng.netlib.layer.tcpip.TcpipNetLayer;
+import org.silvertunnel_ng.netlib.layer.tls.TLSNetLayer;
+import org.silvertunnel_ng.netlib.layer.tor.common.TLSConnectionBackend;
+import org.silvertunnel_ng.netlib.layer.tor.common.TorConfig;
+import org.silvertunnel_ng.netlib.util.TempfileStringStorage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+/**
+ * Test the NIO backend of the TLS connections.
+ * 
+ * @author Tobias Boese
+ */
+public final class TorNioBackendRemoteTest
+{
+	/** */
+	private static final Logger LOG = LoggerFactory.getLogger(TorNioBackendRemoteTest.class);
+
+	private TorNetLayer torNetLayer;
+
+	@Test(timeOut = 600000)
+	public void initializeTor() throws Exception
+	{
+		TorConfig.setTlsConnectionBackend(TLSConnectionBackend.NIO);
+		final TcpipNetLayer tcpipNetLayer = new TcpipNetLayer();
+		torNetLayer = new TorNetLayer(new TLSNetLayer(tcpipNetLayer), new TcpipNetLayer(),
+				TempfileStringStorage.getInstance());
+		torNetLayer.waitUntilReady();
+	}
+
+	@Test(timeOut = 30000, dependsOnMethods = {"initializeTor" })
+	public void testConnectionOverNioBackend() throws Exception
+	{
+		final IpNetAddress exitNodeIp = HttpTestUtil.getSourceIpNetAddress(torNetLayer);
+		LOG.info("exitNodeIp=" + exitNodeIp);
+		assertNotNull("exitNodeIp==null", exitNodeIp);
+	}
+
+	@AfterClass
+	public void tearDown()
+	{
+		if (torNetLayer != null)
+		{
+			torNetLayer.close();
+		}
+		TorConfig.setTlsConnectionBackend(TLSConnectionBackend.BLOCKING);
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.circuit;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.silvertunnel_ng.netlib.layer.tor.circuit.cells.Cell;
+import org.silvertunnel_ng.netlib.layer.tor.common.TorConfig;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Test of {@link CellPipeline}.
+ *
+ * @author Tobias Boese
+ */
+public class CellPipelineLocalTest
+{
+	/**
+	 * records the delivered cells; delivering the cell {@link #blocking}
+	 * waits for {@link #release}.
+	 */
+	private static final class RecordingDispatcher extends TLSCellDispatcher
+	{
+		private final List<Cell> delivered = Collections.synchronizedList(new ArrayList<Cell>());
+		private final CountDownLatch release = new CountDownLatch(1);
+		private final CountDownLatch blocked = new CountDownLatch(1);
+		private volatile Cell blocking;
+
+		RecordingDispatcher()
+		{
+			super(null);
+		}
+
+		@Override
+		void deliver(final Circuit circ, final Cell cell)
+		{
+			if (cell == blocking)
+			{
+				blocked.countDown();
+				try
+				{
+					release.await();
+				}
+				catch (final InterruptedException e)
+				{
+					// ignore
+				}
+			}
+			delivered.add(cell);
+		}
+	}
+
+	private static Cell createCell(final int marker) throws IOException
+	{
+		final byte[] raw = new byte[Cell.CELL_TOTAL_SIZE];
+		raw[2] = (byte) Cell.CELL_RELAY;
+		raw[3] = (byte) marker;
+		return new Cell(new ByteArrayInputStream(raw));
+	}
+
+	private static void waitFor(final List<Cell> delivered, final int cells) throws InterruptedException
+	{
+		final long end = System.currentTimeMillis() + 5000;
+		while (delivered.size() < cells && System.currentTimeMillis() < end)
+		{
+			Thread.sleep(5);
+		}
+	}
+
+	@BeforeClass
+	public void setUp()
+	{
+		TorConfig.setCellDispatchThreads(4);
+	}
+
+	@Test(timeOut = 10000)
+	public void testOrderIsKept() throws Exception
+	{
+		final RecordingDispatcher dispatcher = new RecordingDispatcher();
+		final CellPipeline pipeline = new CellPipeline(null);
+		final List<Cell> cells = new ArrayList<Cell>();
+		for (int i = 0; i < 1000; i++)
+		{
+			final Cell cell = createCell(i);
+			cells.add(cell);
+			pipeline.add(cell, dispatcher);
+		}
+		waitFor(dispatcher.delivered, cells.size());
+		assertEquals(cells, dispatcher.delivered);
+		assertEquals(0, pipeline.size());
+	}
+
+	/**
+	 * a circuit whose consumer blocks must not stall the other circuits.
+	 */
+	@Test(timeOut = 10000)
+	public void testBlockedCircuitDoesNotStallOthers() throws Exception
+	{
+		final RecordingDispatcher dispatcher = new RecordingDispatcher();
+		final CellPipeline slow = new CellPipeline(null);
+		final CellPipeline fast = new CellPipeline(null);
+		dispatcher.blocking = createCell(0);
+		slow.add(dispatcher.blocking, dispatcher);
+		final Cell behindBlocked = createCell(1);
+		slow.add(behindBlocked, dispatcher);
+		assertTrue(dispatcher.blocked.await(5, TimeUnit.SECONDS));
+
+		for (int i = 0; i < 100; i++)
+		{
+			fast.add(createCell(i), dispatcher);
+		}
+		waitFor(dispatcher.delivered, 100);
+		assertEquals(100, dispatcher.delivered.size());
+		assertTrue(!dispatcher.delivered.contains(behindBlocked));
+
+		dispatcher.release.countDown();
+		waitFor(dispatcher.delivered, 102);
+		assertEquals(behindBlocked, dispatcher.delivered.get(101));
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.circuit;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.silvertunnel_ng.netlib.layer.tor.api.Fingerprint;
+import org.silvertunnel_ng.netlib.layer.tor.directory.FingerprintImpl;
+import org.testng.annotations.Test;
+
+/**
+ * Test of the accounting of used nodes in {@link CircuitAdmin}.
+ *
+ * @author Tobias Boese
+ */
+public class CircuitAdminLocalTest
+{
+	private static Fingerprint fingerprint(final int id)
+	{
+		final byte[] key = new byte[20];
+		key[0] = (byte) 0xfe;
+		key[1] = (byte) id;
+		return new FingerprintImpl(key);
+	}
+
+	@Test
+	public void testUsedNodesAreCounted()
+	{
+		final Fingerprint[] route = {fingerprint(1), fingerprint(2), fingerprint(3)};
+		assertNull(CircuitAdmin.getCurrentlyUsedNode(route[0]));
+		CircuitAdmin.addUsedNodes(route);
+		CircuitAdmin.addUsedNodes(new Fingerprint[] {route[0]});
+		assertEquals(Integer.valueOf(2), CircuitAdmin.getCurrentlyUsedNode(route[0]));
+		assertEquals(Integer.valueOf(1), CircuitAdmin.getCurrentlyUsedNode(route[2]));
+		CircuitAdmin.removeUsedNodes(route);
+		CircuitAdmin.removeUsedNodes(route);
+		// never below 0
+		assertEquals(Integer.valueOf(0), CircuitAdmin.getCurrentlyUsedNode(route[0]));
+		assertEquals(Integer.valueOf(0), CircuitAdmin.getCurrentlyUsedNode(route[2]));
+	}
+
+	@Test(timeOut = 20000)
+	public void testConcurrentAccounting() throws InterruptedException
+	{
+		final Fingerprint[] route = {fingerprint(10), fingerprint(11)};
+		final int rounds = 10000;
+		final List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 4; t++)
+		{
+			threads.add(new Thread()
+			{
+				@Override
+				public void run()
+				{
+					for (int i = 0; i < rounds; i++)
+					{
+						CircuitAdmin.addUsedNodes(route);
+						CircuitAdmin.addUsedNodes(route);
+						CircuitAdmin.removeUsedNodes(route);
+					}
+				}
+			});
+		}
+		for (final Thread thread : threads)
+		{
+			thread.start();
+		}
+		for (final Thread thread : threads)
+		{
+			thread.join();
+		}
+		assertEquals(Integer.valueOf(4 * rounds), CircuitAdmin.getCurrentlyUsedNode(route[0]));
+		assertEquals(Integer.valueOf(4 * rounds), CircuitAdmin.getCurrentlyUsedNode(route[1]));
+	}
+}
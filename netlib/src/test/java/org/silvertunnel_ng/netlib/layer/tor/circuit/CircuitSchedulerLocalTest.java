@@ -0,0 +1,164 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.circuit;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.silvertunnel_ng.netlib.layer.tor.circuit.cells.Cell;
+import org.testng.annotations.Test;
+
+/**
+ * Test of {@link CircuitScheduler}.
+ *
+ * @author Tobias Boese
+ */
+public class CircuitSchedulerLocalTest
+{
+	/** position of the payload: behind circuit id and command. */
+	private static final int PAYLOAD_POS = 3;
+
+	private static byte[] createCell(final int circuitId, final int number)
+	{
+		final byte[] cell = new byte[Cell.CELL_TOTAL_SIZE];
+		cell[0] = (byte) (circuitId >> 8);
+		cell[1] = (byte) circuitId;
+		cell[PAYLOAD_POS] = (byte) number;
+		return cell;
+	}
+
+	private static int circuitId(final byte[] cell)
+	{
+		return ((cell[0] & 0xff) << 8) | (cell[1] & 0xff);
+	}
+
+	private static void offer(final CircuitScheduler scheduler, final byte[] cell) throws InterruptedException
+	{
+		assertTrue(scheduler.offer(cell, 0, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * a circuit which sent little overtakes the backlog of a bulk circuit.
+	 */
+	@Test(timeOut = 10000)
+	public void testInteractiveCircuitOvertakesBulkCircuit() throws Exception
+	{
+		final CircuitScheduler scheduler = new CircuitScheduler(1000, 30000);
+		for (int i = 0; i < 100; i++)
+		{
+			offer(scheduler, createCell(1, i));
+		}
+		// the bulk circuit already got some cells through
+		for (int i = 0; i < 10; i++)
+		{
+			assertEquals(1, circuitId(scheduler.poll()));
+		}
+		offer(scheduler, createCell(2, 0));
+		assertEquals("interactive cell must be next", 2, circuitId(scheduler.poll()));
+		assertEquals(1, circuitId(scheduler.poll()));
+		assertEquals(89, scheduler.size());
+	}
+
+	@Test(timeOut = 10000)
+	public void testCircuitsShareTheConnection() throws Exception
+	{
+		final CircuitScheduler scheduler = new CircuitScheduler(1000, 30000);
+		for (int i = 0; i < 100; i++)
+		{
+			offer(scheduler, createCell(1, i));
+			offer(scheduler, createCell(2, i));
+		}
+		final int[] sent = new int[3];
+		for (int i = 0; i < 100; i++)
+		{
+			sent[circuitId(scheduler.poll())]++;
+		}
+		assertTrue("unfair: " + sent[1] + "/" + sent[2], Math.abs(sent[1] - sent[2]) <= 2);
+	}
+
+	@Test(timeOut = 10000)
+	public void testOrderWithinCircuitIsKept() throws Exception
+	{
+		final CircuitScheduler scheduler = new CircuitScheduler(1000, 1);
+		for (int i = 0; i < 50; i++)
+		{
+			offer(scheduler, createCell(1 + i % 3, i));
+		}
+		final int[] last = {-1, -1, -1, -1};
+		byte[] cell;
+		while ((cell = scheduler.poll()) != null)
+		{
+			final int number = cell[PAYLOAD_POS];
+			assertTrue("order of cells", number > last[circuitId(cell)]);
+			last[circuitId(cell)] = number;
+		}
+		assertEquals(0, scheduler.size());
+	}
+
+	@Test(timeOut = 10000)
+	public void testFullQueueBlocksSender() throws Exception
+	{
+		final CircuitScheduler scheduler = new CircuitScheduler(2, 30000);
+		offer(scheduler, createCell(1, 0));
+		offer(scheduler, createCell(2, 0));
+		assertTrue(!scheduler.offer(createCell(3, 0), 50, TimeUnit.MILLISECONDS));
+
+		final CountDownLatch sent = new CountDownLatch(1);
+		new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					scheduler.offer(createCell(3, 0), 5, TimeUnit.SECONDS);
+					sent.countDown();
+				}
+				catch (final InterruptedException e)
+				{
+					// test fails
+				}
+			}
+		}.start();
+		assertTrue("sender must be blocked", !sent.await(200, TimeUnit.MILLISECONDS));
+		scheduler.take();
+		assertTrue("sender must continue", sent.await(5, TimeUnit.SECONDS));
+		assertEquals(2, scheduler.size());
+	}
+
+	@Test(timeOut = 10000)
+	public void testQueueingDelay() throws Exception
+	{
+		final CircuitScheduler scheduler = new CircuitScheduler(10, 30000);
+		assertNull(scheduler.poll(10, TimeUnit.MILLISECONDS));
+		offer(scheduler, createCell(7, 0));
+		Thread.sleep(50);
+		scheduler.poll();
+		assertTrue(scheduler.getMaxDelayMicros(7) >= 49000);
+		assertEquals(scheduler.getMaxDelayMicros(7), scheduler.getAverageDelayMicros(7));
+
+		// statistics are kept until the circuit is removed
+		scheduler.removeCircuit(7);
+		assertEquals(0, scheduler.getMaxDelayMicros(7));
+	}
+}
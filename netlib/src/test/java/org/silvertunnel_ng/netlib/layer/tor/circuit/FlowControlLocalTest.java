@@ -0,0 +1,178 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.circuit;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.silvertunnel_ng.netlib.layer.tor.common.TorConfig;
+import org.silvertunnel_ng.netlib.layer.tor.directory.ConsensusParams;
+import org.testng.annotations.Test;
+
+/**
+ * Test of {@link FlowControl}.
+ *
+ * @author Tobias Boese
+ */
+public class FlowControlLocalTest
+{
+	/**
+	 * acquire the package window in another thread.
+	 *
+	 * @return counted down when acquirePackage() returned normally
+	 */
+	private static CountDownLatch acquireInThread(final FlowControl flowControl, final AtomicInteger failures)
+	{
+		final CountDownLatch acquired = new CountDownLatch(1);
+		new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					flowControl.acquirePackage();
+					acquired.countDown();
+				}
+				catch (final IOException e)
+				{
+					failures.incrementAndGet();
+				}
+			}
+		}.start();
+		return acquired;
+	}
+
+	@Test(timeOut = 10000)
+	public void testExhaustedWindowBlocksUntilSendme() throws Exception
+	{
+		final FlowControl flowControl = new FlowControl("test", 3, 2);
+		for (int i = 0; i < 3; i++)
+		{
+			flowControl.acquirePackage();
+		}
+		assertEquals(0, flowControl.getPackageWindow());
+		final AtomicInteger failures = new AtomicInteger();
+		final CountDownLatch acquired = acquireInThread(flowControl, failures);
+		assertFalse("sender must be blocked", acquired.await(200, TimeUnit.MILLISECONDS));
+		flowControl.sendmeReceived();
+		assertTrue("sender must continue", acquired.await(5, TimeUnit.SECONDS));
+		assertEquals(1, flowControl.getPackageWindow());
+		assertEquals(0, failures.get());
+	}
+
+	@Test(timeOut = 10000)
+	public void testCloseReleasesWaitingSender() throws Exception
+	{
+		final FlowControl flowControl = new FlowControl("test", 1, 1);
+		flowControl.acquirePackage();
+		final AtomicInteger failures = new AtomicInteger();
+		acquireInThread(flowControl, failures);
+		Thread.sleep(100);
+		flowControl.close();
+		final long end = System.currentTimeMillis() + 5000;
+		while (failures.get() == 0 && System.currentTimeMillis() < end)
+		{
+			Thread.sleep(10);
+		}
+		assertEquals(1, failures.get());
+	}
+
+	@Test
+	public void testTryAcquireAndListener()
+	{
+		final FlowControl flowControl = new FlowControl("test", 1, 5);
+		final AtomicInteger opened = new AtomicInteger();
+		flowControl.setListener(new FlowControl.Listener()
+		{
+			@Override
+			public void packageWindowOpened()
+			{
+				opened.incrementAndGet();
+			}
+		});
+		assertTrue(flowControl.tryAcquirePackage());
+		assertFalse(flowControl.tryAcquirePackage());
+		flowControl.sendmeReceived();
+		assertEquals(1, opened.get());
+		// the window was not exhausted
+		flowControl.sendmeReceived();
+		assertEquals(1, opened.get());
+		assertEquals(10, flowControl.getPackageWindow());
+	}
+
+	/**
+	 * SENDMEs are due when the data was consumed, not when it arrived.
+	 */
+	@Test
+	public void testSendmeOnConsumption()
+	{
+		final FlowControl flowControl = new FlowControl("test", 1000, 100);
+		for (int i = 0; i < 250; i++)
+		{
+			flowControl.dataReceived();
+		}
+		assertEquals(750, flowControl.getDeliverWindow());
+		assertEquals(0, flowControl.dataConsumed(99));
+		assertEquals(1, flowControl.dataConsumed(1));
+		assertEquals(850, flowControl.getDeliverWindow());
+		assertEquals(1, flowControl.dataConsumed(150));
+		assertEquals(950, flowControl.getDeliverWindow());
+		assertEquals(0, flowControl.dataConsumed(0));
+	}
+
+	/**
+	 * relays credit 100 cells per circuit level SENDME; only the window is
+	 * taken from the consensus parameters.
+	 */
+	@Test
+	public void testCircuitIncrementIsFixed()
+	{
+		try
+		{
+			TorConfig.setConsensusParamOverride("sendme_inc_cells", 50);
+			final ConsensusParams params = ConsensusParams.parse("circwindow=500 sendme_inc_cells=254", null);
+			final FlowControl flowControl = Circuit.createFlowControl("circuit", params);
+			assertEquals(500, flowControl.getPackageWindow());
+			for (int i = 0; i < 100; i++)
+			{
+				assertTrue(flowControl.tryAcquirePackage());
+			}
+			flowControl.sendmeReceived();
+			assertEquals(500, flowControl.getPackageWindow());
+			for (int i = 0; i < 100; i++)
+			{
+				flowControl.dataReceived();
+			}
+			assertEquals(0, flowControl.dataConsumed(99));
+			assertEquals(1, flowControl.dataConsumed(1));
+			assertEquals(500, flowControl.getDeliverWindow());
+		}
+		finally
+		{
+			TorConfig.reset();
+		}
+	}
+}
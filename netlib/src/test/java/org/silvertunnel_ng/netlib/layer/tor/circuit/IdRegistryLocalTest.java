@@ -0,0 +1,107 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.circuit;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test of {@link IdRegistry}.
+ *
+ * @author Tobias Boese
+ */
+public class IdRegistryLocalTest
+{
+	@Test
+	public void testAddGetRemove()
+	{
+		final IdRegistry<String> registry = new IdRegistry<String>(1);
+		assertNull(registry.get(0));
+		assertNull(registry.get(-1));
+		assertNull(registry.get(0x10000));
+		final int id = registry.add("a");
+		assertEquals(1, id);
+		assertEquals("a", registry.get(id));
+		assertEquals(1, registry.size());
+		assertEquals("a", registry.remove(id));
+		assertNull(registry.remove(id));
+		assertNull(registry.get(id));
+		assertTrue(registry.isEmpty());
+	}
+
+	@Test
+	public void testPutIfAbsent()
+	{
+		final IdRegistry<String> registry = new IdRegistry<String>(1);
+		assertTrue(registry.putIfAbsent(2, "a"));
+		assertFalse(registry.putIfAbsent(2, "b"));
+		assertEquals("a", registry.get(2));
+		// ids taken explicitly are skipped
+		assertEquals(1, registry.add("c"));
+		assertEquals(3, registry.add("d"));
+		assertEquals(3, registry.values().size());
+		assertEquals("d", registry.toMap().get(3));
+	}
+
+	/**
+	 * released ids are only reused after all ids were used once.
+	 */
+	@Test
+	public void testIdsAreReusedLate()
+	{
+		final IdRegistry<Integer> registry = new IdRegistry<Integer>(1);
+		final Set<Integer> ids = new HashSet<Integer>();
+		for (int i = 1; i <= IdRegistry.MAX_ID; i++)
+		{
+			final int id = registry.add(i);
+			assertTrue(ids.add(id));
+			if (id != 5 && id != 7)
+			{
+				registry.remove(id);
+			}
+		}
+		assertEquals(2, registry.size());
+		// the oldest released id comes first, ids in use are never returned
+		assertEquals(1, registry.add(1));
+		assertEquals(2, registry.add(2));
+		assertEquals(3, registry.add(3));
+		assertEquals(4, registry.add(4));
+		assertEquals(6, registry.add(6));
+		assertSame(7, registry.get(7));
+	}
+
+	@Test
+	public void testFullRegistry()
+	{
+		final IdRegistry<Integer> registry = new IdRegistry<Integer>(IdRegistry.MAX_ID - 1);
+		assertEquals(IdRegistry.MAX_ID - 1, registry.add(0));
+		assertEquals(IdRegistry.MAX_ID, registry.add(0));
+		assertEquals(-1, registry.add(0));
+		registry.remove(IdRegistry.MAX_ID);
+		assertEquals(IdRegistry.MAX_ID, registry.add(0));
+	}
+}
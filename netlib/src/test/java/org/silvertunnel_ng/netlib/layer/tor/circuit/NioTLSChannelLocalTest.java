@@ -0,0 +1,419 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.circuit;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+import org.silvertunnel_ng.netlib.layer.tor.api.Fingerprint;
+import org.silvertunnel_ng.netlib.layer.tor.api.Router;
+import org.silvertunnel_ng.netlib.layer.tor.circuit.cells.Cell;
+import org.silvertunnel_ng.netlib.layer.tor.common.TorConfig;
+import org.silvertunnel_ng.netlib.layer.tor.directory.FingerprintImpl;
+import org.silvertunnel_ng.netlib.layer.tor.directory.RouterImpl;
+import org.spongycastle.asn1.x500.X500Name;
+import org.spongycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.spongycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.spongycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test of {@link NioTLSChannel} against a TLS server on localhost.
+ *
+ * @author Tobias Boese
+ */
+public class NioTLSChannelLocalTest
+{
+	private static final char[] PASSWORD = "secret".toCharArray();
+	private static final long TIMEOUT_MS = 10000;
+
+	/**
+	 * TLS server based on an {@link SSLEngine} which serves one connection
+	 * with blocking I/O.
+	 */
+	private static final class LoopbackServer
+	{
+		private final SocketChannel channel;
+		private final SSLEngine engine;
+		/** encrypted data received from the client (write mode). */
+		private final ByteBuffer netIn;
+		/** encrypted data to be sent to the client. */
+		private final ByteBuffer netOut;
+		/** decrypted data received from the client (write mode). */
+		private final ByteBuffer appIn;
+		/** number of TLS records with application data received. */
+		private int records;
+
+		LoopbackServer(final SocketChannel channel, final SSLEngine engine)
+		{
+			this.channel = channel;
+			this.engine = engine;
+			netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+			netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+			appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+		}
+
+		void handshake() throws IOException
+		{
+			engine.beginHandshake();
+			HandshakeStatus status = engine.getHandshakeStatus();
+			while (status != HandshakeStatus.FINISHED && status != HandshakeStatus.NOT_HANDSHAKING)
+			{
+				if (status == HandshakeStatus.NEED_WRAP)
+				{
+					status = wrap(ByteBuffer.allocate(0)).getHandshakeStatus();
+				}
+				else if (status == HandshakeStatus.NEED_UNWRAP)
+				{
+					status = unwrap().getHandshakeStatus();
+				}
+				else
+				{
+					Runnable task;
+					while ((task = engine.getDelegatedTask()) != null)
+					{
+						task.run();
+					}
+					status = engine.getHandshakeStatus();
+				}
+			}
+		}
+
+		/**
+		 * send the data in TLS records of the given sizes, with a short break
+		 * after each record, so that the client reads them one by one.
+		 */
+		void send(final byte[] data, final int[] recordSizes) throws IOException, InterruptedException
+		{
+			int offset = 0;
+			for (int i = 0; offset < data.length; i++)
+			{
+				final int length = Math.min(recordSizes[i % recordSizes.length], data.length - offset);
+				final ByteBuffer src = ByteBuffer.wrap(data, offset, length);
+				while (src.hasRemaining())
+				{
+					wrap(src);
+				}
+				offset += length;
+				Thread.sleep(2);
+			}
+		}
+
+		/**
+		 * @return the next bytes of application data sent by the client
+		 */
+		byte[] receive(final int length) throws IOException
+		{
+			final ByteArrayOutputStream result = new ByteArrayOutputStream();
+			while (result.size() < length)
+			{
+				final SSLEngineResult unwrapResult = unwrap();
+				if (unwrapResult.bytesProduced() > 0)
+				{
+					records++;
+					appIn.flip();
+					result.write(appIn.array(), 0, appIn.limit());
+					appIn.clear();
+				}
+			}
+			return result.toByteArray();
+		}
+
+		int getRecords()
+		{
+			return records;
+		}
+
+		private SSLEngineResult wrap(final ByteBuffer src) throws IOException
+		{
+			netOut.clear();
+			final SSLEngineResult result = engine.wrap(src, netOut);
+			netOut.flip();
+			while (netOut.hasRemaining())
+			{
+				channel.write(netOut);
+			}
+			return result;
+		}
+
+		private SSLEngineResult unwrap() throws IOException
+		{
+			while (true)
+			{
+				netIn.flip();
+				final SSLEngineResult result = engine.unwrap(netIn, appIn);
+				netIn.compact();
+				if (result.getStatus() != SSLEngineResult.Status.BUFFER_UNDERFLOW)
+				{
+					return result;
+				}
+				if (channel.read(netIn) < 0)
+				{
+					throw new EOFException("connection closed by the client");
+				}
+			}
+		}
+
+		void close() throws IOException
+		{
+			channel.close();
+		}
+	}
+
+	/** context of the server with a certificate chain like the one of a Tor router. */
+	private static SSLContext serverContext;
+
+	/** the cells dispatched by the connection. */
+	private final BlockingQueue<Cell> received = new LinkedBlockingQueue<Cell>();
+	private ExecutorService executor;
+	private ServerSocketChannel serverChannel;
+	private NioSelectorPool selectorPool;
+	private TLSConnection tls;
+	private LoopbackServer server;
+
+	private static X509Certificate createCertificate(final String subject,
+	                                                 final PublicKey publicKey,
+	                                                 final String issuer,
+	                                                 final PrivateKey issuerKey) throws Exception
+	{
+		final long now = System.currentTimeMillis();
+		final JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(new X500Name("CN=" + issuer),
+				BigInteger.valueOf(now), new Date(now - 3600000L), new Date(now + 3600000L),
+				new X500Name("CN=" + subject), publicKey);
+		return new JcaX509CertificateConverter().getCertificate(
+				builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(issuerKey)));
+	}
+
+	@BeforeClass
+	public static void setUpClass() throws Exception
+	{
+		final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		final KeyPair identity = generator.generateKeyPair();
+		final KeyPair link = generator.generateKeyPair();
+		final X509Certificate identityCert = createCertificate("www.identity.com", identity.getPublic(),
+				"www.identity.com", identity.getPrivate());
+		final X509Certificate linkCert = createCertificate("www.link.net", link.getPublic(),
+				"www.identity.com", identity.getPrivate());
+
+		final KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+		keyStore.load(null, null);
+		keyStore.setKeyEntry("router", link.getPrivate(), PASSWORD, new Certificate[] {linkCert, identityCert});
+		final KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(keyStore, PASSWORD);
+		serverContext = SSLContext.getInstance("TLS");
+		serverContext.init(kmf.getKeyManagers(), null, null);
+	}
+
+	/**
+	 * opens a {@link TLSConnection} with the NIO backend to the loopback
+	 * server; the received cells are put into {@link #received}.
+	 */
+	@BeforeMethod
+	public void setUp() throws Exception
+	{
+		executor = Executors.newSingleThreadExecutor();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		final Future<LoopbackServer> accepted = executor.submit(new Callable<LoopbackServer>()
+		{
+			@Override
+			public LoopbackServer call() throws Exception
+			{
+				final SSLEngine engine = serverContext.createSSLEngine();
+				engine.setUseClientMode(false);
+				final LoopbackServer result = new LoopbackServer(serverChannel.accept(), engine);
+				result.handshake();
+				return result;
+			}
+		});
+
+		final Constructor<RouterImpl> routerConstructor = RouterImpl.class.getDeclaredConstructor(String.class,
+				InetAddress.class, int.class, int.class, Fingerprint.class, Fingerprint.class);
+		routerConstructor.setAccessible(true);
+		final Router router = routerConstructor.newInstance("loopback", InetAddress.getByName("127.0.0.1"),
+				serverChannel.socket().getLocalPort(), 0, null, new FingerprintImpl(new byte[20]));
+		selectorPool = new NioSelectorPool(1);
+		tls = new TLSConnection(router, selectorPool)
+		{
+			@Override
+			TLSCellDispatcher createCellDispatcher()
+			{
+				return new TLSCellDispatcher(this)
+				{
+					@Override
+					void dispatch(final Cell cell)
+					{
+						received.add(cell);
+					}
+				};
+			}
+		};
+		server = accepted.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+	}
+
+	@AfterMethod
+	public void tearDown() throws Exception
+	{
+		if (tls != null)
+		{
+			tls.close(true);
+		}
+		if (server != null)
+		{
+			server.close();
+		}
+		if (selectorPool != null)
+		{
+			selectorPool.close();
+		}
+		serverChannel.close();
+		executor.shutdownNow();
+	}
+
+	private static byte[] createRawCell(final int circuitId, final long seed)
+	{
+		final byte[] raw = new byte[Cell.CELL_TOTAL_SIZE];
+		new Random(seed).nextBytes(raw);
+		raw[0] = (byte) (circuitId >> 8);
+		raw[1] = (byte) circuitId;
+		raw[2] = (byte) Cell.CELL_RELAY;
+		return raw;
+	}
+
+	@Test(timeOut = 20000)
+	public void testCellsSplitAcrossReads() throws Exception
+	{
+		final int cells = 20;
+		final byte[] data = new byte[cells * Cell.CELL_TOTAL_SIZE];
+		for (int i = 0; i < cells; i++)
+		{
+			System.arraycopy(createRawCell(i + 1, i), 0, data, i * Cell.CELL_TOTAL_SIZE, Cell.CELL_TOTAL_SIZE);
+		}
+		// tiny records, records with several cells and records ending within a cell header
+		server.send(data, new int[] {100, 1300, 7, 1, 2000});
+
+		for (int i = 0; i < cells; i++)
+		{
+			final Cell cell = received.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			assertNotNull("cell " + i + " was not dispatched", cell);
+			assertEquals(i + 1, cell.getCircuitId());
+			assertTrue("cell " + i + " is broken", Arrays.equals(createRawCell(i + 1, i), cell.toByteArray()));
+			cell.release();
+		}
+		assertEquals(0, received.size());
+	}
+
+	@Test(timeOut = 20000)
+	public void testQueuedCellsAreWrittenInBatches() throws Exception
+	{
+		final int cells = 64;
+		// keep the selector thread busy until all cells are queued
+		final CountDownLatch release = new CountDownLatch(1);
+		selectorPool.next().execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					release.await();
+				}
+				catch (final InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		for (int i = 0; i < cells; i++)
+		{
+			final byte[] raw = createRawCell(1 + i % 3, i);
+			expected.write(raw);
+			tls.sendCell(new Cell(new ByteArrayInputStream(raw)));
+		}
+		release.countDown();
+
+		final byte[] data = server.receive(cells * Cell.CELL_TOTAL_SIZE);
+		assertEquals(cells * Cell.CELL_TOTAL_SIZE, data.length);
+		// the circuits are scheduled fairly: compare the cells of each circuit in their order
+		for (int circuitId = 1; circuitId <= 3; circuitId++)
+		{
+			final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+			final ByteArrayOutputStream arrived = new ByteArrayOutputStream();
+			for (int i = 0; i < cells; i++)
+			{
+				final int offset = i * Cell.CELL_TOTAL_SIZE;
+				if (1 + i % 3 == circuitId)
+				{
+					sent.write(expected.toByteArray(), offset, Cell.CELL_TOTAL_SIZE);
+				}
+				if (((data[offset] & 0xff) << 8 | (data[offset + 1] & 0xff)) == circuitId)
+				{
+					arrived.write(data, offset, Cell.CELL_TOTAL_SIZE);
+				}
+			}
+			assertTrue("cells of circuit " + circuitId + " are broken",
+					Arrays.equals(sent.toByteArray(), arrived.toByteArray()));
+		}
+		final int maximumRecords = cells / TorConfig.getTlsWriteMaxBatchCells() + 1;
+		assertTrue("cells were not batched: " + server.getRecords() + " records",
+				server.getRecords() <= maximumRecords);
+	}
+}
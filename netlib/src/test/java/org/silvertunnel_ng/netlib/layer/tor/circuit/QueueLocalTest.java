@@ -0,0 +1,214 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.circuit;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.silvertunnel_ng.netlib.layer.tor.circuit.cells.Cell;
+import org.silvertunnel_ng.netlib.layer.tor.util.TorException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+/**
+ * Test of {@link Queue}.
+ *
+ * @author Tobias Boese
+ */
+public class QueueLocalTest
+{
+	/** */
+	private static final Logger LOG = LoggerFactory.getLogger(QueueLocalTest.class);
+
+	private static Cell createCell(final int command, final int marker) throws IOException
+	{
+		final byte[] raw = new byte[Cell.CELL_TOTAL_SIZE];
+		raw[2] = (byte) command;
+		raw[3] = (byte) marker;
+		return new Cell(new ByteArrayInputStream(raw));
+	}
+
+	@Test(timeOut = 10000)
+	public void testFifo() throws Exception
+	{
+		final Queue queue = new Queue(1);
+		final List<Cell> cells = new ArrayList<Cell>();
+		for (int i = 0; i < 100; i++)
+		{
+			final Cell cell = createCell(Cell.CELL_CREATED, i);
+			cells.add(cell);
+			queue.add(cell);
+		}
+		for (final Cell cell : cells)
+		{
+			assertSame(cell, queue.get());
+		}
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test(timeOut = 10000)
+	public void testTimeoutIsPrecise()
+	{
+		final Queue queue = new Queue(1);
+		final long start = System.nanoTime();
+		assertNull(queue.get(150));
+		final long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("returned too early: " + elapsedMs, elapsedMs >= 149);
+	}
+
+	@Test(timeOut = 10000)
+	public void testCloseAddWakesUpReader() throws Exception
+	{
+		final Queue queue = new Queue(60);
+		new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					Thread.sleep(50);
+				}
+				catch (final InterruptedException e)
+				{
+					// ignore
+				}
+				queue.closeAdd();
+			}
+		}.start();
+		final long start = System.nanoTime();
+		assertNull(queue.get());
+		assertTrue(queue.isClosed());
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+	}
+
+	/**
+	 * a blocking handler must not block other threads using the queue.
+	 */
+	@Test(timeOut = 10000)
+	public void testHandlerIsCalledWithoutLock() throws Exception
+	{
+		final Queue queue = new Queue(5);
+		final CountDownLatch handlerEntered = new CountDownLatch(1);
+		final CountDownLatch releaseHandler = new CountDownLatch(1);
+		final Cell handled = createCell(Cell.CELL_RELAY, 1);
+		queue.addHandler(new QueueHandler()
+		{
+			@Override
+			public boolean handleCell(final Cell cell) throws TorException
+			{
+				if (cell != handled)
+				{
+					return false;
+				}
+				handlerEntered.countDown();
+				try
+				{
+					releaseHandler.await();
+				}
+				catch (final InterruptedException e)
+				{
+					// ignore
+				}
+				return true;
+			}
+
+			@Override
+			public void close()
+			{
+				// nothing to do
+			}
+		});
+		final Thread blocked = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				queue.add(handled);
+			}
+		};
+		blocked.start();
+		assertTrue(handlerEntered.await(5, TimeUnit.SECONDS));
+
+		final Cell other = createCell(Cell.CELL_CREATED, 2);
+		queue.add(other);
+		assertSame(other, queue.receiveCell(Cell.CELL_CREATED));
+
+		releaseHandler.countDown();
+		blocked.join();
+		assertTrue(queue.isEmpty());
+	}
+
+	/**
+	 * hand-off latency from {@link Queue#add(Cell)} to a waiting
+	 * {@link Queue#receiveCell(int)} as seen during circuit setup (only logged).
+	 */
+	@Test(timeOut = 60000)
+	public void testReceiveCellLatency() throws Exception
+	{
+		final int rounds = 200;
+		final Queue queue = new Queue(10);
+		final long[] addedAt = new long[rounds];
+		final Thread producer = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					for (int i = 0; i < rounds; i++)
+					{
+						// let the reader block before the cell arrives
+						Thread.sleep(2);
+						addedAt[i] = System.nanoTime();
+						queue.add(createCell(Cell.CELL_CREATED, i));
+					}
+				}
+				catch (final Exception e)
+				{
+					LOG.warn("producer failed", e);
+				}
+			}
+		};
+		producer.start();
+		long sum = 0;
+		long max = 0;
+		for (int i = 0; i < rounds; i++)
+		{
+			final Cell cell = queue.receiveCell(Cell.CELL_CREATED);
+			final long latency = System.nanoTime() - addedAt[i];
+			assertEquals((byte) i, cell.getPayload()[0]);
+			sum += latency;
+			max = Math.max(max, latency);
+		}
+		producer.join();
+		LOG.info("receiveCell hand-off latency: avg = {} us, max = {} us",
+				TimeUnit.NANOSECONDS.toMicros(sum / rounds), TimeUnit.NANOSECONDS.toMicros(max));
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.circuit;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.silvertunnel_ng.netlib.layer.tor.circuit.cells.Cell;
+import org.testng.annotations.Test;
+
+/**
+ * Test of {@link TLSWriterThread}.
+ *
+ * @author Tobias Boese
+ */
+public class TLSWriterThreadLocalTest
+{
+	/**
+	 * records all written data and the number of write calls. The first write
+	 * blocks until {@link #release} is counted down.
+	 */
+	private static final class RecordingOutputStream extends OutputStream
+	{
+		private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+		private final CountDownLatch release;
+		private int writes;
+
+		RecordingOutputStream(final CountDownLatch release)
+		{
+			this.release = release;
+		}
+
+		@Override
+		public void write(final int b)
+		{
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException
+		{
+			try
+			{
+				release.await();
+			}
+			catch (final InterruptedException e)
+			{
+				throw new IOException(e.getMessage());
+			}
+			synchronized (this)
+			{
+				data.write(b, off, len);
+				writes++;
+			}
+		}
+
+		synchronized int getWrites()
+		{
+			return writes;
+		}
+
+		synchronized byte[] getData()
+		{
+			return data.toByteArray();
+		}
+	}
+
+	private static byte[] createCell(final int number)
+	{
+		final byte[] cell = new byte[Cell.CELL_TOTAL_SIZE];
+		Arrays.fill(cell, (byte) number);
+		return cell;
+	}
+
+	private static void waitForData(final RecordingOutputStream out, final int bytes) throws InterruptedException
+	{
+		final long end = System.currentTimeMillis() + 5000;
+		while (out.getData().length < bytes && System.currentTimeMillis() < end)
+		{
+			Thread.sleep(10);
+		}
+	}
+
+	@Test(timeOut = 10000)
+	public void testQueuedCellsAreCoalesced() throws Exception
+	{
+		final CountDownLatch release = new CountDownLatch(1);
+		final RecordingOutputStream out = new RecordingOutputStream(release);
+		final TLSWriterThread writer = new TLSWriterThread(null, out, new CircuitScheduler(100, 30000), 8, 0, "test");
+		// the first cell blocks the writer, the next 20 cells are queued meanwhile
+		writer.write(createCell(0));
+		Thread.sleep(100);
+		for (int i = 1; i <= 20; i++)
+		{
+			writer.write(createCell(i));
+		}
+		release.countDown();
+		waitForData(out, 21 * Cell.CELL_TOTAL_SIZE);
+		writer.close();
+
+		final byte[] data = out.getData();
+		assertEquals(21 * Cell.CELL_TOTAL_SIZE, data.length);
+		for (int i = 0; i <= 20; i++)
+		{
+			assertEquals("order of cells", (byte) i, data[i * Cell.CELL_TOTAL_SIZE]);
+		}
+		// 1 + 8 + 8 + 4
+		assertEquals(4, out.getWrites());
+	}
+
+	@Test(timeOut = 10000)
+	public void testMaxDelayCollectsLateCells() throws Exception
+	{
+		final RecordingOutputStream out = new RecordingOutputStream(new CountDownLatch(0));
+		final TLSWriterThread writer = new TLSWriterThread(null, out, new CircuitScheduler(100, 30000), 8, 500, "test");
+		writer.write(createCell(1));
+		Thread.sleep(50);
+		writer.write(createCell(2));
+		waitForData(out, 2 * Cell.CELL_TOTAL_SIZE);
+		writer.close();
+		assertEquals(2 * Cell.CELL_TOTAL_SIZE, out.getData().length);
+		assertEquals(1, out.getWrites());
+	}
+
+	@Test(timeOut = 10000)
+	public void testFullQueueBlocksSender() throws Exception
+	{
+		final CountDownLatch release = new CountDownLatch(1);
+		final RecordingOutputStream out = new RecordingOutputStream(release);
+		final TLSWriterThread writer = new TLSWriterThread(null, out, new CircuitScheduler(2, 30000), 8, 0, "test");
+		writer.write(createCell(0));
+		Thread.sleep(100);
+		writer.write(createCell(1));
+		writer.write(createCell(2));
+
+		final CountDownLatch sent = new CountDownLatch(1);
+		new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					writer.write(createCell(3));
+					sent.countDown();
+				}
+				catch (final IOException e)
+				{
+					// test fails
+				}
+			}
+		}.start();
+		assertTrue("sender must be blocked", !sent.await(300, TimeUnit.MILLISECONDS));
+		release.countDown();
+		assertTrue("sender must continue", sent.await(5, TimeUnit.SECONDS));
+		waitForData(out, 4 * Cell.CELL_TOTAL_SIZE);
+		writer.close();
+		assertEquals(4 * Cell.CELL_TOTAL_SIZE, out.getData().length);
+	}
+
+	@Test(timeOut = 10000)
+	public void testWriteErrorIsReportedToSenders() throws Exception
+	{
+		final OutputStream broken = new OutputStream()
+		{
+			@Override
+			public void write(final int b) throws IOException
+			{
+				throw new IOException("broken");
+			}
+		};
+		final TLSWriterThread writer = new TLSWriterThread(null, broken, new CircuitScheduler(10, 30000), 8, 0, "test");
+		writer.write(createCell(0));
+		writer.join(5000);
+		try
+		{
+			writer.write(createCell(1));
+			fail("expected IOException");
+		}
+		catch (final IOException e)
+		{
+			assertEquals("broken", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.circuit.cells;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test of {@link CellCodec} and {@link CellBufferPool}.
+ *
+ * @author Tobias Boese
+ */
+public class CellCodecLocalTest
+{
+	/**
+	 * stream which returns at most 100 bytes per read call (like a TLS
+	 * connection delivering partial records).
+	 */
+	private static final class ChunkedInputStream extends ByteArrayInputStream
+	{
+		ChunkedInputStream(final byte[] buf)
+		{
+			super(buf);
+		}
+
+		@Override
+		public synchronized int read(final byte[] b, final int off, final int len)
+		{
+			return super.read(b, off, Math.min(len, 100));
+		}
+	}
+
+	private static byte[] createRawCell(final int circuitId, final int command, final long seed)
+	{
+		final byte[] raw = new byte[Cell.CELL_TOTAL_SIZE];
+		new Random(seed).nextBytes(raw);
+		raw[0] = (byte) (circuitId >> 8);
+		raw[1] = (byte) circuitId;
+		raw[2] = (byte) command;
+		return raw;
+	}
+
+	@Test
+	public void testDecodeMatchesByteArrayConstructor() throws IOException
+	{
+		final byte[] raw1 = createRawCell(0xabcd, Cell.CELL_RELAY, 1);
+		final byte[] raw2 = createRawCell(7, Cell.CELL_DESTROY, 2);
+		final byte[] both = new byte[raw1.length + raw2.length];
+		System.arraycopy(raw1, 0, both, 0, raw1.length);
+		System.arraycopy(raw2, 0, both, raw1.length, raw2.length);
+
+		final CellCodec codec = new CellCodec(new CellBufferPool());
+		final InputStream in = new ChunkedInputStream(both);
+		for (final byte[] raw : new byte[][] {raw1, raw2})
+		{
+			final Cell expected = new Cell(raw);
+			final Cell cell = codec.decode(in);
+			assertEquals(expected.getCircuitId(), cell.getCircuitId());
+			assertEquals(expected.getCommand(), cell.getCommand());
+			assertTrue(Arrays.equals(expected.getPayload(), cell.getPayload()));
+			assertTrue(Arrays.equals(raw, cell.toByteArray()));
+		}
+	}
+
+	@Test
+	public void testDecodeCellSpanningTwoBuffers()
+	{
+		final byte[] raw1 = createRawCell(0x1234, Cell.CELL_RELAY, 6);
+		final byte[] raw2 = createRawCell(9, Cell.CELL_RELAY, 7);
+		final CellCodec codec = new CellCodec(new CellBufferPool());
+		// the first read delivers cell 1 and the header and a part of the payload of cell 2
+		final ByteBuffer in = ByteBuffer.allocate(2 * Cell.CELL_TOTAL_SIZE);
+		in.put(raw1);
+		in.put(raw2, 0, 100);
+		in.flip();
+		assertTrue(Arrays.equals(raw1, codec.decode(in).toByteArray()));
+		assertNull(codec.decode(in));
+		assertEquals(100, in.remaining());
+
+		// the second read delivers the rest of cell 2
+		in.compact();
+		in.put(raw2, 100, raw2.length - 100);
+		in.flip();
+		final Cell cell = codec.decode(in);
+		assertEquals(9, cell.getCircuitId());
+		assertTrue(Arrays.equals(raw2, cell.toByteArray()));
+		assertEquals(0, in.remaining());
+		assertNull(codec.decode(in));
+	}
+
+	@Test
+	public void testReleasedBufferIsReused() throws IOException
+	{
+		final CellBufferPool pool = new CellBufferPool();
+		final CellCodec codec = new CellCodec(pool);
+		final Cell first = codec.decode(new ByteArrayInputStream(createRawCell(1, Cell.CELL_RELAY, 3)));
+		final byte[] buffer = first.getPayload();
+		first.release();
+		assertNull(first.getPayload());
+		assertEquals(1, pool.getIdleCount());
+		// releasing twice must not put the buffer into the pool again
+		first.release();
+		assertEquals(1, pool.getIdleCount());
+
+		final Cell second = codec.decode(new ByteArrayInputStream(createRawCell(2, Cell.CELL_RELAY, 4)));
+		assertSame(buffer, second.getPayload());
+		assertEquals(0, pool.getIdleCount());
+	}
+
+	@Test
+	public void testTakeOverOfPayload() throws IOException
+	{
+		final CellBufferPool pool = new CellBufferPool();
+		final Cell received = new CellCodec(pool).decode(new ByteArrayInputStream(createRawCell(3, Cell.CELL_RELAY, 5)));
+		final Cell wrapper = new Cell(received);
+		assertSame(received.getPayload(), wrapper.getPayload());
+		// only the new owner may give the buffer back
+		received.release();
+		assertEquals(0, pool.getIdleCount());
+		wrapper.release();
+		assertEquals(1, pool.getIdleCount());
+	}
+
+	@Test
+	public void testPoolIsBounded()
+	{
+		final CellBufferPool pool = new CellBufferPool(2);
+		for (int i = 0; i < 5; i++)
+		{
+			pool.release(new byte[Cell.CELL_PAYLOAD_SIZE]);
+		}
+		assertEquals(2, pool.getIdleCount());
+	}
+
+	@Test
+	public void testEof()
+	{
+		final byte[] truncated = new byte[Cell.CELL_TOTAL_SIZE - 1];
+		final CellBufferPool pool = new CellBufferPool();
+		try
+		{
+			new CellCodec(pool).decode(new ByteArrayInputStream(truncated));
+			fail("expected IOException");
+		}
+		catch (final IOException e)
+		{
+			// expected, buffer must be back in the pool
+			assertEquals(1, pool.getIdleCount());
+		}
+	}
+}
@@ -404,4 +404,26 @@ public class TorConfigLocalTest
 		fail("Not yet implemented");
 	}
 
+	/**
+	 * a mistyped backend must not stop the properties after it from being loaded.
+	 */
+	@Test
+	public void testUnknownTlsConnectionBackendProperty()
+	{
+		try
+		{
+			System.setProperty(TorConfig.SYSTEMPROPERTY_TOR_TLS_CONNECTION_BACKEND, "noi");
+			System.setProperty(TorConfig.SYSTEMPROPERTY_TOR_NIO_SELECTOR_THREADS, "3");
+			TorConfig.reset();
+			TorConfig.reloadConfigFromProperties();
+			assertEquals(TLSConnectionBackend.BLOCKING, TorConfig.getTlsConnectionBackend());
+			assertEquals(3, TorConfig.getNioSelectorThreads());
+		}
+		finally
+		{
+			System.clearProperty(TorConfig.SYSTEMPROPERTY_TOR_TLS_CONNECTION_BACKEND);
+			System.clearProperty(TorConfig.SYSTEMPROPERTY_TOR_NIO_SELECTOR_THREADS);
+			TorConfig.reset();
+		}
+	}
 }
@@ -0,0 +1,110 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.directory;
+
+import org.silvertunnel_ng.netlib.layer.tor.api.RouterExitPolicy;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Testing the {@link CompiledExitPolicy} class.
+ *
+ * @author Tobias Boese
+ */
+public final class CompiledExitPolicyLocalTest {
+    private static final long ALL = 0xffffffffL;
+
+    /** the check as it was done before compiling: first matching item wins. */
+    private static boolean linearAccepts(final RouterExitPolicy[] policy, final long ip, final int port) {
+        for (final RouterExitPolicy item : policy) {
+            if (item.getLoPort() <= port && item.getHiPort() >= port && item.getIp() == (ip & item.getNetmask())) {
+                return item.isAccept();
+            }
+        }
+        return false;
+    }
+
+    private static RouterExitPolicy item(final boolean accept, final long ip, final int prefix, final int lo, final int hi) {
+        final long netmask = prefix == 0 ? 0 : (ALL << (32 - prefix)) & ALL;
+        return new RouterExitPolicyImpl(accept, ip & netmask, netmask, lo, hi);
+    }
+
+    @Test
+    public void testTypicalPolicy() {
+        final RouterExitPolicy[] policy = {
+                item(false, 0x0a000000L, 8, 0, 65535),
+                item(false, 0xc0a80000L, 16, 0, 65535),
+                item(true, 0, 0, 80, 80),
+                item(true, 0, 0, 443, 443),
+                item(true, 0, 0, 6660, 6669),
+                item(false, 0, 0, 0, 65535),
+        };
+        final CompiledExitPolicy compiled = new CompiledExitPolicy(policy);
+        assertTrue(compiled.accepts(0x08080808L, 80));
+        assertTrue(compiled.accepts(0x08080808L, 6665));
+        assertFalse(compiled.accepts(0x08080808L, 81));
+        assertFalse(compiled.accepts(0x0a010203L, 80));
+        assertFalse(compiled.accepts(0xc0a80101L, 443));
+        assertTrue(compiled.mayAccept(443));
+        assertFalse(compiled.mayAccept(25));
+        assertFalse(compiled.accepts(0x08080808L, 70000));
+        assertTrue(compiled.acceptsAnything());
+        // 0-79, 80, 81-442, 443, 444-6659, 6660-6669, 6670-65535
+        assertEquals(7, compiled.getIntervalCount());
+    }
+
+    @Test
+    public void testRejectAll() {
+        assertFalse(CompiledExitPolicy.REJECT_ALL.accepts(0x08080808L, 80));
+        assertFalse(CompiledExitPolicy.REJECT_ALL.mayAccept(80));
+        assertFalse(CompiledExitPolicy.REJECT_ALL.acceptsAnything());
+        assertFalse(new CompiledExitPolicy(new RouterExitPolicy[]{item(false, 0, 0, 0, 65535)}).acceptsAnything());
+    }
+
+    /**
+     * random policies must give the same answers as the linear check.
+     */
+    @Test
+    public void testSameResultAsLinearCheck() {
+        final Random rnd = new Random(1);
+        final int[] prefixes = {0, 8, 16, 24, 32};
+        for (int round = 0; round < 200; round++) {
+            final RouterExitPolicy[] policy = new RouterExitPolicy[1 + rnd.nextInt(20)];
+            for (int i = 0; i < policy.length; i++) {
+                final int lo = rnd.nextBoolean() ? 0 : rnd.nextInt(1000);
+                final int hi = rnd.nextBoolean() ? 65535 : lo + rnd.nextInt(200);
+                final long ip = (0x0a000000L + rnd.nextInt(4) * 0x10000L) & ALL;
+                policy[i] = item(rnd.nextBoolean(), ip, prefixes[rnd.nextInt(prefixes.length)], lo, hi);
+            }
+            final CompiledExitPolicy compiled = new CompiledExitPolicy(policy);
+            for (int check = 0; check < 200; check++) {
+                final long ip = rnd.nextBoolean() ? rnd.nextInt() & ALL : (0x0a000000L + rnd.nextInt(0x40000)) & ALL;
+                final int port = rnd.nextInt(1300);
+                final boolean expected = linearAccepts(policy, ip, port);
+                assertEquals(expected, compiled.accepts(ip, port));
+                if (expected) {
+                    assertTrue(compiled.mayAccept(port));
+                }
+            }
+        }
+    }
+}
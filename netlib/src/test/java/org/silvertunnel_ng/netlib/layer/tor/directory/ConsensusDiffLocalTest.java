@@ -0,0 +1,131 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.directory;
+
+import org.silvertunnel_ng.netlib.layer.tor.util.TorException;
+import org.silvertunnel_ng.netlib.layer.tor.util.Util;
+import org.silvertunnel_ng.netlib.util.DatatypeConverter;
+import org.silvertunnel_ng.netlib.util.FileUtil;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Testing the {@link ConsensusDiff} class.
+ *
+ * @author Tobias Boese
+ */
+public final class ConsensusDiffLocalTest {
+    private static final String EXAMPLE_CONSENSUS_PATH = "/org/silvertunnel_ng/netlib/layer/tor/example-consensus.txt";
+
+    /** the example consensus, with a line break at the end like a downloaded one. */
+    private static String target;
+    /** the example consensus with one changed, four missing and one additional line. */
+    private static String base;
+    /** the diff from base to target. */
+    private static String diff;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        target = FileUtil.readFileFromClasspath(EXAMPLE_CONSENSUS_PATH) + "\n";
+        final List<String> lines = new ArrayList<String>(Arrays.asList(target.split("\n")));
+        // line numbers start with 1
+        lines.add(300, "extra line");
+        final List<String> missing = new ArrayList<String>(lines.subList(199, 203));
+        lines.subList(199, 203).clear();
+        final String changed = lines.set(59, "changed line");
+        base = join(lines);
+
+        final StringBuilder commands = new StringBuilder();
+        // the extra line is line 297 of base now
+        commands.append("297d\n");
+        commands.append("199a\n").append(join(missing)).append(".\n");
+        commands.append("60c\n").append(changed).append("\n.\n");
+        diff = header(base, target) + commands;
+    }
+
+    private static String join(final List<String> lines) {
+        final StringBuilder result = new StringBuilder();
+        for (final String line : lines) {
+            result.append(line).append('\n');
+        }
+        return result.toString();
+    }
+
+    private static String header(final String from, final String to) {
+        return ConsensusDiff.DIFF_VERSION + "\nhash " + ConsensusDiff.getDigestAsSigned(from) + " "
+                + ConsensusDiff.getDigestAsSigned(to) + "\n";
+    }
+
+    @Test
+    public void testDigestAsSigned() throws Exception {
+        final String signed = "network-status-version 3\nvalid-after 2015-05-20 22:00:00\ndirectory-signature ";
+        final String document = "# comment\n" + signed + "ABCD 1234\n-----BEGIN SIGNATURE-----\n";
+        final MessageDigest sha3 = MessageDigest.getInstance("SHA3-256", new BouncyCastleProvider());
+        assertEquals(DatatypeConverter.printHexBinary(sha3.digest(signed.getBytes(Util.UTF8))).toUpperCase(),
+                ConsensusDiff.getDigestAsSigned(document));
+        assertNull(ConsensusDiff.getDigestAsSigned("network-status-version 3\n"));
+    }
+
+    @Test
+    public void testApply() throws Exception {
+        assertTrue(ConsensusDiff.isDiff(diff));
+        assertFalse(ConsensusDiff.isDiff(target));
+        assertEquals(target, ConsensusDiff.apply(base, diff));
+    }
+
+    @Test
+    public void testDeleteToEnd() throws Exception {
+        final String longer = target + "extra line 1\nextra line 2\n";
+        final int lines = target.split("\n").length;
+        assertEquals(target, ConsensusDiff.apply(longer, header(longer, target) + (lines + 1) + ",$d\n"));
+    }
+
+    @Test(expectedExceptions = TorException.class)
+    public void testOtherBase() throws Exception {
+        ConsensusDiff.apply(target, diff);
+    }
+
+    @Test(expectedExceptions = TorException.class)
+    public void testUnexpectedResult() throws Exception {
+        ConsensusDiff.apply(base, diff.replace("\n60c\n", "\n61c\n"));
+    }
+
+    @Test(expectedExceptions = TorException.class)
+    public void testAscendingCommands() throws Exception {
+        ConsensusDiff.apply(base, header(base, target) + "60d\n297d\n");
+    }
+
+    @Test(expectedExceptions = TorException.class)
+    public void testMissingEndOfLines() throws Exception {
+        ConsensusDiff.apply(base, header(base, target) + "60c\nchanged line\n");
+    }
+
+    @Test(expectedExceptions = TorException.class)
+    public void testLineNumberOutOfRange() throws Exception {
+        ConsensusDiff.apply(base, header(base, target) + "100000d\n");
+    }
+}
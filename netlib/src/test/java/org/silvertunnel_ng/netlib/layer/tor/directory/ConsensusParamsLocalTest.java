@@ -0,0 +1,79 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.directory;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.Date;
+
+import org.silvertunnel_ng.netlib.layer.tor.common.TorConfig;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test of {@link ConsensusParams}.
+ * 
+ * @author Tobias Boese
+ */
+public final class ConsensusParamsLocalTest
+{
+	@AfterMethod
+	public void tearDown()
+	{
+		TorConfig.reset();
+	}
+
+	@Test
+	public void testDefaults()
+	{
+		final ConsensusParams params = ConsensusParams.DEFAULT;
+		assertEquals(1000, params.getCircuitWindow());
+		assertEquals(30000, params.getCircuitPriorityHalflifeMs());
+		assertEquals(60000, params.getCircuitBuildTimeoutMs());
+		assertEquals(10000, params.getBandwidthWeightScale());
+		assertEquals(0, params.getVersion());
+	}
+
+	@Test
+	public void testParseAndClamp()
+	{
+		final ConsensusParams params = ConsensusParams.parse(
+				"circwindow=500 sendme_inc_cells=0 bwweightscale=-3 broken foo=bar cbtinitialtimeout=1500 cbtmintimeout=2000",
+				new Date(1234L));
+		assertEquals(1234L, params.getVersion());
+		assertEquals(5, params.getParams().size());
+		assertEquals(500, params.getCircuitWindow());
+		// clamped to the lower bound
+		assertEquals(1, params.getBandwidthWeightScale());
+		// at least cbtmintimeout
+		assertEquals(2000, params.getCircuitBuildTimeoutMs());
+		assertTrue(ConsensusParams.parse(null, null).getParams().isEmpty());
+	}
+
+	@Test
+	public void testTorConfigOverride()
+	{
+		final ConsensusParams params = ConsensusParams.parse("circwindow=500", null);
+		TorConfig.setConsensusParamOverride(ConsensusParams.CIRCWINDOW, 200);
+		assertEquals(200, params.getCircuitWindow());
+		TorConfig.setConsensusParamOverride(ConsensusParams.CIRCWINDOW, null);
+		assertEquals(500, params.getCircuitWindow());
+	}
+}
@@ -0,0 +1,299 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.directory;
+
+import org.silvertunnel_ng.netlib.layer.tor.api.Router;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test of {@link DescriptorDownloadScheduler} with fake directory caches.
+ *
+ * @author Tobias Boese
+ */
+public final class DescriptorDownloadSchedulerLocalTest {
+    private List<Router> caches;
+    private List<String> digests;
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        caches = createCaches(0, 3);
+        digests = new ArrayList<String>();
+        for (int i = 0; i < 250; i++) {
+            digests.add(String.format("%040X", i));
+        }
+    }
+
+    /**
+     * @return the caches cache&lt;first&gt; .. cache&lt;first + count - 1&gt;
+     */
+    private static List<Router> createCaches(final int first, final int count) throws Exception {
+        final List<Router> result = new ArrayList<Router>();
+        for (int i = first; i < first + count; i++) {
+            final byte[] fingerprint = new byte[20];
+            fingerprint[0] = (byte) i;
+            result.add(new RouterImpl("cache" + i, InetAddress.getByName("127.0.0." + (i + 1)), 9001, 9030,
+                    null, new FingerprintImpl(fingerprint)));
+        }
+        return result;
+    }
+
+    /**
+     * @return the digests of the chunk as loaded descriptors
+     */
+    private static Map<String, String> answer(final List<String> chunk, final Router cache) {
+        final Map<String, String> result = new HashMap<String, String>();
+        for (final String digest : chunk) {
+            result.put(digest, cache.getNickname());
+        }
+        return result;
+    }
+
+    @Test(timeOut = 10000)
+    public void testChunksFromSeveralCaches() {
+        final List<Integer> chunkSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        final Set<String> usedCaches = Collections.synchronizedSet(new HashSet<String>());
+        final Map<String, String> result = new DescriptorDownloadScheduler<String, String>(96, 3, 2,
+                new DescriptorDownloadScheduler.Latencies(0.9, 5000, 16),
+                new DescriptorDownloadScheduler.ChunkFetcher<String, String>() {
+                    @Override
+                    public Map<String, String> fetch(final List<String> chunk, final Router directoryServer) {
+                        chunkSizes.add(chunk.size());
+                        usedCaches.add(directoryServer.getNickname());
+                        return answer(chunk, directoryServer);
+                    }
+                }).fetch(digests, caches);
+        assertEquals(new HashSet<String>(digests), result.keySet());
+        Collections.sort(chunkSizes);
+        assertEquals(3, chunkSizes.size());
+        assertEquals(Integer.valueOf(58), chunkSizes.get(0));
+        assertEquals(Integer.valueOf(96), chunkSizes.get(2));
+        // the least busy cache is chosen for every chunk
+        assertEquals(3, usedCaches.size());
+    }
+
+    @Test(timeOut = 10000)
+    public void testDownloadsPerCacheAreLimited() {
+        final Map<String, Integer> downloads = new HashMap<String, Integer>();
+        final int[] maximum = new int[1];
+        final Map<String, String> result = new DescriptorDownloadScheduler<String, String>(10, 2, 2,
+                new DescriptorDownloadScheduler.Latencies(0.9, 5000, 16),
+                new DescriptorDownloadScheduler.ChunkFetcher<String, String>() {
+                    @Override
+                    public Map<String, String> fetch(final List<String> chunk, final Router directoryServer) {
+                        final String name = directoryServer.getNickname();
+                        synchronized (downloads) {
+                            final Integer current = downloads.get(name);
+                            final int now = current == null ? 1 : current + 1;
+                            downloads.put(name, now);
+                            maximum[0] = Math.max(maximum[0], now);
+                        }
+                        try {
+                            Thread.sleep(10);
+                        } catch (final InterruptedException e) {
+                            return null;
+                        }
+                        synchronized (downloads) {
+                            downloads.put(name, downloads.get(name) - 1);
+                        }
+                        return answer(chunk, directoryServer);
+                    }
+                }).fetch(digests, caches);
+        assertEquals(250, result.size());
+        assertTrue("maximum " + maximum[0], maximum[0] <= 2);
+    }
+
+    @Test(timeOut = 10000)
+    public void testFailingCacheIsReplaced() {
+        final Map<String, String> result = new DescriptorDownloadScheduler<String, String>(96, 2, 2,
+                new DescriptorDownloadScheduler.Latencies(0.9, 5000, 16),
+                new DescriptorDownloadScheduler.ChunkFetcher<String, String>() {
+                    @Override
+                    public Map<String, String> fetch(final List<String> chunk, final Router directoryServer)
+                            throws IOException {
+                        if (directoryServer != caches.get(2)) {
+                            throw new IOException("connection refused");
+                        }
+                        return answer(chunk, directoryServer);
+                    }
+                }).fetch(digests, caches);
+        assertEquals(250, result.size());
+        assertEquals(Collections.singleton("cache2"), new HashSet<String>(result.values()));
+    }
+
+    /**
+     * a chunk which no cache knows is given up after some caches, the
+     * caches stay in use for the other chunks.
+     */
+    @Test(timeOut = 10000)
+    public void testUnknownChunkDoesNotStopOthers() {
+        final String unknown = digests.get(0);
+        final AtomicInteger unknownRequests = new AtomicInteger();
+        final Map<String, String> result = new DescriptorDownloadScheduler<String, String>(10, 3, 1,
+                new DescriptorDownloadScheduler.Latencies(0.9, 5000, 16),
+                new DescriptorDownloadScheduler.ChunkFetcher<String, String>() {
+                    @Override
+                    public Map<String, String> fetch(final List<String> chunk, final Router directoryServer) {
+                        if (chunk.contains(unknown)) {
+                            unknownRequests.incrementAndGet();
+                            return new HashMap<String, String>();
+                        }
+                        return answer(chunk, directoryServer);
+                    }
+                }).fetch(digests, caches);
+        assertEquals(new HashSet<String>(digests.subList(10, 250)), result.keySet());
+        assertEquals(DescriptorDownloadScheduler.MAXIMUM_CACHES_PER_CHUNK, unknownRequests.get());
+    }
+
+    @Test(timeOut = 10000)
+    public void testNoCacheLeft() {
+        final Map<String, String> result = new DescriptorDownloadScheduler<String, String>(96, 2, 2,
+                new DescriptorDownloadScheduler.Latencies(0.9, 5000, 16),
+                new DescriptorDownloadScheduler.ChunkFetcher<String, String>() {
+                    @Override
+                    public Map<String, String> fetch(final List<String> chunk, final Router directoryServer) {
+                        throw new IllegalStateException("broken");
+                    }
+                }).fetch(digests, caches);
+        assertTrue(result.isEmpty());
+    }
+
+    @Test(timeOut = 10000)
+    public void testSlowChunkIsRequestedAgain() throws Exception {
+        final CountDownLatch slowCancelled = new CountDownLatch(1);
+        final AtomicReference<Router> slowCache = new AtomicReference<Router>();
+        final Map<String, String> result = new DescriptorDownloadScheduler<String, String>(96, 2, 1,
+                new DescriptorDownloadScheduler.Latencies(0.9, 100, 16),
+                new DescriptorDownloadScheduler.ChunkFetcher<String, String>() {
+                    @Override
+                    public Map<String, String> fetch(final List<String> chunk, final Router directoryServer) {
+                        // the first request hangs
+                        if (slowCache.compareAndSet(null, directoryServer)) {
+                            try {
+                                Thread.sleep(60000);
+                            } catch (final InterruptedException e) {
+                                slowCancelled.countDown();
+                            }
+                            return null;
+                        }
+                        return answer(chunk, directoryServer);
+                    }
+                }).fetch(digests.subList(0, 50), caches.subList(0, 2));
+        assertEquals(50, result.size());
+        assertFalse(result.containsValue(slowCache.get().getNickname()));
+        assertTrue(slowCancelled.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testHedgeDelayIsPercentile() {
+        final DescriptorDownloadScheduler.Latencies latencies = new DescriptorDownloadScheduler.Latencies(0.9, 5000, 10);
+        assertEquals(5000, latencies.getHedgeDelay());
+        for (int i = 1; i <= 20; i++) {
+            latencies.add(i * 100);
+        }
+        // the last 10 latencies are 1100 .. 2000; the next one replaces 1100
+        assertEquals(1900, latencies.getHedgeDelay());
+        latencies.add(5000);
+        assertEquals(2000, latencies.getHedgeDelay());
+    }
+
+    /**
+     * A hedged request which is cancelled while it waits for a thread must
+     * give its download slot back, otherwise its cache stays busy.
+     */
+    @Test(timeOut = 20000)
+    public void testCancelledWaitingRequestReleasesCache() throws Exception {
+        // another run keeps all but one thread of the pool busy
+        final int blocking = DescriptorDownloadScheduler.PARALLEL_CACHES * DescriptorDownloadScheduler.DOWNLOADS_PER_CACHE - 1;
+        final CountDownLatch blocked = new CountDownLatch(blocking);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread other = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    new DescriptorDownloadScheduler<String, String>(1, blocking, 1,
+                            new DescriptorDownloadScheduler.Latencies(0.9, 60000, 16),
+                            new DescriptorDownloadScheduler.ChunkFetcher<String, String>() {
+                                @Override
+                                public Map<String, String> fetch(final List<String> chunk, final Router directoryServer) {
+                                    blocked.countDown();
+                                    try {
+                                        release.await();
+                                    } catch (final InterruptedException e) {
+                                        return null;
+                                    }
+                                    return answer(chunk, directoryServer);
+                                }
+                            }).fetch(digests.subList(0, blocking), createCaches(10, blocking));
+                } catch (final Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        other.start();
+        try {
+            assertTrue(blocked.await(5, TimeUnit.SECONDS));
+            final AtomicInteger calls = new AtomicInteger();
+            final Map<String, String> result = new DescriptorDownloadScheduler<String, String>(1, 3, 1,
+                    new DescriptorDownloadScheduler.Latencies(0.9, 50, 16),
+                    new DescriptorDownloadScheduler.ChunkFetcher<String, String>() {
+                        @Override
+                        public Map<String, String> fetch(final List<String> chunk, final Router directoryServer)
+                                throws IOException {
+                            final int call = calls.incrementAndGet();
+                            if (call == 1) {
+                                // slow: hedged to the idle cache, that request waits behind the second chunk
+                                try {
+                                    Thread.sleep(500);
+                                } catch (final InterruptedException e) {
+                                    return null;
+                                }
+                                return answer(chunk, directoryServer);
+                            }
+                            // the second chunk fails on two caches, only the cache of the cancelled request is left
+                            if (call <= 3) {
+                                throw new IOException("connection refused");
+                            }
+                            return answer(chunk, directoryServer);
+                        }
+                    }).fetch(digests.subList(0, 2), caches);
+            assertEquals(new HashSet<String>(digests.subList(0, 2)), result.keySet());
+            assertEquals(4, calls.get());
+        } finally {
+            release.countDown();
+            other.join();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.directory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.silvertunnel_ng.netlib.api.NetFactory;
+import org.silvertunnel_ng.netlib.api.NetLayer;
+import org.silvertunnel_ng.netlib.api.NetLayerIDs;
+import org.silvertunnel_ng.netlib.layer.tor.api.Router;
+import org.silvertunnel_ng.netlib.layer.tor.util.Util;
+import org.silvertunnel_ng.netlib.util.FileUtil;
+import org.silvertunnel_ng.netlib.util.StringStorage;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Test of the consensus diffs of {@link DirectoryConsensusFetcher} with a
+ * local directory server which serves canned documents.
+ *
+ * @author Tobias Boese
+ */
+public final class DirectoryConsensusFetcherLocalTest {
+    private static final String EXAMPLE_CONSENSUS_PATH = "/org/silvertunnel_ng/netlib/layer/tor/example-consensus.txt";
+    private static final String EXAMPLE_AUTHORITY_KEYS_PATH = "/org/silvertunnel_ng/netlib/layer/tor/example-authority-keys.txt";
+    private static final Date EXAMPLE_CONSENSUS_VALID_BUT_UNFRESH_DATE = Util.parseUtcTimestamp("2015-05-20 23:30:00");
+
+    /** the example consensus, with a line break at the end like a downloaded one. */
+    private static String consensus;
+    /** the cached consensus: the example consensus with one changed line. */
+    private static String base;
+    /** the diff from base to the example consensus. */
+    private static String diff;
+    private static AuthorityKeyCertificates authorityKeyCertificates;
+
+    private HttpServer server;
+    /** the answer to requests with diff header; null to answer with the full consensus. */
+    private volatile String diffAnswer;
+    /** the value of the diff header of every request; null if the request had none. */
+    private final List<String> diffHeaders = Collections.synchronizedList(new ArrayList<String>());
+    private List<Router> dirRouters;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        // install BC, if not already done
+        if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+        consensus = FileUtil.readFileFromClasspath(EXAMPLE_CONSENSUS_PATH) + "\n";
+        final int changed = consensus.indexOf("\nr ") + 1;
+        final int changedEnd = consensus.indexOf('\n', changed);
+        base = consensus.substring(0, changed) + "r changed" + consensus.substring(changedEnd);
+        final int line = consensus.substring(0, changed).split("\n").length + 1;
+        diff = ConsensusDiff.DIFF_VERSION + "\nhash " + ConsensusDiff.getDigestAsSigned(base) + " "
+                + ConsensusDiff.getDigestAsSigned(consensus) + "\n"
+                + line + "c\n" + consensus.substring(changed, changedEnd) + "\n.\n";
+        authorityKeyCertificates = new AuthorityKeyCertificates(
+                FileUtil.readFileFromClasspath(EXAMPLE_AUTHORITY_KEYS_PATH), EXAMPLE_CONSENSUS_VALID_BUT_UNFRESH_DATE);
+    }
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        diffAnswer = null;
+        diffHeaders.clear();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                final String diffHeader = exchange.getRequestHeaders().getFirst(DirectoryConsensusFetcher.HEADER_DIFF_FROM_CONSENSUS);
+                diffHeaders.add(diffHeader);
+                final byte[] body = (diffHeader != null && diffAnswer != null ? diffAnswer : consensus).getBytes(Util.UTF8);
+                exchange.sendResponseHeaders(200, body.length);
+                final OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        dirRouters = new ArrayList<Router>();
+        dirRouters.add(new RouterImpl("local", InetAddress.getByName("127.0.0.1"), 9001, server.getAddress().getPort(),
+                null, new FingerprintImpl(new byte[20])));
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private DirectoryConsensus fetch(final StringStorage stringStorage) {
+        final NetLayer netLayer = NetFactory.getInstance().getNetLayerById(NetLayerIDs.TCPIP);
+        return DirectoryConsensusFetcher.getFromTorNetwork(EXAMPLE_CONSENSUS_VALID_BUT_UNFRESH_DATE, stringStorage,
+                authorityKeyCertificates, dirRouters, netLayer, null);
+    }
+
+    @Test(timeOut = 60000)
+    public void testFullConsensusWithoutCachedConsensus() throws Exception {
+        final MemoryStringStorage stringStorage = new MemoryStringStorage();
+        final DirectoryConsensus result = fetch(stringStorage);
+        assertNotNull(result);
+        assertEquals(6701, result.getFingerprintsNetworkStatusDescriptors().size());
+        assertEquals(Collections.singletonList((String) null), diffHeaders);
+        assertEquals(consensus, stringStorage.get(DirectoryConsensusFetcher.getStorageKey()));
+    }
+
+    @Test(timeOut = 60000)
+    public void testDiffFromCachedConsensus() throws Exception {
+        final MemoryStringStorage stringStorage = new MemoryStringStorage();
+        stringStorage.put(DirectoryConsensusFetcher.getStorageKey(), base);
+        diffAnswer = diff;
+        final DirectoryConsensus result = fetch(stringStorage);
+        assertNotNull(result);
+        assertEquals(6701, result.getFingerprintsNetworkStatusDescriptors().size());
+        assertEquals(Collections.singletonList(ConsensusDiff.getDigestAsSigned(base)), diffHeaders);
+        assertEquals(consensus, stringStorage.get(DirectoryConsensusFetcher.getStorageKey()));
+    }
+
+    @Test(timeOut = 60000)
+    public void testFullConsensusAsAnswerToDiffRequest() throws Exception {
+        final MemoryStringStorage stringStorage = new MemoryStringStorage();
+        stringStorage.put(DirectoryConsensusFetcher.getStorageKey(), base);
+        final DirectoryConsensus result = fetch(stringStorage);
+        assertNotNull(result);
+        assertEquals(1, diffHeaders.size());
+        assertEquals(consensus, stringStorage.get(DirectoryConsensusFetcher.getStorageKey()));
+    }
+
+    @Test(timeOut = 60000)
+    public void testFallbackToFullConsensusOnMismatch() throws Exception {
+        final MemoryStringStorage stringStorage = new MemoryStringStorage();
+        stringStorage.put(DirectoryConsensusFetcher.getStorageKey(), base);
+        // the diff leads to another consensus than announced
+        diffAnswer = diff.replace("\n.\n", "\nr changed again\n.\n");
+        final DirectoryConsensus result = fetch(stringStorage);
+        assertNotNull(result);
+        assertEquals(6701, result.getFingerprintsNetworkStatusDescriptors().size());
+        assertEquals(2, diffHeaders.size());
+        assertEquals(ConsensusDiff.getDigestAsSigned(base), diffHeaders.get(0));
+        assertNull(diffHeaders.get(1));
+        assertEquals(consensus, stringStorage.get(DirectoryConsensusFetcher.getStorageKey()));
+    }
+
+    /**
+     * keeps the values in memory.
+     */
+    private static final class MemoryStringStorage implements StringStorage {
+        private final Map<String, String> values = new HashMap<String, String>();
+
+        @Override
+        public void put(final String key, final String value) {
+            values.put(key, value);
+        }
+
+        @Override
+        public String get(final String key) {
+            return values.get(key);
+        }
+    }
+}
@@ -36,16 +36,24 @@
 package org.silvertunnel_ng.netlib.layer.tor.directory;
 
 import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertNull;
+import static org.testng.AssertJUnit.assertSame;
 import static org.testng.AssertJUnit.assertTrue;
 import static org.testng.AssertJUnit.fail;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 
 import org.silvertunnel_ng.netlib.util.DatatypeConverter;
 
 import org.silvertunnel_ng.netlib.layer.tor.api.Fingerprint;
+import org.silvertunnel_ng.netlib.layer.tor.util.NodeType;
 import org.silvertunnel_ng.netlib.layer.tor.util.TorException;
 import org.silvertunnel_ng.netlib.layer.tor.util.Util;
 import org.silvertunnel_ng.netlib.util.FileUtil;
@@ -100,8 +108,8 @@ public final class DirectoryConsensusLocalTest
 				getAllExampleAuthorityKeys(EXAMPLE_CONSENSUS_VALID_BUT_UNFRESH_DATE),
 				EXAMPLE_CONSENSUS_VALID_BUT_UNFRESH_DATE);
 
-		// check result
-		assertEquals("invalid number of parsed entries", 6289, consensus
+		// check result (includes the running routers with an "a" line before the "s" line)
+		assertEquals("invalid number of parsed entries", 6701, consensus
 				.getFingerprintsNetworkStatusDescriptors().size());
 
 		// check that a specific entry was parsed, with fingerprint
@@ -118,6 +126,21 @@ public final class DirectoryConsensusLocalTest
 		assertEquals("one specific result router entry: wrong IP address",
 				"193.23.244.244", desc.getIp());
 
+		assertEquals("one specific result router entry: wrong bandwidth", 20, desc.getBandwidth());
+
+		// check the bandwidth-weights line
+		final BandwidthWeights weights = consensus.getBandwidthWeights();
+		assertEquals(19, weights.getWeights().size());
+		assertEquals(Integer.valueOf(5970), weights.getWeights().get("Wgg"));
+		assertEquals(0.403, weights.getWeight(NodeType.MIDDLE, true, false), 1e-9);
+
+		// check the params line
+		final ConsensusParams params = consensus.getConsensusParams();
+		assertEquals(11, params.getParams().size());
+		assertEquals(Integer.valueOf(1), params.getParams().get("NumEntryGuards"));
+		assertEquals(30000, params.getCircuitPriorityHalflifeMs());
+		assertEquals(consensus.getValidAfter().getTime(), params.getVersion());
+
 		// check the validity checks
 		assertTrue(
 				"invalid freshUntil=" + consensus.getFreshUntil(),
@@ -213,6 +236,196 @@ public final class DirectoryConsensusLocalTest
 		}
 	}
 
+	/**
+	 * Test that a router entry with an "a" line (IPv6 address) between the
+	 * "r" and the "s" line is parsed completely.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testParsingEntryWithAddressLine() throws Exception
+	{
+		final String directoryConsensusStr = FileUtil.readFileFromClasspath(EXAMPLE_CONSENSUS_PATH);
+		final DirectoryConsensus consensus = new DirectoryConsensus(
+				directoryConsensusStr,
+				getAllExampleAuthorityKeys(EXAMPLE_CONSENSUS_VALID_BUT_UNFRESH_DATE),
+				EXAMPLE_CONSENSUS_VALID_BUT_UNFRESH_DATE);
+
+		final RouterStatusDescription desc = consensus.getFingerprintsNetworkStatusDescriptors().get(
+				new FingerprintImpl(DatatypeConverter.parseHexBinary("000149E6EF7102AACA9690D6E8DD2932124B94AB")));
+		assertEquals("PDrelay1", desc.getNickname());
+		assertEquals("95.215.44.189", desc.getIp());
+		assertEquals(8080, desc.getOrPort());
+		assertEquals(0, desc.getDirPort());
+		assertEquals(483, desc.getBandwidth());
+		assertEquals(Util.parseUtcTimestamp("2015-05-20 16:55:46").getTime(), desc.getLastPublication());
+		assertEquals("1B9B5FD6FB16078AE360610A3C030668A6FD88F6", desc.getDigestDescriptorAsHex());
+		assertTrue(desc.getRouterFlags().isHSDir());
+	}
+
+	/**
+	 * Test that the running routers are handed to the listener while the
+	 * document is still read.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testRouterStatusListener() throws Exception
+	{
+		final byte[] document = FileUtil.readFileFromClasspath(EXAMPLE_CONSENSUS_PATH).getBytes(Util.UTF8);
+		final CountingInputStream in = new CountingInputStream(new ByteArrayInputStream(document));
+		final List<RouterStatusDescription> published = new ArrayList<RouterStatusDescription>();
+		final long[] readWhenFirstPublished = new long[1];
+		final DirectoryConsensus consensus = new DirectoryConsensus(
+				in,
+				getAllExampleAuthorityKeys(EXAMPLE_CONSENSUS_VALID_BUT_UNFRESH_DATE),
+				EXAMPLE_CONSENSUS_VALID_BUT_UNFRESH_DATE,
+				new DirectoryConsensus.RouterStatusListener()
+				{
+					@Override
+					public void routerStatusParsed(final RouterStatusDescription routerStatus)
+					{
+						if (published.isEmpty())
+						{
+							readWhenFirstPublished[0] = in.count;
+						}
+						published.add(routerStatus);
+					}
+				});
+
+		assertEquals(consensus.getFingerprintsNetworkStatusDescriptors().size(), published.size());
+		for (final RouterStatusDescription routerStatus : published)
+		{
+			assertSame(routerStatus, consensus.getFingerprintsNetworkStatusDescriptors().get(routerStatus.getFingerprint()));
+			assertTrue(routerStatus.getRouterFlags().isRunning());
+		}
+		assertTrue("first router published after reading " + readWhenFirstPublished[0] + " bytes",
+				readWhenFirstPublished[0] < document.length / 10);
+	}
+
+	/**
+	 * Test that the listener does not see routers of a consensus with an
+	 * outdated header.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testRouterStatusListenerWithOutdatedConsensus() throws Exception
+	{
+		final String directoryConsensusStr = FileUtil.readFileFromClasspath(EXAMPLE_CONSENSUS_PATH);
+		final List<RouterStatusDescription> published = new ArrayList<RouterStatusDescription>();
+		try
+		{
+			new DirectoryConsensus(
+					directoryConsensusStr,
+					getAllExampleAuthorityKeys(EXAMPLE_CONSENSUS_VALID_BUT_UNFRESH_DATE),
+					EXAMPLE_CONSENSUS_INVALID_DATE,
+					new DirectoryConsensus.RouterStatusListener()
+					{
+						@Override
+						public void routerStatusParsed(final RouterStatusDescription routerStatus)
+						{
+							published.add(routerStatus);
+						}
+					});
+			fail("parsing the consensus was expected to fail");
+		}
+		catch (final TorException e)
+		{
+			// expected
+			LOG.info("expected exception: " + e);
+		}
+		assertEquals(0, published.size());
+	}
+
+	/**
+	 * Test the microdesc flavor: the "r" lines have no descriptor digest, the
+	 * "m" lines carry the microdescriptor digest. The example consensus is
+	 * turned into this flavor, so the signatures do not match anymore, but the
+	 * entries are handed to the listener before.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testParsingMicrodescConsensus() throws Exception
+	{
+		final byte[] microdescDigest = new byte[32];
+		for (int i = 0; i < microdescDigest.length; i++)
+		{
+			microdescDigest[i] = (byte) i;
+		}
+		final String directoryConsensusStr = FileUtil.readFileFromClasspath(EXAMPLE_CONSENSUS_PATH)
+				.replaceFirst("(?m)^network-status-version 3$", "network-status-version 3 microdesc")
+				.replaceAll("(?m)^r (\\S+ \\S+) \\S+ (.*)$", "r $1 $2\nm " + Microdescriptor.toBase64(microdescDigest));
+		final List<RouterStatusDescription> published = new ArrayList<RouterStatusDescription>();
+		try
+		{
+			new DirectoryConsensus(
+					directoryConsensusStr,
+					getAllExampleAuthorityKeys(EXAMPLE_CONSENSUS_VALID_BUT_UNFRESH_DATE),
+					EXAMPLE_CONSENSUS_VALID_BUT_UNFRESH_DATE,
+					new DirectoryConsensus.RouterStatusListener()
+					{
+						@Override
+						public void routerStatusParsed(final RouterStatusDescription routerStatus)
+						{
+							published.add(routerStatus);
+						}
+					});
+			fail("the signatures of the modified consensus were expected to fail");
+		}
+		catch (final TorException e)
+		{
+			// expected
+			LOG.info("expected exception: " + e);
+		}
+		assertEquals(6701, published.size());
+		RouterStatusDescription desc = null;
+		for (final RouterStatusDescription routerStatus : published)
+		{
+			if ("PDrelay1".equals(routerStatus.getNickname()))
+			{
+				desc = routerStatus;
+			}
+		}
+		assertEquals(new FingerprintImpl(DatatypeConverter.parseHexBinary("000149E6EF7102AACA9690D6E8DD2932124B94AB")),
+				desc.getFingerprint());
+		assertEquals("95.215.44.189", desc.getIp());
+		assertEquals(8080, desc.getOrPort());
+		assertEquals(0, desc.getDirPort());
+		assertEquals(483, desc.getBandwidth());
+		assertEquals(Util.parseUtcTimestamp("2015-05-20 16:55:46").getTime(), desc.getLastPublication());
+		assertNull(desc.getDigestDescriptor());
+		assertTrue(Arrays.equals(microdescDigest, desc.getDigestMicrodescriptor()));
+	}
+
+	/**
+	 * Log the time needed to parse and verify the full-size example consensus.
+	 * 
+	 * @throws Exception
+	 */
+	@Test
+	public void testParsingPerformance() throws Exception
+	{
+		final byte[] document = FileUtil.readFileFromClasspath(EXAMPLE_CONSENSUS_PATH).getBytes(Util.UTF8);
+		final AuthorityKeyCertificates authorityKeys = getAllExampleAuthorityKeys(EXAMPLE_CONSENSUS_VALID_BUT_UNFRESH_DATE);
+		final int warmUp = 5;
+		final int runs = 20;
+		long nanos = 0;
+		for (int i = 0; i < warmUp + runs; i++)
+		{
+			final long start = System.nanoTime();
+			final DirectoryConsensus consensus = new DirectoryConsensus(new ByteArrayInputStream(document),
+					authorityKeys, EXAMPLE_CONSENSUS_VALID_BUT_UNFRESH_DATE, null);
+			if (i >= warmUp)
+			{
+				nanos += System.nanoTime() - start;
+			}
+			assertEquals(6701, consensus.getFingerprintsNetworkStatusDescriptors().size());
+		}
+		LOG.info("parsing a consensus of {} bytes takes {} ms", document.length, nanos / runs / 1000000);
+	}
+
 	// /////////////////////////////////////////////////////
 	// helper method(s)
 	// /////////////////////////////////////////////////////
@@ -223,4 +436,40 @@ public final class DirectoryConsensusLocalTest
 		final AuthorityKeyCertificates allCerts = new AuthorityKeyCertificates(allCertsStr, currentDate);
 		return allCerts;
 	}
+
+	/**
+	 * counts the bytes read.
+	 */
+	private static final class CountingInputStream extends InputStream
+	{
+		private final InputStream in;
+		private long count;
+
+		private CountingInputStream(final InputStream in)
+		{
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			final int result = in.read();
+			if (result >= 0)
+			{
+				count++;
+			}
+			return result;
+		}
+
+		@Override
+		public int read(final byte[] buffer, final int offset, final int length) throws IOException
+		{
+			final int result = in.read(buffer, offset, length);
+			if (result > 0)
+			{
+				count += result;
+			}
+			return result;
+		}
+	}
 }
@@ -0,0 +1,143 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.directory;
+
+import org.silvertunnel_ng.netlib.layer.tor.util.Encryption;
+import org.silvertunnel_ng.netlib.layer.tor.util.TorException;
+import org.silvertunnel_ng.netlib.layer.tor.util.Util;
+import org.silvertunnel_ng.netlib.util.DatatypeConverter;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.security.Security;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Map;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Testing the {@link Microdescriptor} class and the routers built from it.
+ *
+ * @author Tobias Boese
+ */
+public final class MicrodescriptorLocalTest {
+    private static final String FAMILY_MEMBER = "000149E6EF7102AACA9690D6E8DD2932124B94AB";
+
+    private static RSAPublicKey onionKey;
+    private static RSAPublicKey otherOnionKey;
+
+    @BeforeClass
+    public static void setUpClass() {
+        // install BC, if not already done
+        if (Security.getProvider("SC") == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+        onionKey = Encryption.createNewRSAKeyPair().getPublic();
+        otherOnionKey = Encryption.createNewRSAKeyPair().getPublic();
+    }
+
+    private static String microdescriptor(final RSAPublicKey key, final String policy) {
+        return "onion-key\n"
+                + Encryption.getPEMStringFromRSAPublicKey(key)
+                + "ntor-onion-key 5VnQs6bbWYJdHqiL9KSBpsb0HOC9ltzXvsZCa0vZcBg=\n"
+                + "family $" + FAMILY_MEMBER + " friend\n"
+                + policy;
+    }
+
+    private static String digest(final String microdescriptor) throws Exception {
+        return Microdescriptor.toBase64(Encryption.getDigest("SHA-256", microdescriptor.getBytes(Util.UTF8)));
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        final String text = microdescriptor(onionKey, "p accept 80,443,6660-6669\n");
+        final Microdescriptor microdescriptor = new Microdescriptor(text);
+        assertEquals(digest(text), microdescriptor.getDigest());
+        assertEquals(43, microdescriptor.getDigest().length());
+        assertEquals(text, microdescriptor.getDescriptor());
+        assertEquals(onionKey, microdescriptor.getOnionKey());
+        assertTrue(microdescriptor.getFamily().contains(new FingerprintImpl(DatatypeConverter.parseHexBinary(FAMILY_MEMBER))));
+        assertTrue(microdescriptor.getFamilyNames().contains("friend"));
+
+        final CompiledExitPolicy policy = new CompiledExitPolicy(microdescriptor.getExitPolicy());
+        assertTrue(policy.accepts(0x08080808L, 80));
+        assertTrue(policy.accepts(0x08080808L, 6665));
+        assertFalse(policy.accepts(0x08080808L, 22));
+    }
+
+    @Test
+    public void testParseRejectSummary() throws Exception {
+        final Microdescriptor microdescriptor = new Microdescriptor(microdescriptor(onionKey, "p reject 25,119\n"));
+        final CompiledExitPolicy policy = new CompiledExitPolicy(microdescriptor.getExitPolicy());
+        assertFalse(policy.accepts(0x08080808L, 25));
+        assertTrue(policy.accepts(0x08080808L, 80));
+    }
+
+    @Test
+    public void testWithoutSummaryRejectsAll() throws Exception {
+        final Microdescriptor microdescriptor = new Microdescriptor(microdescriptor(onionKey, ""));
+        assertFalse(new CompiledExitPolicy(microdescriptor.getExitPolicy()).acceptsAnything());
+    }
+
+    @Test(expectedExceptions = TorException.class)
+    public void testInvalidSummary() throws Exception {
+        new Microdescriptor(microdescriptor(onionKey, "p accept http\n"));
+    }
+
+    @Test
+    public void testParseAll() throws Exception {
+        final String first = microdescriptor(onionKey, "p accept 80\n");
+        final String invalid = "onion-key\nno key\n";
+        final String second = microdescriptor(otherOnionKey, "p accept 443\n");
+        final Map<String, Microdescriptor> result = Microdescriptor.parseAll(first + invalid + second);
+        assertEquals(2, result.size());
+        assertEquals(onionKey, result.get(digest(first)).getOnionKey());
+        assertEquals(otherOnionKey, result.get(digest(second)).getOnionKey());
+        assertEquals(0, Microdescriptor.parseAll("").size());
+    }
+
+    @Test
+    public void testRouterFromMicrodescriptor() throws Exception {
+        final Microdescriptor microdescriptor = new Microdescriptor(microdescriptor(onionKey, "p accept 80,443\n"));
+        final RouterStatusDescription status = new RouterStatusDescription();
+        status.setNickname("PDrelay1");
+        status.setFingerprint("AAFJ5u9xAqrKlpDW6N0pMhJLlKs=");
+        status.setLastPublication(System.currentTimeMillis());
+        status.setIp("95.215.44.189");
+        status.setOrPort(8080);
+        status.setDirPort(0);
+        status.setBandwidth(483);
+        status.setRouterFlags("Exit Fast Running Valid");
+
+        final RouterImpl router = new RouterImpl(status, microdescriptor);
+        assertEquals("PDrelay1", router.getNickname());
+        assertEquals(status.getFingerprint(), router.getFingerprint());
+        assertEquals(8080, router.getOrPort());
+        assertEquals(onionKey, router.getOnionKey());
+        assertNull(router.getSigningKey());
+        assertSame(microdescriptor, router.getMicrodescriptor());
+        assertTrue(router.isValid());
+        assertTrue(router.isExitNode());
+        assertTrue(router.exitPolicyAccepts(null, 443));
+        assertFalse(router.exitPolicyAccepts(null, 25));
+        assertEquals(483000, router.getBandwidthAvg());
+        assertTrue(router.getFamily().contains(new FingerprintImpl(DatatypeConverter.parseHexBinary(FAMILY_MEMBER))));
+    }
+}
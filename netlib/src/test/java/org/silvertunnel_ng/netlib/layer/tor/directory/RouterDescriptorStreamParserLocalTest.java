@@ -0,0 +1,113 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.directory;
+
+import org.silvertunnel_ng.netlib.layer.tor.api.Fingerprint;
+import org.silvertunnel_ng.netlib.layer.tor.api.Router;
+import org.silvertunnel_ng.netlib.layer.tor.util.Util;
+import org.silvertunnel_ng.netlib.util.DatatypeConverter;
+import org.silvertunnel_ng.netlib.util.FileUtil;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Testing the {@link RouterDescriptorStreamParser} class.
+ *
+ * @author Tobias Boese
+ */
+public final class RouterDescriptorStreamParserLocalTest {
+    private static final String EXAMPLE_SERVER_DESCRIPTOR_PATH = "/org/silvertunnel_ng/netlib/layer/tor/example-router-descriptor.txt";
+    private static final Fingerprint EXAMPLE_FINGERPRINT
+            = new FingerprintImpl(DatatypeConverter.parseHexBinary("EEC954FB78B4FE48C6783FC3CB2E8562092890B8"));
+
+    private String descriptor;
+
+    @BeforeClass
+    public void setUp() throws IOException {
+        descriptor = FileUtil.readFileFromClasspath(EXAMPLE_SERVER_DESCRIPTOR_PATH);
+    }
+
+    /**
+     * a stream which returns at most a few bytes per read, like a slow download.
+     */
+    private static InputStream trickle(final String content, final int chunkSize) throws IOException {
+        return new ByteArrayInputStream(content.getBytes(Util.UTF8)) {
+            @Override
+            public synchronized int read(final byte[] b, final int off, final int len) {
+                return super.read(b, off, Math.min(len, chunkSize));
+            }
+        };
+    }
+
+    @Test
+    public void testParseSingleDescriptor() throws IOException {
+        for (final int chunkSize : new int[]{1, 7, 100, 100000}) {
+            final Map<Fingerprint, Router> routers = RouterDescriptorStreamParser.parse(trickle(descriptor, chunkSize));
+            assertEquals("chunk size " + chunkSize, 1, routers.size());
+            final Router router = routers.get(EXAMPLE_FINGERPRINT);
+            assertNotNull(router);
+            assertEquals("chaoscomputerclub27", router.getNickname());
+            assertEquals(11, router.getFamily().size());
+        }
+    }
+
+    /**
+     * invalid descriptors and text between the descriptors are skipped.
+     */
+    @Test
+    public void testSkipsInvalidDescriptorsAndNoise() throws IOException {
+        final String broken = descriptor.replace("chaoscomputerclub27", "chaoscomputerclub28");
+        final StringBuilder content = new StringBuilder();
+        content.append("@downloaded-at 2013-10-01 00:00:00\n");
+        content.append(descriptor).append('\n');
+        content.append("some text between the descriptors\n");
+        // a later descriptor would replace the valid one
+        content.append(broken).append('\n');
+        content.append("router incomplete 1.2.3.4 9001 0 0\nplatform Tor\n");
+        final Map<Fingerprint, Router> routers = RouterDescriptorStreamParser.parse(trickle(content.toString(), 13));
+        assertEquals(1, routers.size());
+        assertEquals("chaoscomputerclub27", routers.get(EXAMPLE_FINGERPRINT).getNickname());
+    }
+
+    /**
+     * more descriptors than may wait for parsing at once.
+     */
+    @Test(timeOut = 60000)
+    public void testManyDescriptors() throws IOException {
+        final StringBuilder content = new StringBuilder();
+        for (int i = 0; i < RouterDescriptorStreamParser.MAX_PENDING * 3; i++) {
+            content.append(descriptor).append('\n');
+        }
+        final Map<Fingerprint, Router> routers = RouterDescriptorStreamParser.parse(trickle(content.toString(), 4096));
+        assertEquals(1, routers.size());
+        assertNotNull(routers.get(EXAMPLE_FINGERPRINT));
+    }
+
+    @Test
+    public void testEmptyStream() throws IOException {
+        assertTrue(RouterDescriptorStreamParser.parse(trickle("", 10)).isEmpty());
+    }
+}
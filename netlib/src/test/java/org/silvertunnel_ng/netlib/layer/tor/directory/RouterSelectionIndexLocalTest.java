@@ -0,0 +1,356 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.directory;
+
+import org.silvertunnel_ng.netlib.layer.tor.api.Fingerprint;
+import org.silvertunnel_ng.netlib.layer.tor.api.Router;
+import org.silvertunnel_ng.netlib.layer.tor.util.NodeType;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.testng.AssertJUnit.*;
+
+/**
+ * Testing the {@link RouterSelectionIndex} class.
+ *
+ * @author Tobias Boese
+ */
+public final class RouterSelectionIndexLocalTest {
+    private static final int PICKS = 2000;
+
+    /**
+     * create a router which only answers the methods used for the selection.
+     */
+    private static Router createRouter(final int id, final String flags, final float ranking) {
+        return createRouter(id, flags, ranking, 100);
+    }
+
+    private static Router createRouter(final int id, final String flags, final float ranking, final int bandwidth) {
+        return createRouter(id, flags, ranking, bandwidth, 80);
+    }
+
+    private static Router createRouter(final int id,
+                                       final String flags,
+                                       final float ranking,
+                                       final int bandwidth,
+                                       final int exitPort) {
+        return createRouter(id, flags, ranking, bandwidth, exitPort, "10.0." + id + ".1", "--");
+    }
+
+    private static Router createRouter(final int id,
+                                       final String flags,
+                                       final float ranking,
+                                       final int bandwidth,
+                                       final int exitPort,
+                                       final String address,
+                                       final String countryCode,
+                                       final int... familyIds) {
+        final Fingerprint fingerprint = fingerprint(id);
+        final Set<Fingerprint> family = new HashSet<Fingerprint>();
+        for (final int familyId : familyIds) {
+            family.add(fingerprint(familyId));
+        }
+        final RouterFlags routerFlags = new RouterFlags(flags);
+        return (Router) Proxy.newProxyInstance(Router.class.getClassLoader(), new Class<?>[]{Router.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        final String name = method.getName();
+                        if ("getFingerprint".equals(name)) {
+                            return fingerprint;
+                        } else if ("getRouterFlags".equals(name)) {
+                            return routerFlags;
+                        } else if ("isDirv2Running".equals(name)) {
+                            return routerFlags.isRunning();
+                        } else if ("getConsensusBandwidth".equals(name)) {
+                            return bandwidth;
+                        } else if ("exitPolicyAccepts".equals(name)) {
+                            return args[1].equals(exitPort);
+                        } else if ("exitPolicyMayAccept".equals(name)) {
+                            return args[0].equals(exitPort);
+                        } else if ("getCountryCode".equals(name)) {
+                            return countryCode;
+                        } else if ("getAddress".equals(name)) {
+                            try {
+                                return InetAddress.getByName(address);
+                            } catch (final UnknownHostException e) {
+                                throw new IllegalStateException(e);
+                            }
+                        } else if ("getFamily".equals(name)) {
+                            return family;
+                        } else if ("getRefinedRankingIndex".equals(name)) {
+                            final float p = (Float) args[0];
+                            return ranking * p + 0.5f * (1 - p);
+                        } else if ("toString".equals(name)) {
+                            return "router" + id;
+                        } else if ("hashCode".equals(name)) {
+                            return id;
+                        } else if ("equals".equals(name)) {
+                            return proxy == args[0];
+                        }
+                        throw new UnsupportedOperationException(name);
+                    }
+                });
+    }
+
+    private static Fingerprint fingerprint(final int id) {
+        final byte[] key = new byte[20];
+        key[0] = (byte) id;
+        return new FingerprintImpl(key);
+    }
+
+    private static RouterFlags flags(final String flags) {
+        return new RouterFlags(flags);
+    }
+
+    @Test
+    public void testSelectionFollowsRanking() {
+        final Router good = createRouter(1, "Running Fast", 1.0f);
+        final Router bad = createRouter(2, "Running Fast", 0.0f);
+        final RouterSelectionIndex index = new RouterSelectionIndex(null, BandwidthWeights.NONE, list(good, bad));
+        final Random rnd = new Random(1);
+        // p = 1: only the ranking counts
+        for (int i = 0; i < PICKS; i++) {
+            assertSame(good, index.select(NodeType.MIDDLE, null, null, 1.0f, null, rnd));
+        }
+        // p = 0: every router has the same weight
+        int goodPicks = 0;
+        for (int i = 0; i < PICKS; i++) {
+            if (index.select(NodeType.MIDDLE, null, null, 0.0f, null, rnd) == good) {
+                goodPicks++;
+            }
+        }
+        assertTrue("good router picked " + goodPicks + " times", goodPicks > PICKS / 3 && goodPicks < PICKS * 2 / 3);
+    }
+
+    @Test
+    public void testFlagsExclusionsAndRunning() {
+        final Router fast = createRouter(1, "Running Fast", 0.5f);
+        final Router fastStable = createRouter(2, "Running Fast Stable", 0.5f);
+        final Router slow = createRouter(3, "Running Stable", 0.5f);
+        final Router down = createRouter(4, "Fast Stable", 0.5f);
+        final RouterSelectionIndex index = new RouterSelectionIndex(null, BandwidthWeights.NONE, list(fast, fastStable, slow, down));
+        assertEquals(3, index.size());
+        final Random rnd = new Random(2);
+        final Set<Fingerprint> excluded = new HashSet<Fingerprint>();
+        excluded.add(fast.getFingerprint());
+        for (int i = 0; i < PICKS; i++) {
+            final Router router = index.select(NodeType.MIDDLE, flags("Fast"), null, 0.5f, null, rnd);
+            assertTrue(router == fast || router == fastStable);
+            assertSame(fastStable, index.select(NodeType.MIDDLE, flags("Fast"), excluded, 0.5f, null, rnd));
+            assertSame(fastStable, index.select(NodeType.MIDDLE, flags("Fast Stable"), null, 0.5f, null, rnd));
+        }
+        excluded.add(fastStable.getFingerprint());
+        assertNull(index.select(NodeType.MIDDLE, flags("Fast"), excluded, 0.5f, null, rnd));
+        assertNull(index.select(NodeType.MIDDLE, flags("Guard"), null, 0.5f, null, rnd));
+    }
+
+    /**
+     * a filter rejecting nearly all routers must still find the remaining one.
+     */
+    @Test
+    public void testRareMatchIsFoundByScan() {
+        final List<Router> routers = new ArrayList<Router>();
+        for (int i = 0; i < 200; i++) {
+            routers.add(createRouter(i, "Running Exit", i == 17 ? 0.01f : 1.0f));
+        }
+        final Router rare = routers.get(17);
+        final RouterSelectionIndex index = new RouterSelectionIndex(null, BandwidthWeights.NONE, routers);
+        final RouterFilter onlyRare = new RouterFilter() {
+            @Override
+            public boolean accept(final Router router) {
+                return router == rare;
+            }
+        };
+        final Random rnd = new Random(3);
+        for (int i = 0; i < 100; i++) {
+            assertSame(rare, index.select(NodeType.MIDDLE, flags("Exit"), null, 1.0f, onlyRare, rnd));
+        }
+    }
+
+    @Test
+    public void testSelectionFollowsBandwidth() {
+        final Router fast = createRouter(1, "Running", 0.5f, 900);
+        final Router slow = createRouter(2, "Running", 0.5f, 100);
+        final RouterSelectionIndex index = new RouterSelectionIndex(null, BandwidthWeights.NONE, list(fast, slow));
+        final Random rnd = new Random(5);
+        int fastPicks = 0;
+        for (int i = 0; i < PICKS; i++) {
+            if (index.select(NodeType.MIDDLE, null, null, 0.0f, null, rnd) == fast) {
+                fastPicks++;
+            }
+        }
+        assertTrue("fast router picked " + fastPicks + " times", fastPicks > PICKS * 8 / 10 && fastPicks < PICKS * 95 / 100);
+    }
+
+    /**
+     * the bandwidth weights of the consensus decide which routers are used in which position.
+     */
+    @Test
+    public void testSelectionUsesPositionWeights() {
+        final Map<String, Integer> values = new HashMap<String, Integer>();
+        values.put("Wmm", 10000);
+        values.put("Wme", 0);
+        values.put("Wee", 10000);
+        values.put("Wem", 0);
+        values.put("Wgg", 10000);
+        final BandwidthWeights weights = new BandwidthWeights(values, 10000);
+        final Router middle = createRouter(1, "Running", 0.5f, 100);
+        final Router exit = createRouter(2, "Running Exit", 0.5f, 100);
+        final Router guard = createRouter(3, "Running Guard", 0.5f, 100);
+        final RouterSelectionIndex index = new RouterSelectionIndex(null, weights, list(middle, exit, guard));
+        final Random rnd = new Random(6);
+        for (int i = 0; i < PICKS; i++) {
+            assertTrue(index.select(NodeType.MIDDLE, null, null, 0.5f, null, rnd) != exit);
+            assertSame(exit, index.select(NodeType.EXIT, flags("Exit"), null, 0.5f, null, rnd));
+            assertTrue(index.select(NodeType.EXIT, null, null, 0.5f, null, rnd) != middle);
+            assertTrue(index.select(NodeType.ENTRY, null, null, 0.5f, null, rnd) != exit);
+        }
+    }
+
+    @Test
+    public void testBandwidthWeightsParsing() {
+        final BandwidthWeights weights = BandwidthWeights.parse("Wgd=0 Wgg=5970 Wmg=4030 Wmm=10000 Wee=10000", 10000);
+        assertFalse(weights.isEmpty());
+        assertEquals(0.597, weights.getWeight(NodeType.ENTRY, true, false), 1e-9);
+        assertEquals(0.0, weights.getWeight(NodeType.ENTRY, true, true), 1e-9);
+        assertEquals(0.403, weights.getWeight(NodeType.MIDDLE, true, false), 1e-9);
+        assertEquals(1.0, weights.getWeight(NodeType.EXIT, false, true), 1e-9);
+        // missing weights count fully
+        assertEquals(1.0, weights.getWeight(NodeType.MIDDLE, false, true), 1e-9);
+        assertSame(BandwidthWeights.NONE, BandwidthWeights.parse(null, 10000));
+        assertEquals(1.0, BandwidthWeights.NONE.getWeight(NodeType.ENTRY, false, true), 1e-9);
+    }
+
+    @Test
+    public void testExitSelectionByPort() {
+        final List<Router> routers = new ArrayList<Router>();
+        for (int i = 0; i < 100; i++) {
+            routers.add(createRouter(i, "Running Exit", 0.5f, 100, 80));
+        }
+        final Router smtp = createRouter(100, "Running Exit", 0.5f, 100, 25);
+        routers.add(smtp);
+        final RouterSelectionIndex index = new RouterSelectionIndex(null, BandwidthWeights.NONE, routers);
+        assertEquals(100, index.getExitPolicyIndex().countAccepting(80));
+        assertEquals(1, index.getExitPolicyIndex().countAccepting(25));
+        assertEquals(0, index.getExitPolicyIndex().countAccepting(22));
+        final Random rnd = new Random(7);
+        for (int i = 0; i < 100; i++) {
+            assertSame(smtp, index.select(NodeType.EXIT, flags("Exit"), null, 0.5f, null, 25, null, rnd));
+            assertTrue(index.select(NodeType.EXIT, flags("Exit"), null, 0.5f, null, 80, null, rnd) != smtp);
+        }
+        assertNull(index.select(NodeType.EXIT, flags("Exit"), null, 0.5f, null, 22, null, rnd));
+    }
+
+    @Test
+    public void testExcludeRelated() {
+        final Router router = createRouter(1, "Running", 0.5f, 100, 80, "10.1.1.1", "de", 4);
+        final Router sameNetwork = createRouter(2, "Running", 0.5f, 100, 80, "10.1.1.2", "at");
+        final Router sameCountry = createRouter(3, "Running", 0.5f, 100, 80, "10.1.2.1", "de");
+        final Router familyMember = createRouter(4, "Running", 0.5f, 100, 80, "10.1.3.1", "fr");
+        final Router other = createRouter(5, "Running", 0.5f, 100, 80, "10.2.1.1", "nl");
+        final RouterSelectionIndex index = new RouterSelectionIndex(null, BandwidthWeights.NONE,
+                list(router, sameNetwork, sameCountry, familyMember, other));
+
+        ExcludedRouters excluded = new ExcludedRouters(index);
+        index.excludeRelated(router, excluded, false, false);
+        assertEquals(set(router, familyMember), new HashSet<Fingerprint>(excluded));
+
+        excluded = new ExcludedRouters(index);
+        index.excludeRelated(router, excluded, true, false);
+        assertEquals(set(router, sameNetwork, familyMember), new HashSet<Fingerprint>(excluded));
+
+        excluded = new ExcludedRouters(index);
+        index.excludeRelated(router, excluded, true, true);
+        assertEquals(set(router, sameNetwork, sameCountry, familyMember), new HashSet<Fingerprint>(excluded));
+        final Random rnd = new Random(8);
+        for (int i = 0; i < PICKS; i++) {
+            assertSame(other, index.select(NodeType.MIDDLE, null, excluded, 0.5f, null, rnd));
+        }
+        excluded.add(other.getFingerprint());
+        assertNull(index.select(NodeType.MIDDLE, null, excluded, 0.5f, null, rnd));
+    }
+
+    @Test
+    public void testExcludedRoutersSet() {
+        final Router first = createRouter(1, "Running", 0.5f);
+        final Router second = createRouter(2, "Running", 0.5f);
+        final Router down = createRouter(3, "Fast", 0.5f);
+        final RouterSelectionIndex index = new RouterSelectionIndex(null, BandwidthWeights.NONE, list(first, second, down));
+        final ExcludedRouters excluded = new ExcludedRouters(index);
+        assertTrue(excluded.isEmpty());
+        assertTrue(excluded.add(first.getFingerprint()));
+        assertFalse(excluded.add(first.getFingerprint()));
+        // not in the index
+        assertTrue(excluded.add(down.getFingerprint()));
+        assertEquals(2, excluded.size());
+        assertTrue(excluded.contains(first.getFingerprint()));
+        assertTrue(excluded.contains(down.getFingerprint()));
+        assertFalse(excluded.contains(second.getFingerprint()));
+        assertEquals(set(first, down), new HashSet<Fingerprint>(excluded));
+
+        final ExcludedRouters copy = excluded.copy();
+        assertTrue(copy.remove(first.getFingerprint()));
+        assertTrue(excluded.contains(first.getFingerprint()));
+        copy.add(second.getFingerprint());
+        assertTrue(excluded.addAll(copy));
+        assertEquals(set(first, second, down), new HashSet<Fingerprint>(excluded));
+        // sets of another snapshot are still understood
+        final ExcludedRouters foreign = new ExcludedRouters(
+                new RouterSelectionIndex(null, BandwidthWeights.NONE, list(first)));
+        foreign.addAll(excluded);
+        assertEquals(set(first, second, down), new HashSet<Fingerprint>(foreign));
+        assertNull(index.select(NodeType.MIDDLE, null, foreign, 0.5f, null, new Random(9)));
+        excluded.clear();
+        assertTrue(excluded.isEmpty());
+    }
+
+    @Test
+    public void testEmptyIndex() {
+        final RouterSelectionIndex index = new RouterSelectionIndex(null, BandwidthWeights.NONE, Collections.<Router>emptyList());
+        assertNull(index.select(NodeType.MIDDLE, null, null, 1.0f, null, new Random(4)));
+    }
+
+    private static Set<Fingerprint> set(final Router... routers) {
+        final Set<Fingerprint> result = new HashSet<Fingerprint>();
+        for (final Router router : routers) {
+            result.add(router.getFingerprint());
+        }
+        return result;
+    }
+
+    private static List<Router> list(final Router... routers) {
+        final List<Router> result = new ArrayList<Router>();
+        Collections.addAll(result, routers);
+        return result;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.stream;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+import static org.testng.AssertJUnit.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.silvertunnel_ng.netlib.layer.tor.circuit.cells.Cell;
+import org.silvertunnel_ng.netlib.layer.tor.circuit.cells.CellBufferPool;
+import org.silvertunnel_ng.netlib.layer.tor.circuit.cells.CellCodec;
+import org.testng.annotations.Test;
+
+/**
+ * Test of {@link StreamInputBuffer}.
+ *
+ * @author Tobias Boese
+ */
+public class StreamInputBufferLocalTest
+{
+	/**
+	 * decode a cell with a pooled payload; all payload bytes are set to value.
+	 */
+	private static Cell createCell(final CellCodec codec, final int value)
+	{
+		final ByteBuffer raw = ByteBuffer.allocate(Cell.CELL_TOTAL_SIZE);
+		for (int i = 3; i < Cell.CELL_TOTAL_SIZE; i++)
+		{
+			raw.put(i, (byte) value);
+		}
+		return codec.decode(raw);
+	}
+
+	@Test(timeOut = 10000)
+	public void testReadAcrossCellsAndRelease() throws Exception
+	{
+		final CellBufferPool pool = new CellBufferPool();
+		final CellCodec codec = new CellCodec(pool);
+		final StreamInputBuffer in = new StreamInputBuffer(10, null);
+		final Cell first = createCell(codec, 1);
+		final Cell second = createCell(codec, 2);
+		in.put(first, first.getPayload(), 11, 100);
+		in.put(second, second.getPayload(), 11, 50);
+		assertEquals(150, in.available());
+		assertEquals(2, in.getBufferedCells());
+
+		final byte[] data = new byte[120];
+		assertEquals(120, in.read(data, 0, data.length));
+		assertEquals(1, data[99]);
+		assertEquals(2, data[100]);
+		assertEquals("first cell must be released", 1, in.getBufferedCells());
+		assertEquals(2, in.read());
+		assertEquals(29, in.available());
+		in.closeWrite();
+		assertEquals(29, in.read(data, 0, data.length));
+		assertEquals(0, in.getBufferedCells());
+		assertEquals(-1, in.read(data, 0, data.length));
+		assertEquals(-1, in.read());
+	}
+
+	@Test(timeOut = 10000)
+	public void testReaderIsWokenUp() throws Exception
+	{
+		final StreamInputBuffer in = new StreamInputBuffer(10, null);
+		new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					Thread.sleep(100);
+					in.put(null, new byte[] {42}, 0, 1);
+				}
+				catch (final Exception e)
+				{
+					// test fails
+				}
+			}
+		}.start();
+		final long start = System.nanoTime();
+		assertEquals(42, in.read());
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+	}
+
+	@Test(timeOut = 10000)
+	public void testFullBufferBlocksWriter() throws Exception
+	{
+		final StreamInputBuffer in = new StreamInputBuffer(2, null);
+		in.put(null, new byte[] {1}, 0, 1);
+		in.put(null, new byte[] {2}, 0, 1);
+		final CountDownLatch added = new CountDownLatch(1);
+		new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					in.put(null, new byte[] {3}, 0, 1);
+					added.countDown();
+				}
+				catch (final IOException e)
+				{
+					// test fails
+				}
+			}
+		}.start();
+		assertTrue("writer must be blocked", !added.await(200, TimeUnit.MILLISECONDS));
+		assertEquals(1, in.read());
+		assertTrue("writer must continue", added.await(5, TimeUnit.SECONDS));
+		assertEquals(2, in.read());
+		assertEquals(3, in.read());
+	}
+
+	@Test(timeOut = 10000)
+	public void testCloseReleasesCells() throws Exception
+	{
+		final CellBufferPool pool = new CellBufferPool();
+		final CellCodec codec = new CellCodec(pool);
+		final StreamInputBuffer in = new StreamInputBuffer(10, null);
+		final Cell cell = createCell(codec, 7);
+		in.put(cell, cell.getPayload(), 11, 10);
+		final int idle = pool.getIdleCount();
+		in.close();
+		assertEquals(idle + 1, pool.getIdleCount());
+		try
+		{
+			in.read();
+			fail("expected IOException");
+		}
+		catch (final IOException e)
+		{
+			// expected
+		}
+	}
+
+	@Test(timeOut = 10000)
+	public void testConsumedCellsAreReported() throws Exception
+	{
+		final int[] consumed = new int[1];
+		final StreamInputBuffer in = new StreamInputBuffer(10, new StreamInputBuffer.ConsumptionListener()
+		{
+			@Override
+			public void cellsConsumed(final int cells)
+			{
+				consumed[0] += cells;
+			}
+		});
+		in.put(null, new byte[10], 0, 10);
+		in.put(null, new byte[10], 0, 10);
+		in.put(null, new byte[10], 0, 10);
+		assertEquals(0, consumed[0]);
+		in.read(new byte[15]);
+		assertEquals(1, consumed[0]);
+		in.read(new byte[5]);
+		assertEquals(2, consumed[0]);
+		// dropped data counts as consumed
+		in.close();
+		in.put(null, new byte[10], 0, 10);
+		assertEquals(4, consumed[0]);
+	}
+}
@@ -0,0 +1,247 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.stream;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.silvertunnel_ng.netlib.layer.tor.circuit.cells.CellRelay;
+import org.silvertunnel_ng.netlib.layer.tor.common.TCPStreamWriteMode;
+import org.silvertunnel_ng.netlib.layer.tor.util.TorException;
+import org.testng.annotations.Test;
+
+/**
+ * Test of the write modes of {@link TCPStreamOutputStream}.
+ *
+ * @author Tobias Boese
+ */
+public class TCPStreamOutputStreamLocalTest
+{
+	/**
+	 * records the length of every cell sent instead of sending it.
+	 */
+	private static class RecordingStream extends TCPStream
+	{
+		private final List<Integer> cells = new ArrayList<Integer>();
+
+		RecordingStream()
+		{
+			super(null);
+		}
+
+		@Override
+		void sendData(final byte[] data, final int length) throws TorException
+		{
+			synchronized (cells)
+			{
+				cells.add(length);
+			}
+		}
+
+		List<Integer> getCells()
+		{
+			synchronized (cells)
+			{
+				return new ArrayList<Integer>(cells);
+			}
+		}
+	}
+
+	/** write 10 chunks of 100 bytes. */
+	private static void writeChunks(final TCPStreamOutputStream out) throws Exception
+	{
+		final byte[] chunk = new byte[100];
+		for (int i = 0; i < 10; i++)
+		{
+			out.write(chunk);
+		}
+	}
+
+	@Test(timeOut = 10000)
+	public void testImmediateSendsCellPerWrite() throws Exception
+	{
+		final RecordingStream stream = new RecordingStream();
+		final TCPStreamOutputStream out = new TCPStreamOutputStream(stream);
+		writeChunks(out);
+		assertEquals(10, stream.getCells().size());
+		out.write(new byte[1000]);
+		// 498 + 498 + 4
+		assertEquals(13, stream.getCells().size());
+		assertEquals(4, stream.getCells().get(12).intValue());
+	}
+
+	@Test(timeOut = 10000)
+	public void testExplicitFlushSendsFullCells() throws Exception
+	{
+		final RecordingStream stream = new RecordingStream();
+		final TCPStreamOutputStream out = new TCPStreamOutputStream(stream, TCPStreamWriteMode.EXPLICIT_FLUSH, 20);
+		writeChunks(out);
+		assertEquals(2, stream.getCells().size());
+		assertEquals(CellRelay.RELAY_DATA_SIZE, stream.getCells().get(1).intValue());
+		out.flush();
+		assertEquals(3, stream.getCells().size());
+		assertEquals(1000 - 2 * CellRelay.RELAY_DATA_SIZE, stream.getCells().get(2).intValue());
+		out.flush();
+		assertEquals(3, stream.getCells().size());
+	}
+
+	@Test(timeOut = 10000)
+	public void testCoalesceSendsAfterDelay() throws Exception
+	{
+		final RecordingStream stream = new RecordingStream();
+		final TCPStreamOutputStream out = new TCPStreamOutputStream(stream, TCPStreamWriteMode.COALESCE, 100);
+		writeChunks(out);
+		assertEquals(2, stream.getCells().size());
+		final long end = System.currentTimeMillis() + 5000;
+		while (stream.getCells().size() < 3 && System.currentTimeMillis() < end)
+		{
+			Thread.sleep(10);
+		}
+		assertEquals(3, stream.getCells().size());
+		assertEquals(1000 - 2 * CellRelay.RELAY_DATA_SIZE, stream.getCells().get(2).intValue());
+	}
+
+	@Test(timeOut = 10000)
+	public void testCloseSendsBufferedData() throws Exception
+	{
+		final RecordingStream stream = new RecordingStream();
+		final TCPStreamOutputStream out = new TCPStreamOutputStream(stream, TCPStreamWriteMode.EXPLICIT_FLUSH, 20);
+		out.write(new byte[10]);
+		out.close();
+		assertEquals(1, stream.getCells().size());
+		out.write(new byte[10]);
+		out.flush();
+		assertEquals(1, stream.getCells().size());
+	}
+
+	/**
+	 * takes the package window like a real stream; blocks while it is exhausted.
+	 */
+	private static final class FlowControlledStream extends RecordingStream
+	{
+		@Override
+		void sendData(final byte[] data, final int length) throws TorException
+		{
+			try
+			{
+				getFlowControl().acquirePackage();
+			}
+			catch (final IOException e)
+			{
+				throw new TorException(e);
+			}
+			super.sendData(data, length);
+		}
+	}
+
+	/**
+	 * blocks every cell until released, like an exhausted circuit window.
+	 */
+	private static final class BlockedStream extends RecordingStream
+	{
+		private final CountDownLatch release = new CountDownLatch(1);
+
+		@Override
+		void sendData(final byte[] data, final int length) throws TorException
+		{
+			try
+			{
+				release.await();
+			}
+			catch (final InterruptedException e)
+			{
+				throw new TorException(e);
+			}
+			super.sendData(data, length);
+		}
+	}
+
+	/** wait up to 5 s until the stream has sent the given number of cells. */
+	private static void awaitCells(final RecordingStream stream, final int cells) throws InterruptedException
+	{
+		final long end = System.currentTimeMillis() + 5000;
+		while (stream.getCells().size() < cells && System.currentTimeMillis() < end)
+		{
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * a stream waiting for a RELAY_SENDME must not delay the timed flush of
+	 * other streams.
+	 */
+	@Test(timeOut = 10000)
+	public void testCoalesceWithClosedPackageWindow() throws Exception
+	{
+		final FlowControlledStream slow = new FlowControlledStream();
+		while (slow.getFlowControl().tryAcquirePackage())
+		{
+			// exhaust the package window
+		}
+		final TCPStreamOutputStream slowOut = new TCPStreamOutputStream(slow, TCPStreamWriteMode.COALESCE, 20);
+		slowOut.write(new byte[10]);
+		Thread.sleep(100);
+
+		final RecordingStream other = new RecordingStream();
+		final TCPStreamOutputStream otherOut = new TCPStreamOutputStream(other, TCPStreamWriteMode.COALESCE, 20);
+		final long start = System.currentTimeMillis();
+		otherOut.write(new byte[10]);
+		awaitCells(other, 1);
+		assertEquals(1, other.getCells().size());
+		assertTrue(System.currentTimeMillis() - start < 1000);
+		assertEquals(0, slow.getCells().size());
+
+		// the RELAY_SENDME opens the window, the buffered cell is sent
+		slow.getFlowControl().sendmeReceived();
+		awaitCells(slow, 1);
+		assertEquals(1, slow.getCells().size());
+	}
+
+	/**
+	 * a stream blocked while sending, e.g. by the circuit window, must not
+	 * delay the timed flush of other streams.
+	 */
+	@Test(timeOut = 10000)
+	public void testCoalesceWithBlockedSend() throws Exception
+	{
+		final BlockedStream blocked = new BlockedStream();
+		final TCPStreamOutputStream blockedOut = new TCPStreamOutputStream(blocked, TCPStreamWriteMode.COALESCE, 20);
+		blockedOut.write(new byte[10]);
+		Thread.sleep(100);
+		try
+		{
+			final RecordingStream other = new RecordingStream();
+			final TCPStreamOutputStream otherOut = new TCPStreamOutputStream(other, TCPStreamWriteMode.COALESCE, 20);
+			otherOut.write(new byte[10]);
+			awaitCells(other, 1);
+			assertEquals(1, other.getCells().size());
+		}
+		finally
+		{
+			blocked.release.countDown();
+		}
+		awaitCells(blocked, 1);
+		assertEquals(1, blocked.getCells().size());
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.util;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.security.Key;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test {@link AESCtrRelayCipher} against the reference implementation
+ * {@link AESCounterMode}.
+ *
+ * @author Tobias Boese
+ */
+public class AESCtrRelayCipherLocalTest
+{
+	/** size of a cell payload. */
+	private static final int PAYLOAD_SIZE = 509;
+	/** size of a complete cell. */
+	private static final int CELL_SIZE = 512;
+	/** position of the payload in a cell. */
+	private static final int PAYLOAD_POS = 3;
+
+	/** cell sizes used for the tests: full payloads and odd sizes to check the key stream continuity. */
+	private static final int[] SIZES = {PAYLOAD_SIZE, PAYLOAD_SIZE, 1, 15, 16, 17, 33,
+			PAYLOAD_SIZE, 0, 1000, PAYLOAD_SIZE, 3};
+
+	private static Key createKey(final long seed)
+	{
+		final byte[] key = new byte[AESCounterMode.KEY_LEN];
+		new Random(seed).nextBytes(key);
+		return new SecretKeySpec(key, "AES");
+	}
+
+	/**
+	 * compare the output of the reference implementation with the new one over
+	 * several cells.
+	 */
+	private void checkAgainstReference(final boolean tryNativeCounterMode)
+	{
+		final Key key = createKey(4711);
+		final AESCounterMode reference = new AESCounterMode(key);
+		final AESCtrRelayCipher cipher = new AESCtrRelayCipher(key, tryNativeCounterMode);
+		final Random random = new Random(42);
+		for (int round = 0; round < 20; round++)
+		{
+			for (final int size : SIZES)
+			{
+				final byte[] data = new byte[size];
+				random.nextBytes(data);
+				final byte[] expected = reference.processStream(data);
+				cipher.process(data);
+				assertTrue("mismatch in round " + round + " size " + size, Arrays.equals(expected, data));
+			}
+		}
+	}
+
+	@Test
+	public void testNativeCounterModeMatchesReference()
+	{
+		checkAgainstReference(true);
+	}
+
+	@Test
+	public void testFallbackMatchesReference()
+	{
+		assertFalse(new AESCtrRelayCipher(createKey(1), false).isNativeCounterMode());
+		checkAgainstReference(false);
+	}
+
+	@Test
+	public void testInPlaceWithOffset()
+	{
+		final Key key = createKey(815);
+		final byte[] plain = new byte[CELL_SIZE];
+		new Random(1).nextBytes(plain);
+		final byte[] buffer = plain.clone();
+		final AESCtrRelayCipher encrypt = new AESCtrRelayCipher(key);
+		final AESCtrRelayCipher decrypt = new AESCtrRelayCipher(key);
+		encrypt.process(buffer, PAYLOAD_POS, PAYLOAD_SIZE);
+		// header must not be touched
+		for (int i = 0; i < PAYLOAD_POS; i++)
+		{
+			assertEquals(plain[i], buffer[i]);
+		}
+		assertFalse(Arrays.equals(plain, buffer));
+		decrypt.process(buffer, PAYLOAD_POS, PAYLOAD_SIZE);
+		assertTrue(Arrays.equals(plain, buffer));
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.util;
+
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+/**
+ * Test {@link RelayDigest} against the clone based running digest.
+ *
+ * @author Tobias Boese
+ */
+public class RelayDigestLocalTest
+{
+	/** */
+	private static final Logger LOG = LoggerFactory.getLogger(RelayDigestLocalTest.class);
+
+	/** size of a relay cell payload. */
+	private static final int PAYLOAD_SIZE = 509;
+
+	private static byte[] createSeed()
+	{
+		final byte[] seed = new byte[RelayDigest.DIGEST_LEN];
+		new Random(4711).nextBytes(seed);
+		return seed;
+	}
+
+	@Test
+	public void testIntermediateDigestMatchesMessageDigest()
+	{
+		final byte[] seed = createSeed();
+		final MessageDigest reference = Encryption.getMessagesDigest();
+		reference.update(seed);
+		final RelayDigest digest = new RelayDigest(seed);
+		assertTrue(Arrays.equals(Encryption.intermediateDigest(reference), digest.getDigest()));
+
+		final Random random = new Random(42);
+		// payloads and some odd sizes to test the block handling
+		final int[] sizes = {PAYLOAD_SIZE, 1, 55, 56, 63, 64, 65, 119, 128, 0, PAYLOAD_SIZE, 1000};
+		for (int round = 0; round < 10; round++)
+		{
+			for (final int size : sizes)
+			{
+				final byte[] data = new byte[size];
+				random.nextBytes(data);
+				reference.update(data);
+				digest.update(data, 0, size);
+				assertTrue("mismatch for size " + size,
+						Arrays.equals(Encryption.intermediateDigest(reference), digest.getDigest()));
+			}
+		}
+	}
+
+	@Test
+	public void testCheckRestoresStateOnMismatch()
+	{
+		final byte[] seed = createSeed();
+		final RelayDigest sender = new RelayDigest(seed);
+		final RelayDigest receiver = new RelayDigest(seed);
+		final Random random = new Random(1);
+		final byte[] expected = new byte[RelayDigest.RELAY_DIGEST_LEN];
+		for (int i = 0; i < 5; i++)
+		{
+			final byte[] payload = new byte[PAYLOAD_SIZE];
+			random.nextBytes(payload);
+			sender.update(payload, 0, PAYLOAD_SIZE);
+			sender.getDigest(expected, 0, RelayDigest.RELAY_DIGEST_LEN);
+
+			// a cell which is not for us must not change the state
+			final byte[] otherPayload = new byte[PAYLOAD_SIZE];
+			random.nextBytes(otherPayload);
+			assertFalse(receiver.check(otherPayload, expected));
+
+			assertTrue(receiver.check(payload, expected));
+		}
+		assertTrue(Arrays.equals(sender.getDigest(), receiver.getDigest()));
+	}
+
+	/**
+	 * compare the time needed per cell with the clone based approach (only logged).
+	 */
+	@Test
+	public void testPerformanceComparedToClone()
+	{
+		final int cells = 20000;
+		final byte[] seed = createSeed();
+		final byte[] payload = new byte[PAYLOAD_SIZE];
+		new Random(3).nextBytes(payload);
+		final byte[] expected = new byte[RelayDigest.RELAY_DIGEST_LEN];
+
+		final MessageDigest reference = Encryption.getMessagesDigest();
+		reference.update(seed);
+		long start = System.nanoTime();
+		for (int i = 0; i < cells; i++)
+		{
+			reference.update(payload);
+			final byte[] full = Encryption.intermediateDigest(reference);
+			System.arraycopy(full, 0, expected, 0, RelayDigest.RELAY_DIGEST_LEN);
+		}
+		final long cloneNanos = System.nanoTime() - start;
+
+		final RelayDigest digest = new RelayDigest(seed);
+		start = System.nanoTime();
+		for (int i = 0; i < cells; i++)
+		{
+			digest.update(payload, 0, PAYLOAD_SIZE);
+			digest.getDigest(expected, 0, RelayDigest.RELAY_DIGEST_LEN);
+		}
+		final long relayDigestNanos = System.nanoTime() - start;
+
+		LOG.info("running digest per cell: MessageDigest.clone() = {} ns, RelayDigest = {} ns",
+				cloneNanos / cells, relayDigestNanos / cells);
+		assertTrue(Arrays.equals(Encryption.intermediateDigest(reference), digest.getDigest()));
+	}
+}
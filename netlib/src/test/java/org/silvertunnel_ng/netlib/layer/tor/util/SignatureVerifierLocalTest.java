@@ -0,0 +1,136 @@
+/*
+ * silvertunnel.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2009-2012 silvertunnel.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.layer.tor.util;
+
+import org.silvertunnel_ng.netlib.util.StringStorage;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertFalse;
+import static org.testng.AssertJUnit.assertNotNull;
+import static org.testng.AssertJUnit.assertTrue;
+
+/**
+ * Test of {@link SignatureVerifier}.
+ *
+ * @author Tobias Boese
+ */
+public class SignatureVerifierLocalTest {
+    private static final byte[] DATA = "signed document".getBytes();
+    private static final byte[] OTHER_DATA = "another signed document".getBytes();
+    private static final byte[] THIRD_DATA = "a third signed document".getBytes();
+
+    private RSAKeyPair keyPair;
+
+    @BeforeMethod
+    public void setUp() {
+        SignatureVerifier.clear();
+        keyPair = Encryption.createNewRSAKeyPair();
+    }
+
+    @Test(timeOut = 50000)
+    public void testVerifyRemembersValidSignatures() {
+        final byte[] signature = Encryption.signData(DATA, keyPair.getPrivate());
+        final byte[] otherSignature = Encryption.signData(OTHER_DATA, keyPair.getPrivate());
+
+        // a signature over other data is wrong and not remembered
+        assertFalse(SignatureVerifier.verify(otherSignature, keyPair.getPublic(), Encryption.getDigest(DATA)));
+        assertEquals(0, SignatureVerifier.size());
+
+        assertTrue(SignatureVerifier.verify(signature, keyPair.getPublic(), Encryption.getDigest(DATA)));
+        assertEquals(1, SignatureVerifier.size());
+
+        // the data was verified with this key before, so no RSA operation is needed
+        assertTrue(SignatureVerifier.verify(otherSignature, keyPair.getPublic(), Encryption.getDigest(DATA)));
+        assertEquals(1, SignatureVerifier.size());
+
+        // but not with another key
+        final RSAKeyPair otherKeyPair = Encryption.createNewRSAKeyPair();
+        assertFalse(SignatureVerifier.verify(Encryption.signData(OTHER_DATA, otherKeyPair.getPrivate()),
+                otherKeyPair.getPublic(), Encryption.getDigest(DATA)));
+    }
+
+    @Test(timeOut = 50000)
+    public void testVerifyAll() {
+        final List<SignatureVerifier.Verification> verifications = new ArrayList<SignatureVerifier.Verification>();
+        verifications.add(new SignatureVerifier.Verification(
+                Encryption.signData(DATA, keyPair.getPrivate()), keyPair.getPublic(), Encryption.getDigest(DATA)));
+        verifications.add(new SignatureVerifier.Verification(
+                Encryption.signData(OTHER_DATA, keyPair.getPrivate()), keyPair.getPublic(), Encryption.getDigest(THIRD_DATA)));
+        verifications.add(new SignatureVerifier.Verification(
+                new byte[]{1, 2, 3}, keyPair.getPublic(), Encryption.getDigest(OTHER_DATA)));
+        verifications.add(new SignatureVerifier.Verification(
+                Encryption.signData(OTHER_DATA, keyPair.getPrivate()), keyPair.getPublic(), Encryption.getDigest(OTHER_DATA)));
+
+        final boolean[] result = SignatureVerifier.verifyAll(verifications);
+
+        assertEquals(4, result.length);
+        assertTrue(result[0]);
+        assertFalse(result[1]);
+        assertFalse("a broken signature is invalid", result[2]);
+        assertTrue(result[3]);
+        assertEquals(2, SignatureVerifier.size());
+    }
+
+    @Test(timeOut = 50000)
+    public void testSaveAndLoad() {
+        final MemoryStringStorage storage = new MemoryStringStorage();
+        assertTrue(SignatureVerifier.verify(Encryption.signData(DATA, keyPair.getPrivate()),
+                keyPair.getPublic(), Encryption.getDigest(DATA)));
+        SignatureVerifier.save(storage);
+        assertNotNull(storage.get(SignatureVerifier.STORAGEKEY_VERIFIED_SIGNATURES_TXT));
+
+        // next start
+        SignatureVerifier.clear();
+        SignatureVerifier.load(storage);
+        assertEquals(1, SignatureVerifier.size());
+        assertTrue(SignatureVerifier.verify(Encryption.signData(OTHER_DATA, keyPair.getPrivate()),
+                keyPair.getPublic(), Encryption.getDigest(DATA)));
+
+        // loaded only once per storage
+        SignatureVerifier.verify(Encryption.signData(OTHER_DATA, keyPair.getPrivate()),
+                keyPair.getPublic(), Encryption.getDigest(OTHER_DATA));
+        storage.put(SignatureVerifier.STORAGEKEY_VERIFIED_SIGNATURES_TXT, "");
+        SignatureVerifier.load(storage);
+        assertEquals(2, SignatureVerifier.size());
+    }
+
+    /**
+     * keeps the values in memory.
+     */
+    private static final class MemoryStringStorage implements StringStorage {
+        private final Map<String, String> values = new HashMap<String, String>();
+
+        @Override
+        public void put(final String key, final String value) {
+            values.put(key, value);
+        }
+
+        @Override
+        public String get(final String key) {
+            return values.get(key);
+        }
+    }
+}
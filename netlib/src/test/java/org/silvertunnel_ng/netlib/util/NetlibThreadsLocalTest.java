@@ -0,0 +1,107 @@
+/*
+ * silvertunnel-ng.org Netlib - Java library to easily access anonymity networks
+ * Copyright (c) 2013 silvertunnel-ng.org
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.silvertunnel_ng.netlib.util;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertSame;
+import static org.testng.AssertJUnit.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.silvertunnel_ng.netlib.util.NetlibThreads.Subsystem;
+import org.silvertunnel_ng.netlib.util.NetlibThreads.ThreadMode;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test of {@link NetlibThreads}.
+ * 
+ * @author Tobias Boese
+ */
+public final class NetlibThreadsLocalTest
+{
+	@AfterMethod
+	public void resetMode()
+	{
+		NetlibThreads.setThreadMode(ThreadMode.PLATFORM);
+	}
+
+	@Test(timeOut = 10000)
+	public void testLiveThreadCount() throws Exception
+	{
+		final int before = NetlibThreads.getLiveThreadCount(Subsystem.OTHER);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Thread thread = NetlibThreads.start(Subsystem.OTHER, "NetlibThreadsLocalTest", new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				started.countDown();
+				try
+				{
+					release.await();
+				}
+				catch (final InterruptedException e)
+				{
+					// ignore
+				}
+			}
+		}, true);
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		assertEquals("NetlibThreadsLocalTest", thread.getName());
+		assertEquals(before + 1, NetlibThreads.getLiveThreadCount(Subsystem.OTHER));
+		assertEquals(Integer.valueOf(before + 1), NetlibThreads.getLiveThreadCounts().get(Subsystem.OTHER));
+		release.countDown();
+		thread.join();
+		assertEquals(before, NetlibThreads.getLiveThreadCount(Subsystem.OTHER));
+	}
+
+	@Test
+	public void testThreadFactoryNames()
+	{
+		final ThreadFactory threadFactory = NetlibThreads.threadFactory(Subsystem.OTHER, "Pool", true);
+		final Runnable task = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				// nothing to do
+			}
+		};
+		assertEquals("Pool-1", threadFactory.newThread(task).getName());
+		assertEquals("Pool-2", threadFactory.newThread(task).getName());
+	}
+
+	@Test
+	public void testVirtualModeFallsBackWithoutSupport()
+	{
+		NetlibThreads.setThreadMode(ThreadMode.VIRTUAL);
+		if (NetlibThreads.isVirtualThreadSupported())
+		{
+			assertTrue(NetlibThreads.getFactory() != NetlibThreads.PLATFORM_THREAD_FACTORY);
+		}
+		else
+		{
+			assertSame(NetlibThreads.PLATFORM_THREAD_FACTORY, NetlibThreads.getFactory());
+		}
+	}
+}